@@ -17,7 +17,7 @@ public class MetaDataBean implements Serializable {
     private long id;
     // 标签ID
     private long tagId;
-    // 输入方式：1hive、2hdfs、3hbase、4mysql
+    // 输入方式：1hive、2hdfs、3hbase、4mysql、5snapshot(HBase表的Parquet快照)
     private String inType;
 
     //============= Hive、RDBMS =============
@@ -176,6 +176,16 @@ public class MetaDataBean implements Serializable {
         return this;
     }
 
+    public MetaDataBean buildSnapshotMeta(String hbaseTable, String family, String selectFieldNames, String whereFieldNames, String whereFieldValues) {
+        this.inType = "snapshot";
+        this.hbaseTable = hbaseTable;
+        this.family = family;
+        this.selectFieldNames = selectFieldNames;
+        this.whereFieldNames = whereFieldNames;
+        this.whereFieldValues = whereFieldValues;
+        return this;
+    }
+
     public long getId() {
         return id;
     }
@@ -0,0 +1,156 @@
+package cn.itcast.model.beans;
+
+import java.io.Serializable;
+
+/**
+ * 标签模型单次运行的执行指标DTO
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ModelMetricsBean implements Serializable {
+
+    private static final long serialVersionUID = 4719256324617329401L;
+    private String runId;           //运行ID：applicationId-开始时间
+    private String model;           //模型名称
+    private int status;             //运行状态：1成功、2失败
+    private long startTime;         //开始时间(毫秒)
+    private long endTime;           //结束时间(毫秒)
+    private int stageCount;         //Stage数
+    private long inputRecords;      //读取的数据源行数
+    private long inputBytes;        //读取的数据源字节数
+    private long shuffleReadBytes;  //Shuffle读取字节数
+    private long shuffleWriteBytes; //Shuffle写入字节数
+    private long spillBytes;        //内存和磁盘溢写字节数
+    private long gcTime;            //Executor GC时间(毫秒)
+    private long profileRows;       //写入画像表的行数
+    private String stages;          //各Stage的指标，JSON数组
+
+    public ModelMetricsBean() {
+        super();
+    }
+
+    public long getDuration() {
+        return endTime - startTime;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public void setModel(String model) {
+        this.model = model;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(long endTime) {
+        this.endTime = endTime;
+    }
+
+    public int getStageCount() {
+        return stageCount;
+    }
+
+    public void setStageCount(int stageCount) {
+        this.stageCount = stageCount;
+    }
+
+    public long getInputRecords() {
+        return inputRecords;
+    }
+
+    public void setInputRecords(long inputRecords) {
+        this.inputRecords = inputRecords;
+    }
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public void setInputBytes(long inputBytes) {
+        this.inputBytes = inputBytes;
+    }
+
+    public long getShuffleReadBytes() {
+        return shuffleReadBytes;
+    }
+
+    public void setShuffleReadBytes(long shuffleReadBytes) {
+        this.shuffleReadBytes = shuffleReadBytes;
+    }
+
+    public long getShuffleWriteBytes() {
+        return shuffleWriteBytes;
+    }
+
+    public void setShuffleWriteBytes(long shuffleWriteBytes) {
+        this.shuffleWriteBytes = shuffleWriteBytes;
+    }
+
+    public long getSpillBytes() {
+        return spillBytes;
+    }
+
+    public void setSpillBytes(long spillBytes) {
+        this.spillBytes = spillBytes;
+    }
+
+    public long getGcTime() {
+        return gcTime;
+    }
+
+    public void setGcTime(long gcTime) {
+        this.gcTime = gcTime;
+    }
+
+    public long getProfileRows() {
+        return profileRows;
+    }
+
+    public void setProfileRows(long profileRows) {
+        this.profileRows = profileRows;
+    }
+
+    public String getStages() {
+        return stages;
+    }
+
+    public void setStages(String stages) {
+        this.stages = stages;
+    }
+
+    @Override
+    public String toString() {
+        return "ModelMetricsBean [runId=" + runId + ", model=" + model + ", status=" + status + ", duration=" + getDuration()
+                + ", stageCount=" + stageCount + ", inputRecords=" + inputRecords + ", inputBytes=" + inputBytes
+                + ", shuffleReadBytes=" + shuffleReadBytes + ", shuffleWriteBytes=" + shuffleWriteBytes
+                + ", spillBytes=" + spillBytes + ", gcTime=" + gcTime + ", profileRows=" + profileRows + "]";
+    }
+
+}
@@ -1,10 +1,29 @@
 package cn.itcast.model.models;
 
+import cn.itcast.model.beans.BasicTagBean;
+import cn.itcast.model.beans.MetaDataBean;
 import cn.itcast.model.beans.Tag;
+import cn.itcast.model.tools.mysql.ChangedUsers;
+import cn.itcast.model.tools.mysql.ModelMetrics;
+import cn.itcast.model.tools.mysql.ModelWatermark;
+import cn.itcast.model.tools.spark.sql.ModelMetricsListener;
+import cn.itcast.model.tools.spark.sql.RuleTable;
+import cn.itcast.model.tools.spark.sql.SnapshotManager;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.storage.StorageLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import scala.Option;
 
-import java.util.List;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * 标签模型超类
@@ -15,7 +34,26 @@ public abstract class AbstractModel {
 
     public String name;
     public String describe;
+    // 增量计算的启动参数
+    public static final String INCREMENTAL_ARG = "--incremental";
+    // HBase数据源的RowKey列
+    private static final String ROW = "row";
+    // HBase表Parquet快照数据源
+    public static final String SNAPSHOT = "snapshot";
+    // 增量计算时下推到HBase的RowKey/用户ID个数上限，超过时退化为全表扫描后关联
+    private static final int MAX_PUSHDOWN_KEYS = 50000;
     private Logger logger = LoggerFactory.getLogger(getClass());
+    private boolean incremental;
+    // 最近一次loadChanged得到的有变化的用户，全量计算时为null
+    private Dataset<String> changedUserDS;
+    // 本次增量计算的时间范围[lastWatermark, currentWatermark)
+    private long lastWatermark;
+    private long currentWatermark;
+    private Exception error;
+    // 本次运行缓存的数据，多个模型共享SparkSession时运行结束必须释放，否则一直占用Executor的存储
+    private final List<Dataset<?>> cached = new ArrayList<Dataset<?>>();
+    // 本次运行广播的规则表，运行结束后释放广播
+    private final List<RuleTable> ruleTables = new ArrayList<RuleTable>();
 
     public AbstractModel(String name, String describe) {
         this.name = name;
@@ -72,21 +110,327 @@ public abstract class AbstractModel {
     }
 
     /**
-     * 运行标签模型
+     * 缓存数据，模型运行结束时(clear之前)释放
+     *
+     * @param dataset
+     * @param level
+     * @return 缓存后的数据
+     */
+    protected <T> Dataset<T> persist(Dataset<T> dataset, StorageLevel level) {
+        Dataset<T> cacheDS = dataset.persist(level);
+        cached.add(cacheDS);
+        return cacheDS;
+    }
+
+    /**
+     * 通过规则表计算标签列，规则表的广播在模型运行结束时(clear之前)释放
+     *
+     * @param ruleTable
+     * @param session
+     * @param field     字段列
+     * @return
+     */
+    protected Column applyRules(RuleTable ruleTable, SparkSession session, Column field) {
+        ruleTables.add(ruleTable);
+        return ruleTable.apply(session, field);
+    }
+
+    /**
+     * 释放本次运行缓存的数据和广播的规则表
+     */
+    private void unpersistAll() {
+        for (Dataset<?> cacheDS : cached) {
+            try {
+                cacheDS.unpersist();
+            } catch (Exception e) {
+                logger.warn("==== unpersistAll@err:{} ====", e.getMessage());
+            }
+        }
+        cached.clear();
+        for (RuleTable ruleTable : ruleTables) {
+            try {
+                ruleTable.destroy();
+            } catch (Exception e) {
+                logger.warn("==== unpersistAll@err:{} ====", e.getMessage());
+            }
+        }
+        ruleTables.clear();
+    }
+
+    /**
+     * 是否增量计算，首次运行没有高水位时按全量计算
+     *
+     * @return
+     */
+    public boolean isIncremental() {
+        return incremental && lastWatermark > 0;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public long getLastWatermark() {
+        return lastWatermark;
+    }
+
+    public long getCurrentWatermark() {
+        return currentWatermark;
+    }
+
+    /**
+     * 读取数据源的全部数据，inType为snapshot时读取当前调度窗口的Parquet快照，否则扫描HBase
+     *
+     * @param session
+     * @param meta    数据源规则
+     * @param format  HBase数据源插件
+     * @param options 数据源配置
+     * @return
+     */
+    protected Dataset<Row> loadSource(SparkSession session, MetaDataBean meta, String format, Map<String, String> options) {
+        if (SNAPSHOT.equalsIgnoreCase(meta.getInType())) {
+            return new SnapshotManager(new ModelConfig())
+                    .load(session, meta.getHbaseTable(), meta.getFamily(), meta.getSelectFieldNames(), meta.getWhereFieldNames());
+        }
+        return session.read().format(format).options(options).load();
+    }
+
+    /**
+     * 按数据源规则读取数据，snapshot数据源不支持增量计算，总是读取全部数据
+     *
+     * @see #loadChanged(SparkSession, String, Map, String)
+     */
+    protected Dataset<Row> loadChanged(SparkSession session, MetaDataBean meta, String format, Map<String, String> options, String userColumn) {
+        if (SNAPSHOT.equalsIgnoreCase(meta.getInType())) {
+            changedUserDS = null;
+            if (isIncremental()) {
+                logger.warn("==== 快照数据源不支持增量计算，按全量计算 ====");
+            }
+            return loadSource(session, meta, format, options);
+        }
+        return loadChanged(session, format, options, userColumn);
+    }
+
+    /**
+     * 读取HBase数据源，增量计算时只返回在上次运行后有数据变化的用户的全部数据。
+     * 先按Cell时间戳范围扫描出有变化的RowKey，源表的RowKey就是用户ID时userColumn传row，
+     * 否则(如订单表)再按这些RowKey读取出变化的用户；两种情况都合并CDC同步记录的变更用户(如源表行被删除的用户)后，
+     * 只读取这些用户的全部数据；RowKey和用户ID都下推到HBase，读取量与变化量成正比，只有全量计算时才扫描全表。
+     * 有变化的用户保留到下一次loadChanged，由{@link #withClearedUsers(Dataset)}移除其中已没有标签的用户的旧标签
+     *
+     * @param session
+     * @param format     HBase数据源插件
+     * @param options    数据源配置
+     * @param userColumn 用户ID列
+     * @return
      */
-    public void execute() {
+    protected Dataset<Row> loadChanged(SparkSession session, String format, Map<String, String> options, String userColumn) {
+        changedUserDS = null;
+        if (!isIncremental()) {
+            return session.read().format(format).options(options).load();
+        }
+        logger.info("==== 增量计算时间范围[{},{}) ====", lastWatermark, currentWatermark);
+        // 只读取RowKey的时间范围扫描，时间范围外的Cell和HFile都会被跳过
+        Map<String, String> changedOptions = new HashMap<String, String>(options);
+        changedOptions.put(ModelConfig.HBASE_SCAN_MIN_STAMP, lastWatermark + "");
+        changedOptions.put(ModelConfig.HBASE_SCAN_MAX_STAMP, currentWatermark + "");
+        Dataset<String> changedRowDS = session.read().format(format).options(changedOptions).load()
+                .select(ROW).as(Encoders.STRING());
+        List<String> changedRows = changedRowDS.limit(MAX_PUSHDOWN_KEYS + 1).collectAsList();
+        logger.info("==== 有变化的行数:{} ====", changedRows.size());
+        Set<String> recordedUsers;
+        try {
+            recordedUsers = new ChangedUsers(new ModelConfig()).get(options.get(ModelConfig.HBASE_TABLE), lastWatermark, currentWatermark);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        if (!recordedUsers.isEmpty()) {
+            logger.info("==== CDC同步记录的变更用户数:{} ====", recordedUsers.size());
+        }
+        if (changedRows.size() > MAX_PUSHDOWN_KEYS) {
+            logger.warn("==== 有变化的行数超过{}，按全表扫描后关联 ====", MAX_PUSHDOWN_KEYS);
+            Dataset<Row> cacheDF = persist(session.read().format(format).options(options).load(), StorageLevel.DISK_ONLY());
+            Dataset<String> recordedDS = session.createDataset(new ArrayList<String>(recordedUsers), Encoders.STRING());
+            if (ROW.equals(userColumn)) {
+                changedUserDS = changedRowDS.union(recordedDS).distinct();
+            } else {
+                changedUserDS = semiJoin(cacheDF, ROW, changedRowDS).select(userColumn).as(Encoders.STRING())
+                        .union(recordedDS)
+                        .distinct();
+            }
+            return semiJoin(cacheDF, userColumn, changedUserDS);
+        }
+        Set<String> changedUsers;
+        if (ROW.equals(userColumn)) {
+            changedUsers = new HashSet<String>(changedRows);
+        } else {
+            // 按RowKey批量读取变化行的用户ID，不能带时间范围，用户ID列可能早于本次变化写入
+            changedUsers = new HashSet<String>(loadByKeys(session, format, options, ROW, changedRows)
+                    .select(userColumn).where(functions.col(userColumn).isNotNull()).as(Encoders.STRING()).collectAsList());
+        }
+        changedUsers.addAll(recordedUsers);
+        logger.info("==== 有变化的用户数:{} ====", changedUsers.size());
+        changedUserDS = session.createDataset(new ArrayList<String>(changedUsers), Encoders.STRING());
+        if (changedUsers.size() > MAX_PUSHDOWN_KEYS) {
+            logger.warn("==== 有变化的用户数超过{}，按全表扫描后关联 ====", MAX_PUSHDOWN_KEYS);
+            return semiJoin(session.read().format(format).options(options).load(), userColumn, changedUserDS);
+        }
+        return loadByKeys(session, format, options, userColumn, changedUsers);
+    }
+
+    /**
+     * 增量计算时，为有变化但没有计算出标签的用户(源表行已全部删除或不再满足任何规则)补充tagId为0的行，
+     * 由{@link cn.itcast.model.tools.hbase.ProfileWriter}移除这些用户在本模型四级标签下的旧标签；全量计算时原样返回
+     *
+     * @param userTagDF 第一列为userId，第二列为五级标签ID
+     * @return
+     */
+    protected Dataset<Row> withClearedUsers(Dataset<Row> userTagDF) {
+        if (!isIncremental() || null == changedUserDS) {
+            return userTagDF;
+        }
+        StructField[] fields = userTagDF.schema().fields();
+        Dataset<Row> taggedDF = userTagDF.where(userTagDF.col(fields[1].name()).isNotNull())
+                .select(userTagDF.col(fields[0].name()).alias("taggedUser"));
+        Dataset<Row> changedDF = changedUserDS.toDF("clearedUser");
+        Column[] columns = new Column[fields.length];
+        columns[0] = changedDF.col("clearedUser").cast(fields[0].dataType());
+        columns[1] = functions.lit(0).cast(fields[1].dataType());
+        for (int i = 2; i < fields.length; i++) {
+            columns[i] = functions.lit(null).cast(fields[i].dataType());
+        }
+        Dataset<Row> clearedDF = changedDF.join(taggedDF, changedDF.col("clearedUser").equalTo(taggedDF.col("taggedUser")), "leftanti")
+                .select(columns);
+        return userTagDF.union(clearedDF);
+    }
+
+    /**
+     * 读取column在keys中的行，column为row时下推为MultiRowRangeFilter，否则下推为SingleColumnValueFilter
+     *
+     * @param session
+     * @param format
+     * @param options
+     * @param column  RowKey列或用户ID列
+     * @param keys
+     * @return
+     */
+    private Dataset<Row> loadByKeys(SparkSession session, String format, Map<String, String> options, String column, Collection<String> keys) {
+        Dataset<Row> sourceDF = session.read().format(format).options(options).load();
+        if (keys.isEmpty()) {
+            return sourceDF.where(functions.lit(false));
+        }
+        return sourceDF.where(functions.col(column).isin(keys.toArray()));
+    }
+
+    /**
+     * 变化量过大时使用，返回sourceDF中column在keyDS中的行
+     *
+     * @param sourceDF
+     * @param column   RowKey列或用户ID列
+     * @param keyDS    有变化的RowKey或用户ID
+     * @return
+     */
+    private Dataset<Row> semiJoin(Dataset<Row> sourceDF, String column, Dataset<String> keyDS) {
+        Dataset<Row> keyDF = keyDS.toDF("changedKey");
+        return sourceDF.join(keyDF, sourceDF.col(column).equalTo(keyDF.col("changedKey")), "leftsemi");
+    }
+
+    /**
+     * 运行标签模型，参数包含--incremental时按增量计算
+     *
+     * @param args
+     * @return 是否运行成功
+     */
+    public boolean execute(String[] args) {
+        setIncremental(null != args && Arrays.asList(args).contains(INCREMENTAL_ARG));
+        return execute();
+    }
+
+    /**
+     * 运行标签模型，运行期间统计Spark执行指标，结束后按标签ID和运行ID保存
+     *
+     * @return 是否运行成功
+     */
+    public boolean execute() {
         logger.info("==== Running the model:{} ====", describe);
         prepare();
+        List<? extends Tag> tags = null;
+        ModelMetricsListener metricsListener = null;
+        boolean success = false;
         try {
-            getTag();
+            tags = getTag();
+            metricsListener = startMetrics();
+            ModelWatermark watermark = null;
+            if (incremental) {
+                watermark = new ModelWatermark(new ModelConfig());
+                currentWatermark = System.currentTimeMillis();
+                lastWatermark = watermark.get(name);
+                logger.info("==== 模型:{} 上次运行的高水位:{} ====", name, lastWatermark);
+            }
             compute();
+            if (incremental) {
+                // 计算成功后才推进高水位，失败时下次从原高水位重新计算
+                watermark.update(name, currentWatermark);
+            }
+            success = true;
+            return true;
         } catch (Exception e) {
+            error = e;
             e.printStackTrace();
+            return false;
         } finally {
+            // 在clear关闭SparkSession之前结束统计
+            if (null != metricsListener) {
+                saveMetrics(metricsListener, tags, success);
+            }
+            // 在clear关闭SparkSession之前释放缓存和广播
+            unpersistAll();
             clear();
         }
     }
 
+    /**
+     * 在模型的SparkSession上注册执行指标监听器，没有SparkSession时不统计
+     *
+     * @return
+     */
+    private ModelMetricsListener startMetrics() {
+        Option<SparkSession> session = SparkSession.getDefaultSession();
+        if (!session.isDefined()) {
+            return null;
+        }
+        return ModelMetricsListener.start(session.get().sparkContext(), name);
+    }
+
+    /**
+     * 保存执行指标，保存失败不影响模型的运行结果
+     *
+     * @param metricsListener
+     * @param tags            模型计算的标签，按其中的四级标签保存
+     * @param success         是否运行成功
+     */
+    private void saveMetrics(ModelMetricsListener metricsListener, List<? extends Tag> tags, boolean success) {
+        try {
+            List<Long> tagIds = null == tags ? Collections.emptyList() : tags.stream()
+                    .filter(tag -> tag instanceof BasicTagBean && ((BasicTagBean) tag).getLevel() == 4)
+                    .map(tag -> ((BasicTagBean) tag).getId())
+                    .collect(Collectors.toList());
+            new ModelMetrics(new ModelConfig()).save(tagIds, metricsListener.stop(success));
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.error("==== 模型:{} 执行指标保存失败 ====", name);
+        }
+    }
+
+    /**
+     * 获取运行失败的原因
+     *
+     * @return 运行成功时返回null
+     */
+    public Exception getError() {
+        return error;
+    }
+
     /**
      * 测试样例数据
      *
@@ -104,7 +448,8 @@ public abstract class AbstractModel {
     public enum ModelType {
         MATCH,
         ML,
-        STATISTICS
+        STATISTICS,
+        MERGE
     }
 
 }
@@ -0,0 +1,289 @@
+package cn.itcast.model.models;
+
+import cn.itcast.model.beans.BasicTagBean;
+import cn.itcast.model.beans.MetaDataBean;
+import cn.itcast.model.tools.hbase.ProfileWriter;
+import cn.itcast.model.tools.parser.MetaParser;
+import cn.itcast.model.tools.spark.sql.RuleTable;
+import cn.itcast.model.tools.spark.sql.SQLHBase;
+import org.apache.commons.lang.StringUtils;
+import org.apache.spark.SparkConf;
+import org.apache.spark.sql.*;
+import org.apache.spark.storage.StorageLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * 同源标签合并扫描模型
+ * 将数据源规则指向同一张HBase表、同一列簇(且查询条件相同)的四级标签分为一组，每组只扫描一次，
+ * 查询字段取各标签selectFieldNames的并集，在同一个投影中计算所有标签的when规则，
+ * 再按用户合并本组所有标签的结果一次写入画像表。
+ * 适用于按行匹配的标签：五级标签规则为字段值时按相等匹配(如Tag8、Tag13、Tag14、Tag15)，
+ * 为yyyyMMdd-yyyyMMdd时按日期范围匹配(如Tag9)，需要聚合的标签(如Tag21、Tag24)不能合并。
+ * 用法：FusedScanModel 8,9,13,14,15 [--incremental]
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class FusedScanModel extends AbstractModel {
+
+    private static String appName = FusedScanModel.class.getSimpleName();
+    // 业务表同步到HBase时以id列为RowKey(见MySQL2HBaseSync)，用户ID列为id时源表按用户ID分布
+    private static final String ROW_KEY_COLUMN = "id";
+    private static final String ROW = "row";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private ModelConfig modelConfig = new ModelConfig();
+    private SparkConf sparkConf;
+    private SparkSession session;
+    private final List<Long> tagIds;
+    private List<BasicTagBean> tag;
+
+    public FusedScanModel(List<Long> tagIds) {
+        super(modelName(tagIds), "同源标签合并扫描模型");
+        this.tagIds = tagIds;
+        sparkConf = new SparkConf()
+                .setAppName(appName)
+                .setMaster(modelConfig.getSparkMaster())
+                .registerKryoClasses(new Class[]{BasicTagBean.class});
+        session = SQLHBase.getSession(sparkConf);
+        logger.info("==== 已初始化SparkSQL相关配置 ====");
+    }
+
+    /**
+     * 模型名称(增量计算的高水位名称)：不同标签组合的合并扫描各自记录高水位
+     *
+     * @param tagIds 四级标签ID
+     * @return 如FusedScanModel_8_9_13
+     */
+    private static String modelName(List<Long> tagIds) {
+        return appName + "_" + tagIds.stream().sorted().distinct().map(String::valueOf).collect(Collectors.joining("_"));
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            LoggerFactory.getLogger(FusedScanModel.class).error("==== 用法：{} 8,9,13,14,15 [--incremental] ====", appName);
+            System.exit(1);
+        }
+        List<Long> tagIds = Arrays.stream(args[0].split(","))
+                .filter(StringUtils::isNotBlank)
+                .map(tagId -> Long.parseLong(tagId.trim()))
+                .collect(Collectors.toList());
+        FusedScanModel tagModel = new FusedScanModel(tagIds);
+        if (!tagModel.execute(args)) {
+            System.exit(1);
+        }
+    }
+
+    @Override
+    public String getType() {
+        return ModelType.MATCH.toString();
+    }
+
+    /**
+     * 一次查询所有四级标签及其五级标签
+     */
+    @SuppressWarnings("serial")
+    @Override
+    public List<BasicTagBean> getTag() {
+        if (null == tag) {
+            String ids = StringUtils.join(tagIds, ",");
+            // SQL按照level字段升序，确保四级标签在五级标签之前
+            Dataset<Row> rowDF = session.read().jdbc(
+                    modelConfig.getMySQLUrl(),
+                    "(SELECT `id`,`name`,`industry`,`rule`,`business`,`level`,`pid`,`ctime`,`utime`,`state`,`remark` FROM `tags`.`tbl_basic_tag` WHERE id IN (" + ids + ") OR pid IN (" + ids + ") ORDER BY `level` ASC, `id` ASC) AS btag",
+                    new Properties() {{
+                        setProperty("driver", modelConfig.getMySQLDriver());
+                    }}
+            );
+            List<Row> rows = rowDF.collectAsList();
+            tag = new LinkedList<BasicTagBean>();
+            rows.forEach(row -> {
+                BasicTagBean bean = new BasicTagBean();
+                if (!row.isNullAt(0)) {
+                    bean.setId(row.getLong(0));
+                }
+                if (!row.isNullAt(1)) {
+                    bean.setName(row.getString(1));
+                }
+                if (!row.isNullAt(2)) {
+                    bean.setIndustry(row.getString(2));
+                }
+                if (!row.isNullAt(3)) {
+                    bean.setRule(row.getString(3));
+                }
+                if (!row.isNullAt(4)) {
+                    bean.setBusiness(row.getString(4));
+                }
+                if (!row.isNullAt(5)) {
+                    bean.setLevel(row.getInt(5));
+                }
+                if (!row.isNullAt(6)) {
+                    bean.setPid(row.getLong(6));
+                }
+                if (!row.isNullAt(7)) {
+                    bean.setCtime(row.getTimestamp(7).toString());
+                }
+                if (!row.isNullAt(8)) {
+                    bean.setUtime(row.getTimestamp(8).toString());
+                }
+                if (!row.isNullAt(9)) {
+                    bean.setState(row.getInt(9));
+                }
+                if (!row.isNullAt(10)) {
+                    bean.setRemark(row.getString(10));
+                }
+                tag.add(bean);
+            });
+        }
+        logger.info("==== 模型所需的标签数据为: {} ====", tag);
+        return tag;
+    }
+
+    @Override
+    public void compute() {
+        if (null == tag || tag.size() == 0) {
+            logger.error("==== 没有该模型的标签数据！  ====");
+            throw new RuntimeException();
+        }
+        // <数据源分组, 组内的四级标签>
+        Map<SourceGroup, List<BasicTagBean>> groups = new LinkedHashMap<SourceGroup, List<BasicTagBean>>();
+        for (BasicTagBean tag4 : tag) {
+            if (tag4.getLevel() != 4 || !tagIds.contains(tag4.getId())) {
+                continue;
+            }
+            if (StringUtils.isEmpty(tag4.getRule())) {
+                logger.error("==== 四级标签:{} 规则不存在！ ====", tag4.getId());
+                throw new RuntimeException();
+            }
+            MetaDataBean meta = MetaParser.getParser(tag4.getRule()).getMeta();
+            if (null == meta || !"hbase".equalsIgnoreCase(meta.getInType())) {
+                logger.error("==== 四级标签:{} 规则解析失败或数据源不是HBase！ ====", tag4.getId());
+                throw new RuntimeException();
+            }
+            String[] fields = meta.getSelectFieldNames().split(",");
+            if (fields.length < 2) {
+                logger.error("==== 四级标签:{} 的查询字段必须为用户ID和标签字段！ ====", tag4.getId());
+                throw new RuntimeException();
+            }
+            SourceGroup group = new SourceGroup(meta.getHbaseTable(), meta.getFamily(), fields[0], meta.getWhereFieldNames());
+            groups.computeIfAbsent(group, k -> new ArrayList<BasicTagBean>()).add(tag4);
+        }
+        for (Map.Entry<SourceGroup, List<BasicTagBean>> entry : groups.entrySet()) {
+            computeGroup(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 扫描一次数据源，计算组内所有四级标签并一次写入画像表
+     *
+     * @param group
+     * @param tags4 组内的四级标签
+     */
+    private void computeGroup(SourceGroup group, List<BasicTagBean> tags4) {
+        // 查询字段：用户ID列 + 各标签字段的并集
+        Set<String> selectFields = new LinkedHashSet<String>();
+        selectFields.add(group.userColumn);
+        List<BasicTagBean> groupTags = new ArrayList<BasicTagBean>();
+        List<Column> tagColumns = new ArrayList<Column>();
+        for (BasicTagBean tag4 : tags4) {
+            String field = MetaParser.getParser(tag4.getRule()).getMeta().getSelectFieldNames().split(",")[1];
+            selectFields.add(field);
+            List<BasicTagBean> tags5 = tag.stream()
+                    .filter(t -> t.getLevel() == 5 && t.getPid() == tag4.getId())
+                    .collect(Collectors.toList());
+            groupTags.add(tag4);
+            groupTags.addAll(tags5);
+            Column tagColumn = toTagColumn(field, tags5);
+            if (null != tagColumn) {
+                tagColumns.add(tagColumn);
+            }
+        }
+        if (tagColumns.isEmpty()) {
+            logger.info("==== 数据源table={},family={} 没有五级标签 ====", group.table, group.family);
+            return;
+        }
+        String fields = StringUtils.join(selectFields, ",");
+        Map<String, String> options;
+        if (StringUtils.isEmpty(group.whereFields)) {
+            options = new HashMap<String, String>(modelConfig.getOptions(group.table, group.family, fields));
+            options.remove(ModelConfig.HBASE_TABLE_WHERE_FIELDS);
+        } else {
+            options = new HashMap<String, String>(modelConfig.getOptions(group.table, group.family, fields, group.whereFields));
+        }
+        logger.info("==== 合并扫描数据源table={},family={},selectFileds={},四级标签={} ====", group.table, group.family, fields,
+                tags4.stream().map(BasicTagBean::getId).collect(Collectors.toList()));
+        String format = modelConfig.getFormat();
+        // 源表的RowKey就是用户ID时按RowKey读取有变化的用户，不需要再按用户ID列关联
+        Dataset<Row> rowDF = loadChanged(session, format, options, ROW_KEY_COLUMN.equals(group.userColumn) ? ROW : group.userColumn);
+        Dataset<Row> cacheDF = persist(rowDF, StorageLevel.DISK_ONLY());
+        // 同一个投影中计算所有标签，再展开为userId,tagId
+        Dataset<Row> userTagDF = cacheDF.select(new Column(group.userColumn),
+                functions.explode(functions.array(tagColumns.toArray(new Column[0]))).alias("tagId"))
+                .where(new Column("tagId").isNotNull());
+
+        // 在Executor端按分区合并已存在的画像数据并写入画像表，组内所有四级标签一次合并，
+        // 只替换用户本次有结果的四级标签下的五级标签，与单独运行各标签模型一致
+        long count = new ProfileWriter(modelConfig, groupTags).write(withClearedUsers(userTagDF));
+        if (count == 0) {
+            logger.info("==== 作业计算完成，但计算结果为空！ ====");
+        }
+        cacheDF.unpersist();
+    }
+
+    /**
+     * 四级标签的规则列：五级标签规则为yyyyMMdd-yyyyMMdd时按日期范围匹配，否则按字段值相等匹配
+     *
+     * @param field 标签字段
+     * @param tags5 五级标签
+     * @return 五级标签ID，没有五级标签时返回null
+     */
+    private Column toTagColumn(String field, List<BasicTagBean> tags5) {
+        RuleTable ruleTable = RuleTable.compile(tags5);
+        return ruleTable.isEmpty() ? null : applyRules(ruleTable, session, new Column(field));
+    }
+
+    @Override
+    public void clear() {
+        if (null != session) {
+            SQLHBase.close(session);
+            logger.info("==== 释放SparkSQL相关资源 ====");
+        }
+    }
+
+    /**
+     * 数据源分组：表、列簇、用户ID列、查询条件都相同的标签合并扫描
+     */
+    private static class SourceGroup {
+
+        private final String table;
+        private final String family;
+        private final String userColumn;
+        private final String whereFields;
+
+        SourceGroup(String table, String family, String userColumn, String whereFields) {
+            this.table = table;
+            this.family = family;
+            this.userColumn = userColumn;
+            this.whereFields = StringUtils.trimToEmpty(whereFields);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SourceGroup)) {
+                return false;
+            }
+            SourceGroup other = (SourceGroup) obj;
+            return Objects.equals(table, other.table) && Objects.equals(family, other.family)
+                    && Objects.equals(userColumn, other.userColumn) && Objects.equals(whereFields, other.whereFields);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, family, userColumn, whereFields);
+        }
+
+    }
+
+}
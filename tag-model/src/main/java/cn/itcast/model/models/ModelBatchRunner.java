@@ -0,0 +1,242 @@
+package cn.itcast.model.models;
+
+import cn.itcast.model.tools.spark.sql.SQLHBase;
+import org.apache.commons.lang.StringUtils;
+import org.apache.spark.SparkConf;
+import org.apache.spark.sql.SparkSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 在同一个SparkSession中批量运行多个标签模型
+ * 按四级标签ID查找模型类，每个模型在独立线程中运行并使用独立的FAIR调度池，
+ * 避免每个标签单独启动一个YARN应用。
+ * 共享Session的配置以这里的SparkConf为准，模型构造时创建的SparkConf(appName、master、Kryo注册类等)
+ * 经getOrCreate返回已有Session时被忽略，模型需要的Spark配置要在这里或spark-submit中统一设置。
+ * 用法：ModelBatchRunner 8,13,14,15 [--parallelism 4] [--incremental]
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ModelBatchRunner {
+
+    private static String appName = ModelBatchRunner.class.getSimpleName();
+    private static Logger logger = LoggerFactory.getLogger(ModelBatchRunner.class);
+    private static final String PARALLELISM_ARG = "--parallelism";
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final String SCHEDULER_POOL = "spark.scheduler.pool";
+    private static final String MODEL_BASE_PACKAGE = "cn.itcast.model.models.";
+    // 按约定查找模型类的包，类名为Tag{四级标签ID}Model
+    private static final String[] MODEL_PACKAGES = {"match", "statistics", "ml.customervalue", "ml.pricesensitivity",
+            "ml.useractive", "ml.shopgender", "ml.shoppreference", "ml.userpurchaspower"};
+    private static final String SELECT_MODEL_SQL = "SELECT `model_main` FROM `tags`.`tbl_model` WHERE `tag_id` = ?";
+    private ModelConfig modelConfig = new ModelConfig();
+    private final int parallelism;
+    private final boolean incremental;
+
+    public ModelBatchRunner(int parallelism, boolean incremental) {
+        this.parallelism = parallelism;
+        this.incremental = incremental;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            logger.error("==== 用法：{} 8,13,14,15 [--parallelism 4] [--incremental] ====", appName);
+            System.exit(1);
+        }
+        List<Long> tagIds = new ArrayList<Long>();
+        for (String tagId : args[0].split(",")) {
+            if (StringUtils.isNotBlank(tagId)) {
+                tagIds.add(Long.parseLong(tagId.trim()));
+            }
+        }
+        int parallelism = DEFAULT_PARALLELISM;
+        boolean incremental = false;
+        for (int i = 1; i < args.length; i++) {
+            if (PARALLELISM_ARG.equals(args[i]) && i + 1 < args.length) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else if (AbstractModel.INCREMENTAL_ARG.equals(args[i])) {
+                incremental = true;
+            }
+        }
+        Map<Long, ModelStatus> status = new ModelBatchRunner(parallelism, incremental).run(tagIds);
+        if (status.values().stream().anyMatch(s -> s.state != ModelState.SUCCESS)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 批量运行模型
+     *
+     * @param tagIds 四级标签ID
+     * @return 每个模型的运行状态
+     */
+    public Map<Long, ModelStatus> run(List<Long> tagIds) {
+        Map<Long, ModelStatus> status = new LinkedHashMap<Long, ModelStatus>();
+        SparkConf sparkConf = new SparkConf()
+                .setAppName(appName)
+                .setMaster(modelConfig.getSparkMaster())
+                .set("spark.scheduler.mode", "FAIR");
+        SparkSession session = SQLHBase.getSharedSession(sparkConf);
+        logger.info("==== 已初始化共享的SparkSession，并发数:{} ====", parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            Map<Long, Future<ModelStatus>> futures = new LinkedHashMap<Long, Future<ModelStatus>>();
+            for (Long tagId : tagIds) {
+                Class<? extends AbstractModel> modelClass = resolve(tagId);
+                if (null == modelClass) {
+                    status.put(tagId, new ModelStatus(tagId, null, ModelState.NOT_FOUND, 0, "没有找到该四级标签的模型"));
+                    continue;
+                }
+                futures.put(tagId, executor.submit(() -> runModel(session, tagId, modelClass)));
+            }
+            for (Map.Entry<Long, Future<ModelStatus>> entry : futures.entrySet()) {
+                try {
+                    status.put(entry.getKey(), entry.getValue().get());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    status.put(entry.getKey(), new ModelStatus(entry.getKey(), null, ModelState.FAILED, 0, e.getMessage()));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            SQLHBase.closeShared(session);
+        }
+        status.values().forEach(s -> logger.info("==== {} ====", s));
+        return status;
+    }
+
+    /**
+     * 在当前线程中运行一个模型，Spark作业提交到该模型独立的FAIR调度池
+     *
+     * @param session
+     * @param tagId
+     * @param modelClass
+     * @return
+     */
+    private ModelStatus runModel(SparkSession session, long tagId, Class<? extends AbstractModel> modelClass) {
+        long start = System.currentTimeMillis();
+        session.sparkContext().setLocalProperty(SCHEDULER_POOL, "tag_" + tagId);
+        try {
+            AbstractModel model = modelClass.newInstance();
+            model.setIncremental(incremental);
+            boolean success = model.execute();
+            Exception error = model.getError();
+            return new ModelStatus(tagId, modelClass.getName(), success ? ModelState.SUCCESS : ModelState.FAILED,
+                    System.currentTimeMillis() - start, null == error ? null : error.toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new ModelStatus(tagId, modelClass.getName(), ModelState.FAILED, System.currentTimeMillis() - start, e.toString());
+        } finally {
+            session.sparkContext().setLocalProperty(SCHEDULER_POOL, null);
+        }
+    }
+
+    /**
+     * 查找四级标签的模型类，先查tbl_model表中的model_main，找不到时按包名约定查找
+     *
+     * @param tagId
+     * @return 没有找到时返回null
+     */
+    private Class<? extends AbstractModel> resolve(long tagId) {
+        List<String> classNames = new ArrayList<String>();
+        try {
+            Class.forName(modelConfig.getMySQLDriver());
+            try (Connection connection = DriverManager.getConnection(modelConfig.getMySQLUrl());
+                 PreparedStatement ps = connection.prepareStatement(SELECT_MODEL_SQL)) {
+                ps.setLong(1, tagId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (StringUtils.isNotBlank(rs.getString(1))) {
+                            classNames.add(rs.getString(1).trim());
+                        }
+                    }
+                }
+            }
+        } catch (ClassNotFoundException | SQLException e) {
+            e.printStackTrace();
+        }
+        for (String pkg : MODEL_PACKAGES) {
+            classNames.add(MODEL_BASE_PACKAGE + pkg + ".Tag" + tagId + "Model");
+            classNames.add(MODEL_BASE_PACKAGE + pkg + ".Tag" + tagId + "Model_");
+        }
+        for (String className : classNames) {
+            try {
+                Class<?> clazz = Class.forName(className);
+                if (AbstractModel.class.isAssignableFrom(clazz)) {
+                    logger.info("==== 四级标签:{} 的模型为:{} ====", tagId, className);
+                    return clazz.asSubclass(AbstractModel.class);
+                }
+            } catch (ClassNotFoundException e) {
+                // 继续按下一个类名查找
+            }
+        }
+        logger.error("==== 没有找到四级标签:{} 的模型！ ====", tagId);
+        return null;
+    }
+
+    /**
+     * 模型运行状态
+     */
+    public enum ModelState {
+        SUCCESS,
+        FAILED,
+        NOT_FOUND
+    }
+
+    /**
+     * 模型运行结果
+     */
+    public static class ModelStatus {
+
+        private final long tagId;
+        private final String modelClass;
+        private final ModelState state;
+        private final long elapsed;
+        private final String message;
+
+        public ModelStatus(long tagId, String modelClass, ModelState state, long elapsed, String message) {
+            this.tagId = tagId;
+            this.modelClass = modelClass;
+            this.state = state;
+            this.elapsed = elapsed;
+            this.message = message;
+        }
+
+        public long getTagId() {
+            return tagId;
+        }
+
+        public String getModelClass() {
+            return modelClass;
+        }
+
+        public ModelState getState() {
+            return state;
+        }
+
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "ModelStatus [tagId=" + tagId + ", modelClass=" + modelClass + ", state=" + state
+                    + ", elapsed=" + elapsed + "ms, message=" + message + "]";
+        }
+
+    }
+
+}
@@ -24,6 +24,8 @@ public class ModelConfig {
     public static final String SPARK_DEBUG_MASTER = "spark.debug.master";
     public static final String HADOOP_HOME_DIR = "hadoop.home.dir";
     public static final String MODEL_BASE_PATH = "tag.model.base.path";
+    public static final String SNAPSHOT_BASE_PATH = "tag.snapshot.base.path";
+    public static final String SNAPSHOT_WINDOW_FORMAT = "tag.snapshot.window.format";
     // Profile table Config
     public static final String PROFILE_TABLE_NAME = "profile.hbase.table.name";
     public static final String PROFILE_TABLE_FAMILY_USER = "profile.hbase.table.family.user";
@@ -33,6 +35,16 @@ public class ModelConfig {
     public static final String PROFILE_TABLE_FAMILY_ITEM_ALIAS = "profile.hbase.table.family.item.alias";
     public static final String PROFILE_TABLE_FAMILY_ITEM_COL = "profile.hbase.table.family.item.col";
     public static final String PROFILE_TABLE_COMMON_COL = "profile.hbase.table.family.common.col";
+    public static final String PROFILE_TABLE_MERGE_COL = "profile.hbase.table.family.merge.col";
+    public static final String PROFILE_WRITE_BATCH_SIZE = "profile.hbase.write.batch.size";
+    public static final String PROFILE_INDEX_TABLE_NAME = "profile.index.hbase.table.name";
+    public static final String PROFILE_INDEX_TABLE_FAMILY = "profile.index.hbase.table.family";
+    // User secondary index Config
+    public static final String USER_INDEX_TABLE_NAME = "user.index.hbase.table.name";
+    public static final String USER_INDEX_TABLE_FAMILY = "user.index.hbase.table.family";
+    public static final String USER_INDEX_SOURCE_TABLE = "user.index.source.table";
+    public static final String USER_INDEX_SOURCE_FAMILY = "user.index.source.family";
+    public static final String USER_INDEX_SOURCE_COLUMNS = "user.index.source.columns";
     // MySQL Config
     public static final String MYSQL_JDBC_DRIVER = "mysql.jdbc.driver";
     public static final String MYSQL_JDBC_URL = "mysql.jdbc.url";
@@ -51,6 +63,12 @@ public class ModelConfig {
     public static final String HBASE_TABLE_FAMILY = "family";
     public static final String HBASE_TABLE_SELECT_FIELDS = "selectFields";
     public static final String HBASE_TABLE_WHERE_FIELDS = "whereFields";
+    public static final String HBASE_SCAN_CACHING = "caching";
+    public static final String HBASE_SCAN_MAX_RESULT_SIZE = "maxResultSize";
+    public static final String HBASE_SCAN_CACHE_BLOCKS = "cacheBlocks";
+    public static final String HBASE_SCAN_SPLITS_PER_REGION = "splitsPerRegion";
+    public static final String HBASE_SCAN_MIN_STAMP = "minStamp";
+    public static final String HBASE_SCAN_MAX_STAMP = "maxStamp";
     // Spark Config
     public static final String MASTER = "spark.master";
     public static final String DEPLOY_MODE = "spark.deploy.mode";
@@ -159,6 +177,13 @@ public class ModelConfig {
             put(ZK_HOSTS, PROP.getProperty(ZK_HOSTS));
             put(ZK_PORT, PROP.getProperty(ZK_PORT));
         }};
+        // 可选的Scan调优参数，未配置时使用HBaseRelation的默认值
+        for (String key : new String[]{HBASE_SCAN_CACHING, HBASE_SCAN_MAX_RESULT_SIZE, HBASE_SCAN_CACHE_BLOCKS, HBASE_SCAN_SPLITS_PER_REGION}) {
+            String value = PROP.getProperty(key);
+            if (null != value && !value.isEmpty()) {
+                options.put(key, value);
+            }
+        }
     }
 
     /**
@@ -170,6 +195,24 @@ public class ModelConfig {
         return get(MODEL_BASE_PATH);
     }
 
+    /**
+     * 获取数据源快照基础路径
+     *
+     * @return
+     */
+    public String getSnapshotBasePath() {
+        return get(SNAPSHOT_BASE_PATH);
+    }
+
+    /**
+     * 获取数据源快照的调度窗口格式，如yyyyMMdd表示每天一个快照
+     *
+     * @return
+     */
+    public String getSnapshotWindowFormat() {
+        return get(SNAPSHOT_WINDOW_FORMAT);
+    }
+
     /**
      * 画像表
      *
@@ -242,6 +285,87 @@ public class ModelConfig {
         return get(PROFILE_TABLE_COMMON_COL);
     }
 
+    /**
+     * 画像表-用户画像列簇的组合标签列-mergeTagIds，由组合标签模型物化
+     *
+     * @return
+     */
+    public String getProfileMergeCol() {
+        return get(PROFILE_TABLE_MERGE_COL);
+    }
+
+    /**
+     * 画像表-每个分区合并写入时批量Get的条数
+     *
+     * @return
+     */
+    public int getProfileWriteBatchSize() {
+        return getInt(PROFILE_WRITE_BATCH_SIZE);
+    }
+
+    /**
+     * 标签倒排索引表-标签位图和用户序号字典，为空时不生成索引
+     *
+     * @return
+     */
+    public String getProfileIndexTableName() {
+        return get(PROFILE_INDEX_TABLE_NAME);
+    }
+
+    /**
+     * 标签倒排索引表-列簇
+     *
+     * @return
+     */
+    public String getProfileIndexTableFamily() {
+        return get(PROFILE_INDEX_TABLE_FAMILY);
+    }
+
+    /**
+     * 用户二级索引表-手机号、邮箱、QQ、身份证号到画像表RowKey
+     *
+     * @return
+     */
+    public String getUserIndexTableName() {
+        return get(USER_INDEX_TABLE_NAME);
+    }
+
+    /**
+     * 用户二级索引表-列簇
+     *
+     * @return
+     */
+    public String getUserIndexTableFamily() {
+        return get(USER_INDEX_TABLE_FAMILY);
+    }
+
+    /**
+     * 用户二级索引的数据源表
+     *
+     * @return
+     */
+    public String getUserIndexSourceTable() {
+        return get(USER_INDEX_SOURCE_TABLE);
+    }
+
+    /**
+     * 用户二级索引的数据源表-列簇
+     *
+     * @return
+     */
+    public String getUserIndexSourceFamily() {
+        return get(USER_INDEX_SOURCE_FAMILY);
+    }
+
+    /**
+     * 用户二级索引的数据源表-手机号、邮箱、QQ、身份证号列，逗号分隔
+     *
+     * @return
+     */
+    public String getUserIndexSourceColumns() {
+        return get(USER_INDEX_SOURCE_COLUMNS);
+    }
+
     /**
      * 获取MySQL驱动
      *
@@ -4,8 +4,9 @@ import cn.itcast.model.beans.BasicTagBean;
 import cn.itcast.model.beans.MetaDataBean;
 import cn.itcast.model.models.AbstractModel;
 import cn.itcast.model.models.ModelConfig;
-import cn.itcast.model.tools.hbase.HBaseTools;
+import cn.itcast.model.tools.hbase.ProfileWriter;
 import cn.itcast.model.tools.parser.MetaParser;
+import cn.itcast.model.tools.spark.sql.RuleTable;
 import cn.itcast.model.tools.spark.sql.SQLHBase;
 import com.google.common.base.Preconditions;
 import org.apache.commons.lang.StringUtils;
@@ -44,7 +45,7 @@ public class Tag14Model extends AbstractModel {
 
     public static void main(String[] args) {
         Tag14Model tagModel = new Tag14Model();
-        tagModel.execute();
+        tagModel.execute(args);
     }
 
     @Override
@@ -157,114 +158,21 @@ public class Tag14Model extends AbstractModel {
                             options = modelConfig.getOptions(table, family, selectFields, whereFields);
                             logger.info("==== 数据源table={},family={},selectFileds={},whereFields={} ====", table, family, selectFields, whereFields);
                         }
-                        // 获取画像表配置
-                        String profileTable = modelConfig.getProfileTableName();
-                        Preconditions.checkNotNull(profileTable, "画像表的表名必须不为空！");
-                        String userFamily = modelConfig.getProfileTableFamilyUser();
-                        Preconditions.checkNotNull(userFamily, "画像表的列簇必须不为空！");
-                        String userFamilyAlias = modelConfig.getProfileTableFamilyUserAlias();
-                        Preconditions.checkNotNull(userFamilyAlias, "画像表的RowKey前缀必须不为空！");
-                        // qualifier=userId
-                        String userIdColumn = modelConfig.getProfileFamilyUserCol();
-                        Preconditions.checkNotNull(userIdColumn, "画像表的userId列必须不为空！");
-                        // qualifier=tagIds
-                        String tagIdsColumn = modelConfig.getProfileCommonCol();
-                        Preconditions.checkNotNull(tagIdsColumn, "画像表的tagIds列必须不为空！");
-                        // 获取HBase数据源插件实现
+                        // 获取HBase数据源插件实现，增量计算时只读取有变化的用户
                         String format = modelConfig.getFormat();
-                        Dataset<Row> rowDF = session.read()
-                                .format(format)
-                                .options(options)
-                                .load();
-                        Dataset<Row> cacheDF = rowDF.persist(StorageLevel.DISK_ONLY());
-                        // 五级 学生标签
-                        BasicTagBean studentTag = tag.get(1);
-                        long studentId = studentTag.getId();
-                        String studentJob = studentTag.getRule();
-                        // 五级 公务员标签
-                        BasicTagBean govStaffTag = tag.get(2);
-                        long govStaffId = govStaffTag.getId();
-                        String govStaffJob = govStaffTag.getRule();
-                        // 五级 军人标签
-                        BasicTagBean soldierTag = tag.get(3);
-                        long soldierId = soldierTag.getId();
-                        String soldierJob = soldierTag.getRule();
-                        // 五级 警察标签
-                        BasicTagBean policeTag = tag.get(4);
-                        long policeId = policeTag.getId();
-                        String policeJob = policeTag.getRule();
-                        // 五级 教师标签
-                        BasicTagBean teacherTag = tag.get(5);
-                        long teacherId = teacherTag.getId();
-                        String teacherJob = teacherTag.getRule();
-                        // 五级 白领标签
-                        BasicTagBean staffTag = tag.get(6);
-                        long staffId = staffTag.getId();
-                        String staffJob = staffTag.getRule();
+                        Dataset<Row> rowDF = loadChanged(session, format, options, "row");
+                        Dataset<Row> cacheDF = persist(rowDF, StorageLevel.DISK_ONLY());
+                        // 五级标签(学生、公务员、军人、警察、教师、白领)的职业规则编译为哈希表
+                        RuleTable jobRules = RuleTable.compile(tag.subList(1, tag.size()));
 
                         //用户-关联标签,该DataFrame的Schema为userid,tagId,job
-                        Dataset<Row> jobTagDF = cacheDF.select(new Column("id"), functions
-                                .when(new Column("job").equalTo(studentJob), studentId + "")//如果是学生
-                                .when(new Column("job").equalTo(govStaffJob), govStaffId + "")//如果是公务员
-                                .when(new Column("job").equalTo(soldierJob), soldierId + "")//如果是军人
-                                .when(new Column("job").equalTo(policeJob), policeId + "")//如果是警察
-                                .when(new Column("job").equalTo(teacherJob), teacherId + "")//如果是教师
-                                .when(new Column("job").equalTo(staffJob), staffId + "")//如果是白领
-                                .alias("tagId"), new Column("job"));
+                        Dataset<Row> jobTagDF = cacheDF.select(new Column("id"),
+                                applyRules(jobRules, session, new Column("job")).alias("tagId"), new Column("job"));
                         //logger.debug("==== 计算条数：{} ====", jobTagDFTagDF.count());
 
-                        HBaseTools build = HBaseTools.build();
-                        //获取已存在的画像数据
-                        Map<String, Map<String, String>> existProfileData = build.scan(profileTable, userFamily);
-                        // 封装画像数据
-                        List<Row> rows = jobTagDF.collectAsList();
-                        if (rows.size() > 0) {
-                            Map<String, Map<String, String>> kvs = new HashMap<String, Map<String, String>>();
-                            rows.forEach(row -> {
-                                Map<String, String> kv = new HashMap<String, String>();
-                                String rowKey = null;
-                                if (!row.isNullAt(0)) {
-                                    rowKey = row.getString(0) + "";
-                                    kv.put(userIdColumn, rowKey);
-                                }
-                                if (!row.isNullAt(1)) {
-                                    kv.put(tagIdsColumn, row.getString(1));
-                                }
-                                if (!StringUtils.isEmpty(rowKey)) {
-                                    rowKey = userFamilyAlias + rowKey;
-                                }
-                                // 取出本次计算完成用户ID和五级标签
-                                String newUserId = kv.get(userIdColumn);
-                                String newTagId = kv.get(tagIdsColumn);
-                                if (StringUtils.isEmpty(newUserId) || StringUtils.isEmpty(newTagId)) {
-                                    logger.info("==== 本次计算完成，但是没有结果！ ====");//本次计算完成，但是没有结果
-                                } else {
-                                    // 说明画像表是空表，直接新增
-                                    if (existProfileData.size() == 0) {
-                                        kvs.put(rowKey, kv);
-                                    } else {// 如果不是空表，则验证
-                                        Map<String, String> map = existProfileData.get(rowKey);
-                                        // 没有该用户的画像数据，直接新增
-                                        if (null == map) {
-                                            kvs.put(rowKey, kv);
-                                        } else {// 有该用户的画像数据，取出
-                                            String existTagIds = map.get(tagIdsColumn);
-                                            if (!StringUtils.isEmpty(existTagIds)) {
-                                                if (!existTagIds.contains(newTagId)) {// 用户存在，但本次计算的标签不存在
-                                                    kv.put(tagIdsColumn, existTagIds + "," + newTagId);//在已有的标签后面追加本次计算的标签
-                                                    kvs.put(rowKey, kv);
-                                                } else {
-                                                    logger.info("==== 该{}用户已存在ID={}的标签！ ====", rowKey, newTagId);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            });
-                            //写入画像表
-                            build.addRows(profileTable, userFamily, kvs);
-                            build.close();
-                        } else {
+                        // 在Executor端按分区合并已存在的画像数据并写入画像表
+                        long count = new ProfileWriter(modelConfig, tag).write(withClearedUsers(jobTagDF));
+                        if (count == 0) {
                             logger.info("==== 作业计算完成，但计算结果为空！ ====");
                         }
                     }
@@ -276,7 +184,7 @@ public class Tag14Model extends AbstractModel {
     @Override
     public void clear() {
         if (null != session) {
-            session.close();
+            SQLHBase.close(session);
             logger.info("==== 释放SparkSQL相关资源 ====");
         }
     }
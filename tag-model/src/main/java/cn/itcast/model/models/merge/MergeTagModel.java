@@ -0,0 +1,356 @@
+package cn.itcast.model.models.merge;
+
+import cn.itcast.model.beans.MergeTagBean;
+import cn.itcast.model.models.AbstractModel;
+import cn.itcast.model.models.ModelConfig;
+import cn.itcast.model.tools.hbase.ProfileWriter;
+import cn.itcast.model.tools.hbase.TagSet;
+import cn.itcast.model.tools.mysql.ModelWatermark;
+import cn.itcast.model.tools.parser.TagExpression;
+import cn.itcast.model.tools.spark.sql.SQLHBase;
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang.StringUtils;
+import net.iharder.base64.Base64;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * 组合标签模型
+ * 读取已上线的组合标签和条件，在一次分布式扫描中对画像表每个用户的五级标签逐个求值，
+ * 结果通过{@link ProfileWriter#forMergeTags}合并写入画像表的mergeTagIds列和组合标签位图，
+ * 查询组合标签的用户时直接读取位图，与基础标签的开销相同。
+ * 每个组合标签按"模型名_组合标签ID_条件摘要"记录高水位，带--incremental参数运行时，
+ * 只重新计算新上线、条件变化或所用基础标签的四级标签在上次运行后写入过画像表的组合标签，
+ * 写入时间由ProfileWriter在画像表和索引写入成功后记录，记录失败时基础标签模型运行失败。
+ * 记录过高水位但已下线或已删除的组合标签，从用户的mergeTagIds中移除并删除其位图和高水位
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class MergeTagModel extends AbstractModel {
+
+    private static String appName = MergeTagModel.class.getSimpleName();
+    private static final int LEVELFOUR = 4;
+    private static final int LEVELFIVE = 5;
+    // 不再满足条件的用户，移除其已有的组合标签
+    private static final String NO_TAG = "0";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private ModelConfig modelConfig = new ModelConfig();
+    private SparkConf sparkConf;
+    private SparkSession session;
+    private List<MergeTagBean> tag;
+
+    public MergeTagModel() {
+        super(appName, "组合标签模型");
+        sparkConf = new SparkConf()
+                .setAppName(appName)
+                .setMaster(modelConfig.getSparkMaster())
+                .registerKryoClasses(new Class[]{MergeTagBean.class, TagExpression.class, TagSet.class});
+        session = SQLHBase.getSession(sparkConf);
+        logger.info("==== 已初始化SparkSQL相关配置 ====");
+    }
+
+    public static void main(String[] args) {
+        MergeTagModel tagModel = new MergeTagModel();
+        tagModel.execute(args);
+    }
+
+    @Override
+    public String getType() {
+        return ModelType.MERGE.toString();
+    }
+
+    /**
+     * 已上线(state=4)的组合标签
+     */
+    @Override
+    public List<MergeTagBean> getTag() {
+        if (null == tag) {
+            tag = new LinkedList<MergeTagBean>();
+            List<Row> rows = readMySQL("(SELECT `id`,`name`,`condition`,`intro`,`purpose`,`state`,`ctime`,`utime`,`remark` FROM `tags`.`tbl_merge_tag` WHERE `state` = 4) AS mtag");
+            rows.forEach(row -> {
+                MergeTagBean bean = new MergeTagBean();
+                bean.setId(row.getLong(0));
+                if (!row.isNullAt(1)) {
+                    bean.setName(row.getString(1));
+                }
+                if (!row.isNullAt(2)) {
+                    bean.setCondition(row.getString(2));
+                }
+                if (!row.isNullAt(3)) {
+                    bean.setIntro(row.getString(3));
+                }
+                if (!row.isNullAt(4)) {
+                    bean.setPurpose(row.getString(4));
+                }
+                if (!row.isNullAt(5)) {
+                    bean.setState(row.getInt(5));
+                }
+                if (!row.isNullAt(6)) {
+                    bean.setCtime(row.getTimestamp(6).toString());
+                }
+                if (!row.isNullAt(7)) {
+                    bean.setUtime(row.getTimestamp(7).toString());
+                }
+                if (!row.isNullAt(8)) {
+                    bean.setRemark(row.getString(8));
+                }
+                tag.add(bean);
+            });
+        }
+        logger.info("==== 模型所需的组合标签数据为: {} ====", tag);
+        return tag;
+    }
+
+    @Override
+    public void compute() {
+        long start = System.currentTimeMillis();
+        try {
+            ModelWatermark watermark = new ModelWatermark(modelConfig);
+            // 组合标签ID -> 已记录的高水位名称
+            Map<Long, List<String>> materialized = loadMaterialized(watermark);
+            Set<Long> retired = new HashSet<Long>(materialized.keySet());
+            tag.forEach(mergeTag -> retired.remove(mergeTag.getId()));
+            Map<Long, TagExpression> expressions = tag.isEmpty() ? new HashMap<Long, TagExpression>() : loadExpressions();
+            // 五级标签ID -> 所属四级标签最近一次写入画像表的时间
+            Map<Long, Long> changedTimes = loadChangedTimes(watermark);
+            Map<Long, String> recompute = new HashMap<Long, String>();
+            Map<Long, String> versions = new HashMap<Long, String>();
+            for (Map.Entry<Long, TagExpression> entry : expressions.entrySet()) {
+                String digest = entry.getValue().digest();
+                String key = name + "_" + entry.getKey() + "_" + digest;
+                long last = watermark.get(key);
+                long changed = entry.getValue().getTagIds().stream().mapToLong(id -> changedTimes.getOrDefault(id, 0L)).max().orElse(0L);
+                if (!isIncremental() || last == 0 || changed > last) {
+                    recompute.put(entry.getKey(), key);
+                    versions.put(entry.getKey(), digest);
+                }
+            }
+            logger.info("==== 组合标签:{}个，重新计算:{}，已下线:{} ====", expressions.size(), recompute.keySet(), retired);
+            if (recompute.isEmpty() && retired.isEmpty()) {
+                return;
+            }
+            Map<Long, TagExpression> computeExpressions = new HashMap<Long, TagExpression>();
+            recompute.keySet().forEach(id -> computeExpressions.put(id, expressions.get(id)));
+            TagSet removable = TagSet.of(recompute.keySet()).union(TagSet.of(retired));
+            long count = ProfileWriter.forMergeTags(modelConfig, versions, retired).write(evaluate(computeExpressions, removable));
+            logger.info("==== 组合标签写入画像表{}条数据 ====", count);
+            // 写入成功后才推进高水位，失败时下次重新计算
+            for (String key : recompute.values()) {
+                watermark.update(key, start);
+            }
+            // 删除已下线组合标签的高水位和条件变化前的高水位
+            for (Map.Entry<Long, List<String>> entry : materialized.entrySet()) {
+                for (String key : entry.getValue()) {
+                    if (retired.contains(entry.getKey()) || (recompute.containsKey(entry.getKey()) && !key.equals(recompute.get(entry.getKey())))) {
+                        watermark.delete(key);
+                    }
+                }
+            }
+        } catch (IOException | SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 按高水位名称"模型名_组合标签ID_条件摘要"找出物化过的组合标签
+     *
+     * @param watermark
+     * @return 组合标签ID -> 高水位名称
+     * @throws SQLException
+     */
+    private Map<Long, List<String>> loadMaterialized(ModelWatermark watermark) throws SQLException {
+        String prefix = name + "_";
+        Map<Long, List<String>> materialized = new HashMap<Long, List<String>>();
+        for (String key : watermark.getByPrefix(prefix).keySet()) {
+            String[] parts = key.substring(prefix.length()).split("_");
+            if (parts.length == 2 && StringUtils.isNumeric(parts[0])) {
+                materialized.computeIfAbsent(Long.parseLong(parts[0]), k -> new ArrayList<String>()).add(key);
+            }
+        }
+        return materialized;
+    }
+
+    /**
+     * 按组合标签与基础标签的关联记录构建表达式，非五级标签展开为其下全部五级标签
+     *
+     * @return 组合标签ID -> 表达式，没有条件或条件错误的组合标签不返回
+     */
+    private Map<Long, TagExpression> loadExpressions() {
+        Map<Long, List<Long>> level5Ids = loadLevel5Ids();
+        Map<Long, List<Row>> maps = new HashMap<Long, List<Row>>();
+        readMySQL("(SELECT `id`,`merge_tag_id`,`basic_tag_id`,`conditions` FROM `tags`.`tbl_merge_tag_tag_map` WHERE `merge_tag_id` IS NOT NULL AND `basic_tag_id` IS NOT NULL) AS mmap")
+                .forEach(row -> maps.computeIfAbsent(row.getLong(1), k -> new ArrayList<Row>()).add(row));
+        Map<Long, TagExpression> expressions = new HashMap<Long, TagExpression>();
+        for (MergeTagBean mergeTag : tag) {
+            List<Row> rows = maps.get(mergeTag.getId());
+            if (null == rows) {
+                logger.warn("==== 组合标签ID={}没有条件！ ====", mergeTag.getId());
+                continue;
+            }
+            // 条件为该标签与下一个标签之间的操作符，按关联记录的ID排序
+            rows.sort(Comparator.comparingLong(row -> row.getLong(0)));
+            List<Long> tagIds = new ArrayList<Long>(rows.size());
+            List<String> conditions = new ArrayList<String>(rows.size());
+            rows.forEach(row -> {
+                tagIds.add(row.getLong(2));
+                conditions.add(row.isNullAt(3) ? null : row.getString(3));
+            });
+            try {
+                expressions.put(mergeTag.getId(), TagExpression.of(tagIds, conditions).expand(level5Ids));
+            } catch (IllegalArgumentException e) {
+                logger.error("==== 组合标签ID={}的条件错误：{} ====", mergeTag.getId(), e.getMessage());
+            }
+        }
+        return expressions;
+    }
+
+    /**
+     * 标签ID -> 其下全部五级标签ID
+     *
+     * @return
+     */
+    private Map<Long, List<Long>> loadLevel5Ids() {
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        List<Long> level5 = new ArrayList<Long>();
+        readBasicTags().forEach(row -> {
+            parents.put(row.getLong(0), row.isNullAt(2) ? null : row.getLong(2));
+            if (!row.isNullAt(1) && row.getInt(1) == LEVELFIVE) {
+                level5.add(row.getLong(0));
+            }
+        });
+        return TagExpression.level5Ids(parents, level5);
+    }
+
+    /**
+     * 五级标签ID -> 所属四级标签最近一次写入画像表的时间，由ProfileWriter在写入成功后记录
+     *
+     * @param watermark
+     * @return
+     * @throws SQLException
+     */
+    private Map<Long, Long> loadChangedTimes(ModelWatermark watermark) throws SQLException {
+        Map<String, Long> writeTimes = watermark.getByPrefix(ProfileWriter.WRITE_TIME_PREFIX);
+        Map<Long, Long> changedTimes = new HashMap<Long, Long>();
+        readBasicTags().forEach(row -> {
+            if (!row.isNullAt(1) && row.getInt(1) == LEVELFIVE && !row.isNullAt(2)) {
+                Long time = writeTimes.get(ProfileWriter.WRITE_TIME_PREFIX + row.getLong(2));
+                if (null != time) {
+                    changedTimes.put(row.getLong(0), time);
+                }
+            }
+        });
+        return changedTimes;
+    }
+
+    private List<Row> readBasicTags() {
+        return readMySQL("(SELECT `id`,`level`,`pid` FROM `tags`.`tbl_basic_tag` WHERE `state` != -1 AND `level` >= 1 AND `level` <= " + LEVELFIVE + ") AS btag");
+    }
+
+    @SuppressWarnings("serial")
+    private List<Row> readMySQL(String table) {
+        return session.read().jdbc(
+                modelConfig.getMySQLUrl(),
+                table,
+                new Properties() {{
+                    setProperty("driver", modelConfig.getMySQLDriver());
+                }}
+        ).collectAsList();
+    }
+
+    /**
+     * 扫描画像表，按用户的五级标签对组合标签求值
+     *
+     * @param expressions 本次重新计算的组合标签
+     * @param removable   本次重新计算和已下线的组合标签
+     * @return 第一列为userId，第二列为组合标签ID，已有removable中的组合标签但不满足任何条件的用户组合标签ID为0
+     * @throws IOException
+     */
+    private Dataset<Row> evaluate(Map<Long, TagExpression> expressions, TagSet removable) throws IOException {
+        String table = modelConfig.getProfileTableName();
+        Preconditions.checkNotNull(table, "画像表的表名必须不为空！");
+        String mergeCol = modelConfig.getProfileMergeCol();
+        Preconditions.checkNotNull(mergeCol, "画像表的mergeTagIds列必须不为空！");
+        byte[] family = Bytes.toBytes(modelConfig.getProfileTableFamilyUser());
+        byte[] userIdCol = Bytes.toBytes(modelConfig.getProfileFamilyUserCol());
+        byte[] tagIdsCol = Bytes.toBytes(modelConfig.getProfileCommonCol());
+        byte[] mergeTagIdsCol = Bytes.toBytes(mergeCol);
+        String userAlias = modelConfig.getProfileTableFamilyUserAlias();
+
+        Configuration hbaseConf = HBaseConfiguration.create(session.sparkContext().hadoopConfiguration());
+        hbaseConf.set("hbase.zookeeper.quorum", modelConfig.getZkHosts());
+        hbaseConf.set("hbase.zookeeper.property.clientPort", modelConfig.getZkPort() + "");
+        hbaseConf.set("zookeeper.znode.parent", modelConfig.getZooKeeperZNodeParent());
+        hbaseConf.set(TableInputFormat.INPUT_TABLE, table);
+        // 只读取userId、tagIds和mergeTagIds列
+        Scan scan = new Scan();
+        scan.addColumn(family, userIdCol);
+        scan.addColumn(family, tagIdsCol);
+        scan.addColumn(family, mergeTagIdsCol);
+        scan.setCaching(500);
+        scan.setCacheBlocks(false);
+        hbaseConf.set(TableInputFormat.SCAN, Base64.encodeBytes(ProtobufUtil.toScan(scan).toByteArray()));
+
+        JavaSparkContext jsc = JavaSparkContext.fromSparkContext(session.sparkContext());
+        Broadcast<Map<Long, TagExpression>> broadcast = jsc.broadcast(expressions);
+        JavaRDD<Row> userTagRDD = jsc.newAPIHadoopRDD(hbaseConf, TableInputFormat.class, ImmutableBytesWritable.class, Result.class)
+                .flatMap(t -> {
+                    List<Row> rows = new ArrayList<Row>();
+                    String userId = Bytes.toString(t._2.getValue(family, userIdCol));
+                    if (null == userId) {
+                        String rowKey = Bytes.toString(t._2.getRow());
+                        if (!rowKey.startsWith(userAlias)) {
+                            return rows.iterator();
+                        }
+                        userId = rowKey.substring(userAlias.length());
+                    }
+                    TagSet tagIds = TagSet.decode(t._2.getValue(family, tagIdsCol));
+                    for (Map.Entry<Long, TagExpression> entry : broadcast.value().entrySet()) {
+                        if (entry.getValue().matches(tagIds::contains)) {
+                            rows.add(RowFactory.create(userId, entry.getKey() + ""));
+                        }
+                    }
+                    if (rows.isEmpty()) {
+                        TagSet mergeTagIds = TagSet.decode(t._2.getValue(family, mergeTagIdsCol));
+                        if (mergeTagIds.size() != mergeTagIds.remove(removable).size()) {
+                            rows.add(RowFactory.create(userId, NO_TAG));
+                        }
+                    }
+                    return rows.iterator();
+                });
+        StructType schema = DataTypes.createStructType(Arrays.asList(
+                DataTypes.createStructField("userId", DataTypes.StringType, false),
+                DataTypes.createStructField("tagId", DataTypes.StringType, false)));
+        return session.createDataFrame(userTagRDD, schema);
+    }
+
+    @Override
+    public void clear() {
+        if (null != session) {
+            SQLHBase.close(session);
+            logger.info("==== 释放SparkSQL相关资源 ====");
+        }
+    }
+
+}
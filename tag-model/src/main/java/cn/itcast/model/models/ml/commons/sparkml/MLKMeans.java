@@ -4,10 +4,12 @@ import cn.itcast.model.models.ml.commons.ClusterMapping;
 import cn.itcast.model.tools.hdfs.HdfsTools;
 import org.apache.spark.ml.clustering.KMeans;
 import org.apache.spark.ml.clustering.KMeansModel;
+import org.apache.spark.ml.evaluation.ClusteringEvaluator;
 import org.apache.spark.ml.feature.VectorAssembler;
 import org.apache.spark.ml.linalg.Vector;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.storage.StorageLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,8 +17,12 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 /**
+ * KMeans聚类
+ * 特征向量只转换一次并缓存，优化方式下多个候选k值通过有界线程池在同一个SparkContext上并发训练，
+ * 保留每个k值的模型、SSE和轮廓系数，直接复用最优k值的模型，不再重新训练
  * Created by mengyao
  * 2019年6月11日
  */
@@ -35,7 +41,11 @@ public class MLKMeans implements Serializable {
     // 使用KMeans聚类算法，提供选择多个k值进行训练
     private List<Integer> kArr = Arrays.asList(2, 3, 4, 5, 6, 7, 8, 9, 10);
     // 计算每一个k值聚类的SSE值
-    private Map<Integer, Double> sseArr = new HashMap<Integer, Double>();
+    private Map<Integer, Double> sseArr = new ConcurrentHashMap<Integer, Double>();
+    // 计算每一个k值聚类的轮廓系数
+    private Map<Integer, Double> silhouetteArr = new ConcurrentHashMap<Integer, Double>();
+    // 并发训练的k值个数
+    private int parallelism = 4;
     // 聚类结果，簇编号和簇质心
     private LinkedList<ClusterMapping> clusters;
     // 聚类迭代计算次数
@@ -51,6 +61,8 @@ public class MLKMeans implements Serializable {
     private String predictionCol;
     // 向量转换器
     private VectorAssembler vectorAssembler;
+    // 已转换并缓存的特征数据集
+    private Dataset<Row> features;
 
 
     public MLKMeans(String[] inputCols, String outputCol, String predictionCol, Dataset<Row> dataset, String modelPath) {
@@ -79,54 +91,107 @@ public class MLKMeans implements Serializable {
     }
 
     public Dataset<Row> run() {
+        // 特征向量只转换一次，训练、评估和预测共用
+        features = vectorAssembler.transform(dataset).persist(StorageLevel.MEMORY_AND_DISK());
         if (HdfsTools.build().exist(modelPath)) {
             model = KMeansModel.load(modelPath);
-            dataset = vectorAssembler.transform(dataset);
             return predict();
         } else {
             logger.warn("==== The model path is not found! ====");
             if (optimize) {
-                kArr.forEach(k -> {
-                    train(false);
-                    // 采用肘部法则计算簇内平方误差和来评估聚类
-                    double sse = model.computeCost(dataset);
-                    // 记录每个k值的sse
-                    sseArr.put(k, sse);
-                });
-                // 找出最优k值参数
-                Entry<Integer, Double> optimizeK = sseArr.entrySet().stream().min((i1, i2) -> i1.getValue().compareTo(i2.getValue())).get();
+                Map<Integer, KMeansModel> models = trainAll();
+                // 找出最优k值参数：轮廓系数最大，轮廓系数相同时SSE最小
+                Entry<Integer, Double> optimizeK = silhouetteArr.entrySet().stream()
+                        .max((i1, i2) -> {
+                            int cmp = i1.getValue().compareTo(i2.getValue());
+                            return cmp != 0 ? cmp : sseArr.get(i2.getKey()).compareTo(sseArr.get(i1.getKey()));
+                        }).get();
                 k = optimizeK.getKey();
-                // 使用最优有k计算聚类
-                train(true);
+                logger.info("==== The optimize k is:{}, sse:{}, silhouette:{} ====", k, sseArr.get(k), silhouetteArr.get(k));
+                // 直接复用最优k值的模型，候选模型并发训练时各自使用局部的KMeans，选定后在当前线程赋值
+                kmeans = newKMeans(k);
+                model = models.get(k);
+                save();
                 return predict();
             } else {
-                train(true);
+                kmeans = newKMeans(k);
+                model = train(k);
+                save();
                 return predict();
             }
         }
     }
 
     /**
-     * 训练模型
+     * 通过有界线程池并发训练所有候选k值，记录每个k值的SSE和轮廓系数
      *
-     * @param dataset   数据集
-     * @param saveModel 保存模型到hdfs
+     * @return 每个k值的模型
      */
-    private void train(boolean saveModel) {
-        dataset = vectorAssembler.transform(dataset);
-        kmeans = new KMeans()
+    private Map<Integer, KMeansModel> trainAll() {
+        Map<Integer, KMeansModel> models = new ConcurrentHashMap<Integer, KMeansModel>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, kArr.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int candidate : kArr) {
+                futures.add(executor.submit(() -> {
+                    KMeansModel candidateModel = train(candidate);
+                    // 采用肘部法则计算簇内平方误差和来评估聚类
+                    double sse = candidateModel.computeCost(features);
+                    double silhouette = new ClusteringEvaluator()
+                            .setFeaturesCol(outputCol)
+                            .setPredictionCol(predictionCol)
+                            .evaluate(candidateModel.transform(features));
+                    // 记录每个k值的sse和轮廓系数
+                    sseArr.put(candidate, sse);
+                    silhouetteArr.put(candidate, silhouette);
+                    models.put(candidate, candidateModel);
+                    logger.info("==== k:{}, sse:{}, silhouette:{} ====", candidate, sse, silhouette);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdown();
+        }
+        return models;
+    }
+
+    /**
+     * 训练模型，可在多个线程中并发调用
+     *
+     * @param k 簇的个数
+     * @return
+     */
+    private KMeansModel train(int k) {
+        return newKMeans(k).fit(features);
+    }
+
+    /**
+     * 创建KMeans
+     *
+     * @param k 簇的个数
+     * @return
+     */
+    private KMeans newKMeans(int k) {
+        return new KMeans()
                 .setK(k)
                 .setSeed(numIterations)
                 .setFeaturesCol(outputCol)
                 .setPredictionCol(predictionCol);
-        model = kmeans.fit(dataset);
-        if (saveModel) {
-            try {
-                model.save(modelPath);
-                logger.info("==== The model is save to:{} ====", modelPath);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    }
+
+    /**
+     * 保存模型到hdfs
+     */
+    private void save() {
+        try {
+            model.save(modelPath);
+            logger.info("==== The model is save to:{} ====", modelPath);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -143,7 +208,25 @@ public class MLKMeans implements Serializable {
             clusters.add(new ClusterMapping(i, Arrays.stream(center.toArray()).sum()));
             i++;
         }
-        return model.transform(dataset);
+        return model.transform(features);
+    }
+
+    /**
+     * 释放缓存的特征数据集，在预测结果使用完之后调用
+     */
+    public void unpersist() {
+        if (null != features) {
+            features.unpersist();
+        }
+    }
+
+    /**
+     * 设置并发训练的k值个数
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
     }
 
     /**
@@ -155,6 +238,15 @@ public class MLKMeans implements Serializable {
         return sseArr;
     }
 
+    /**
+     * 获取每个k值的轮廓系数
+     *
+     * @return
+     */
+    public Map<Integer, Double> getSilhouette() {
+        return silhouetteArr;
+    }
+
     /**
      * 获取聚类的簇编号和簇质心
      *
@@ -8,7 +8,7 @@ import cn.itcast.model.models.ModelConfig;
 import cn.itcast.model.models.match.Tag8Model;
 import cn.itcast.model.models.ml.commons.ClusterMapping;
 import cn.itcast.model.models.ml.commons.sparkml.MLKMeans;
-import cn.itcast.model.tools.hbase.HBaseTools;
+import cn.itcast.model.tools.hbase.ProfileWriter;
 import cn.itcast.model.tools.parser.MetaParser;
 import cn.itcast.model.tools.spark.sql.SQLHBase;
 import cn.itcast.model.utils.DateUtil;
@@ -146,7 +146,7 @@ public class Tag233Model extends AbstractModel {
                     logger.error("==== 标签规则解析失败！ ====");
                     throw new RuntimeException();
                 } else {
-                    if (meta.getInType().toLowerCase().equals("hbase")) {
+                    if (meta.getInType().toLowerCase().equals("hbase") || meta.getInType().toLowerCase().equals(SNAPSHOT)) {
                         Map<String, String> options = null;
                         // 获取数据源表配置
                         String table = meta.getHbaseTable();
@@ -166,26 +166,10 @@ public class Tag233Model extends AbstractModel {
                             options = modelConfig.getOptions(table, family, selectFields, whereFields);
                             logger.info("==== 数据源table={},family={},selectFileds={},whereFields={} ====", table, family, selectFields, whereFields);
                         }
-                        // 获取画像表配置
-                        String profileTable = modelConfig.getProfileTableName();
-                        Preconditions.checkNotNull(profileTable, "画像表的表名必须不为空！");
-                        String userFamily = modelConfig.getProfileTableFamilyUser();
-                        Preconditions.checkNotNull(userFamily, "画像表的列簇必须不为空！");
-                        String userFamilyAlias = modelConfig.getProfileTableFamilyUserAlias();
-                        Preconditions.checkNotNull(userFamilyAlias, "画像表的RowKey前缀必须不为空！");
-                        // qualifier=userId
-                        String userIdColumn = modelConfig.getProfileFamilyUserCol();
-                        Preconditions.checkNotNull(userIdColumn, "画像表的userId列必须不为空！");
-                        // qualifier=tagIds
-                        String tagIdsColumn = modelConfig.getProfileCommonCol();
-                        Preconditions.checkNotNull(tagIdsColumn, "画像表的tagIds列必须不为空！");
-                        // 获取HBase数据源插件实现
+                        // 获取HBase数据源插件实现，snapshot数据源读取当前窗口的快照
                         String format = modelConfig.getFormat();
-                        Dataset<Row> rowDF = session.read()
-                                .format(format)
-                                .options(options)
-                                .load();
-                        Dataset<Row> cacheDF = rowDF.persist(StorageLevel.DISK_ONLY());
+                        Dataset<Row> rowDF = loadSource(session, meta, format, options);
+                        Dataset<Row> cacheDF = persist(rowDF, StorageLevel.DISK_ONLY());
 
                         // HBase表的qualifier
                         Column memberIdCol = new Column("memberId");
@@ -258,71 +242,20 @@ public class Tag233Model extends AbstractModel {
                             long tagId = tag.get(i + 1).getId();
                             clusters.get(i).setTagId(tagId);
                         }
-                        // 将预测结果根据cluster升序排序
-                        Dataset<Row> predictDF = resultDF.select(memberIdCol, new Column(psmScoreStr), new Column(featureStr), new Column(predictStr)).orderBy(new Column(predictStr).asc());
-                        predictDF.printSchema();
-                        List<Row> rows = predictDF.collectAsList();
-                        HBaseTools build = HBaseTools.build();
-                        // 获取已存在的画像数据
-                        Map<String, Map<String, String>> existProfileData = build.scan(profileTable, userFamily);
-                        // 封装画像数据
-                        if (rows.size() > 0) {
-                            Map<String, Map<String, String>> kvs = new HashMap<String, Map<String, String>>();
-                            rows.forEach(row -> {
-                                Map<String, String> kv = new HashMap<String, String>();
-                                String rowKey = null;
-                                if (!row.isNullAt(0)) {
-                                    //userId
-                                    rowKey = row.getString(0);
-                                    kv.put(userIdColumn, rowKey);
-                                }
-                                if (!row.isNullAt(3)) {
-                                    //所属簇
-                                    int cluster = row.getInt(3);
-                                    clusters.forEach(b -> {
-                                        if (b.getCluster() == cluster) {
-                                            long tagId = b.getTagId();
-                                            kv.put(tagIdsColumn, tagId + "");
-                                        }
-                                    });
-                                }
-                                if (!StringUtils.isEmpty(rowKey)) {
-                                    rowKey = userFamilyAlias + rowKey;
-                                }
-                                // 取出本次计算完成用户ID和五级标签
-                                String newUserId = kv.get(userIdColumn);
-                                String newTagId = kv.get(tagIdsColumn);
-                                if (StringUtils.isEmpty(newUserId) || StringUtils.isEmpty(newTagId)) {
-                                    logger.info("==== 本次计算完成，但是没有结果！ ====");//本次计算完成，但是没有结果
-                                } else {
-                                    // 说明画像表是空表，直接新增
-                                    if (existProfileData.size() == 0) {
-                                        kvs.put(rowKey, kv);
-                                    } else {// 如果不是空表，则验证
-                                        Map<String, String> map = existProfileData.get(rowKey);
-                                        // 没有该用户的画像数据，直接新增
-                                        if (null == map) {
-                                            kvs.put(rowKey, kv);
-                                        } else {// 有该用户的画像数据，取出
-                                            String existTagIds = map.get(tagIdsColumn);
-                                            if (!StringUtils.isEmpty(existTagIds)) {
-                                                if (!existTagIds.contains(newTagId)) {// 用户存在，但本次计算的标签不存在
-                                                    kv.put(tagIdsColumn, existTagIds + "," + newTagId);//在已有的标签后面追加本次计算的标签
-                                                    kvs.put(rowKey, kv);
-                                                } else {
-                                                    logger.info("==== 该{}用户已存在ID={}的标签！ ====", rowKey, newTagId);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            });
-                            //写入画像表
-                            build.addRows(profileTable, userFamily, kvs);
-                            build.close();
-                        } else {
+                        // 将所属簇映射为五级标签，该DataFrame的Schema为userId,tagId
+                        Column clusterTagCol = null;
+                        for (ClusterMapping b : clusters) {
+                            clusterTagCol = null == clusterTagCol
+                                    ? functions.when(new Column(predictStr).equalTo(b.getCluster()), b.getTagId())
+                                    : clusterTagCol.when(new Column(predictStr).equalTo(b.getCluster()), b.getTagId());
+                        }
+                        Dataset<Row> userTagDF = resultDF.select(memberIdCol, clusterTagCol.alias("tagId"));
+                        // 在Executor端按分区合并已存在的画像数据并写入画像表
+                        long count = new ProfileWriter(modelConfig, tag).write(userTagDF);
+                        if (count == 0) {
                             logger.info("==== 作业计算完成，但计算结果为空！ ====");
                         }
+                        mlkMeans.unpersist();
                     }
                 }
             }
@@ -332,7 +265,7 @@ public class Tag233Model extends AbstractModel {
     @Override
     public void clear() {
         if (null != session) {
-            session.close();
+            SQLHBase.close(session);
             logger.info("==== 释放SparkSQL相关资源 ====");
         }
     }
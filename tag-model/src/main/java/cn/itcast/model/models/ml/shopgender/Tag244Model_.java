@@ -5,8 +5,9 @@ import cn.itcast.model.beans.MetaDataBean;
 import cn.itcast.model.beans.Tag;
 import cn.itcast.model.models.AbstractModel;
 import cn.itcast.model.models.ModelConfig;
-import cn.itcast.model.tools.hbase.HBaseTools;
+import cn.itcast.model.tools.hbase.ProfileWriter;
 import cn.itcast.model.tools.parser.MetaParser;
+import cn.itcast.model.tools.spark.sql.RuleTable;
 import cn.itcast.model.tools.spark.sql.SQLHBase;
 import cn.itcast.model.utils.DateUtil;
 import com.google.common.base.Preconditions;
@@ -48,6 +49,58 @@ public class Tag244Model_ extends AbstractModel {
     private List<BasicTagBean> tag;
     private String modelPath;
     private String ruleSeparator = "#";
+    // 商品颜色编码规则
+    private static final RuleTable OG_COLOR_RULES = new RuleTable()
+            .addEqual("银色", "1")
+            .addEqual("香槟金色", "2")
+            .addEqual("黑色", "3")
+            .addEqual("白色", "4")
+            .addEqual("梦境极光【卡其金】", "5")
+            .addEqual("梦境极光【布朗灰】", "6")
+            .addEqual("粉色", "7")
+            .addEqual("金属灰", "8")
+            .addEqual("金色", "9")
+            .addEqual("乐享金", "10")
+            .addEqual("布鲁钢", "11")
+            .addEqual("月光银", "12")
+            .addEqual("时尚光谱【浅金棕】", "13")
+            .addEqual("香槟色", "14")
+            .addEqual("香槟金", "15")
+            .addEqual("灰色", "16")
+            .addEqual("樱花粉", "17")
+            .addEqual("蓝色", "18")
+            .addEqual("金属银", "19")
+            .addEqual("玫瑰金", "20");
+    // 商品类型编码规则
+    private static final RuleTable PRODUCT_TYPE_RULES = new RuleTable()
+            .addEqual("4K电视", "9")
+            .addEqual("Haier/海尔冰箱", "10")
+            .addEqual("LED电视", "12")
+            .addEqual("Leader/统帅冰箱", "13")
+            .addEqual("冰吧", "14")
+            .addEqual("冷柜", "15")
+            .addEqual("净水机", "16")
+            .addEqual("前置过滤器", "17")
+            .addEqual("取暖电器", "18")
+            .addEqual("吸尘器/除螨仪", "19")
+            .addEqual("嵌入式厨电", "20")
+            .addEqual("微波炉", "21")
+            .addEqual("挂烫机", "22")
+            .addEqual("料理机", "23")
+            .addEqual("智能电视", "24")
+            .addEqual("波轮洗衣机", "25")
+            .addEqual("滤芯", "26")
+            .addEqual("烟灶套系", "27")
+            .addEqual("烤箱", "28")
+            .addEqual("燃气灶", "29")
+            .addEqual("燃气热水器", "30")
+            .addEqual("电水壶/热水瓶", "31")
+            .addEqual("电热水器", "32")
+            .addEqual("电磁炉", "33")
+            .addEqual("电风扇", "34")
+            .addEqual("电饭煲", "35")
+            .addEqual("破壁机", "36")
+            .addEqual("空气净化器", "37");
 
 
     public Tag244Model_() {
@@ -222,19 +275,6 @@ public class Tag244Model_ extends AbstractModel {
                             options2 = modelConfig.getOptions(table2, family2, selectField2, whereField2);
                             logger.info("==== 数据源table={},family={},selectFileds={},whereFields={} ====", table2, family2, selectField2, whereField2);
                         }
-                        // 获取画像表配置
-                        String profileTable = modelConfig.getProfileTableName();
-                        Preconditions.checkNotNull(profileTable, "画像表的表名必须不为空！");
-                        String userFamily = modelConfig.getProfileTableFamilyUser();
-                        Preconditions.checkNotNull(userFamily, "画像表的列簇必须不为空！");
-                        String userFamilyAlias = modelConfig.getProfileTableFamilyUserAlias();
-                        Preconditions.checkNotNull(userFamilyAlias, "画像表的RowKey前缀必须不为空！");
-                        // qualifier=userId
-                        String userIdColumn = modelConfig.getProfileFamilyUserCol();
-                        Preconditions.checkNotNull(userIdColumn, "画像表的userId列必须不为空！");
-                        // qualifier=tagIds
-                        String tagIdsColumn = modelConfig.getProfileCommonCol();
-                        Preconditions.checkNotNull(tagIdsColumn, "画像表的tagIds列必须不为空！");
                         // 获取HBase数据源插件实现
                         String format = modelConfig.getFormat();
                         // 获取订单表数据
@@ -242,7 +282,7 @@ public class Tag244Model_ extends AbstractModel {
                                 .format(format)
                                 .options(options2)
                                 .load();
-                        Dataset<Row> ordersCacheDF = ordersDF.persist(StorageLevel.DISK_ONLY());
+                        Dataset<Row> ordersCacheDF = persist(ordersDF, StorageLevel.DISK_ONLY());
                         Column orderSnCol = col("orderSn");
                         Column memberIdCol = col("memberId");
 
@@ -251,7 +291,7 @@ public class Tag244Model_ extends AbstractModel {
                                 .format(format)
                                 .options(options1)
                                 .load();
-                        Dataset<Row> ordersGoodsCacheDF = orderGoodsDF.persist(StorageLevel.DISK_ONLY());
+                        Dataset<Row> ordersGoodsCacheDF = persist(orderGoodsDF, StorageLevel.DISK_ONLY());
                         ordersGoodsCacheDF.printSchema();
                         // 使用决策树对商品进行性别分类
                         Column cOrderSnCol = col("cOrderSn");
@@ -260,66 +300,14 @@ public class Tag244Model_ extends AbstractModel {
                         String label = "label";
                         Column labelCol = col("label");
                         Dataset<Row> inputDF = ordersGoodsCacheDF.select(cOrderSnCol,
-                                // ogColor字段预处理
-                                when(ogColorCol.equalTo("银色"), 1).
-                                        when(ogColorCol.equalTo("香槟金色"), 2).
-                                        when(ogColorCol.equalTo("黑色"), 3).
-                                        when(ogColorCol.equalTo("白色"), 4).
-                                        when(ogColorCol.equalTo("梦境极光【卡其金】"), 5).
-                                        when(ogColorCol.equalTo("梦境极光【布朗灰】"), 6).
-                                        when(ogColorCol.equalTo("粉色"), 7).
-                                        when(ogColorCol.equalTo("金属灰"), 8).
-                                        when(ogColorCol.equalTo("金色"), 9).
-                                        when(ogColorCol.equalTo("乐享金"), 10).
-                                        when(ogColorCol.equalTo("布鲁钢"), 11).
-                                        when(ogColorCol.equalTo("月光银"), 12).
-                                        when(ogColorCol.equalTo("时尚光谱【浅金棕】"), 13).
-                                        when(ogColorCol.equalTo("香槟色"), 14).
-                                        when(ogColorCol.equalTo("香槟金"), 15).
-                                        when(ogColorCol.equalTo("灰色"), 16).
-                                        when(ogColorCol.equalTo("樱花粉"), 17).
-                                        when(ogColorCol.equalTo("蓝色"), 18).
-                                        when(ogColorCol.equalTo("金属银"), 19).
-                                        when(ogColorCol.equalTo("玫瑰金"), 20).otherwise(0).alias("ogColor"),
-                                // productType字段预处理
-                                when(productTypeCol.equalTo("4K电视"), 9).
-                                        when(productTypeCol.equalTo("Haier/海尔冰箱"), 10).
-                                        when(productTypeCol.equalTo("Haier/海尔冰箱"), 11).
-                                        when(productTypeCol.equalTo("LED电视"), 12).
-                                        when(productTypeCol.equalTo("Leader/统帅冰箱"), 13).
-                                        when(productTypeCol.equalTo("冰吧"), 14).
-                                        when(productTypeCol.equalTo("冷柜"), 15).
-                                        when(productTypeCol.equalTo("净水机"), 16).
-                                        when(productTypeCol.equalTo("前置过滤器"), 17).
-                                        when(productTypeCol.equalTo("取暖电器"), 18).
-                                        when(productTypeCol.equalTo("吸尘器/除螨仪"), 19).
-                                        when(productTypeCol.equalTo("嵌入式厨电"), 20).
-                                        when(productTypeCol.equalTo("微波炉"), 21).
-                                        when(productTypeCol.equalTo("挂烫机"), 22).
-                                        when(productTypeCol.equalTo("料理机"), 23).
-                                        when(productTypeCol.equalTo("智能电视"), 24).
-                                        when(productTypeCol.equalTo("波轮洗衣机"), 25).
-                                        when(productTypeCol.equalTo("滤芯"), 26).
-                                        when(productTypeCol.equalTo("烟灶套系"), 27).
-                                        when(productTypeCol.equalTo("烤箱"), 28).
-                                        when(productTypeCol.equalTo("燃气灶"), 29).
-                                        when(productTypeCol.equalTo("燃气热水器"), 30).
-                                        when(productTypeCol.equalTo("电水壶/热水瓶"), 31).
-                                        when(productTypeCol.equalTo("电热水器"), 32).
-                                        when(productTypeCol.equalTo("电磁炉"), 33).
-                                        when(productTypeCol.equalTo("电风扇"), 34).
-                                        when(productTypeCol.equalTo("电饭煲"), 35).
-                                        when(productTypeCol.equalTo("破壁机"), 36).
-                                        when(productTypeCol.equalTo("空气净化器"), 37).otherwise(0).alias("productType"),
+                                // ogColor字段预处理，未匹配的颜色编码为0
+                                coalesce(applyRules(OG_COLOR_RULES, session, ogColorCol).cast(DataTypes.IntegerType), lit(0)).alias("ogColor"),
+                                // productType字段预处理，未匹配的类型编码为0
+                                coalesce(applyRules(PRODUCT_TYPE_RULES, session, productTypeCol).cast(DataTypes.IntegerType), lit(0)).alias("productType"),
                                 // 生成决策树预测label
                                 when(
-                                        ogColorCol.equalTo("樱花粉").
-                                                or(ogColorCol.equalTo("白色")).
-                                                or(ogColorCol.equalTo("香槟色")).
-                                                or(ogColorCol.equalTo("香槟金")).
-                                                or(productTypeCol.equalTo("料理机")).
-                                                or(productTypeCol.equalTo("挂烫机")).
-                                                or(productTypeCol.equalTo("吸尘器/除螨仪")), 1)
+                                        ogColorCol.isin("樱花粉", "白色", "香槟色", "香槟金").
+                                                or(productTypeCol.isin("料理机", "挂烫机", "吸尘器/除螨仪")), 1)
                                         .otherwise(0).alias(label)
                                 // 异常值剔除
                         ).where(ogColorCol.notEqual(0).and(productTypeCol.notEqual(0)))
@@ -449,59 +437,9 @@ public class Tag244Model_ extends AbstractModel {
                             Dataset<Row> userTagDF = userTotalOrderGoodsGenderRatioDF
                                     .select(memberIdCol, callUDF("shopGender", col("maleCnt").divide(col("totalCnt")).alias("maleRatio"), col("femaleCnt").divide(col("totalCnt")).alias("femaleRatio")).alias("tagId"))
                                     .where(col("tagId").gt(0));
-                            // 创建HBase连接
-                            HBaseTools build = HBaseTools.build();
-                            // 获取已存在的画像数据
-                            Map<String, Map<String, String>> existProfileData = build.scan(profileTable, userFamily);
-                            // 封装画像数据
-                            List<Row> rows = userTagDF.select(memberIdCol, col("tagId").cast(DataTypes.StringType)).collectAsList();
-                            if (rows.size() > 0) {
-                                Map<String, Map<String, String>> kvs = new HashMap<String, Map<String, String>>();
-                                rows.forEach(row -> {
-                                    Map<String, String> kv = new HashMap<String, String>();
-                                    String rowKey = null;
-                                    if (!row.isNullAt(0)) {
-                                        rowKey = row.getString(0);
-                                        kv.put(userIdColumn, rowKey);
-                                    }
-                                    if (!row.isNullAt(1)) {
-                                        kv.put(tagIdsColumn, row.getString(1));
-                                    }
-                                    if (!StringUtils.isEmpty(rowKey)) {
-                                        rowKey = userFamilyAlias + rowKey;
-                                    }
-                                    // 取出本次计算完成用户ID和五级标签
-                                    String newUserId = kv.get(userIdColumn);
-                                    String newTagId = kv.get(tagIdsColumn);
-                                    if (StringUtils.isEmpty(newUserId) || StringUtils.isEmpty(newTagId)) {
-                                        logger.info("==== 本次计算完成，但是没有结果！ ====");//本次计算完成，但是没有结果
-                                    } else {
-                                        // 说明画像表是空表，直接新增
-                                        if (existProfileData.size() == 0) {
-                                            kvs.put(rowKey, kv);
-                                        } else {// 如果不是空表，则验证
-                                            Map<String, String> map = existProfileData.get(rowKey);
-                                            // 没有该用户的画像数据，直接新增
-                                            if (null == map) {
-                                                kvs.put(rowKey, kv);
-                                            } else {// 有该用户的画像数据，取出
-                                                String existTagIds = map.get(tagIdsColumn);
-                                                if (!StringUtils.isEmpty(existTagIds)) {
-                                                    if (!existTagIds.contains(newTagId)) {// 用户存在，但本次计算的标签不存在
-                                                        kv.put(tagIdsColumn, existTagIds + "," + newTagId);//在已有的标签后面追加本次计算的标签
-                                                        kvs.put(rowKey, kv);
-                                                    } else {
-                                                        logger.info("==== 该{}用户已存在ID={}的标签！ ====", rowKey, newTagId);
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                });
-                                //写入画像表
-                                build.addRows(profileTable, userFamily, kvs);
-                                build.close();
-                            } else {
+                            // 在Executor端按分区合并已存在的画像数据并写入画像表
+                            long count = new ProfileWriter(modelConfig, tag).write(userTagDF);
+                            if (count == 0) {
                                 logger.info("==== 作业计算完成，但计算结果为空！ ====");
                             }
                         } else {
@@ -516,7 +454,7 @@ public class Tag244Model_ extends AbstractModel {
     @Override
     public void clear() {
         if (null != session) {
-            session.close();
+            SQLHBase.close(session);
             logger.info("==== 释放SparkSQL相关资源 ====");
         }
     }
@@ -4,7 +4,7 @@ import cn.itcast.model.beans.BasicTagBean;
 import cn.itcast.model.beans.MetaDataBean;
 import cn.itcast.model.models.AbstractModel;
 import cn.itcast.model.models.ModelConfig;
-import cn.itcast.model.tools.hbase.HBaseTools;
+import cn.itcast.model.tools.hbase.ProfileWriter;
 import cn.itcast.model.tools.parser.MetaParser;
 import cn.itcast.model.tools.spark.sql.SQLHBase;
 import com.google.common.base.Preconditions;
@@ -45,7 +45,7 @@ public class Tag21Model extends AbstractModel {
 
     public static void main(String[] args) {
         Tag21Model tagModel = new Tag21Model();
-        tagModel.execute();
+        tagModel.execute(args);
     }
 
     @Override
@@ -137,7 +137,7 @@ public class Tag21Model extends AbstractModel {
                     logger.error("==== 标签规则解析失败！ ====");
                     throw new RuntimeException();
                 } else {
-                    if (meta.getInType().toLowerCase().equals("hbase")) {
+                    if (meta.getInType().toLowerCase().equals("hbase") || meta.getInType().toLowerCase().equals(SNAPSHOT)) {
                         Map<String, String> options = null;
                         // 获取数据源表配置
                         String table = meta.getHbaseTable();
@@ -157,26 +157,11 @@ public class Tag21Model extends AbstractModel {
                             options = modelConfig.getOptions(table, family, selectFields, whereFields);
                             logger.info("==== 数据源table={},family={},selectFileds={},whereFields={} ====", table, family, selectFields, whereFields);
                         }
-                        // 获取画像表配置
-                        String profileTable = modelConfig.getProfileTableName();
-                        Preconditions.checkNotNull(profileTable, "画像表的表名必须不为空！");
-                        String userFamily = modelConfig.getProfileTableFamilyUser();
-                        Preconditions.checkNotNull(userFamily, "画像表的列簇必须不为空！");
-                        String userFamilyAlias = modelConfig.getProfileTableFamilyUserAlias();
-                        Preconditions.checkNotNull(userFamilyAlias, "画像表的RowKey前缀必须不为空！");
-                        // qualifier=userId
-                        String userIdColumn = modelConfig.getProfileFamilyUserCol();
-                        Preconditions.checkNotNull(userIdColumn, "画像表的userId列必须不为空！");
-                        // qualifier=tagIds
-                        String tagIdsColumn = modelConfig.getProfileCommonCol();
-                        Preconditions.checkNotNull(tagIdsColumn, "画像表的tagIds列必须不为空！");
-                        // 获取HBase数据源插件实现
+                        // 获取HBase数据源插件实现，增量计算时只读取有新订单的用户的订单
+                        // 注意：没有新订单的用户的消费周期会随日期推移变化，需要定期全量运行
                         String format = modelConfig.getFormat();
-                        Dataset<Row> rowDF = session.read()
-                                .format(format)
-                                .options(options)
-                                .load();
-                        Dataset<Row> cacheDF = rowDF.persist(StorageLevel.DISK_ONLY());
+                        Dataset<Row> rowDF = loadChanged(session, meta, format, options, "memberId");
+                        Dataset<Row> cacheDF = persist(rowDF, StorageLevel.DISK_ONLY());
                         // 五级 7天标签
                         BasicTagBean d7Tag = tag.get(1);
                         long d7TagId = d7Tag.getId();
@@ -210,63 +195,9 @@ public class Tag21Model extends AbstractModel {
                                         .alias("tagId"));
                         //logger.debug("==== 计算条数：{} ====", finishTimeTagDF.count());
 
-                        HBaseTools build = HBaseTools.build();
-                        //获取已存在的画像数据
-                        Map<String, Map<String, String>> existProfileData = build.scan(profileTable, userFamily);
-                        // 封装画像数据
-                        List<Row> rows = finishTimeTagDF.collectAsList();
-                        if (rows.size() > 0) {
-                            Map<String, Map<String, String>> kvs = new HashMap<String, Map<String, String>>();
-                            rows.forEach(row -> {
-                                Map<String, String> kv = new HashMap<String, String>();
-                                String rowKey = null;
-                                if (!row.isNullAt(0)) {
-                                    rowKey = row.getString(0) + "";
-                                    kv.put(userIdColumn, rowKey);
-                                }
-                                if (!row.isNullAt(1)) {
-                                    long tagId = row.getLong(1);
-                                    if (tagId > 0) {
-                                        kv.put(tagIdsColumn, tagId + "");
-                                    } else {
-                                        logger.info("==== 用户ID={}的标签值为空！ ====", rowKey);
-                                    }
-                                }
-                                if (!StringUtils.isEmpty(rowKey)) {
-                                    rowKey = userFamilyAlias + rowKey;
-                                }
-                                // 取出本次计算完成用户ID和五级标签
-                                String newUserId = kv.get(userIdColumn);
-                                String newTagId = kv.get(tagIdsColumn);
-                                if (StringUtils.isEmpty(newUserId) || StringUtils.isEmpty(newTagId)) {
-                                    logger.info("==== 本次计算完成，但是没有结果！ ====");//本次计算完成，但是没有结果
-                                } else {
-                                    // 说明画像表是空表，直接新增
-                                    if (existProfileData.size() == 0) {
-                                        kvs.put(rowKey, kv);
-                                    } else {// 如果不是空表，则验证
-                                        Map<String, String> map = existProfileData.get(rowKey);
-                                        // 没有该用户的画像数据，直接新增
-                                        if (null == map) {
-                                            kvs.put(rowKey, kv);
-                                        } else {// 有该用户的画像数据，取出
-                                            String existTagIds = map.get(tagIdsColumn);
-                                            if (!StringUtils.isEmpty(existTagIds)) {
-                                                if (!existTagIds.contains(newTagId)) {// 用户存在，但本次计算的标签不存在
-                                                    kv.put(tagIdsColumn, existTagIds + "," + newTagId);//在已有的标签后面追加本次计算的标签
-                                                    kvs.put(rowKey, kv);
-                                                } else {
-                                                    logger.info("==== 该{}用户已存在ID={}的标签！ ====", rowKey, newTagId);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            });
-                            //写入画像表
-                            build.addRows(profileTable, userFamily, kvs);
-                            build.close();
-                        } else {
+                        // 在Executor端按分区合并已存在的画像数据并写入画像表
+                        long count = new ProfileWriter(modelConfig, tag).write(withClearedUsers(finishTimeTagDF));
+                        if (count == 0) {
                             logger.info("==== 作业计算完成，但计算结果为空！ ====");
                         }
                     }
@@ -278,7 +209,7 @@ public class Tag21Model extends AbstractModel {
     @Override
     public void clear() {
         if (null != session) {
-            session.close();
+            SQLHBase.close(session);
             logger.info("==== 释放SparkSQL相关资源 ====");
         }
     }
@@ -4,8 +4,9 @@ import cn.itcast.model.beans.BasicTagBean;
 import cn.itcast.model.beans.MetaDataBean;
 import cn.itcast.model.models.AbstractModel;
 import cn.itcast.model.models.ModelConfig;
-import cn.itcast.model.tools.hbase.HBaseTools;
+import cn.itcast.model.tools.hbase.ProfileWriter;
 import cn.itcast.model.tools.parser.MetaParser;
+import cn.itcast.model.tools.spark.sql.RuleTable;
 import cn.itcast.model.tools.spark.sql.SQLHBase;
 import com.google.common.base.Preconditions;
 import org.apache.commons.lang.StringUtils;
@@ -44,7 +45,7 @@ public class Tag9Model extends AbstractModel {
 
     public static void main(String[] args) {
         Tag9Model tagModel = new Tag9Model();
-        tagModel.execute();
+        tagModel.execute(args);
     }
 
     @Override
@@ -159,124 +160,21 @@ public class Tag9Model extends AbstractModel {
                             options = modelConfig.getOptions(table, family, selectFields, whereFields);
                             logger.info("==== 数据源table={},family={},selectFileds={},whereFields={} ====", table, family, selectFields, whereFields);
                         }
-                        // 获取画像表配置
-                        String profileTable = modelConfig.getProfileTableName();
-                        Preconditions.checkNotNull(profileTable, "画像表的表名必须不为空！");
-                        String userFamily = modelConfig.getProfileTableFamilyUser();
-                        Preconditions.checkNotNull(userFamily, "画像表的列簇必须不为空！");
-                        String userFamilyAlias = modelConfig.getProfileTableFamilyUserAlias();
-                        Preconditions.checkNotNull(userFamilyAlias, "画像表的RowKey前缀必须不为空！");
-                        // qualifier=userId
-                        String userIdColumn = modelConfig.getProfileFamilyUserCol();
-                        Preconditions.checkNotNull(userIdColumn, "画像表的userId列必须不为空！");
-                        // qualifier=tagIds
-                        String tagIdsColumn = modelConfig.getProfileCommonCol();
-                        Preconditions.checkNotNull(tagIdsColumn, "画像表的tagIds列必须不为空！");
-                        // 获取HBase数据源插件实现
+                        // 获取HBase数据源插件实现，增量计算时只读取有变化的用户
                         String format = modelConfig.getFormat();
-                        Dataset<Row> rowDF = session.read()
-                                .format(format)
-                                .options(options)
-                                .load();
-                        Dataset<Row> cacheDF = rowDF.persist(StorageLevel.DISK_ONLY());
-                        // 五级 50后标签
-                        BasicTagBean age50Tag = tag.get(1);
-                        long age50Id = age50Tag.getId();
-                        String[] age50 = age50Tag.getRule().split("-");
-                        // 五级 60后标签
-                        BasicTagBean age60Tag = tag.get(2);
-                        long age60Id = age60Tag.getId();
-                        String[] age60 = age60Tag.getRule().split("-");
-                        // 五级 70后标签
-                        BasicTagBean age70Tag = tag.get(3);
-                        long age70Id = age70Tag.getId();
-                        String[] age70 = age70Tag.getRule().split("-");
-                        // 五级 80后标签
-                        BasicTagBean age80Tag = tag.get(4);
-                        long age80Id = age80Tag.getId();
-                        String[] age80 = age80Tag.getRule().split("-");
-                        // 五级 90后标签
-                        BasicTagBean age90Tag = tag.get(5);
-                        long age90Id = age90Tag.getId();
-                        String[] age90 = age90Tag.getRule().split("-");
-                        // 五级 00后标签
-                        BasicTagBean age00Tag = tag.get(6);
-                        long age00Id = age00Tag.getId();
-                        String[] age00 = age00Tag.getRule().split("-");
-                        // 五级 10后标签
-                        BasicTagBean age10Tag = tag.get(7);
-                        long age10Id = age10Tag.getId();
-                        String[] age10 = age10Tag.getRule().split("-");
-                        // 五级 20后标签
-                        BasicTagBean age20Tag = tag.get(8);
-                        long age20Id = age20Tag.getId();
-                        String[] age20 = age20Tag.getRule().split("-");
+                        Dataset<Row> rowDF = loadChanged(session, format, options, "row");
+                        Dataset<Row> cacheDF = persist(rowDF, StorageLevel.DISK_ONLY());
+                        // 五级标签的年龄段规则编译为按起始日期排序的范围表，每行只规范化一次birthday并二分查找
+                        RuleTable ageRules = RuleTable.compile(tag.subList(1, tag.size()));
 
                         //用户-关联标签,该DataFrame的Schema为userid,tagId,birthday
-                        Dataset<Row> birthdayTagDF = cacheDF.select(new Column("id"), functions
-                                .when(functions.regexp_replace(new Column("birthday"), "-", "").between(age50[0], age50[1]), age50Id)//如果是50后
-                                .when(functions.regexp_replace(new Column("birthday"), "-", "").between(age60[0], age60[1]), age60Id)//如果是60后
-                                .when(functions.regexp_replace(new Column("birthday"), "-", "").between(age70[0], age70[1]), age70Id)//如果是70后
-                                .when(functions.regexp_replace(new Column("birthday"), "-", "").between(age80[0], age80[1]), age80Id)//如果是80后
-                                .when(functions.regexp_replace(new Column("birthday"), "-", "").between(age90[0], age90[1]), age90Id)//如果是90后
-                                .when(functions.regexp_replace(new Column("birthday"), "-", "").between(age00[0], age00[1]), age00Id)//如果是00后
-                                .when(functions.regexp_replace(new Column("birthday"), "-", "").between(age10[0], age10[1]), age10Id)//如果是10后
-                                .when(functions.regexp_replace(new Column("birthday"), "-", "").between(age20[0], age20[1]), age20Id)//如果是20后
-                                .alias("tagId"), new Column("birthday"));
+                        Dataset<Row> birthdayTagDF = cacheDF.select(new Column("id"),
+                                applyRules(ageRules, session, new Column("birthday")).alias("tagId"), new Column("birthday"));
                         //logger.debug("==== 计算条数：{} ====", jobTagDFTagDF.count());
 
-                        HBaseTools build = HBaseTools.build();
-                        //获取已存在的画像数据
-                        Map<String, Map<String, String>> existProfileData = build.scan(profileTable, userFamily);
-                        // 封装画像数据
-                        List<Row> rows = birthdayTagDF.collectAsList();
-                        if (rows.size() > 0) {
-                            Map<String, Map<String, String>> kvs = new HashMap<String, Map<String, String>>();
-                            rows.forEach(row -> {
-                                Map<String, String> kv = new HashMap<String, String>();
-                                String rowKey = null;
-                                if (!row.isNullAt(0)) {
-                                    rowKey = row.getString(0) + "";
-                                    kv.put(userIdColumn, rowKey);
-                                }
-                                if (!row.isNullAt(1)) {
-                                    kv.put(tagIdsColumn, row.getString(1));
-                                }
-                                if (!StringUtils.isEmpty(rowKey)) {
-                                    rowKey = userFamilyAlias + rowKey;
-                                }
-                                // 取出本次计算完成用户ID和五级标签
-                                String newUserId = kv.get(userIdColumn);
-                                String newTagId = kv.get(tagIdsColumn);
-                                if (StringUtils.isEmpty(newUserId) || StringUtils.isEmpty(newTagId)) {
-                                    logger.info("==== 本次计算完成，但是没有结果！ ====");//本次计算完成，但是没有结果
-                                } else {
-                                    // 说明画像表是空表，直接新增
-                                    if (existProfileData.size() == 0) {
-                                        kvs.put(rowKey, kv);
-                                    } else {// 如果不是空表，则验证
-                                        Map<String, String> map = existProfileData.get(rowKey);
-                                        // 没有该用户的画像数据，直接新增
-                                        if (null == map) {
-                                            kvs.put(rowKey, kv);
-                                        } else {// 有该用户的画像数据，取出
-                                            String existTagIds = map.get(tagIdsColumn);
-                                            if (!StringUtils.isEmpty(existTagIds)) {
-                                                if (!existTagIds.contains(newTagId)) {// 用户存在，但本次计算的标签不存在
-                                                    kv.put(tagIdsColumn, existTagIds + "," + newTagId);//在已有的标签后面追加本次计算的标签
-                                                    kvs.put(rowKey, kv);
-                                                } else {
-                                                    logger.info("==== 该{}用户已存在ID={}的标签！ ====", rowKey, newTagId);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            });
-                            //写入画像表
-                            build.addRows(profileTable, userFamily, kvs);
-                            build.close();
-                        } else {
+                        // 在Executor端按分区合并已存在的画像数据并写入画像表
+                        long count = new ProfileWriter(modelConfig, tag).write(withClearedUsers(birthdayTagDF));
+                        if (count == 0) {
                             logger.info("==== 作业计算完成，但计算结果为空！ ====");
                         }
                     }
@@ -288,7 +186,7 @@ public class Tag9Model extends AbstractModel {
     @Override
     public void clear() {
         if (null != session) {
-            session.close();
+            SQLHBase.close(session);
             logger.info("==== 释放SparkSQL相关资源 ====");
         }
     }
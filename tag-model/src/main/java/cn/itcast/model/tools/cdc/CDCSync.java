@@ -0,0 +1,257 @@
+package cn.itcast.model.tools.cdc;
+
+import cn.itcast.model.models.ModelConfig;
+import cn.itcast.model.tools.hbase.HBaseTools;
+import cn.itcast.model.tools.mysql.ChangedUsers;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * MySQL源表到HBase的CDC增量同步
+ * 从事件源按批拉取行变更事件，按表和RowKey合并后以批量Put/Delete写入同名HBase表，
+ * 同时记录数据发生变更的用户ID供标签模型增量计算使用，同步代价只与变更量成正比。
+ * 更新改变了用户ID列时(如订单改到另一个会员)，新旧用户都会被记录；超过保留天数的变更用户记录定期删除。
+ * 用法：CDCSync <changelog.jsonl> [--batchSize 1000] [--follow] [--retentionDays 7]
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class CDCSync {
+
+    private static String appName = CDCSync.class.getSimpleName();
+    private static Logger logger = LoggerFactory.getLogger(CDCSync.class);
+    private static final String BATCH_SIZE_ARG = "--batchSize";
+    private static final String FOLLOW_ARG = "--follow";
+    private static final String RETENTION_DAYS_ARG = "--retentionDays";
+    private static final long POLL_INTERVAL = 1000L;
+    // 删除过期变更用户记录的间隔
+    private static final long PURGE_INTERVAL = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final String family = "detail";
+    // 源表的RowKey列和用户ID列，用户ID列为null的表不记录变更用户
+    private static final Map<String, String[]> tables = new HashMap<String, String[]>() {{
+        put("tbl_users", new String[]{"id", "id"});
+        put("tbl_orders", new String[]{"id", "memberId"});
+        put("tbl_goods", new String[]{"id", null});
+        put("tbl_logs", new String[]{"id", "global_user_id"});
+    }};
+    private final ChangeEventSource source;
+    private final Connection connection;
+    private final ChangedUsers changedUsers;
+    private final int batchSize;
+    // 变更用户记录的保留天数
+    private int retentionDays = 7;
+    private long lastPurge;
+
+    public CDCSync(ChangeEventSource source, Connection connection, ChangedUsers changedUsers, int batchSize) {
+        this.source = source;
+        this.connection = connection;
+        this.changedUsers = changedUsers;
+        this.batchSize = batchSize;
+    }
+
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            logger.error("==== 用法：{} <changelog.jsonl> [--batchSize 1000] [--follow] [--retentionDays 7] ====", appName);
+            System.exit(1);
+        }
+        int batchSize = 1000;
+        int retentionDays = 7;
+        boolean follow = false;
+        for (int i = 1; i < args.length; i++) {
+            if (BATCH_SIZE_ARG.equals(args[i]) && i + 1 < args.length) {
+                batchSize = Integer.parseInt(args[++i]);
+            } else if (RETENTION_DAYS_ARG.equals(args[i]) && i + 1 < args.length) {
+                retentionDays = Integer.parseInt(args[++i]);
+            } else if (FOLLOW_ARG.equals(args[i])) {
+                follow = true;
+            }
+        }
+        try (ChangeEventSource source = new JsonLinesChangeEventSource(args[0])) {
+            CDCSync sync = new CDCSync(source, HBaseTools.build().getConnection(), new ChangedUsers(new ModelConfig()), batchSize);
+            sync.setRetentionDays(retentionDays);
+            sync.run(follow);
+        }
+    }
+
+    /**
+     * 持续消费事件并应用到HBase
+     *
+     * @param follow 消费完是否继续等待新事件
+     * @throws IOException
+     * @throws SQLException
+     * @throws InterruptedException
+     */
+    public void run(boolean follow) throws IOException, SQLException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long total = 0;
+        while (true) {
+            purgeIfDue();
+            List<ChangeEvent> events = source.poll(batchSize);
+            if (events.isEmpty()) {
+                if (!follow) {
+                    break;
+                }
+                Thread.sleep(POLL_INTERVAL);
+                continue;
+            }
+            apply(events);
+            // 事件写入HBase并记录变更用户后才提交消费位置
+            source.commit();
+            total += events.size();
+            logger.info("==== 已同步{}条变更事件 ====", total);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info("==== 同步完成，共{}条变更事件，耗时{}ms ====", total, elapsed);
+    }
+
+    /**
+     * 每隔PURGE_INTERVAL删除一次超过保留天数的变更用户记录，删除失败不影响同步
+     */
+    private void purgeIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastPurge < PURGE_INTERVAL) {
+            return;
+        }
+        lastPurge = now;
+        try {
+            int count = changedUsers.purge(now - retentionDays * DAY_MILLIS);
+            logger.info("==== 删除{}天前的变更用户记录{}条 ====", retentionDays, count);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            logger.error("==== purgeIfDue@err:{} ====", e.getMessage());
+        }
+    }
+
+    /**
+     * 应用一批事件：同一行在一批中只保留最后一次变更，按表批量写入，并记录变更用户；
+     * 更新和删除前先读取HBase中的旧用户ID，用户ID列被修改或删除事件中没有用户ID时旧用户也会被重新计算
+     *
+     * @param events
+     * @throws IOException
+     * @throws SQLException
+     */
+    public void apply(List<ChangeEvent> events) throws IOException, SQLException {
+        // <表, <RowKey, 最后一次变更>>
+        Map<String, Map<String, ChangeEvent>> latest = new LinkedHashMap<String, Map<String, ChangeEvent>>();
+        // <表, 变更用户>
+        Map<String, Set<String>> users = new HashMap<String, Set<String>>();
+        for (ChangeEvent event : events) {
+            String[] spec = tables.get(event.getTable());
+            if (null == spec) {
+                logger.warn("==== 不同步的表:{} ====", event.getTable());
+                continue;
+            }
+            Map<String, String> data = event.getData();
+            String rowKey = null == data ? null : data.get(spec[0]);
+            if (null == rowKey || null == event.getType()) {
+                logger.warn("==== 无效的变更事件:{} ====", event);
+                continue;
+            }
+            latest.computeIfAbsent(event.getTable(), k -> new LinkedHashMap<String, ChangeEvent>()).put(rowKey, event);
+            if (null != spec[1] && null != data.get(spec[1])) {
+                users.computeIfAbsent(event.getTable(), k -> new HashSet<String>()).add(data.get(spec[1]));
+            }
+        }
+        byte[] familyBytes = Bytes.toBytes(family);
+        for (Map.Entry<String, Map<String, ChangeEvent>> entry : latest.entrySet()) {
+            String[] spec = tables.get(entry.getKey());
+            if (null != spec[1] && !spec[1].equals(spec[0])) {
+                Set<String> oldUsers = getOldUsers(entry.getKey(), spec[1], entry.getValue());
+                if (!oldUsers.isEmpty()) {
+                    users.computeIfAbsent(entry.getKey(), k -> new HashSet<String>()).addAll(oldUsers);
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, ChangeEvent>> entry : latest.entrySet()) {
+            List<Row> mutations = new ArrayList<Row>(entry.getValue().size());
+            int puts = 0;
+            int deletes = 0;
+            for (Map.Entry<String, ChangeEvent> row : entry.getValue().entrySet()) {
+                byte[] rowKey = Bytes.toBytes(row.getKey());
+                ChangeEvent event = row.getValue();
+                if (event.getType() == ChangeEvent.Type.DELETE) {
+                    mutations.add(new Delete(rowKey));
+                    deletes++;
+                    continue;
+                }
+                // 整行数据写入，值为null的列删除，Put和Delete在同一行上原子执行
+                Put put = new Put(rowKey);
+                Delete nulls = new Delete(rowKey);
+                event.getData().forEach((k, v) -> {
+                    if (null == v) {
+                        nulls.addColumns(familyBytes, Bytes.toBytes(k));
+                    } else {
+                        put.addColumn(familyBytes, Bytes.toBytes(k), Bytes.toBytes(v));
+                    }
+                });
+                if (nulls.isEmpty()) {
+                    mutations.add(put);
+                } else {
+                    RowMutations rowMutations = new RowMutations(rowKey);
+                    if (!put.isEmpty()) {
+                        rowMutations.add(put);
+                    }
+                    rowMutations.add(nulls);
+                    mutations.add(rowMutations);
+                }
+                puts++;
+            }
+            try (Table table = connection.getTable(TableName.valueOf(entry.getKey()))) {
+                table.batch(mutations, new Object[mutations.size()]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            logger.info("==== 表:{} 写入{}行，删除{}行 ====", entry.getKey(), puts, deletes);
+        }
+        long changeTime = System.currentTimeMillis();
+        for (Map.Entry<String, Set<String>> entry : users.entrySet()) {
+            changedUsers.record(entry.getKey(), entry.getValue(), changeTime);
+        }
+    }
+
+    /**
+     * 批量读取被更新或删除的行在HBase中的用户ID
+     *
+     * @param tableName
+     * @param userColumn 用户ID列
+     * @param rows       <RowKey, 最后一次变更>
+     * @return
+     * @throws IOException
+     */
+    private Set<String> getOldUsers(String tableName, String userColumn, Map<String, ChangeEvent> rows) throws IOException {
+        byte[] familyBytes = Bytes.toBytes(family);
+        byte[] userQualifier = Bytes.toBytes(userColumn);
+        List<Get> gets = new ArrayList<Get>();
+        for (Map.Entry<String, ChangeEvent> row : rows.entrySet()) {
+            if (row.getValue().getType() != ChangeEvent.Type.INSERT) {
+                gets.add(new Get(Bytes.toBytes(row.getKey())).addColumn(familyBytes, userQualifier));
+            }
+        }
+        Set<String> oldUsers = new HashSet<String>();
+        if (gets.isEmpty()) {
+            return oldUsers;
+        }
+        try (Table table = connection.getTable(TableName.valueOf(tableName))) {
+            for (Result result : table.get(gets)) {
+                byte[] value = result.getValue(familyBytes, userQualifier);
+                if (null != value) {
+                    oldUsers.add(Bytes.toString(value));
+                }
+            }
+        }
+        return oldUsers;
+    }
+
+}
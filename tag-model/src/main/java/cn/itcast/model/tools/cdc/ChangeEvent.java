@@ -0,0 +1,73 @@
+package cn.itcast.model.tools.cdc;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * 源表的一条行变更事件，data为变更后的整行数据，删除时为删除前的整行数据
+ * JSON格式：{"table":"tbl_orders","type":"UPDATE","ts":1567396800000,"data":{"id":"1","memberId":"13823431",...}}
+ * Created by mengyao
+ * 2019年9月2日
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChangeEvent implements Serializable {
+
+    private static final long serialVersionUID = -4539416302767532218L;
+    // 源表名
+    private String table;
+    // 变更类型
+    private Type type;
+    // 变更时间(毫秒)
+    private long ts;
+    // 行数据，字段名和值
+    private Map<String, String> data;
+
+    public String getTable() {
+        return table;
+    }
+
+    public void setTable(String table) {
+        this.table = table;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public long getTs() {
+        return ts;
+    }
+
+    public void setTs(long ts) {
+        this.ts = ts;
+    }
+
+    public Map<String, String> getData() {
+        return data;
+    }
+
+    public void setData(Map<String, String> data) {
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent [table=" + table + ", type=" + type + ", ts=" + ts + ", data=" + data + "]";
+    }
+
+    /**
+     * 变更类型
+     */
+    public enum Type {
+        INSERT,
+        UPDATE,
+        DELETE
+    }
+
+}
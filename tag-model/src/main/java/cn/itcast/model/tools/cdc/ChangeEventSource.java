@@ -0,0 +1,32 @@
+package cn.itcast.model.tools.cdc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 行变更事件源
+ * 生产环境对接MySQL binlog，本地测试使用{@link JsonLinesChangeEventSource}。
+ * 事件应用到HBase之后才调用commit提交消费位置，失败重启后从上次提交的位置重新消费
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public interface ChangeEventSource extends Closeable {
+
+    /**
+     * 拉取下一批事件
+     *
+     * @param maxEvents 最多拉取的事件数
+     * @return 没有新事件时返回空集合
+     * @throws IOException
+     */
+    List<ChangeEvent> poll(int maxEvents) throws IOException;
+
+    /**
+     * 提交已拉取事件的消费位置
+     *
+     * @throws IOException
+     */
+    void commit() throws IOException;
+
+}
@@ -0,0 +1,71 @@
+package cn.itcast.model.tools.cdc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 本地JSON-lines变更日志事件源，每行一个{@link ChangeEvent}，用于替代binlog进行测试。
+ * 消费位置为已提交的行数，保存在同目录的{文件名}.offset文件中
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class JsonLinesChangeEventSource implements ChangeEventSource {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path offsetFile;
+    private final BufferedReader reader;
+    // 已提交的行数
+    private long committed;
+    // 已拉取未提交的行数
+    private long pending;
+
+    public JsonLinesChangeEventSource(String file) throws IOException {
+        Path path = Paths.get(file);
+        this.offsetFile = Paths.get(file + ".offset");
+        if (Files.exists(offsetFile)) {
+            String offset = new String(Files.readAllBytes(offsetFile), StandardCharsets.UTF_8).trim();
+            committed = StringUtils.isEmpty(offset) ? 0L : Long.parseLong(offset);
+        }
+        this.reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        // 跳过已提交的行
+        for (long i = 0; i < committed; i++) {
+            if (null == reader.readLine()) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public List<ChangeEvent> poll(int maxEvents) throws IOException {
+        List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+        String line;
+        while (events.size() < maxEvents && null != (line = reader.readLine())) {
+            pending++;
+            if (StringUtils.isNotBlank(line)) {
+                events.add(mapper.readValue(line, ChangeEvent.class));
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        committed += pending;
+        pending = 0;
+        Files.write(offsetFile, String.valueOf(committed).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
@@ -8,6 +8,7 @@ import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.RegionLocator;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat2;
 import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
@@ -18,6 +19,7 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.storage.StorageLevel;
 import scala.Tuple2;
@@ -25,6 +27,7 @@ import scala.Tuple2;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 /**
  * Spark HBase BulkLoad
@@ -49,7 +52,7 @@ public class HBaseBulkloader {
         //args = new String[] {"4", "tbl_tag_order", "haier", "/apps/test/haier/order/tag_order.csv", "/apps/test/haier/order/hfileout"};
         //args = new String[] {"5", "tbl_tag_logs", "haier", "/apps/test/haier/log/tag_logs.csv", "/apps/test/haier/log/hfileout"};
         if (args.length < 5) {
-            System.out.println("Usage: required params: <DataType> <HBaseTable> <Family> <InputDir> <OutputDir>");
+            System.out.println("Usage: required params: <DataType> <HBaseTable> <Family> <InputDir> <OutputDir> [PreSplitRegions]");
             System.exit(-1);
         }
         //1User、2Product、3ProductType、4Order、5Log
@@ -62,6 +65,9 @@ public class HBaseBulkloader {
         String inputDir = args[3];
         //HBase Table Input HFileData
         String outputDir = args[4];
+        //表为空时按抽样的RowKey预分区的Region个数，不指定时不预分区
+        int preSplitRegions = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        int type = Integer.valueOf(dataType);
 
         long start = System.currentTimeMillis();
         Configuration hadoopConf = HBaseConfiguration.create();
@@ -87,25 +93,40 @@ public class HBaseBulkloader {
         fs.close();
         FileOutputFormat.setOutputPath(job, output);
 
-        Connection connection = ConnectionFactory.createConnection(hadoopConf);
-        TableName table = TableName.valueOf(tableName);
-        HFileOutputFormat2.configureIncrementalLoad(job, connection.getTable(table), connection.getRegionLocator(table));
-
+        //Master由spark-submit指定
         SparkConf sparkConf = new SparkConf()
                 .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
-                .setMaster("local[*]")
                 .setAppName(appName);
 
         JavaSparkContext jsc = new JavaSparkContext(sparkConf);
-        jsc.textFile(inputDir)
-                .persist(StorageLevel.MEMORY_AND_DISK_SER())
-                .flatMapToPair(line -> extractText(Integer.valueOf(dataType), line, family).iterator())
-                .coalesce(1)
-                .sortByKey()//对key(ImmutableBytesWritable)做字典序排序
+        //每行数据为一个RowKey，value为该行按qualifier字典序排好的单元格
+        JavaPairRDD<ImmutableBytesWritable, List<KeyValue>> rows = jsc.textFile(inputDir)
+                .map(line -> extractText(type, line, family))
+                .filter(cells -> !cells.isEmpty())
+                .mapToPair(cells -> new Tuple2<ImmutableBytesWritable, List<KeyValue>>(cells.get(0)._1,
+                        cells.stream().map(Tuple2::_2).collect(Collectors.toList())))
+                .persist(StorageLevel.MEMORY_AND_DISK_SER());
+
+        Connection connection = ConnectionFactory.createConnection(hadoopConf);
+        TableName table = TableName.valueOf(tableName);
+        if (preSplitRegions > 1) {
+            //按抽样的RowKey计算切分点，每个Region约抽样1000个RowKey
+            long total = rows.count();
+            double fraction = Math.min(1.0, preSplitRegions * 1000.0 / Math.max(total, 1L));
+            List<byte[]> sampleKeys = rows.keys().sample(false, fraction).map(ImmutableBytesWritable::copyBytes).collect();
+            RegionPartitioner.preSplit(connection, table, family, RegionPartitioner.splitKeys(sampleKeys, preSplitRegions));
+        }
+        RegionLocator locator = connection.getRegionLocator(table);
+        HFileOutputFormat2.configureIncrementalLoad(job, connection.getTable(table), locator);
+
+        //按Region边界分区并在分区内按RowKey排序，每个Task并行为一个Region生成HFile
+        rows.repartitionAndSortWithinPartitions(RegionPartitioner.of(locator), new RegionPartitioner.RowKeyComparator())
+                .flatMapToPair(row -> row._2.stream().map(kv -> new Tuple2<>(row._1, kv)).iterator())
                 .saveAsNewAPIHadoopFile(outputDir, ImmutableBytesWritable.class, KeyValue.class, HFileOutputFormat2.class, job.getConfiguration());
+        rows.unpersist();
 
         LoadIncrementalHFiles load = new LoadIncrementalHFiles(hadoopConf);
-        load.doBulkLoad(output, connection.getAdmin(), connection.getTable(table), connection.getRegionLocator(table));
+        load.doBulkLoad(output, connection.getAdmin(), connection.getTable(table), locator);
 
         jsc.close();
         long end = System.currentTimeMillis();
@@ -245,40 +245,61 @@ public class HBaseTools {
      */
     public List<Map<String, String>> queryForScan(String tableName, String family) {
         List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
-        Table table = null;
-        ResultScanner rs = null;
         try {
-            table = getConnection().getTable(TableName.valueOf(tableName));
-            Scan scan = new Scan();
-            scan.addFamily(Bytes.toBytes(family));
-            rs = table.getScanner(scan);
-            Map<String, String> row = null;
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                row.put("row", Bytes.toString(r.getRow()));
-                for (Cell cell : cells) {
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.add(row);
-            }
+            queryForScan(tableName, family, ScanCursor.NO_LIMIT, r -> {
+                Map<String, String> row = r.toMap();
+                row.put("row", r.getRowKey());
+                return rows.add(row);
+            });
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (null != rs) {
-                    rs.close();
-                }
-                if (null != table) {
-                    table.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
         return rows;
     }
 
+    /**
+     * 流式查询列簇，逐行访问，不在内存中保留结果
+     *
+     * @param tableName
+     * @param family
+     * @param limit     最多访问的行数
+     * @param visitor   返回false时停止
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public long queryForScan(String tableName, String family, long limit, ScanCursor.RowVisitor visitor) throws IOException {
+        Scan scan = new Scan();
+        scan.addFamily(Bytes.toBytes(family));
+        return scan(tableName, scan, limit, visitor);
+    }
+
+    /**
+     * 流式扫描，逐行访问复用的行视图
+     *
+     * @param tableName
+     * @param scan
+     * @param limit     最多访问的行数
+     * @param visitor   返回false时停止
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public long scan(String tableName, Scan scan, long limit, ScanCursor.RowVisitor visitor) throws IOException {
+        return ScanCursor.forEach(getConnection().getTable(TableName.valueOf(tableName)), scan, limit, visitor);
+    }
+
+    /**
+     * 打开扫描游标，调用方负责关闭
+     *
+     * @param tableName
+     * @param scan
+     * @param limit     最多返回的行数
+     * @return
+     * @throws IOException
+     */
+    public ScanCursor openScan(String tableName, Scan scan, long limit) throws IOException {
+        return new ScanCursor(getConnection().getTable(TableName.valueOf(tableName)), scan, limit);
+    }
+
     /**
      * 查询所有
      *
@@ -289,35 +310,13 @@ public class HBaseTools {
      */
     public Map<String, Map<String, String>> scan(String tableName, String family) {
         Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
-        Table table = null;
-        ResultScanner rs = null;
         try {
-            table = getConnection().getTable(TableName.valueOf(tableName));
-            Scan scan = new Scan();
-            scan.addFamily(Bytes.toBytes(family));
-            rs = table.getScanner(scan);
-            Map<String, String> row = null;
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.put(Bytes.toString(r.getRow()), row);
-            }
+            queryForScan(tableName, family, ScanCursor.NO_LIMIT, r -> {
+                rows.put(r.getRowKey(), r.toMap());
+                return true;
+            });
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (null != rs) {
-                    rs.close();
-                }
-                if (null != table) {
-                    table.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
         return rows;
     }
@@ -359,24 +358,12 @@ public class HBaseTools {
      */
     public List<Map<String, String>> queryForScan(String tableName) throws IOException {
         List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
-        Table table = getConnection().getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put("rowKey", new String(CellUtil.cloneRow(cell)));
-                    row.put("family", new String(CellUtil.cloneFamily(cell)));
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.add(row);
-            }
-        } finally {
-            rs.close();
-        }
+        scan(tableName, new Scan(), ScanCursor.NO_LIMIT, r -> {
+            Map<String, String> row = r.toMap();
+            row.put("rowKey", r.getRowKey());
+            row.put("family", r.getFamily());
+            return rows.add(row);
+        });
         return rows;
     }
 
@@ -392,25 +379,27 @@ public class HBaseTools {
      */
     public List<Map<String, String>> queryForTimeRange(String tableName, String family, long minStamp, long maxStamp) throws IOException {
         List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
-        Table table = getConnection().getTable(TableName.valueOf(tableName));
+        queryForTimeRange(tableName, family, minStamp, maxStamp, ScanCursor.NO_LIMIT, r -> rows.add(r.toMap()));
+        return rows;
+    }
+
+    /**
+     * 根据时间范围流式查询
+     *
+     * @param tableName
+     * @param family
+     * @param minStamp
+     * @param maxStamp
+     * @param limit     最多访问的行数
+     * @param visitor   返回false时停止
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public long queryForTimeRange(String tableName, String family, long minStamp, long maxStamp, long limit, ScanCursor.RowVisitor visitor) throws IOException {
         Scan scan = new Scan();
         scan.addFamily(Bytes.toBytes(family));
         scan.setTimeRange(minStamp, maxStamp);
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.add(row);
-            }
-        } finally {
-            rs.close();
-        }
-        return rows;
+        return scan(tableName, scan, limit, visitor);
     }
 
     /**
@@ -484,29 +473,34 @@ public class HBaseTools {
      */
     public List<Map<String, String>> queryForRowKeyRange(String tableName, String family, String startRow, String stopRow) throws IOException {
         List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
-        Table table = getConnection().getTable(TableName.valueOf(tableName));
+        queryForRowKeyRange(tableName, family, startRow, stopRow, ScanCursor.NO_LIMIT, r -> {
+            Map<String, String> row = r.toMap();
+            row.put("timestamp", String.valueOf(r.getTimestamp()));
+            row.put("rowKey", r.getRowKey());
+            row.put("family", r.getFamily());
+            return rows.add(row);
+        });
+        return rows;
+    }
+
+    /**
+     * 根据RowKey范围流式查询
+     *
+     * @param tableName
+     * @param family
+     * @param startRow
+     * @param stopRow
+     * @param limit     最多访问的行数
+     * @param visitor   返回false时停止
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public long queryForRowKeyRange(String tableName, String family, String startRow, String stopRow, long limit, ScanCursor.RowVisitor visitor) throws IOException {
         Scan scan = new Scan();
         scan.addFamily(Bytes.toBytes(family));
         scan.setStartRow(Bytes.toBytes(startRow));
         scan.setStopRow(Bytes.toBytes(stopRow));
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put("timestamp", cell.getTimestamp() + "");
-                    row.put("rowKey", new String(CellUtil.cloneRow(cell)));
-                    row.put("family", new String(CellUtil.cloneFamily(cell)));
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.add(row);
-            }
-        } finally {
-            rs.close();
-        }
-        return rows;
+        return scan(tableName, scan, limit, visitor);
     }
 
     /**
@@ -794,6 +788,45 @@ public class HBaseTools {
         return count;
     }
 
+    /**
+     * 根据RowKey查询画像标签集合，兼容旧的逗号分隔格式
+     *
+     * @param tableName
+     * @param rowKey
+     * @param family
+     * @param qualifier
+     * @return
+     * @throws IOException
+     */
+    public TagSet queryForTagSet(String tableName, String rowKey, String family, String qualifier) throws IOException {
+        try (Table table = getConnection().getTable(TableName.valueOf(tableName))) {
+            Get get = new Get(Bytes.toBytes(rowKey));
+            get.addColumn(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+            Result result = table.get(get);
+            return TagSet.decode(result.getValue(Bytes.toBytes(family), Bytes.toBytes(qualifier)));
+        }
+    }
+
+    /**
+     * 以二进制格式写入画像标签集合
+     *
+     * @param tableName
+     * @param rowKey
+     * @param family
+     * @param qualifier
+     * @param tagSet
+     */
+    public void updateTagSet(String tableName, String rowKey, String family, String qualifier, TagSet tagSet) {
+        try (Table table = getConnection().getTable(TableName.valueOf(tableName))) {
+            Put put = new Put(Bytes.toBytes(rowKey));
+            put.addColumn(Bytes.toBytes(family), Bytes.toBytes(qualifier), tagSet.encode());
+            put.setDurability(Durability.SYNC_WAL);
+            table.put(put);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     public void updateQualifier(String tableName, String rowKey, String family, String qualifier, String value) {
         try {
             Table table = getConnection().getTable(TableName.valueOf(tableName));
@@ -3,28 +3,49 @@ package cn.itcast.model.tools.hbase;
 import cn.itcast.model.models.ModelConfig;
 import cn.itcast.model.tools.spark.sql.SQLHBase;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.client.Put;
-import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat2;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
 import org.apache.hadoop.hbase.mapreduce.TableOutputFormat;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.spark.SparkConf;
+import org.apache.spark.SparkContext;
+import org.apache.spark.Success$;
 import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import scala.Tuple2;
+import scala.collection.JavaConverters;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Properties;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 同步MySQL数据到HBase
+ * 按RowKey列的最小值和最大值分区并行读取MySQL表，Row直接转换为Put或KeyValue，
+ * 可选择通过TableOutputFormat写入或生成HFile后BulkLoad，结束后输出每张表的吞吐量。
+ * 写入行数取自写入Stage成功任务的指标，任务重试或推测执行时同一分区只计一次。
+ * 用法：MySQL2HBaseSync [tbl_users,tbl_orders,tbl_goods,tbl_logs] [--parallelism 8] [--fetchSize 10000] [--bulkload]
  * Created by mengyao
  * 2019年5月22日
  */
@@ -32,82 +53,289 @@ import java.util.Properties;
 public class MySQL2HBaseSync {
 
     private static String appName = MySQL2HBaseSync.class.getSimpleName();
+    private static Logger logger = LoggerFactory.getLogger(MySQL2HBaseSync.class);
     private static ModelConfig modelConfig = new ModelConfig();
     private static HBaseTools build = HBaseTools.build();
     private static String url = "jdbc:mysql://bd001:3306/tags_dat?useUnicode=true&characterEncoding=utf8&user=root&password=123456";
     private static String driver = "com.mysql.jdbc.Driver";
     private static String[] tables = {"tbl_users", "tbl_orders", "tbl_goods", "tbl_logs"};
     private static String family = "detail";
+    private static final String PARALLELISM_ARG = "--parallelism";
+    private static final String FETCH_SIZE_ARG = "--fetchSize";
+    private static final String BULKLOAD_ARG = "--bulkload";
+    // JDBC并行读取的分区数
+    private static int parallelism = 8;
+    // JDBC每次从MySQL拉取的行数
+    private static int fetchSize = 10000;
+    // 是否生成HFile后BulkLoad
+    private static boolean bulkload = false;
+    // 读取写入行数前等待事件总线处理完任务结束事件的最长时间
+    private static final long DRAIN_TIMEOUT_MS = 10000L;
 
 
     public static void main(String[] args) throws Exception {
-//		build.ifNotTable("test2", "default");
+        List<String> syncTables = new ArrayList<String>(Arrays.asList(tables));
+        for (int i = 0; i < args.length; i++) {
+            if (PARALLELISM_ARG.equals(args[i]) && i + 1 < args.length) {
+                parallelism = Integer.parseInt(args[++i]);
+            } else if (FETCH_SIZE_ARG.equals(args[i]) && i + 1 < args.length) {
+                fetchSize = Integer.parseInt(args[++i]);
+            } else if (BULKLOAD_ARG.equals(args[i])) {
+                bulkload = true;
+            } else if (!args[i].startsWith("--")) {
+                syncTables = Arrays.asList(args[i].split(","));
+            }
+        }
 
         SparkConf conf = new SparkConf()
                 .setAppName(appName)
                 .setMaster(modelConfig.getSparkMaster());
-        SparkSession session = SQLHBase.getSession(conf);//SparkSession.builder().config(conf).getOrCreate();
-//		// 同步MySQL的tbl_users表数据到HBase的tbl_users表中
-//		syncTable(session, tables[0], tables[0], family, "id");
-
-        // 同步MySQL的tbl_orders表数据到HBase的tbl_orders表中
-//		syncTable(session, tables[1], tables[1], family, "id");
-
-        // 同步MySQL的tbl_goods表数据到HBase的tbl_goods表中
-        syncTable(session, tables[2], tables[2], family, "id");
-
-        // 同步MySQL的tbl_logs表数据到HBase的tbl_logs表中
-//		syncTable(session, tables[3], tables[3], family, "id");
+        SparkSession session = SQLHBase.getSession(conf);
+        // 同步MySQL的表数据到HBase的同名表中
+        List<SyncResult> results = new ArrayList<SyncResult>();
+        for (String table : syncTables) {
+            results.add(syncTable(session, table.trim(), table.trim(), family, "id"));
+        }
+        long rows = 0;
+        long elapsed = 0;
+        for (SyncResult result : results) {
+            logger.info("==== {} ====", result);
+            rows += result.rows;
+            elapsed += result.elapsed;
+        }
+        logger.info("==== {} ====", new SyncResult(String.join(",", syncTables), rows, elapsed));
+        session.close();
     }
 
     /**
      * @param session
-     * @param tableName
-     * @param family
-     * @param rowKeyColumn
+     * @param dbTable      MySQL表
+     * @param hbaseTable   HBase表
+     * @param family       列簇
+     * @param rowKeyColumn RowKey列
+     * @return 同步结果
      * @throws IOException
      */
-    private static void syncTable(SparkSession session, String dbTable, String hbaseTable, String family, String rowKeyColumn) throws IOException {
+    private static SyncResult syncTable(SparkSession session, String dbTable, String hbaseTable, String family, String rowKeyColumn) throws IOException {
+        long start = System.currentTimeMillis();
         Configuration hbaseConf = HBaseConfiguration.create(session.sparkContext().hadoopConfiguration());
         hbaseConf.set("hbase.zookeeper.quorum", modelConfig.getZkHosts());
         hbaseConf.set("hbase.zookeeper.property.clientPort", modelConfig.getZkPort() + "");
         hbaseConf.set("zookeeper.znode.parent", modelConfig.getZooKeeperZNodeParent());
         hbaseConf.set("mapreduce.output.fileoutputformat.outputdir", modelConfig.getHBaseFsTmpDir());
-        hbaseConf.set(TableOutputFormat.OUTPUT_TABLE, dbTable);
+        hbaseConf.set(TableOutputFormat.OUTPUT_TABLE, hbaseTable);
         // 如果表不存在则创建
         build.ifNotTable(hbaseTable, family);
-        Job job = Job.getInstance(hbaseConf);
-        job.setOutputKeyClass(ImmutableBytesWritable.class);
-        job.setOutputValueClass(Result.class);
-        job.setOutputFormatClass(TableOutputFormat.class);
         // 读取MySQL库的表
-        Dataset<Row> rowDF = session.read()
-                .jdbc(url, dbTable, new Properties() {{
-                    setProperty("driver", driver);
-                }});
-        // 转换DataFrame为Map<String, String>
-        JavaRDD<HashMap<String, String>> beanRDD = rowDF.toJavaRDD().coalesce(1).mapPartitions(iter -> {
-            List<HashMap<String, String>> list = new ArrayList<HashMap<String, String>>();
-            iter.forEachRemaining(row -> {
-                HashMap<String, String> bean = new HashMap<String, String>();
-                String[] fieldNames = row.schema().fieldNames();
-                for (int i = 0; i < fieldNames.length; i++) {
-                    if (!row.isNullAt(i)) {
-                        bean.put(fieldNames[i], row.getAs(fieldNames[i]) + "");
+        Dataset<Row> rowDF = read(session, dbTable, rowKeyColumn);
+        // 列名按字典序排列，与HFile中qualifier的顺序一致，只在Driver端计算一次
+        String[] fieldNames = rowDF.schema().fieldNames();
+        Integer[] order = new Integer[fieldNames.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> fieldNames[i1].compareTo(fieldNames[i2]));
+        int[] indexes = new int[order.length];
+        byte[][] qualifiers = new byte[order.length][];
+        for (int i = 0; i < order.length; i++) {
+            indexes[i] = order[i];
+            qualifiers[i] = Bytes.toBytes(fieldNames[order[i]]);
+        }
+        int keyIndex = rowDF.schema().fieldIndex(rowKeyColumn);
+        byte[] familyBytes = Bytes.toBytes(family);
+        JavaRDD<Row> rowRDD = rowDF.toJavaRDD().filter(row -> !row.isNullAt(keyIndex));
+        SparkContext sc = session.sparkContext();
+        String jobGroup = appName + "-" + dbTable + "-" + start;
+        WrittenRowsListener listener = new WrittenRowsListener(jobGroup);
+        sc.addSparkListener(listener);
+        sc.setJobGroup(jobGroup, "同步表" + dbTable, false);
+        try {
+            write(hbaseConf, hbaseTable, rowRDD, keyIndex, indexes, familyBytes, qualifiers);
+        } finally {
+            sc.clearJobGroup();
+            try {
+                sc.listenerBus().waitUntilEmpty(DRAIN_TIMEOUT_MS);
+            } catch (TimeoutException e) {
+                logger.warn("==== syncTable@err:{} 事件总线{}ms内未处理完，写入行数可能不完整 ====", e.getMessage(), DRAIN_TIMEOUT_MS);
+            }
+            sc.removeSparkListener(listener);
+        }
+        return new SyncResult(dbTable, listener.getRows(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 通过TableOutputFormat写入或生成HFile后BulkLoad
+     */
+    private static void write(Configuration hbaseConf, String hbaseTable, JavaRDD<Row> rowRDD, int keyIndex, int[] indexes,
+                              byte[] familyBytes, byte[][] qualifiers) throws IOException {
+        if (bulkload) {
+            bulkload(hbaseConf, hbaseTable, rowRDD, keyIndex, indexes, familyBytes, qualifiers);
+        } else {
+            Job job = Job.getInstance(hbaseConf);
+            job.setOutputKeyClass(ImmutableBytesWritable.class);
+            job.setOutputValueClass(Result.class);
+            job.setOutputFormatClass(TableOutputFormat.class);
+            // 写入HBase表
+            rowRDD.mapToPair(row -> {
+                Put put = new Put(Bytes.toBytes(String.valueOf(row.get(keyIndex))));
+                for (int i = 0; i < indexes.length; i++) {
+                    if (!row.isNullAt(indexes[i])) {
+                        put.addColumn(familyBytes, qualifiers[i], Bytes.toBytes(String.valueOf(row.get(indexes[i]))));
                     }
                 }
-                list.add(bean);
-            });
-            return list.iterator();
-        });
-        // 写入HBase表
-        beanRDD.mapToPair(m -> {
-            String rowKey = m.get(rowKeyColumn);
-            Put put = new Put(Bytes.toBytes(rowKey));//modelConfig.Str2MD5(rowKey)));
-            //m.remove(rowKeyColumn);
-            m.forEach((k, v) -> put.addColumn(Bytes.toBytes(family), Bytes.toBytes(k), Bytes.toBytes(v)));
-            return new Tuple2<>(new ImmutableBytesWritable(), put);
-        }).saveAsNewAPIHadoopDataset(job.getConfiguration());
+                return new Tuple2<>(new ImmutableBytesWritable(), put);
+            }).saveAsNewAPIHadoopDataset(job.getConfiguration());
+        }
+    }
+
+    /**
+     * 按RowKey列的最小值和最大值分区并行读取MySQL表，RowKey列不是数值类型时不分区读取
+     *
+     * @param session
+     * @param dbTable
+     * @param rowKeyColumn
+     * @return
+     */
+    private static Dataset<Row> read(SparkSession session, String dbTable, String rowKeyColumn) {
+        Properties properties = new Properties();
+        properties.setProperty("driver", driver);
+        properties.setProperty("fetchsize", fetchSize + "");
+        // MySQL驱动需开启游标读取fetchsize才会生效，否则会一次读取整个分区的结果集
+        String jdbcUrl = url.contains("useCursorFetch") ? url : url + "&useCursorFetch=true";
+        long[] bounds = bounds(dbTable, rowKeyColumn);
+        if (null == bounds) {
+            logger.warn("==== 表:{} 的列:{} 不是数值类型或表为空，不分区读取 ====", dbTable, rowKeyColumn);
+            return session.read().jdbc(jdbcUrl, dbTable, properties);
+        }
+        logger.info("==== 表:{} 按列:{} 分{}个区读取，范围:[{}, {}] ====", dbTable, rowKeyColumn, parallelism, bounds[0], bounds[1]);
+        return session.read().jdbc(jdbcUrl, dbTable, rowKeyColumn, bounds[0], bounds[1] + 1, parallelism, properties);
+    }
+
+    /**
+     * 查询RowKey列的最小值和最大值
+     *
+     * @param dbTable
+     * @param column
+     * @return 不是数值类型或表为空时返回null
+     */
+    private static long[] bounds(String dbTable, String column) {
+        String sql = "SELECT MIN(`" + column + "`), MAX(`" + column + "`) FROM `" + dbTable + "`";
+        try {
+            Class.forName(driver);
+            try (java.sql.Connection connection = DriverManager.getConnection(url);
+                 Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery(sql)) {
+                if (rs.next() && rs.getObject(1) instanceof Number && rs.getObject(2) instanceof Number) {
+                    return new long[]{rs.getLong(1), rs.getLong(2)};
+                }
+            }
+        } catch (ClassNotFoundException | SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 按Region边界分区生成HFile并BulkLoad到HBase表
+     */
+    private static void bulkload(Configuration hbaseConf, String hbaseTable, JavaRDD<Row> rowRDD, int keyIndex, int[] indexes,
+                                 byte[] familyBytes, byte[][] qualifiers) throws IOException {
+        String hfileDir = modelConfig.getHBaseFsTmpDir() + "/" + hbaseTable + "_" + System.currentTimeMillis();
+        TableName tableName = TableName.valueOf(hbaseTable);
+        try (Connection connection = ConnectionFactory.createConnection(hbaseConf);
+             Table table = connection.getTable(tableName);
+             RegionLocator locator = connection.getRegionLocator(tableName);
+             Admin admin = connection.getAdmin()) {
+            Job job = Job.getInstance(hbaseConf);
+            HFileOutputFormat2.configureIncrementalLoad(job, table, locator);
+            // 按RowKey分区排序时shuffle的是byte[]和Row，排序后再转换为KeyValue
+            rowRDD.mapToPair(row -> new Tuple2<>(Bytes.toBytes(String.valueOf(row.get(keyIndex))), row))
+                    .repartitionAndSortWithinPartitions(RegionPartitioner.of(locator), new RegionPartitioner.BytesComparator())
+                    .flatMapToPair(t -> {
+                        ImmutableBytesWritable rowKey = new ImmutableBytesWritable(t._1);
+                        List<Tuple2<ImmutableBytesWritable, KeyValue>> cells = new ArrayList<Tuple2<ImmutableBytesWritable, KeyValue>>(indexes.length);
+                        for (int i = 0; i < indexes.length; i++) {
+                            if (!t._2.isNullAt(indexes[i])) {
+                                cells.add(new Tuple2<>(rowKey, new KeyValue(t._1, familyBytes, qualifiers[i], Bytes.toBytes(String.valueOf(t._2.get(indexes[i]))))));
+                            }
+                        }
+                        return cells.iterator();
+                    })
+                    .saveAsNewAPIHadoopFile(hfileDir, ImmutableBytesWritable.class, KeyValue.class, HFileOutputFormat2.class, job.getConfiguration());
+            new LoadIncrementalHFiles(hbaseConf).doBulkLoad(new Path(hfileDir), admin, table, locator);
+        } finally {
+            FileSystem fs = FileSystem.get(hbaseConf);
+            fs.delete(new Path(hfileDir), true);
+        }
+    }
+
+    /**
+     * 按写入Stage(Job的最后一个Stage)成功任务的指标统计写入行数，同一分区只保留一个任务的结果：
+     * TableOutputFormat写入时为输出记录数，BulkLoad时HFile的记录数是Cell数，取按RowKey排序后读取的Shuffle记录数
+     */
+    private static class WrittenRowsListener extends SparkListener {
+
+        // setJobGroup设置的Spark本地属性
+        private static final String JOB_GROUP_ID = "spark.jobGroup.id";
+        private final String jobGroup;
+        private final Set<Integer> stageIds = ConcurrentHashMap.newKeySet();
+        // Stage:分区 -> 写入行数
+        private final Map<String, Long> rows = new ConcurrentHashMap<String, Long>();
+
+        WrittenRowsListener(String jobGroup) {
+            this.jobGroup = jobGroup;
+        }
+
+        @Override
+        public void onJobStart(SparkListenerJobStart jobStart) {
+            Properties properties = jobStart.properties();
+            if (null != properties && jobGroup.equals(properties.getProperty(JOB_GROUP_ID))) {
+                // ResultStage在父Stage之后创建，ID最大
+                int resultStageId = -1;
+                for (Object stageId : JavaConverters.seqAsJavaListConverter(jobStart.stageIds()).asJava()) {
+                    resultStageId = Math.max(resultStageId, (Integer) stageId);
+                }
+                stageIds.add(resultStageId);
+            }
+        }
+
+        @Override
+        public void onTaskEnd(SparkListenerTaskEnd taskEnd) {
+            TaskMetrics metrics = taskEnd.taskMetrics();
+            if (!stageIds.contains(taskEnd.stageId()) || !Success$.MODULE$.equals(taskEnd.reason()) || null == metrics) {
+                return;
+            }
+            long written = bulkload ? metrics.shuffleReadMetrics().recordsRead() : metrics.outputMetrics().recordsWritten();
+            rows.put(taskEnd.stageId() + ":" + taskEnd.taskInfo().index(), written);
+        }
+
+        long getRows() {
+            return rows.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+    }
+
+    /**
+     * 表同步结果
+     */
+    private static class SyncResult {
+
+        private final String table;
+        private final long rows;
+        private final long elapsed;
+
+        SyncResult(String table, long rows, long elapsed) {
+            this.table = table;
+            this.rows = rows;
+            this.elapsed = elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "SyncResult [table=" + table + ", rows=" + rows + ", elapsed=" + elapsed / 1000 + "s, throughput="
+                    + (elapsed == 0 ? rows : rows * 1000 / elapsed) + " rows/s]";
+        }
+
     }
 
 }
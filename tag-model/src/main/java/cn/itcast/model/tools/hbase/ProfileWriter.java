@@ -0,0 +1,460 @@
+package cn.itcast.model.tools.hbase;
+
+import cn.itcast.model.beans.BasicTagBean;
+import cn.itcast.model.models.ModelConfig;
+import cn.itcast.model.tools.mysql.ModelWatermark;
+import cn.itcast.model.tools.spark.sql.ModelMetricsListener;
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.util.LongAccumulator;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.stream.Collectors;
+
+/**
+ * 画像表合并写入工具
+ * 在Executor端按分区批量Get已有画像数据，合并tagIds后以checkAndMutate按行原子写入画像表，
+ * 读到的tagIds被其他模型(同一应用的并发模型或单独运行的模型)修改过时重新读取合并，不再需要全局锁，
+ * Driver端不再收集计算结果和画像表数据。tagIds以{@link TagSet}二进制格式写入，
+ * 指定四级标签时，只对用户本次有结果的四级标签先移除其下已有的五级标签，再写入本次计算的五级标签，
+ * 多个四级标签一起写入时，用户在某个四级标签上没有结果不会移除该四级标签的已有标签；tagId为0的行移除全部四级标签的已有标签。
+ * 配置了标签倒排索引表时，同时汇总每个五级标签的用户位图并更新{@link TagIndex}。
+ * 组合标签通过{@link #forMergeTags(ModelConfig, Map, Collection)}写入单独的mergeTagIds列和组合标签位图。
+ * 基础标签写入成功后按四级标签记录写入完成时间({@link #WRITE_TIME_PREFIX}{四级标签ID})，组合标签模型据此判断所用基础标签是否变化
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ProfileWriter implements Serializable {
+
+    private static final long serialVersionUID = -3286467925474618937L;
+    // 四级标签写入完成时间的高水位名称前缀
+    public static final String WRITE_TIME_PREFIX = "profile_write_";
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    // 同一行的tagIds被并发修改时重新读取合并的最大次数
+    private static final int MAX_CAS_RETRIES = 10;
+    private static final String HBASE_ZOOKEEPER_QUORUM = "hbase.zookeeper.quorum";
+    private static final String ZOOKEEPER_CLIENT_PORT = "hbase.zookeeper.property.clientPort";
+    private static final String ZOOKEEPER_ZNODE_PARENT = "zookeeper.znode.parent";
+    private static transient Logger logger = LoggerFactory.getLogger(ProfileWriter.class);
+    // 每个Executor进程共享一个HBase连接
+    private static transient volatile Connection connection;
+    private final String zkHosts;
+    private final String zkPort;
+    private final String zkZNodeParent;
+    private final String profileTable;
+    private final String userFamily;
+    private final String userFamilyAlias;
+    private final String userIdColumn;
+    private final String tagIdsColumn;
+    private final int batchSize;
+    private final String indexTable;
+    private final String indexFamily;
+    // 模型的全部五级标签，重新计算时被替换
+    private final TagSet siblings;
+    // 四级标签ID -> 其下的五级标签，同一四级标签下的五级标签互相替换；组合标签都在同一组(0)
+    private final Map<Long, TagSet> groups;
+    // 五级标签ID -> 四级标签ID
+    private final Map<Long, Long> parents;
+    // 是否写入组合标签：组合标签的位图整体替换
+    private final boolean mergeTags;
+    // 模型的四级标签，写入成功后记录写入完成时间
+    private final long[] tag4Ids;
+    // 组合标签ID -> 表达式摘要，作为位图的版本
+    private final Map<Long, String> versions;
+    // 已下线或已删除的组合标签，从mergeTagIds中移除并删除位图
+    private final TagSet retired;
+    private final transient ModelWatermark watermark;
+
+    public ProfileWriter(ModelConfig modelConfig) {
+        this(modelConfig, null);
+    }
+
+    /**
+     * @param modelConfig
+     * @param tags        模型的四级标签和五级标签，五级标签在合并时按四级标签整体替换
+     */
+    public ProfileWriter(ModelConfig modelConfig, List<BasicTagBean> tags) {
+        this(modelConfig, modelConfig.getProfileCommonCol(), null == tags ? new HashMap<Long, Long>() : tags.stream()
+                .filter(tag -> tag.getLevel() == 5)
+                .collect(Collectors.toMap(BasicTagBean::getId, BasicTagBean::getPid, (a, b) -> a)), false, null == tags ? new long[0] : tags.stream()
+                .filter(tag -> tag.getLevel() == 4)
+                .mapToLong(BasicTagBean::getId)
+                .toArray(), new HashMap<Long, String>(), TagSet.EMPTY);
+    }
+
+    /**
+     * @param parents 五级标签ID -> 四级标签ID
+     */
+    private ProfileWriter(ModelConfig modelConfig, String tagIdsColumn, Map<Long, Long> parents, boolean mergeTags,
+                          long[] tag4Ids, Map<Long, String> versions, TagSet retired) {
+        this.zkHosts = modelConfig.getZkHosts();
+        this.zkPort = modelConfig.getZkPort() + "";
+        this.zkZNodeParent = modelConfig.getZooKeeperZNodeParent();
+        this.profileTable = modelConfig.getProfileTableName();
+        Preconditions.checkNotNull(profileTable, "画像表的表名必须不为空！");
+        this.userFamily = modelConfig.getProfileTableFamilyUser();
+        Preconditions.checkNotNull(userFamily, "画像表的列簇必须不为空！");
+        this.userFamilyAlias = modelConfig.getProfileTableFamilyUserAlias();
+        Preconditions.checkNotNull(userFamilyAlias, "画像表的RowKey前缀必须不为空！");
+        // qualifier=userId
+        this.userIdColumn = modelConfig.getProfileFamilyUserCol();
+        Preconditions.checkNotNull(userIdColumn, "画像表的userId列必须不为空！");
+        // qualifier=tagIds或mergeTagIds
+        this.tagIdsColumn = tagIdsColumn;
+        Preconditions.checkNotNull(tagIdsColumn, "画像表的tagIds列必须不为空！");
+        int size = modelConfig.getProfileWriteBatchSize();
+        this.batchSize = size > 0 ? size : DEFAULT_BATCH_SIZE;
+        this.indexTable = StringUtils.trimToNull(modelConfig.getProfileIndexTableName());
+        this.indexFamily = modelConfig.getProfileIndexTableFamily();
+        this.parents = new HashMap<Long, Long>(parents);
+        this.siblings = TagSet.of(parents.keySet());
+        this.groups = new HashMap<Long, TagSet>();
+        parents.entrySet().stream()
+                .collect(Collectors.groupingBy(Entry::getValue, Collectors.mapping(Entry::getKey, Collectors.toList())))
+                .forEach((tag4Id, tag5Ids) -> groups.put(tag4Id, TagSet.of(tag5Ids)));
+        this.mergeTags = mergeTags;
+        this.tag4Ids = tag4Ids;
+        this.versions = versions;
+        this.retired = retired;
+        this.watermark = new ModelWatermark(modelConfig);
+    }
+
+    /**
+     * 组合标签写入工具，计算结果必须包含本次重新计算的组合标签的全部用户，
+     * 不再满足条件的用户(以及有已下线组合标签的用户)以tagId为0写入，移除其已有的这些组合标签
+     *
+     * @param modelConfig
+     * @param versions    本次重新计算的组合标签ID -> 表达式摘要
+     * @param retiredIds  已下线或已删除的组合标签ID
+     * @return
+     */
+    public static ProfileWriter forMergeTags(ModelConfig modelConfig, Map<Long, String> versions, Collection<Long> retiredIds) {
+        TagSet retired = TagSet.of(retiredIds);
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        for (long tagId : TagSet.of(versions.keySet()).union(retired).toArray()) {
+            parents.put(tagId, 0L);
+        }
+        return new ProfileWriter(modelConfig, modelConfig.getProfileMergeCol(), parents, true,
+                new long[0], new HashMap<Long, String>(versions), retired);
+    }
+
+    /**
+     * 合并写入画像表
+     *
+     * @param userTagDF 第一列为userId，第二列为五级标签ID，为0时移除该用户在四级标签下的已有标签
+     * @return 本次新增或更新的画像数据条数
+     */
+    public long write(Dataset<Row> userTagDF) {
+        if (null != indexTable) {
+            try {
+                HBaseTools.build().ifNotTable(indexTable, indexFamily);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // 写入行数由模型执行指标监听器汇总
+        LongAccumulator writtenRows = userTagDF.sparkSession().sparkContext().longAccumulator(ModelMetricsListener.PROFILE_WRITTEN_ROWS);
+        MergeResult result = userTagDF.toJavaRDD()
+                .mapPartitions(rows -> {
+                    MergeResult partition = mergePartition(rows);
+                    writtenRows.add(partition.count);
+                    return Collections.singletonList(partition).iterator();
+                })
+                .fold(new MergeResult(), MergeResult::merge);
+        logger.info("==== 画像表:{} 合并写入{}条数据 ====", profileTable, result.count);
+        if (null != indexTable) {
+            // 索引是读-改-写，漏掉一次更新会与画像表永久不一致，失败时让模型运行失败，高水位不推进，下次重新计算这些用户
+            try {
+                updateIndex(result);
+            } catch (IOException e) {
+                e.printStackTrace();
+                logger.error("==== write@err:{} ====", e.getMessage());
+                throw new RuntimeException("标签索引更新失败：" + indexTable, e);
+            }
+        }
+        // 画像表和索引都写入成功后才记录，记录失败时模型运行失败
+        long writeTime = System.currentTimeMillis();
+        try {
+            for (long tag4Id : tag4Ids) {
+                watermark.update(WRITE_TIME_PREFIX + tag4Id, writeTime);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return result.count;
+    }
+
+    /**
+     * 更新标签倒排索引：五级标签先移除本次在其四级标签上有结果(或tagId为0)的用户，再加入本次计算的结果
+     *
+     * @param result
+     * @throws IOException
+     */
+    private void updateIndex(MergeResult result) throws IOException {
+        TagIndex tagIndex = newTagIndex(getConnection());
+        Set<Long> tagIds = new HashSet<Long>(result.tags.keySet());
+        for (long tagId : siblings.toArray()) {
+            tagIds.add(tagId);
+        }
+        List<Long> retiredIds = Arrays.stream(retired.toArray()).boxed().collect(Collectors.toList());
+        tagIds.removeAll(retiredIds);
+        Map<Long, RoaringBitmap> exists = tagIndex.getBitmaps(tagIds);
+        for (Long tagId : tagIds) {
+            RoaringBitmap bitmap = mergeTags && siblings.contains(tagId) ? new RoaringBitmap() : exists.getOrDefault(tagId, new RoaringBitmap());
+            RoaringBitmap replaced = siblings.contains(tagId) ? result.users.get(parents.get(tagId)) : null;
+            if (null != replaced) {
+                bitmap.andNot(replaced);
+            }
+            RoaringBitmap users = result.tags.get(tagId);
+            if (null != users) {
+                bitmap.or(users);
+            }
+            tagIndex.putBitmap(tagId, bitmap, versions.get(tagId));
+            logger.info("==== 标签索引:{} 标签ID={} 用户数:{} ====", indexTable, tagId, bitmap.getLongCardinality());
+        }
+        if (!retired.isEmpty()) {
+            tagIndex.deleteBitmaps(retiredIds);
+            logger.info("==== 标签索引:{} 删除已下线的标签:{} ====", indexTable, retired);
+        }
+    }
+
+    /**
+     * 合并一个分区的画像数据
+     *
+     * @param rows
+     * @return
+     * @throws IOException
+     */
+    private MergeResult mergePartition(Iterator<Row> rows) throws IOException {
+        MergeResult result = new MergeResult();
+        TableName tableName = TableName.valueOf(profileTable);
+        Connection conn = getConnection();
+        TagIndex tagIndex = null == indexTable ? null : newTagIndex(conn);
+        try (Table table = conn.getTable(tableName)) {
+            // <userId, 本次计算的五级标签>
+            Map<String, Set<Long>> batch = new LinkedHashMap<String, Set<Long>>();
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                if (row.isNullAt(0) || row.isNullAt(1)) {
+                    continue;
+                }
+                String userId = row.get(0).toString();
+                String tagId = row.get(1).toString();
+                boolean noTag = "0".equals(tagId);
+                if (StringUtils.isEmpty(userId) || StringUtils.isEmpty(tagId)) {
+                    continue;
+                }
+                Set<Long> tagIds = batch.computeIfAbsent(userId, k -> new HashSet<Long>());
+                if (!noTag) {
+                    tagIds.add(Long.parseLong(tagId));
+                }
+                if (batch.size() >= batchSize) {
+                    flush(table, tagIndex, batch, result);
+                    batch.clear();
+                }
+            }
+            if (batch.size() > 0) {
+                flush(table, tagIndex, batch, result);
+                batch.clear();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量获取已有画像数据，合并后按行原子写入，同时记录用户序号到标签位图
+     *
+     * @param table
+     * @param tagIndex 未配置索引时为null
+     * @param batch
+     * @param result
+     * @throws IOException
+     */
+    private void flush(Table table, TagIndex tagIndex, Map<String, Set<Long>> batch, MergeResult result) throws IOException {
+        byte[] family = Bytes.toBytes(userFamily);
+        byte[] tagIdsQualifier = Bytes.toBytes(tagIdsColumn);
+        List<Get> gets = new ArrayList<Get>(batch.size());
+        for (String userId : batch.keySet()) {
+            Get get = new Get(Bytes.toBytes(userFamilyAlias + userId));
+            get.addColumn(family, tagIdsQualifier);
+            gets.add(get);
+        }
+        Result[] results = table.get(gets);
+        if (null != tagIndex) {
+            Map<String, Integer> ordinals = tagIndex.getOrCreateOrdinals(batch.keySet().stream()
+                    .map(userId -> userFamilyAlias + userId)
+                    .collect(Collectors.toList()));
+            batch.forEach((userId, tagIds) -> {
+                Integer ordinal = ordinals.get(userFamilyAlias + userId);
+                if (null != ordinal) {
+                    groupsOf(tagIds).forEach(group -> result.users.computeIfAbsent(group, k -> new RoaringBitmap()).add(ordinal));
+                    tagIds.forEach(tagId -> result.tags.computeIfAbsent(tagId, k -> new RoaringBitmap()).add(ordinal));
+                }
+            });
+        }
+        int i = 0;
+        for (Entry<String, Set<Long>> entry : batch.entrySet()) {
+            byte[] existTagIds = results[i++].getValue(family, tagIdsQualifier);
+            if (null == existTagIds && entry.getValue().isEmpty()) {
+                // 没有画像数据的用户不需要移除标签
+                continue;
+            }
+            TagSet replaced = siblingsOf(groupsOf(entry.getValue()));
+            if (checkAndPut(table, entry.getKey(), existTagIds, replaced, TagSet.of(entry.getValue()))) {
+                result.count++;
+            }
+        }
+    }
+
+    /**
+     * 合并后以tagIds列的旧值为条件写入，其他模型先写入时重新读取tagIds再合并
+     *
+     * @param table
+     * @param userId
+     * @param existTagIds 批量Get读到的tagIds
+     * @param replaced    被本次计算结果替换的标签
+     * @param newTagIds   本次计算的标签
+     * @return 是否写入，标签没有变化时不写入
+     * @throws IOException
+     */
+    private boolean checkAndPut(Table table, String userId, byte[] existTagIds, TagSet replaced, TagSet newTagIds) throws IOException {
+        byte[] family = Bytes.toBytes(userFamily);
+        byte[] tagIdsQualifier = Bytes.toBytes(tagIdsColumn);
+        byte[] row = Bytes.toBytes(userFamilyAlias + userId);
+        for (int i = 0; i < MAX_CAS_RETRIES; i++) {
+            TagSet tagIds = merge(existTagIds, replaced, newTagIds);
+            if (null == tagIds) {
+                logger.debug("==== 该{}用户已存在ID={}的标签！ ====", userId, newTagIds);
+                return false;
+            }
+            Put put = new Put(row);
+            put.addColumn(family, Bytes.toBytes(userIdColumn), Bytes.toBytes(userId));
+            put.addColumn(family, tagIdsQualifier, tagIds.encode());
+            Table.CheckAndMutateBuilder check = table.checkAndMutate(row, family).qualifier(tagIdsQualifier);
+            boolean success = null == existTagIds ? check.ifNotExists().thenPut(put) : check.ifEquals(existTagIds).thenPut(put);
+            if (success) {
+                return true;
+            }
+            existTagIds = table.get(new Get(row).addColumn(family, tagIdsQualifier)).getValue(family, tagIdsQualifier);
+        }
+        throw new IOException("画像表用户:" + userId + " 并发修改冲突超过" + MAX_CAS_RETRIES + "次");
+    }
+
+    /**
+     * 用户本次计算的标签所在的组(四级标签)，没有标签(tagId为0)时为全部组
+     *
+     * @param tagIds 用户本次计算的五级标签
+     * @return
+     */
+    Set<Long> groupsOf(Collection<Long> tagIds) {
+        if (tagIds.isEmpty()) {
+            return groups.keySet();
+        }
+        Set<Long> result = new HashSet<Long>();
+        for (Long tagId : tagIds) {
+            Long group = parents.get(tagId);
+            if (null != group) {
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 组内的全部五级标签
+     *
+     * @param groups
+     * @return
+     */
+    TagSet siblingsOf(Set<Long> groups) {
+        TagSet result = TagSet.EMPTY;
+        for (Long group : groups) {
+            result = result.union(this.groups.getOrDefault(group, TagSet.EMPTY));
+        }
+        return result;
+    }
+
+    /**
+     * 移除已有标签中同一四级标签下的五级标签，再合并本次计算的标签，按标签ID完全匹配去重
+     *
+     * @param existTagIds 画像表中已有的标签，兼容旧的逗号分隔格式
+     * @param siblings    同一四级标签下的全部五级标签
+     * @param newTagIds   本次计算的标签
+     * @return 合并后的标签，标签没有变化且已是二进制格式时返回null
+     */
+    static TagSet merge(byte[] existTagIds, TagSet siblings, TagSet newTagIds) {
+        TagSet exist = TagSet.decode(existTagIds);
+        TagSet tagIds = exist.replace(siblings, newTagIds);
+        if (tagIds.equals(exist) && TagSet.isEncoded(existTagIds)) {
+            return null;
+        }
+        return tagIds;
+    }
+
+    /**
+     * 分区合并结果：写入条数、每个四级标签上本次有结果的用户序号、每个五级标签的用户序号
+     */
+    static class MergeResult implements Serializable {
+
+        private static final long serialVersionUID = 2907245418317826563L;
+        long count;
+        Map<Long, RoaringBitmap> users = new HashMap<Long, RoaringBitmap>();
+        Map<Long, RoaringBitmap> tags = new HashMap<Long, RoaringBitmap>();
+
+        MergeResult merge(MergeResult other) {
+            count += other.count;
+            other.users.forEach((group, bitmap) -> users.merge(group, bitmap, (a, b) -> RoaringBitmap.or(a, b)));
+            other.tags.forEach((tagId, bitmap) -> tags.merge(tagId, bitmap, (a, b) -> RoaringBitmap.or(a, b)));
+            return this;
+        }
+
+    }
+
+    private TagIndex newTagIndex(Connection conn) {
+        return mergeTags ? TagIndex.forMergeTags(conn, indexTable, indexFamily) : new TagIndex(conn, indexTable, indexFamily);
+    }
+
+    private Connection getConnection() throws IOException {
+        if (null == connection || connection.isClosed()) {
+            synchronized (ProfileWriter.class) {
+                if (null == connection || connection.isClosed()) {
+                    Configuration conf = HBaseConfiguration.create();
+                    conf.set(HBASE_ZOOKEEPER_QUORUM, zkHosts);
+                    conf.set(ZOOKEEPER_CLIENT_PORT, zkPort);
+                    conf.set(ZOOKEEPER_ZNODE_PARENT, zkZNodeParent);
+                    connection = ConnectionFactory.createConnection(conf);
+                    Runtime.getRuntime().addShutdownHook(new Thread(ProfileWriter::close));
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * 关闭当前进程的HBase连接
+     */
+    public static synchronized void close() {
+        if (null != connection && !connection.isClosed()) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package cn.itcast.model.tools.hbase;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.spark.Partitioner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 按HBase表的Region边界分区
+ * 每个分区对应一个Region，配合repartitionAndSortWithinPartitions使用，每个Task只为一个Region生成有序的HFile，
+ * 分区内按RowKey字典序排序后即可直接写入HFileOutputFormat2
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class RegionPartitioner extends Partitioner {
+
+    private static final long serialVersionUID = -2640447409426376262L;
+    private static Logger logger = LoggerFactory.getLogger(RegionPartitioner.class);
+    // 每个Region的起始RowKey，第一个为空数组
+    private final byte[][] startKeys;
+
+    public RegionPartitioner(byte[][] startKeys) {
+        if (null == startKeys || startKeys.length == 0) {
+            startKeys = new byte[][]{new byte[0]};
+        }
+        this.startKeys = startKeys;
+    }
+
+    /**
+     * 读取表当前的Region边界
+     *
+     * @param locator
+     * @return
+     * @throws IOException
+     */
+    public static RegionPartitioner of(RegionLocator locator) throws IOException {
+        byte[][] startKeys = locator.getStartKeys();
+        logger.info("==== 表:{} 共有{}个Region ====", locator.getName(), startKeys.length);
+        return new RegionPartitioner(startKeys);
+    }
+
+    @Override
+    public int numPartitions() {
+        return startKeys.length;
+    }
+
+    /**
+     * @param key RowKey，类型为ImmutableBytesWritable或byte[]
+     */
+    @Override
+    public int getPartition(Object key) {
+        ImmutableBytesWritable rowKey = key instanceof byte[] ? new ImmutableBytesWritable((byte[]) key) : (ImmutableBytesWritable) key;
+        // 二分查找起始RowKey小于等于该RowKey的最后一个Region
+        int low = 0;
+        int high = startKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (Bytes.compareTo(startKeys[mid], 0, startKeys[mid].length, rowKey.get(), rowKey.getOffset(), rowKey.getLength()) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof RegionPartitioner && Arrays.deepEquals(startKeys, ((RegionPartitioner) obj).startKeys);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.deepHashCode(startKeys);
+    }
+
+    /**
+     * 按抽样的RowKey计算预分区的切分点
+     *
+     * @param sampleKeys 抽样的RowKey
+     * @param regions    Region个数
+     * @return 切分点，抽样不足时返回空数组
+     */
+    public static byte[][] splitKeys(List<byte[]> sampleKeys, int regions) {
+        if (regions <= 1 || sampleKeys.size() < regions) {
+            return new byte[0][];
+        }
+        byte[][] keys = sampleKeys.toArray(new byte[0][]);
+        Arrays.sort(keys, Bytes.BYTES_COMPARATOR);
+        byte[][] splits = new byte[regions - 1][];
+        int count = 0;
+        for (int i = 1; i < regions; i++) {
+            byte[] split = keys[(int) ((long) keys.length * i / regions)];
+            // 跳过重复的切分点
+            if (count == 0 || Bytes.compareTo(splits[count - 1], split) < 0) {
+                splits[count++] = split;
+            }
+        }
+        return Arrays.copyOf(splits, count);
+    }
+
+    /**
+     * 表为空且只有一个Region时，按切分点重建表进行预分区，表不存在时按切分点创建表
+     *
+     * @param connection
+     * @param tableName
+     * @param family     表不存在时创建的列簇
+     * @param splitKeys  切分点
+     * @return 是否进行了预分区
+     * @throws IOException
+     */
+    public static boolean preSplit(Connection connection, TableName tableName, String family, byte[][] splitKeys) throws IOException {
+        if (null == splitKeys || splitKeys.length == 0) {
+            return false;
+        }
+        try (Admin admin = connection.getAdmin()) {
+            TableDescriptor descriptor;
+            if (admin.tableExists(tableName)) {
+                if (admin.getRegions(tableName).size() > 1 || !isEmpty(connection, tableName)) {
+                    logger.info("==== 表:{} 已分区或已有数据，不进行预分区 ====", tableName);
+                    return false;
+                }
+                descriptor = admin.getDescriptor(tableName);
+                admin.disableTable(tableName);
+                admin.deleteTable(tableName);
+            } else {
+                descriptor = TableDescriptorBuilder.newBuilder(tableName)
+                        .setColumnFamily(ColumnFamilyDescriptorBuilder.of(family))
+                        .build();
+            }
+            admin.createTable(descriptor, splitKeys);
+            logger.info("==== 表:{} 已预分区为{}个Region ====", tableName, splitKeys.length + 1);
+            return true;
+        }
+    }
+
+    private static boolean isEmpty(Connection connection, TableName tableName) throws IOException {
+        Scan scan = new Scan().setFilter(new FirstKeyOnlyFilter()).setLimit(1);
+        try (Table table = connection.getTable(tableName);
+             ResultScanner scanner = table.getScanner(scan)) {
+            return null == scanner.next();
+        }
+    }
+
+    /**
+     * RowKey字典序比较器，用于repartitionAndSortWithinPartitions
+     */
+    public static class RowKeyComparator implements Comparator<ImmutableBytesWritable>, Serializable {
+
+        private static final long serialVersionUID = 5215404390716398431L;
+
+        @Override
+        public int compare(ImmutableBytesWritable o1, ImmutableBytesWritable o2) {
+            return o1.compareTo(o2);
+        }
+
+    }
+
+    /**
+     * byte[]类型RowKey的字典序比较器，用于无需Kryo序列化的shuffle
+     */
+    public static class BytesComparator implements Comparator<byte[]>, Serializable {
+
+        private static final long serialVersionUID = -6127780924566421317L;
+
+        @Override
+        public int compare(byte[] o1, byte[] o2) {
+            return Bytes.compareTo(o1, o2);
+        }
+
+    }
+
+}
@@ -0,0 +1,133 @@
+package cn.itcast.model.tools.hbase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 扫描结果的行视图
+ * 同一个游标的所有行复用同一个视图对象，只在读取时解码RowKey和列值，不复制单元格；
+ * 视图在游标前进后失效，需要保留整行时调用toMap
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class RowView {
+
+    private Result result;
+    private Cell[] cells;
+    private String rowKey;
+
+    RowView reset(Result result) {
+        this.result = result;
+        this.cells = result.rawCells();
+        this.rowKey = null;
+        return this;
+    }
+
+    /**
+     * 原始结果
+     *
+     * @return
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    public byte[] getRow() {
+        return result.getRow();
+    }
+
+    public String getRowKey() {
+        if (null == rowKey) {
+            rowKey = Bytes.toString(result.getRow());
+        }
+        return rowKey;
+    }
+
+    /**
+     * 单元格个数
+     *
+     * @return
+     */
+    public int size() {
+        return null == cells ? 0 : cells.length;
+    }
+
+    /**
+     * 按列名读取列值，不存在时返回null
+     *
+     * @param qualifier
+     * @return
+     */
+    public String get(String qualifier) {
+        Cell cell = getCell(Bytes.toBytes(qualifier));
+        return null == cell ? null : Bytes.toString(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+    }
+
+    /**
+     * 按列名读取列值的字节，不存在时返回null
+     *
+     * @param qualifier
+     * @return
+     */
+    public byte[] getBytes(byte[] qualifier) {
+        Cell cell = getCell(qualifier);
+        return null == cell ? null : Bytes.copy(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+    }
+
+    /**
+     * 行内最后一个单元格的时间戳
+     *
+     * @return
+     */
+    public long getTimestamp() {
+        return size() == 0 ? 0 : cells[cells.length - 1].getTimestamp();
+    }
+
+    /**
+     * 行内最后一个单元格的列簇
+     *
+     * @return
+     */
+    public String getFamily() {
+        if (size() == 0) {
+            return null;
+        }
+        Cell cell = cells[cells.length - 1];
+        return Bytes.toString(cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength());
+    }
+
+    /**
+     * 解码整行为列名:列值
+     *
+     * @return
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> row = new HashMap<String, String>();
+        for (int i = 0; i < size(); i++) {
+            Cell cell = cells[i];
+            row.put(Bytes.toString(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength()),
+                    Bytes.toString(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength()));
+        }
+        return row;
+    }
+
+    private Cell getCell(byte[] qualifier) {
+        for (int i = 0; i < size(); i++) {
+            Cell cell = cells[i];
+            if (Bytes.equals(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength(),
+                    qualifier, 0, qualifier.length)) {
+                return cell;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return getRowKey() + "=" + toMap();
+    }
+}
@@ -0,0 +1,157 @@
+package cn.itcast.model.tools.hbase;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 流式扫描游标
+ * 按scanner caching分批从RegionServer拉取，每次只持有一批结果，返回复用的RowView，
+ * 读够limit行后停止；游标持有Table和ResultScanner，关闭游标时一并关闭
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ScanCursor implements Iterator<RowView>, Closeable {
+
+    public static final int DEFAULT_CACHING = 500;
+    public static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private final Table table;
+    private final ResultScanner scanner;
+    private final long limit;
+    private final RowView view = new RowView();
+    private Result next;
+    private long count;
+
+    /**
+     * @param table 由游标负责关闭
+     * @param scan  未设置caching时使用DEFAULT_CACHING
+     * @param limit 最多返回的行数
+     * @throws IOException
+     */
+    public ScanCursor(Table table, Scan scan, long limit) throws IOException {
+        this.table = table;
+        this.limit = limit;
+        if (scan.getCaching() <= 0) {
+            scan.setCaching((int) Math.min(DEFAULT_CACHING, Math.max(limit, 1)));
+        }
+        scan.setCacheBlocks(false);
+        try {
+            this.scanner = table.getScanner(scan);
+        } catch (IOException e) {
+            table.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 逐行访问扫描结果，访问者返回false时停止
+     *
+     * @param table   由游标负责关闭
+     * @param scan
+     * @param limit
+     * @param visitor
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public static long forEach(Table table, Scan scan, long limit, RowVisitor visitor) throws IOException {
+        try (ScanCursor cursor = new ScanCursor(table, scan, limit)) {
+            while (cursor.advance()) {
+                if (!visitor.visit(cursor.view)) {
+                    break;
+                }
+            }
+            return cursor.count;
+        }
+    }
+
+    /**
+     * 前进到下一行
+     *
+     * @return 没有更多的行或已达到limit时返回false
+     * @throws IOException
+     */
+    public boolean advance() throws IOException {
+        if (null == next) {
+            next = count < limit ? scanner.next() : null;
+        }
+        if (null == next) {
+            return false;
+        }
+        view.reset(next);
+        next = null;
+        count++;
+        return true;
+    }
+
+    /**
+     * 当前行，游标前进后失效
+     *
+     * @return
+     */
+    public RowView current() {
+        return view;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (null == next && count < limit) {
+            try {
+                next = scanner.next();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return null != next;
+    }
+
+    @Override
+    public RowView next() {
+        try {
+            if (!advance()) {
+                throw new NoSuchElementException();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return view;
+    }
+
+    /**
+     * 已返回的行数
+     *
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            scanner.close();
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * 行访问者
+     */
+    @FunctionalInterface
+    public interface RowVisitor {
+        /**
+         * @param row 复用的行视图，需要保留时调用toMap
+         * @return 返回false时停止扫描
+         * @throws IOException
+         */
+        boolean visit(RowView row) throws IOException;
+    }
+}
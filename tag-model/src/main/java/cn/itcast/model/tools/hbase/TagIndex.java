@@ -0,0 +1,370 @@
+package cn.itcast.model.tools.hbase;
+
+import cn.itcast.model.tools.parser.TagExpression;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 标签倒排索引
+ * 每个五级标签对应一个用户序号的RoaringBitmap，用户序号为稠密的int，通过字典与画像表RowKey互相映射。
+ * 索引和字典存放在同一张表的同一个列簇中：
+ * t_{tagId}   : bitmap=序列化的位图，cardinality=用户数；位图超过单元格大小上限(hbase.client.keyvalue.maxsize)时
+ *               按上限分片写入bitmap、bitmap_1...bitmap_{n-1}，shards=分片数，同一行的一次Put原子写入
+ * m_{mergeTagId} : 组合标签物化后的位图，与基础标签共用用户序号字典，version=物化时的表达式摘要
+ * r_{rowKey}  : ordinal=用户序号
+ * o_{ordinal} : rowKey=画像表RowKey
+ * seq         : ordinal=已分配的序号个数
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class TagIndex {
+
+    private static final String TAG_PREFIX = "t_";
+    private static final String MERGE_TAG_PREFIX = "m_";
+    private static final String ROWKEY_PREFIX = "r_";
+    private static final String ORDINAL_PREFIX = "o_";
+    private static final byte[] SEQ_ROW = Bytes.toBytes("seq");
+    private static final byte[] BITMAP_COL = Bytes.toBytes("bitmap");
+    private static final String BITMAP_SHARD_PREFIX = "bitmap_";
+    private static final byte[] SHARDS_COL = Bytes.toBytes("shards");
+    private static final byte[] CARDINALITY_COL = Bytes.toBytes("cardinality");
+    private static final byte[] VERSION_COL = Bytes.toBytes("version");
+    private static final String KEYVALUE_MAXSIZE = "hbase.client.keyvalue.maxsize";
+    private static final int DEFAULT_KEYVALUE_MAXSIZE = 10485760;
+    // 为RowKey、列名等单元格开销预留的字节数
+    private static final int CELL_OVERHEAD = 4096;
+    private static final byte[] ORDINAL_COL = Bytes.toBytes("ordinal");
+    private static final byte[] ROWKEY_COL = Bytes.toBytes("rowKey");
+    private final Connection connection;
+    private final TableName tableName;
+    private final byte[] family;
+    private final String tagPrefix;
+    // 每个位图分片的最大字节数，不限制单元格大小时为0
+    private final int shardSize;
+
+    public TagIndex(Connection connection, String table, String family) {
+        this(connection, table, family, TAG_PREFIX);
+    }
+
+    private TagIndex(Connection connection, String table, String family, String tagPrefix) {
+        this.connection = connection;
+        this.tableName = TableName.valueOf(table);
+        this.family = Bytes.toBytes(family);
+        this.tagPrefix = tagPrefix;
+        int maxSize = connection.getConfiguration().getInt(KEYVALUE_MAXSIZE, DEFAULT_KEYVALUE_MAXSIZE);
+        this.shardSize = maxSize > 0 ? Math.max(maxSize - CELL_OVERHEAD, 1) : 0;
+    }
+
+    /**
+     * 组合标签的位图索引，组合标签ID与基础标签ID可能重复，位图使用单独的RowKey前缀
+     *
+     * @param connection
+     * @param table
+     * @param family
+     * @return
+     */
+    public static TagIndex forMergeTags(Connection connection, String table, String family) {
+        return new TagIndex(connection, table, family, MERGE_TAG_PREFIX);
+    }
+
+    /**
+     * 批量查询用户序号，不存在的RowKey不返回
+     *
+     * @param rowKeys 画像表RowKey
+     * @return
+     * @throws IOException
+     */
+    public Map<String, Integer> getOrdinals(Collection<String> rowKeys) throws IOException {
+        Map<String, Integer> ordinals = new HashMap<String, Integer>();
+        if (rowKeys.isEmpty()) {
+            return ordinals;
+        }
+        List<String> keys = new ArrayList<String>(rowKeys);
+        List<Get> gets = new ArrayList<Get>(keys.size());
+        keys.forEach(rowKey -> gets.add(new Get(Bytes.toBytes(ROWKEY_PREFIX + rowKey)).addColumn(family, ORDINAL_COL)));
+        try (Table table = connection.getTable(tableName)) {
+            Result[] results = table.get(gets);
+            for (int i = 0; i < results.length; i++) {
+                byte[] value = results[i].getValue(family, ORDINAL_COL);
+                if (null != value) {
+                    ordinals.put(keys.get(i), Bytes.toInt(value));
+                }
+            }
+        }
+        return ordinals;
+    }
+
+    /**
+     * 批量查询用户序号，不存在时分配新的序号。
+     * 序号按批通过计数器申请，RowKey到序号的映射通过checkAndMutate写入，并发分配时以先写入的为准
+     *
+     * @param rowKeys 画像表RowKey
+     * @return
+     * @throws IOException
+     */
+    public Map<String, Integer> getOrCreateOrdinals(Collection<String> rowKeys) throws IOException {
+        Map<String, Integer> ordinals = getOrdinals(rowKeys);
+        List<String> missing = new ArrayList<String>();
+        rowKeys.stream().distinct().filter(rowKey -> !ordinals.containsKey(rowKey)).forEach(missing::add);
+        if (missing.isEmpty()) {
+            return ordinals;
+        }
+        try (Table table = connection.getTable(tableName)) {
+            long end = table.incrementColumnValue(SEQ_ROW, family, ORDINAL_COL, missing.size());
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalStateException("用户序号超出范围：" + end);
+            }
+            int first = (int) (end - missing.size());
+            // 先写序号到RowKey的映射，未抢到的序号不会出现在位图中
+            List<Put> puts = new ArrayList<Put>(missing.size());
+            for (int i = 0; i < missing.size(); i++) {
+                puts.add(new Put(Bytes.toBytes(ORDINAL_PREFIX + (first + i))).addColumn(family, ROWKEY_COL, Bytes.toBytes(missing.get(i))));
+            }
+            table.put(puts);
+            List<String> lost = new ArrayList<String>();
+            for (int i = 0; i < missing.size(); i++) {
+                String rowKey = missing.get(i);
+                byte[] row = Bytes.toBytes(ROWKEY_PREFIX + rowKey);
+                Put put = new Put(row).addColumn(family, ORDINAL_COL, Bytes.toBytes(first + i));
+                if (table.checkAndMutate(row, family).qualifier(ORDINAL_COL).ifNotExists().thenPut(put)) {
+                    ordinals.put(rowKey, first + i);
+                } else {
+                    lost.add(rowKey);
+                }
+            }
+            if (lost.size() > 0) {
+                ordinals.putAll(getOrdinals(lost));
+            }
+        }
+        return ordinals;
+    }
+
+    /**
+     * 按序号批量查询画像表RowKey，结果顺序与序号顺序一致
+     *
+     * @param ordinals
+     * @return
+     * @throws IOException
+     */
+    public List<String> getRowKeys(int[] ordinals) throws IOException {
+        List<String> rowKeys = new ArrayList<String>(ordinals.length);
+        if (ordinals.length == 0) {
+            return rowKeys;
+        }
+        List<Get> gets = new ArrayList<Get>(ordinals.length);
+        for (int ordinal : ordinals) {
+            gets.add(new Get(Bytes.toBytes(ORDINAL_PREFIX + ordinal)).addColumn(family, ROWKEY_COL));
+        }
+        try (Table table = connection.getTable(tableName)) {
+            for (Result result : table.get(gets)) {
+                byte[] value = result.getValue(family, ROWKEY_COL);
+                if (null != value) {
+                    rowKeys.add(Bytes.toString(value));
+                }
+            }
+        }
+        return rowKeys;
+    }
+
+    /**
+     * 查询标签的用户位图
+     *
+     * @param tagId
+     * @return 标签没有索引时返回null
+     * @throws IOException
+     */
+    public RoaringBitmap getBitmap(long tagId) throws IOException {
+        return getBitmaps(Collections.singletonList(tagId)).get(tagId);
+    }
+
+    /**
+     * 查询指定版本的用户位图
+     *
+     * @param tagId
+     * @param version 写入位图时的版本
+     * @return 没有索引或版本不一致时返回null
+     * @throws IOException
+     */
+    public RoaringBitmap getBitmap(long tagId, String version) throws IOException {
+        try (Table table = connection.getTable(tableName)) {
+            Result result = table.get(new Get(Bytes.toBytes(tagPrefix + tagId)).addFamily(family));
+            byte[] value = result.getValue(family, VERSION_COL);
+            if (null == value || !Bytes.toString(value).equals(version)) {
+                return null;
+            }
+            byte[] bitmap = readShards(result);
+            return null == bitmap ? null : deserialize(bitmap);
+        }
+    }
+
+    /**
+     * 批量查询标签的用户位图，没有索引的标签不返回
+     *
+     * @param tagIds
+     * @return
+     * @throws IOException
+     */
+    public Map<Long, RoaringBitmap> getBitmaps(Collection<Long> tagIds) throws IOException {
+        Map<Long, RoaringBitmap> bitmaps = new HashMap<Long, RoaringBitmap>();
+        if (tagIds.isEmpty()) {
+            return bitmaps;
+        }
+        List<Long> ids = new ArrayList<Long>(tagIds);
+        List<Get> gets = new ArrayList<Get>(ids.size());
+        ids.forEach(tagId -> gets.add(new Get(Bytes.toBytes(tagPrefix + tagId)).addFamily(family)));
+        try (Table table = connection.getTable(tableName)) {
+            Result[] results = table.get(gets);
+            for (int i = 0; i < results.length; i++) {
+                byte[] value = readShards(results[i]);
+                if (null != value) {
+                    bitmaps.put(ids.get(i), deserialize(value));
+                }
+            }
+        }
+        return bitmaps;
+    }
+
+    /**
+     * 按shards拼接位图分片，没有shards列时只有一个分片
+     *
+     * @param result
+     * @return 没有位图时返回null
+     * @throws IOException
+     */
+    private byte[] readShards(Result result) throws IOException {
+        byte[] first = result.getValue(family, BITMAP_COL);
+        if (null == first) {
+            return null;
+        }
+        byte[] shardsValue = result.getValue(family, SHARDS_COL);
+        int shards = null == shardsValue ? 1 : Bytes.toInt(shardsValue);
+        if (shards <= 1) {
+            return first;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(first.length * shards);
+        bytes.write(first);
+        for (int i = 1; i < shards; i++) {
+            byte[] shard = result.getValue(family, Bytes.toBytes(BITMAP_SHARD_PREFIX + i));
+            if (null == shard) {
+                throw new IOException("位图分片缺失：" + Bytes.toString(result.getRow()) + " " + BITMAP_SHARD_PREFIX + i);
+            }
+            bytes.write(shard);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 计算组合标签表达式的用户位图，只读取表达式中用到的标签位图，没有索引的标签视为没有用户
+     *
+     * @param expression
+     * @return 结果位图，可能与某个标签的位图是同一个对象，不要修改
+     * @throws IOException
+     */
+    public RoaringBitmap evaluate(TagExpression expression) throws IOException {
+        return expression.evaluate(getBitmaps(expression.getTagIds()));
+    }
+
+    /**
+     * 覆盖写入标签的用户位图，超过单元格大小上限时分片写入，所有分片和分片数在同一个Put中原子写入，
+     * 旧的多余分片不会被读取
+     *
+     * @param tagId
+     * @param bitmap
+     * @throws IOException
+     */
+    public void putBitmap(long tagId, RoaringBitmap bitmap) throws IOException {
+        putBitmap(tagId, bitmap, null);
+    }
+
+    /**
+     * 覆盖写入标签的用户位图并记录版本
+     *
+     * @param tagId
+     * @param bitmap
+     * @param version 为null时不记录
+     * @throws IOException
+     */
+    public void putBitmap(long tagId, RoaringBitmap bitmap, String version) throws IOException {
+        byte[] value = serialize(bitmap);
+        int shards = shardSize <= 0 ? 1 : Math.max((value.length + shardSize - 1) / shardSize, 1);
+        try (Table table = connection.getTable(tableName)) {
+            Put put = new Put(Bytes.toBytes(tagPrefix + tagId));
+            for (int i = 0; i < shards; i++) {
+                byte[] qualifier = i == 0 ? BITMAP_COL : Bytes.toBytes(BITMAP_SHARD_PREFIX + i);
+                int from = i * shardSize;
+                byte[] shard = shards == 1 ? value : Arrays.copyOfRange(value, from, Math.min(from + shardSize, value.length));
+                put.addColumn(family, qualifier, shard);
+            }
+            put.addColumn(family, SHARDS_COL, Bytes.toBytes(shards));
+            put.addColumn(family, CARDINALITY_COL, Bytes.toBytes(bitmap.getLongCardinality()));
+            if (null != version) {
+                put.addColumn(family, VERSION_COL, Bytes.toBytes(version));
+            }
+            table.put(put);
+        }
+    }
+
+    /**
+     * 删除标签的用户位图
+     *
+     * @param tagIds
+     * @throws IOException
+     */
+    public void deleteBitmaps(Collection<Long> tagIds) throws IOException {
+        if (tagIds.isEmpty()) {
+            return;
+        }
+        List<Delete> deletes = new ArrayList<Delete>(tagIds.size());
+        tagIds.forEach(tagId -> deletes.add(new Delete(Bytes.toBytes(tagPrefix + tagId))));
+        try (Table table = connection.getTable(tableName)) {
+            table.delete(deletes);
+        }
+    }
+
+    /**
+     * 按位图分页查询画像表RowKey
+     *
+     * @param bitmap
+     * @param offset 起始位置，从0开始
+     * @param limit  条数
+     * @return
+     * @throws IOException
+     */
+    public List<String> page(RoaringBitmap bitmap, int offset, int limit) throws IOException {
+        int cardinality = bitmap.getCardinality();
+        if (offset < 0 || offset >= cardinality || limit <= 0) {
+            return new ArrayList<String>();
+        }
+        int[] ordinals = new int[Math.min(limit, cardinality - offset)];
+        PeekableIntIterator iterator = bitmap.getIntIterator();
+        iterator.advanceIfNeeded(bitmap.select(offset));
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = iterator.next();
+        }
+        return getRowKeys(ordinals);
+    }
+
+    public static byte[] serialize(RoaringBitmap bitmap) throws IOException {
+        bitmap.runOptimize();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(bitmap.serializedSizeInBytes());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            bitmap.serialize(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static RoaringBitmap deserialize(byte[] bytes) throws IOException {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            bitmap.deserialize(in);
+        }
+        return bitmap;
+    }
+
+}
@@ -0,0 +1,273 @@
+package cn.itcast.model.tools.hbase;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * 画像表标签集合编解码工具
+ * 标签ID升序去重后以二进制存储：1字节格式标记(0x00) + 标签个数(varint) + 相邻标签ID差值(varint)，
+ * 解码时兼容旧的逗号分隔字符串格式，内存中为有序long数组，成员判断为二分查找，合并为线性归并
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public final class TagSet implements Serializable {
+
+    private static final long serialVersionUID = 6817412370356275034L;
+    // 二进制格式标记，旧格式为数字字符串，首字节不会是0x00
+    private static final byte FORMAT_VARINT_DELTA = 0x00;
+    private static final String SEPARATOR = ",";
+    public static final TagSet EMPTY = new TagSet(new long[0]);
+    // 升序且不重复
+    private final long[] ids;
+
+    private TagSet(long[] ids) {
+        this.ids = ids;
+    }
+
+    public static TagSet of(long... tagIds) {
+        if (null == tagIds || tagIds.length == 0) {
+            return EMPTY;
+        }
+        long[] sorted = Arrays.copyOf(tagIds, tagIds.length);
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] <= 0) {
+                throw new IllegalArgumentException("标签ID必须大于0：" + sorted[i]);
+            }
+            if (size == 0 || sorted[size - 1] != sorted[i]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return new TagSet(size == sorted.length ? sorted : Arrays.copyOf(sorted, size));
+    }
+
+    public static TagSet of(Collection<Long> tagIds) {
+        if (null == tagIds || tagIds.isEmpty()) {
+            return EMPTY;
+        }
+        return of(tagIds.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    /**
+     * 解析逗号分隔的标签ID字符串，忽略空白项
+     *
+     * @param tagIds
+     * @return
+     */
+    public static TagSet parse(String tagIds) {
+        if (StringUtils.isBlank(tagIds)) {
+            return EMPTY;
+        }
+        return of(Arrays.stream(tagIds.split(SEPARATOR))
+                .map(String::trim)
+                .filter(StringUtils::isNotEmpty)
+                .mapToLong(Long::parseLong)
+                .toArray());
+    }
+
+    /**
+     * 是否为二进制编码的标签集合
+     *
+     * @param bytes
+     * @return
+     */
+    public static boolean isEncoded(byte[] bytes) {
+        return null != bytes && bytes.length > 0 && bytes[0] == FORMAT_VARINT_DELTA;
+    }
+
+    /**
+     * 解码画像表中的标签集合，兼容旧的逗号分隔字符串格式
+     *
+     * @param bytes
+     * @return
+     */
+    public static TagSet decode(byte[] bytes) {
+        if (null == bytes || bytes.length == 0) {
+            return EMPTY;
+        }
+        if (!isEncoded(bytes)) {
+            return parse(Bytes.toString(bytes));
+        }
+        int[] pos = {1};
+        int size = (int) readVarLong(bytes, pos);
+        long[] ids = new long[size];
+        long prev = 0;
+        for (int i = 0; i < size; i++) {
+            prev += readVarLong(bytes, pos);
+            ids[i] = prev;
+        }
+        return size == 0 ? EMPTY : new TagSet(ids);
+    }
+
+    /**
+     * 编码为二进制格式
+     *
+     * @return
+     */
+    public byte[] encode() {
+        // 每个varint最多10字节
+        byte[] buf = new byte[1 + 10 * (ids.length + 1)];
+        int pos = 0;
+        buf[pos++] = FORMAT_VARINT_DELTA;
+        pos = writeVarLong(buf, pos, ids.length);
+        long prev = 0;
+        for (long id : ids) {
+            pos = writeVarLong(buf, pos, id - prev);
+            prev = id;
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * 二分查找判断是否包含指定标签
+     *
+     * @param tagId
+     * @return
+     */
+    public boolean contains(long tagId) {
+        return Arrays.binarySearch(ids, tagId) >= 0;
+    }
+
+    /**
+     * 并集，有序数组线性归并
+     *
+     * @param other
+     * @return
+     */
+    public TagSet union(TagSet other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        long[] merged = new long[ids.length + other.ids.length];
+        int i = 0, j = 0, k = 0;
+        while (i < ids.length && j < other.ids.length) {
+            if (ids[i] < other.ids[j]) {
+                merged[k++] = ids[i++];
+            } else if (ids[i] > other.ids[j]) {
+                merged[k++] = other.ids[j++];
+            } else {
+                merged[k++] = ids[i++];
+                j++;
+            }
+        }
+        while (i < ids.length) {
+            merged[k++] = ids[i++];
+        }
+        while (j < other.ids.length) {
+            merged[k++] = other.ids[j++];
+        }
+        return new TagSet(k == merged.length ? merged : Arrays.copyOf(merged, k));
+    }
+
+    /**
+     * 差集，有序数组线性归并
+     *
+     * @param other
+     * @return
+     */
+    public TagSet remove(TagSet other) {
+        if (isEmpty() || other.isEmpty()) {
+            return this;
+        }
+        long[] remain = new long[ids.length];
+        int i = 0, j = 0, k = 0;
+        while (i < ids.length) {
+            if (j >= other.ids.length || ids[i] < other.ids[j]) {
+                remain[k++] = ids[i++];
+            } else if (ids[i] > other.ids[j]) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return k == ids.length ? this : k == 0 ? EMPTY : new TagSet(Arrays.copyOf(remain, k));
+    }
+
+    /**
+     * 按四级标签替换：先移除该四级标签下的所有五级标签，再加入本次计算的五级标签
+     *
+     * @param siblings 四级标签下的全部五级标签
+     * @param tagIds   本次计算的五级标签
+     * @return
+     */
+    public TagSet replace(TagSet siblings, TagSet tagIds) {
+        return remove(siblings).union(tagIds);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(ids, ids.length);
+    }
+
+    private static int writeVarLong(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static long readVarLong(byte[] buf, int[] pos) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= buf.length) {
+                throw new IllegalArgumentException("标签集合数据不完整！");
+            }
+            byte b = buf[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("标签集合数据格式错误！");
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TagSet)) {
+            return false;
+        }
+        return Arrays.equals(ids, ((TagSet) obj).ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ids);
+    }
+
+    /**
+     * 逗号分隔的标签ID，用于展示
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                builder.append(SEPARATOR);
+            }
+            builder.append(ids[i]);
+        }
+        return builder.toString();
+    }
+
+}
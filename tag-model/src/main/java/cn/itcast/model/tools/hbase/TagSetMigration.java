@@ -0,0 +1,98 @@
+package cn.itcast.model.tools.hbase;
+
+import cn.itcast.model.models.ModelConfig;
+import cn.itcast.model.tools.spark.sql.SQLHBase;
+import net.iharder.base64.Base64;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableOutputFormat;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.util.LongAccumulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Tuple2;
+
+import java.io.IOException;
+
+/**
+ * 画像表tagIds列格式迁移
+ * 将旧的逗号分隔字符串重写为{@link TagSet}二进制格式，已是二进制格式的行跳过，可重复执行。
+ * 迁移期间模型通过ProfileWriter写入时同样会把旧格式转换为二进制格式
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class TagSetMigration {
+
+    private static String appName = TagSetMigration.class.getSimpleName();
+    private static Logger logger = LoggerFactory.getLogger(TagSetMigration.class);
+    private static ModelConfig modelConfig = new ModelConfig();
+
+    public static void main(String[] args) throws IOException {
+        SparkConf conf = new SparkConf()
+                .setAppName(appName)
+                .setMaster(modelConfig.getSparkMaster());
+        SparkSession session = SQLHBase.getSession(conf);
+        long count = migrate(session, modelConfig.getProfileTableName(),
+                modelConfig.getProfileTableFamilyUser(), modelConfig.getProfileCommonCol());
+        logger.info("==== 画像表:{} 迁移{}条数据 ====", modelConfig.getProfileTableName(), count);
+        session.close();
+    }
+
+    /**
+     * @param session
+     * @param tableName 画像表
+     * @param family    列簇
+     * @param column    tagIds列
+     * @return 迁移的行数
+     * @throws IOException
+     */
+    public static long migrate(SparkSession session, String tableName, String family, String column) throws IOException {
+        Configuration hbaseConf = HBaseConfiguration.create(session.sparkContext().hadoopConfiguration());
+        hbaseConf.set("hbase.zookeeper.quorum", modelConfig.getZkHosts());
+        hbaseConf.set("hbase.zookeeper.property.clientPort", modelConfig.getZkPort() + "");
+        hbaseConf.set("zookeeper.znode.parent", modelConfig.getZooKeeperZNodeParent());
+        hbaseConf.set(TableInputFormat.INPUT_TABLE, tableName);
+        hbaseConf.set(TableOutputFormat.OUTPUT_TABLE, tableName);
+        byte[] familyBytes = Bytes.toBytes(family);
+        byte[] columnBytes = Bytes.toBytes(column);
+        // 只读取tagIds列
+        Scan scan = new Scan();
+        scan.addColumn(familyBytes, columnBytes);
+        scan.setCaching(500);
+        scan.setCacheBlocks(false);
+        hbaseConf.set(TableInputFormat.SCAN, Base64.encodeBytes(ProtobufUtil.toScan(scan).toByteArray()));
+        Job job = Job.getInstance(hbaseConf);
+        job.setOutputKeyClass(ImmutableBytesWritable.class);
+        job.setOutputValueClass(Result.class);
+        job.setOutputFormatClass(TableOutputFormat.class);
+
+        JavaSparkContext jsc = JavaSparkContext.fromSparkContext(session.sparkContext());
+        LongAccumulator counter = jsc.sc().longAccumulator("TagSet Migration Records");
+        JavaPairRDD<ImmutableBytesWritable, Result> hbaseRdd = jsc.newAPIHadoopRDD(hbaseConf,
+                TableInputFormat.class, ImmutableBytesWritable.class, Result.class);
+        hbaseRdd.filter(t -> {
+            byte[] value = t._2.getValue(familyBytes, columnBytes);
+            return null != value && value.length > 0 && !TagSet.isEncoded(value);
+        }).mapToPair(t -> {
+            byte[] rowKey = t._2.getRow();
+            TagSet tagSet = TagSet.decode(t._2.getValue(familyBytes, columnBytes));
+            Put put = new Put(rowKey);
+            put.addColumn(familyBytes, columnBytes, tagSet.encode());
+            counter.add(1L);
+            return new Tuple2<>(new ImmutableBytesWritable(rowKey), put);
+        }).saveAsNewAPIHadoopDataset(job.getConfiguration());
+        return counter.value();
+    }
+
+}
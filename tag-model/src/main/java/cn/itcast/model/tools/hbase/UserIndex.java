@@ -0,0 +1,127 @@
+package cn.itcast.model.tools.hbase;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 用户二级索引
+ * 按归一化后的手机号、邮箱、QQ、身份证号定位画像表RowKey，由{@link UserIndexBuilder}从用户表生成。
+ * 每个号码一行，RowKey为"类型前缀+号码"：
+ * p_{手机号} / e_{邮箱} / q_{QQ} / c_{身份证号} : rowKey=画像表RowKey，userId=用户ID，
+ * phoneNum、email、qq、idNum=用户的全部号码，build=生成批次
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class UserIndex {
+
+    public static final String ROWKEY_COL = "rowKey";
+    public static final String USER_ID_COL = "userId";
+    public static final String BUILD_COL = "build";
+    private static final String CHINA_CODE = "86";
+    private final Connection connection;
+    private final TableName tableName;
+    private final byte[] family;
+
+    public UserIndex(Connection connection, String table, String family) {
+        this.connection = connection;
+        this.tableName = TableName.valueOf(table);
+        this.family = Bytes.toBytes(family);
+    }
+
+    /**
+     * 按号码查询索引行
+     *
+     * @param type
+     * @param num  原始号码，查询前归一化
+     * @return 列名到值，不存在时返回null
+     * @throws IOException
+     */
+    public Map<String, String> get(IdType type, String num) throws IOException {
+        byte[] row = rowKey(type, num);
+        if (null == row) {
+            return null;
+        }
+        try (Table table = connection.getTable(tableName)) {
+            Result result = table.get(new Get(row).addFamily(family));
+            if (result.isEmpty()) {
+                return null;
+            }
+            Map<String, String> values = new HashMap<String, String>();
+            for (Cell cell : result.rawCells()) {
+                values.put(Bytes.toString(CellUtil.cloneQualifier(cell)), Bytes.toString(CellUtil.cloneValue(cell)));
+            }
+            return values;
+        }
+    }
+
+    /**
+     * 索引行的RowKey
+     *
+     * @param type
+     * @param num  原始号码
+     * @return 号码归一化后为空时返回null
+     */
+    public static byte[] rowKey(IdType type, String num) {
+        String value = normalize(type, num);
+        return value.isEmpty() ? null : Bytes.toBytes(type.prefix + value);
+    }
+
+    /**
+     * 号码归一化：手机号只保留数字并去掉86国家码，邮箱转小写，QQ只保留数字，身份证号末位X转大写
+     *
+     * @param type
+     * @param num
+     * @return 空号码返回空字符串
+     */
+    public static String normalize(IdType type, String num) {
+        if (StringUtils.isBlank(num)) {
+            return "";
+        }
+        String value = num.trim();
+        switch (type) {
+            case PHONE:
+                value = value.replaceAll("\\D", "");
+                return value.length() == 13 && value.startsWith(CHINA_CODE) ? value.substring(CHINA_CODE.length()) : value;
+            case EMAIL:
+                return value.toLowerCase();
+            case QQ:
+                return value.replaceAll("\\D", "");
+            default:
+                return value.toUpperCase();
+        }
+    }
+
+    /**
+     * 号码类型：RowKey前缀和索引行中保存该号码的列
+     */
+    public enum IdType {
+        PHONE("p_", "phoneNum"),
+        EMAIL("e_", "email"),
+        QQ("q_", "qq"),
+        ID_CARD("c_", "idNum");
+
+        private final String prefix;
+        private final String column;
+
+        IdType(String prefix, String column) {
+            this.prefix = prefix;
+            this.column = column;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+package cn.itcast.model.tools.hbase;
+
+import cn.itcast.model.models.ModelConfig;
+import cn.itcast.model.tools.hbase.UserIndex.IdType;
+import cn.itcast.model.tools.spark.sql.SQLHBase;
+import com.google.common.base.Preconditions;
+import net.iharder.base64.Base64;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableOutputFormat;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.util.LongAccumulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Tuple2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 用户二级索引生成
+ * 扫描用户表的手机号、邮箱、QQ、身份证号列，为每个号码写入一行{@link UserIndex}，指向画像表RowKey，
+ * 每次生成带上批次号，生成完成后删除批次号不是本批次的索引行(号码已变更或用户已删除)，可重复执行。
+ * 多个用户使用同一号码时保留最后写入的用户。用户的号码被清空时同时删除索引行中保存的该号码列
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class UserIndexBuilder {
+
+    private static String appName = UserIndexBuilder.class.getSimpleName();
+    private static Logger logger = LoggerFactory.getLogger(UserIndexBuilder.class);
+    private static ModelConfig modelConfig = new ModelConfig();
+
+    public static void main(String[] args) throws IOException {
+        SparkConf conf = new SparkConf()
+                .setAppName(appName)
+                .setMaster(modelConfig.getSparkMaster());
+        SparkSession session = SQLHBase.getSession(conf);
+        long count = build(session);
+        logger.info("==== 用户二级索引:{} 写入{}条数据 ====", modelConfig.getUserIndexTableName(), count);
+        session.close();
+    }
+
+    /**
+     * @param session
+     * @return 写入的索引行数
+     * @throws IOException
+     */
+    public static long build(SparkSession session) throws IOException {
+        String indexTable = modelConfig.getUserIndexTableName();
+        Preconditions.checkNotNull(indexTable, "用户二级索引表的表名必须不为空！");
+        String indexFamily = modelConfig.getUserIndexTableFamily();
+        Preconditions.checkNotNull(indexFamily, "用户二级索引表的列簇必须不为空！");
+        String sourceTable = modelConfig.getUserIndexSourceTable();
+        Preconditions.checkNotNull(sourceTable, "用户表的表名必须不为空！");
+        String sourceFamily = modelConfig.getUserIndexSourceFamily();
+        Preconditions.checkNotNull(sourceFamily, "用户表的列簇必须不为空！");
+        String[] sourceColumns = StringUtils.defaultString(modelConfig.getUserIndexSourceColumns()).split(",");
+        Preconditions.checkArgument(sourceColumns.length == IdType.values().length, "用户表的号码列必须依次为手机号、邮箱、QQ、身份证号！");
+        String userAlias = modelConfig.getProfileTableFamilyUserAlias();
+        HBaseTools.build().ifNotTable(indexTable, indexFamily);
+
+        byte[] sourceFamilyBytes = Bytes.toBytes(sourceFamily);
+        byte[] indexFamilyBytes = Bytes.toBytes(indexFamily);
+        byte[][] columns = new byte[sourceColumns.length][];
+        // 只读取号码列
+        Scan scan = new Scan();
+        for (int i = 0; i < sourceColumns.length; i++) {
+            columns[i] = Bytes.toBytes(sourceColumns[i].trim());
+            scan.addColumn(sourceFamilyBytes, columns[i]);
+        }
+        scan.setCaching(500);
+        scan.setCacheBlocks(false);
+        byte[] build = Bytes.toBytes(System.currentTimeMillis() + "");
+
+        JavaSparkContext jsc = JavaSparkContext.fromSparkContext(session.sparkContext());
+        LongAccumulator counter = jsc.sc().longAccumulator("User Index Records");
+        jsc.newAPIHadoopRDD(getConf(session, sourceTable, scan), TableInputFormat.class, ImmutableBytesWritable.class, Result.class)
+                .flatMapToPair(t -> {
+                    List<Tuple2<ImmutableBytesWritable, Mutation>> puts = new ArrayList<Tuple2<ImmutableBytesWritable, Mutation>>();
+                    String userId = Bytes.toString(t._2.getRow());
+                    IdType[] types = IdType.values();
+                    String[] nums = new String[types.length];
+                    for (int i = 0; i < types.length; i++) {
+                        nums[i] = StringUtils.trimToNull(Bytes.toString(t._2.getValue(sourceFamilyBytes, columns[i])));
+                    }
+                    for (int i = 0; i < types.length; i++) {
+                        byte[] row = UserIndex.rowKey(types[i], nums[i]);
+                        if (null == row) {
+                            continue;
+                        }
+                        Put put = new Put(row);
+                        put.addColumn(indexFamilyBytes, Bytes.toBytes(UserIndex.ROWKEY_COL), Bytes.toBytes(userAlias + userId));
+                        put.addColumn(indexFamilyBytes, Bytes.toBytes(UserIndex.USER_ID_COL), Bytes.toBytes(userId));
+                        put.addColumn(indexFamilyBytes, Bytes.toBytes(UserIndex.BUILD_COL), build);
+                        // 保存用户的全部号码，查询时不再读取用户表，已清空的号码列删除
+                        Delete absent = new Delete(row);
+                        for (int j = 0; j < types.length; j++) {
+                            if (null != nums[j]) {
+                                put.addColumn(indexFamilyBytes, Bytes.toBytes(types[j].getColumn()), Bytes.toBytes(nums[j]));
+                            } else {
+                                absent.addColumns(indexFamilyBytes, Bytes.toBytes(types[j].getColumn()));
+                            }
+                        }
+                        // TableOutputFormat只接受Put和Delete，不能写入RowMutations；Delete只包含Put中没有的列，写入顺序不影响结果
+                        if (!absent.isEmpty()) {
+                            puts.add(new Tuple2<>(new ImmutableBytesWritable(row), absent));
+                        }
+                        puts.add(new Tuple2<>(new ImmutableBytesWritable(row), put));
+                    }
+                    counter.add(puts.stream().filter(p -> p._2 instanceof Put).count());
+                    return puts.iterator();
+                }).saveAsNewAPIHadoopDataset(getJob(session, indexTable).getConfiguration());
+
+        // 删除不是本批次写入的索引行
+        Scan staleScan = new Scan();
+        staleScan.addColumn(indexFamilyBytes, Bytes.toBytes(UserIndex.BUILD_COL));
+        staleScan.setFilter(new SingleColumnValueFilter(indexFamilyBytes, Bytes.toBytes(UserIndex.BUILD_COL), CompareOp.NOT_EQUAL, build));
+        staleScan.setCaching(500);
+        staleScan.setCacheBlocks(false);
+        LongAccumulator staleCounter = jsc.sc().longAccumulator("User Index Stale Records");
+        JavaPairRDD<ImmutableBytesWritable, Mutation> deletes = jsc.newAPIHadoopRDD(getConf(session, indexTable, staleScan),
+                TableInputFormat.class, ImmutableBytesWritable.class, Result.class)
+                .mapToPair(t -> {
+                    staleCounter.add(1L);
+                    return new Tuple2<>(t._1, new Delete(t._2.getRow()));
+                });
+        deletes.saveAsNewAPIHadoopDataset(getJob(session, indexTable).getConfiguration());
+        logger.info("==== 用户二级索引:{} 删除{}条过期数据 ====", indexTable, staleCounter.value());
+        return counter.value();
+    }
+
+    private static Configuration getConf(SparkSession session, String table, Scan scan) throws IOException {
+        Configuration hbaseConf = HBaseConfiguration.create(session.sparkContext().hadoopConfiguration());
+        hbaseConf.set("hbase.zookeeper.quorum", modelConfig.getZkHosts());
+        hbaseConf.set("hbase.zookeeper.property.clientPort", modelConfig.getZkPort() + "");
+        hbaseConf.set("zookeeper.znode.parent", modelConfig.getZooKeeperZNodeParent());
+        hbaseConf.set(TableInputFormat.INPUT_TABLE, table);
+        hbaseConf.set(TableInputFormat.SCAN, Base64.encodeBytes(ProtobufUtil.toScan(scan).toByteArray()));
+        return hbaseConf;
+    }
+
+    private static Job getJob(SparkSession session, String table) throws IOException {
+        Configuration hbaseConf = HBaseConfiguration.create(session.sparkContext().hadoopConfiguration());
+        hbaseConf.set("hbase.zookeeper.quorum", modelConfig.getZkHosts());
+        hbaseConf.set("hbase.zookeeper.property.clientPort", modelConfig.getZkPort() + "");
+        hbaseConf.set("zookeeper.znode.parent", modelConfig.getZooKeeperZNodeParent());
+        hbaseConf.set(TableOutputFormat.OUTPUT_TABLE, table);
+        Job job = Job.getInstance(hbaseConf);
+        job.setOutputKeyClass(ImmutableBytesWritable.class);
+        job.setOutputValueClass(Mutation.class);
+        job.setOutputFormatClass(TableOutputFormat.class);
+        return job;
+    }
+
+}
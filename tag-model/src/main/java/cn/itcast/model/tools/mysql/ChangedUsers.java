@@ -0,0 +1,101 @@
+package cn.itcast.model.tools.mysql;
+
+import cn.itcast.model.models.ModelConfig;
+
+import java.sql.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * CDC同步时记录的数据发生变更的用户ID，存放在tags.tbl_changed_user表中
+ * 增量计算时与时间范围扫描得到的用户合并，源表行被删除的用户也能被重新计算
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ChangedUsers {
+
+    private static final String SELECT_SQL = "SELECT `user_id` FROM `tags`.`tbl_changed_user` WHERE `source_table` = ? AND `change_time` >= ? AND `change_time` < ?";
+    private static final String PURGE_SQL = "DELETE FROM `tags`.`tbl_changed_user` WHERE `change_time` < ?";
+    private static final String UPSERT_SQL = "INSERT INTO `tags`.`tbl_changed_user`(`source_table`,`user_id`,`change_time`) VALUES (?,?,?) ON DUPLICATE KEY UPDATE `change_time` = VALUES(`change_time`)";
+    private static final int BATCH_SIZE = 1000;
+    private final String url;
+
+    public ChangedUsers(ModelConfig modelConfig) {
+        this.url = modelConfig.getMySQLUrl();
+        try {
+            Class.forName(modelConfig.getMySQLDriver());
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 查询时间范围内数据发生变更的用户
+     *
+     * @param table    源表
+     * @param minStamp 起始时间(包含)
+     * @param maxStamp 结束时间(不包含)
+     * @return
+     * @throws SQLException
+     */
+    public Set<String> get(String table, long minStamp, long maxStamp) throws SQLException {
+        Set<String> userIds = new HashSet<String>();
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement ps = connection.prepareStatement(SELECT_SQL)) {
+            ps.setString(1, table);
+            ps.setLong(2, minStamp);
+            ps.setLong(3, maxStamp);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    userIds.add(rs.getString(1));
+                }
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * 删除变更时间早于before的记录，保留时间必须大于模型增量计算的最大间隔
+     *
+     * @param before 截止时间(不包含)
+     * @return 删除的记录数
+     * @throws SQLException
+     */
+    public int purge(long before) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement ps = connection.prepareStatement(PURGE_SQL)) {
+            ps.setLong(1, before);
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * 批量记录数据发生变更的用户，同一用户只保留最后一次变更时间
+     *
+     * @param table      源表
+     * @param userIds    用户ID
+     * @param changeTime 变更时间(毫秒)
+     * @throws SQLException
+     */
+    public void record(String table, Collection<String> userIds, long changeTime) throws SQLException {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement ps = connection.prepareStatement(UPSERT_SQL)) {
+            int count = 0;
+            for (String userId : userIds) {
+                ps.setString(1, table);
+                ps.setString(2, userId);
+                ps.setLong(3, changeTime);
+                ps.addBatch();
+                if (++count % BATCH_SIZE == 0) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+    }
+
+}
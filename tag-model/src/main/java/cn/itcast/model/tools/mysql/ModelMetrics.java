@@ -0,0 +1,67 @@
+package cn.itcast.model.tools.mysql;
+
+import cn.itcast.model.beans.ModelMetricsBean;
+import cn.itcast.model.models.ModelConfig;
+
+import java.sql.*;
+import java.util.Collection;
+
+/**
+ * 标签模型的执行指标
+ * 每次运行按标签ID和运行ID保存一条记录，存放在tags.tbl_model_metrics表中，供Web引擎监控查看历史趋势
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ModelMetrics {
+
+    private static final String INSERT_SQL = "INSERT INTO `tags`.`tbl_model_metrics`(`tag_id`,`run_id`,`model`,`status`,`start_time`,`end_time`,`duration`,`stage_count`,"
+            + "`input_records`,`input_bytes`,`shuffle_read_bytes`,`shuffle_write_bytes`,`spill_bytes`,`gc_time`,`profile_rows`,`stages`) "
+            + "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+    private final String url;
+
+    public ModelMetrics(ModelConfig modelConfig) {
+        this.url = modelConfig.getMySQLUrl();
+        try {
+            Class.forName(modelConfig.getMySQLDriver());
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 保存一次运行的执行指标，一个模型计算多个四级标签时每个标签一条记录
+     *
+     * @param tagIds  四级标签ID
+     * @param metrics 执行指标
+     * @throws SQLException
+     */
+    public void save(Collection<Long> tagIds, ModelMetricsBean metrics) throws SQLException {
+        if (tagIds.isEmpty()) {
+            return;
+        }
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement ps = connection.prepareStatement(INSERT_SQL)) {
+            for (long tagId : tagIds) {
+                ps.setLong(1, tagId);
+                ps.setString(2, metrics.getRunId());
+                ps.setString(3, metrics.getModel());
+                ps.setInt(4, metrics.getStatus());
+                ps.setTimestamp(5, new Timestamp(metrics.getStartTime()));
+                ps.setTimestamp(6, new Timestamp(metrics.getEndTime()));
+                ps.setLong(7, metrics.getDuration());
+                ps.setInt(8, metrics.getStageCount());
+                ps.setLong(9, metrics.getInputRecords());
+                ps.setLong(10, metrics.getInputBytes());
+                ps.setLong(11, metrics.getShuffleReadBytes());
+                ps.setLong(12, metrics.getShuffleWriteBytes());
+                ps.setLong(13, metrics.getSpillBytes());
+                ps.setLong(14, metrics.getGcTime());
+                ps.setLong(15, metrics.getProfileRows());
+                ps.setString(16, metrics.getStages());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+}
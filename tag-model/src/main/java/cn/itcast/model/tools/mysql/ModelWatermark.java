@@ -0,0 +1,100 @@
+package cn.itcast.model.tools.mysql;
+
+import cn.itcast.model.models.ModelConfig;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 标签模型增量计算的高水位
+ * 每个模型保存上次成功运行的开始时间(毫秒)，存放在tags.tbl_model_watermark表中
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ModelWatermark {
+
+    private static final String SELECT_SQL = "SELECT `watermark` FROM `tags`.`tbl_model_watermark` WHERE `model` = ?";
+    private static final String SELECT_PREFIX_SQL = "SELECT `model`,`watermark` FROM `tags`.`tbl_model_watermark` WHERE `model` LIKE ?";
+    private static final String DELETE_SQL = "DELETE FROM `tags`.`tbl_model_watermark` WHERE `model` = ?";
+    private static final String UPSERT_SQL = "INSERT INTO `tags`.`tbl_model_watermark`(`model`,`watermark`,`utime`) VALUES (?,?,NOW()) ON DUPLICATE KEY UPDATE `watermark` = VALUES(`watermark`), `utime` = NOW()";
+    private final String url;
+
+    public ModelWatermark(ModelConfig modelConfig) {
+        this.url = modelConfig.getMySQLUrl();
+        try {
+            Class.forName(modelConfig.getMySQLDriver());
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 获取模型的高水位
+     *
+     * @param model 模型名称
+     * @return 没有运行记录时返回0
+     * @throws SQLException
+     */
+    public long get(String model) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement ps = connection.prepareStatement(SELECT_SQL)) {
+            ps.setString(1, model);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        }
+    }
+
+    /**
+     * 按名称前缀批量获取高水位
+     *
+     * @param prefix 名称前缀，其中的%和_按普通字符匹配
+     * @return 名称 -> 高水位
+     * @throws SQLException
+     */
+    public Map<String, Long> getByPrefix(String prefix) throws SQLException {
+        Map<String, Long> watermarks = new HashMap<String, Long>();
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement ps = connection.prepareStatement(SELECT_PREFIX_SQL)) {
+            ps.setString(1, prefix.replace("\\", "\\\\").replace("_", "\\_").replace("%", "\\%") + "%");
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    watermarks.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+        }
+        return watermarks;
+    }
+
+    /**
+     * 删除高水位
+     *
+     * @param model 名称
+     * @throws SQLException
+     */
+    public void delete(String model) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement ps = connection.prepareStatement(DELETE_SQL)) {
+            ps.setString(1, model);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * 更新模型的高水位
+     *
+     * @param model     模型名称
+     * @param watermark 本次运行的开始时间
+     * @throws SQLException
+     */
+    public void update(String model, long watermark) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement ps = connection.prepareStatement(UPSERT_SQL)) {
+            ps.setString(1, model);
+            ps.setLong(2, watermark);
+            ps.executeUpdate();
+        }
+    }
+
+}
@@ -0,0 +1,266 @@
+package cn.itcast.model.tools.parser;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 编译后的标签规则
+ * 四级标签的规则文本(每行一个key=value)只解析一次，得到不可变的数据源类型、表、查询字段和类型化的条件，
+ * 按规则文本缓存在有界的LRU缓存中，tag-model和tag-web的MetaParser以及HBase数据源共用，
+ * 避免每次获取规则都重新切分文本、创建Map和编译正则
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public final class CompiledRule implements Serializable {
+
+    private static final long serialVersionUID = -2165947706524129638L;
+    private static Logger logger = LoggerFactory.getLogger(CompiledRule.class);
+    // 缓存的规则数，超过时淘汰最久未使用的规则
+    private static final int CACHE_SIZE = 256;
+    // 条件字段，如finishTime[GE]1564588800
+    private static final Pattern PREDICATE = Pattern.compile("(.*?)\\[(.*?)\\](.*+)");
+    private static final String LINE_SEPARATOR = "\n";
+    private static final String KEY_VALUE_SEPARATOR = "=";
+    private static final String FIELD_SEPARATOR = ",";
+    private static final String IN_TYPE = "inType";
+    private static final Map<String, CompiledRule> RULE_CACHE = lruCache();
+    private static final Map<String, List<Predicate>> PREDICATE_CACHE = lruCache();
+    private final String rule;
+    private final SourceType type;
+    private final Map<String, String> options;
+    private final String table;
+    private final String family;
+    private final List<String> projections;
+    private final List<Predicate> predicates;
+
+    private CompiledRule(String rule, SourceType type, Map<String, String> options) {
+        this.rule = rule;
+        this.type = type;
+        this.options = Collections.unmodifiableMap(options);
+        this.table = StringUtils.defaultIfEmpty(options.get("hbaseTable"), options.get("dbTable"));
+        this.family = options.get("family");
+        this.projections = splitFields(StringUtils.defaultIfEmpty(options.get("selectFieldNames"), options.get("inFields")));
+        this.predicates = type == SourceType.HBASE || type == SourceType.SNAPSHOT
+                ? parsePredicates(options.get("whereFieldNames")) : Collections.emptyList();
+    }
+
+    /**
+     * 编译规则文本，相同的规则文本返回缓存的结果
+     *
+     * @param rule 规则文本
+     * @return 规则为空或没有inType时返回null
+     * @throws IllegalArgumentException 不支持的数据源类型
+     */
+    public static CompiledRule compile(String rule) {
+        if (null == rule) {
+            logger.info("==== The rule is null! ====");
+            return null;
+        }
+        synchronized (RULE_CACHE) {
+            CompiledRule compiled = RULE_CACHE.get(rule);
+            if (null != compiled) {
+                return compiled;
+            }
+        }
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String line : rule.split(LINE_SEPARATOR)) {
+            int index = line.indexOf(KEY_VALUE_SEPARATOR);
+            if (index <= 0) {
+                continue;
+            }
+            // 只按第一个=切分，值中可以包含=(如JDBC URL的参数)
+            options.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+        }
+        String typeStr = options.get(IN_TYPE);
+        if (StringUtils.isEmpty(typeStr)) {
+            logger.info("==== The rule map no type field! ====");
+            return null;
+        }
+        CompiledRule compiled = new CompiledRule(rule, SourceType.valueOf(typeStr.toUpperCase()), options);
+        synchronized (RULE_CACHE) {
+            RULE_CACHE.put(rule, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * 解析条件字段，相同的条件字段返回缓存的结果
+     *
+     * @param whereFields 如finishTime[GE]1564588800,orderStatus[EQ]202
+     * @return 不可变的条件列表，没有条件时返回空列表
+     * @throws IllegalArgumentException 不支持的操作符
+     */
+    public static List<Predicate> parsePredicates(String whereFields) {
+        if (StringUtils.isEmpty(whereFields)) {
+            return Collections.emptyList();
+        }
+        synchronized (PREDICATE_CACHE) {
+            List<Predicate> predicates = PREDICATE_CACHE.get(whereFields);
+            if (null != predicates) {
+                return predicates;
+            }
+        }
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        for (String whereField : whereFields.split(FIELD_SEPARATOR)) {
+            Matcher matcher = PREDICATE.matcher(whereField);
+            if (matcher.find()) {
+                predicates.add(new Predicate(matcher.group(1).trim(), Op.of(matcher.group(2)), matcher.group(3)));
+            }
+        }
+        predicates = Collections.unmodifiableList(predicates);
+        synchronized (PREDICATE_CACHE) {
+            PREDICATE_CACHE.put(whereFields, predicates);
+        }
+        return predicates;
+    }
+
+    private static List<String> splitFields(String fields) {
+        if (StringUtils.isEmpty(fields)) {
+            return Collections.emptyList();
+        }
+        List<String> list = new ArrayList<String>();
+        for (String field : fields.split(FIELD_SEPARATOR)) {
+            if (StringUtils.isNotBlank(field)) {
+                list.add(field.trim());
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    @SuppressWarnings("serial")
+    private static <V> Map<String, V> lruCache() {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public SourceType getType() {
+        return type;
+    }
+
+    /**
+     * 规则中的全部配置项，不可修改
+     *
+     * @return
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    public String get(String key) {
+        return options.get(key);
+    }
+
+    /**
+     * HBase表名或数据库表名
+     *
+     * @return
+     */
+    public String getTable() {
+        return table;
+    }
+
+    public String getFamily() {
+        return family;
+    }
+
+    /**
+     * 查询字段，HBase和快照数据源为selectFieldNames，HDFS数据源为inFields
+     *
+     * @return
+     */
+    public List<String> getProjections() {
+        return projections;
+    }
+
+    /**
+     * HBase和快照数据源的条件
+     *
+     * @return
+     */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledRule [type=" + type + ", table=" + table + ", family=" + family + ", projections=" + projections
+                + ", predicates=" + predicates + "]";
+    }
+
+    /**
+     * 数据源类型
+     */
+    public enum SourceType {
+        HDFS, HIVE, HBASE, MYSQL, SNAPSHOT
+    }
+
+    /**
+     * 条件操作符，不区分大小写
+     * EQ = EQUAL等于
+     * NE = NOT EQUAL不等于
+     * GT = GREATER THAN大于
+     * LT = LESS THAN小于
+     * GE = GREATER THAN OR EQUAL 大于等于
+     * LE = LESS THAN OR EQUAL 小于等于
+     */
+    public enum Op {
+        EQ, NE, GT, LT, GE, LE;
+
+        public static Op of(String op) {
+            try {
+                return valueOf(op.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("不支持的条件：" + op);
+            }
+        }
+    }
+
+    /**
+     * 条件：字段[操作符]值
+     */
+    public static final class Predicate implements Serializable {
+
+        private static final long serialVersionUID = 8203319946702456127L;
+        private final String field;
+        private final Op op;
+        private final String value;
+
+        Predicate(String field, Op op, String value) {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public Op getOp() {
+            return op;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return field + "[" + op + "]" + value;
+        }
+    }
+
+}
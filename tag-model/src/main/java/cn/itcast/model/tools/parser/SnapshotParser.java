@@ -0,0 +1,50 @@
+package cn.itcast.model.tools.parser;
+
+import cn.itcast.model.beans.MetaDataBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * HBase表Parquet快照数据源的规则解析
+ * 规则与hbase相同，selectFieldNames中的字段可以用"字段:类型"指定快照中的类型，如orderAmount:double
+ *
+ * @author mengyao
+ */
+public class SnapshotParser extends MetaParser {
+
+    private final String HBASE_TABLE = "hbaseTable";
+    private final String FAMILY = "family";
+    private final String SELECT_FIELD_NAMES = "selectFieldNames";
+    private final String WHERE_FIELD_NAMES = "whereFieldNames";
+    private final String WHERE_FIELD_VALUES = "whereFieldValues";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private Map<String, String> ruleMap;
+
+    SnapshotParser(Map<String, String> ruleMap) {
+        this.ruleMap = ruleMap;
+    }
+
+    @Override
+    public MetaDataBean getMeta() {
+        logger.info("==== Rule map is: {} ====", ruleMap);
+        MetaDataBean meta = new MetaDataBean()
+                .buildSnapshotMeta(
+                        ruleMap.get(HBASE_TABLE),
+                        ruleMap.get(FAMILY),
+                        ruleMap.get(SELECT_FIELD_NAMES),
+                        ruleMap.get(WHERE_FIELD_NAMES),
+                        ruleMap.get(WHERE_FIELD_VALUES)
+                );
+        logger.info("==== {} : {},{},{},{} ====",
+                SnapshotParser.class.getSimpleName(),
+                meta.getHbaseTable(),
+                meta.getFamily(),
+                meta.getSelectFieldNames(),
+                meta.getWhereFieldNames()
+        );
+        return meta;
+    }
+
+}
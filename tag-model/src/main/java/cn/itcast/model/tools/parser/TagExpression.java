@@ -0,0 +1,391 @@
+package cn.itcast.model.tools.parser;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.function.LongPredicate;
+
+/**
+ * 组合标签表达式
+ * 组合标签的条件由基础标签ID和and/or组成，如"97 or 98 and 132 or 133 and 214"，
+ * 页面上同一属性的多个值以or连接、属性之间以and连接，所以or的优先级高于and，上例等价于(97 or 98) and (132 or 133) and 214，
+ * 也支持用括号改变优先级。
+ * 表达式解析为语法树后按每个标签的用户数优化：合并嵌套的同类节点、去掉重复的子节点、交集按用户数从小到大计算，
+ * 再在每个标签的用户位图上求值，交集为空时提前结束
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public final class TagExpression implements Serializable {
+
+    private static final long serialVersionUID = -5319042386174720431L;
+    private static final String AND = "and";
+    private static final String OR = "or";
+    private final Type type;
+    private final long tagId;
+    private final List<TagExpression> children;
+
+    private TagExpression(Type type, long tagId, List<TagExpression> children) {
+        this.type = type;
+        this.tagId = tagId;
+        this.children = children;
+    }
+
+    public static TagExpression tag(long tagId) {
+        return new TagExpression(Type.TAG, tagId, Collections.<TagExpression>emptyList());
+    }
+
+    public static TagExpression and(List<TagExpression> children) {
+        return of(Type.AND, children);
+    }
+
+    public static TagExpression or(List<TagExpression> children) {
+        return of(Type.OR, children);
+    }
+
+    private static TagExpression of(Type type, List<TagExpression> children) {
+        if (children.isEmpty()) {
+            throw new IllegalArgumentException("组合标签条件为空");
+        }
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        return new TagExpression(type, 0, Collections.unmodifiableList(new ArrayList<TagExpression>(children)));
+    }
+
+    /**
+     * 解析条件表达式，如"97 or 98 and 132"，末尾多余的and/or忽略
+     *
+     * @param formula
+     * @return
+     * @throws IllegalArgumentException 表达式格式错误
+     */
+    public static TagExpression parse(String formula) {
+        if (StringUtils.isBlank(formula)) {
+            throw new IllegalArgumentException("组合标签条件为空");
+        }
+        List<String> tokens = new ArrayList<String>();
+        for (String token : formula.replace("(", " ( ").replace(")", " ) ").trim().split("\\s+")) {
+            tokens.add(token.toLowerCase());
+        }
+        // 去掉末尾多余的操作符(页面生成的条件以and结尾)
+        while (!tokens.isEmpty() && isOperator(tokens.get(tokens.size() - 1))) {
+            tokens.remove(tokens.size() - 1);
+        }
+        Parser parser = new Parser(tokens);
+        TagExpression expression = parser.parseAnd();
+        if (parser.hasNext()) {
+            throw new IllegalArgumentException("组合标签条件格式错误：" + formula);
+        }
+        return expression;
+    }
+
+    /**
+     * 按组合标签与基础标签关联表的记录构建表达式，每条记录的条件为该标签与下一个标签之间的操作符
+     *
+     * @param tagIds     基础标签ID，按关联记录的顺序
+     * @param conditions 条件(and/or)，与tagIds一一对应
+     * @return
+     */
+    public static TagExpression of(List<Long> tagIds, List<String> conditions) {
+        if (tagIds.size() != conditions.size()) {
+            throw new IllegalArgumentException("基础标签与条件的个数不一致");
+        }
+        StringBuilder formula = new StringBuilder();
+        for (int i = 0; i < tagIds.size(); i++) {
+            formula.append(tagIds.get(i)).append(' ').append(StringUtils.defaultString(conditions.get(i), AND)).append(' ');
+        }
+        return parse(formula.toString());
+    }
+
+    private static boolean isOperator(String token) {
+        return AND.equals(token) || OR.equals(token);
+    }
+
+    /**
+     * 表达式中的所有基础标签ID
+     *
+     * @return
+     */
+    public Set<Long> getTagIds() {
+        Set<Long> tagIds = new LinkedHashSet<Long>();
+        collectTagIds(tagIds);
+        return tagIds;
+    }
+
+    private void collectTagIds(Set<Long> tagIds) {
+        if (type == Type.TAG) {
+            tagIds.add(tagId);
+        } else {
+            children.forEach(child -> child.collectTagIds(tagIds));
+        }
+    }
+
+    /**
+     * 把非五级标签替换为其下全部五级标签的并集，画像表中只保存五级标签
+     *
+     * @param level5Ids 标签ID -> 五级子孙标签ID，没有的标签或没有五级子孙的标签保持不变
+     * @return
+     */
+    public TagExpression expand(Map<Long, ? extends Collection<Long>> level5Ids) {
+        if (type == Type.TAG) {
+            Collection<Long> ids = level5Ids.get(tagId);
+            if (null == ids || ids.isEmpty() || (ids.size() == 1 && ids.contains(tagId))) {
+                return this;
+            }
+            List<TagExpression> list = new ArrayList<TagExpression>(ids.size());
+            ids.forEach(id -> list.add(tag(id)));
+            return or(list);
+        }
+        List<TagExpression> list = new ArrayList<TagExpression>(children.size());
+        children.forEach(child -> list.add(child.expand(level5Ids)));
+        return of(type, list);
+    }
+
+    /**
+     * 按标签的父子关系计算每个标签的五级子孙标签，结果按ID排序，模型和Web端展开后的表达式一致
+     *
+     * @param parents 标签ID -> 父标签ID
+     * @param level5  全部五级标签ID
+     * @return 标签ID -> 五级子孙标签ID(五级标签包含自身)
+     */
+    public static Map<Long, List<Long>> level5Ids(Map<Long, Long> parents, Collection<Long> level5) {
+        Map<Long, Set<Long>> descendants = new HashMap<Long, Set<Long>>();
+        for (Long id : level5) {
+            Set<Long> visited = new HashSet<Long>();
+            Long node = id;
+            while (null != node && parents.containsKey(node) && visited.add(node)) {
+                descendants.computeIfAbsent(node, k -> new TreeSet<Long>()).add(id);
+                node = parents.get(node);
+            }
+        }
+        Map<Long, List<Long>> level5Ids = new HashMap<Long, List<Long>>();
+        descendants.forEach((id, ids) -> level5Ids.put(id, new ArrayList<Long>(ids)));
+        return level5Ids;
+    }
+
+    /**
+     * 表达式摘要，组合标签模型用它标记物化位图的版本，条件变化后摘要随之变化。
+     * 使用规范化表达式的SHA-1，避免32位hashCode碰撞时误用旧条件的位图
+     *
+     * @return 40位十六进制字符串
+     */
+    public String digest() {
+        return DigestUtils.sha1Hex(toString());
+    }
+
+    /**
+     * 判断一个用户的标签是否满足表达式，用于逐行扫描画像表
+     *
+     * @param tagIds 用户是否有该标签，如TagSet::contains
+     * @return
+     */
+    public boolean matches(LongPredicate tagIds) {
+        switch (type) {
+            case TAG:
+                return tagIds.test(tagId);
+            case AND:
+                for (TagExpression child : children) {
+                    if (!child.matches(tagIds)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                for (TagExpression child : children) {
+                    if (child.matches(tagIds)) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+
+    /**
+     * 按标签的用户数优化表达式
+     *
+     * @param cardinalities 标签ID -> 用户数，没有的标签视为0
+     * @return 优化后的表达式
+     */
+    public TagExpression optimize(Map<Long, Long> cardinalities) {
+        if (type == Type.TAG) {
+            return this;
+        }
+        // 合并嵌套的同类节点并去重
+        Map<String, TagExpression> unique = new LinkedHashMap<String, TagExpression>();
+        for (TagExpression child : children) {
+            TagExpression optimized = child.optimize(cardinalities);
+            if (optimized.type == type) {
+                optimized.children.forEach(grandChild -> unique.putIfAbsent(grandChild.toString(), grandChild));
+            } else {
+                unique.putIfAbsent(optimized.toString(), optimized);
+            }
+        }
+        List<TagExpression> list = new ArrayList<TagExpression>(unique.values());
+        if (type == Type.AND) {
+            // 交集从用户数最少的开始，中间结果最小
+            list.sort(Comparator.comparingLong(child -> child.estimate(cardinalities)));
+        }
+        return of(type, list);
+    }
+
+    /**
+     * 估算用户数：交集取最小值，并集取总和
+     *
+     * @param cardinalities
+     * @return
+     */
+    public long estimate(Map<Long, Long> cardinalities) {
+        switch (type) {
+            case TAG:
+                return cardinalities.getOrDefault(tagId, 0L);
+            case AND:
+                return children.stream().mapToLong(child -> child.estimate(cardinalities)).min().orElse(0L);
+            default:
+                long sum = 0;
+                for (TagExpression child : children) {
+                    sum += child.estimate(cardinalities);
+                }
+                return sum;
+        }
+    }
+
+    /**
+     * 在标签的用户位图上求值，先按位图的用户数优化表达式
+     *
+     * @param bitmaps 标签ID -> 用户位图，没有的标签视为空位图，位图不会被修改
+     * @return 组合标签的用户位图，可能与某个输入位图是同一个对象，调用方不要修改
+     */
+    public RoaringBitmap evaluate(Map<Long, RoaringBitmap> bitmaps) {
+        Map<Long, Long> cardinalities = new HashMap<Long, Long>();
+        bitmaps.forEach((id, bitmap) -> cardinalities.put(id, bitmap.getLongCardinality()));
+        return optimize(cardinalities).eval(bitmaps);
+    }
+
+    private RoaringBitmap eval(Map<Long, RoaringBitmap> bitmaps) {
+        switch (type) {
+            case TAG:
+                RoaringBitmap bitmap = bitmaps.get(tagId);
+                return null == bitmap ? new RoaringBitmap() : bitmap;
+            case AND:
+                RoaringBitmap result = null;
+                boolean owned = false;
+                for (TagExpression child : children) {
+                    RoaringBitmap value = child.eval(bitmaps);
+                    if (null == result) {
+                        result = value;
+                    } else if (owned) {
+                        result.and(value);
+                    } else {
+                        // 第一次求交集时创建新位图，之后原地计算，不修改输入位图
+                        result = RoaringBitmap.and(result, value);
+                        owned = true;
+                    }
+                    if (result.isEmpty()) {
+                        break;
+                    }
+                }
+                return result;
+            default:
+                List<RoaringBitmap> values = new ArrayList<RoaringBitmap>(children.size());
+                children.forEach(child -> values.add(child.eval(bitmaps)));
+                return FastAggregation.or(values.iterator());
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getTagId() {
+        return tagId;
+    }
+
+    public List<TagExpression> getChildren() {
+        return children;
+    }
+
+    @Override
+    public String toString() {
+        if (type == Type.TAG) {
+            return String.valueOf(tagId);
+        }
+        StringJoiner joiner = new StringJoiner(type == Type.AND ? " and " : " or ", "(", ")");
+        children.forEach(child -> joiner.add(child.toString()));
+        return joiner.toString();
+    }
+
+    /**
+     * 节点类型：基础标签、交集、并集
+     */
+    public enum Type {
+        TAG, AND, OR
+    }
+
+    /**
+     * 递归下降解析：and := or ('and' or)*，or := primary ('or' primary)*，primary := 标签ID | '(' and ')'
+     */
+    private static final class Parser {
+
+        private final List<String> tokens;
+        private int position;
+
+        private Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        private boolean hasNext() {
+            return position < tokens.size();
+        }
+
+        private boolean accept(String token) {
+            if (hasNext() && tokens.get(position).equals(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private TagExpression parseAnd() {
+            List<TagExpression> children = new ArrayList<TagExpression>();
+            children.add(parseOr());
+            while (accept(AND)) {
+                children.add(parseOr());
+            }
+            return and(children);
+        }
+
+        private TagExpression parseOr() {
+            List<TagExpression> children = new ArrayList<TagExpression>();
+            children.add(parsePrimary());
+            while (accept(OR)) {
+                children.add(parsePrimary());
+            }
+            return or(children);
+        }
+
+        private TagExpression parsePrimary() {
+            if (!hasNext()) {
+                throw new IllegalArgumentException("组合标签条件不完整");
+            }
+            if (accept("(")) {
+                TagExpression expression = parseAnd();
+                if (!accept(")")) {
+                    throw new IllegalArgumentException("组合标签条件缺少右括号");
+                }
+                return expression;
+            }
+            String token = tokens.get(position++);
+            try {
+                return tag(Long.parseLong(token));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("组合标签条件中的标签ID错误：" + token);
+            }
+        }
+
+    }
+
+}
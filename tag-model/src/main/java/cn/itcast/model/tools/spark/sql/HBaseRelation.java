@@ -1,5 +1,8 @@
 package cn.itcast.model.tools.spark.sql;
 
+import cn.itcast.model.models.ModelConfig;
+import cn.itcast.model.tools.hbase.TagSet;
+import cn.itcast.model.tools.parser.CompiledRule;
 import com.google.common.base.Preconditions;
 import net.iharder.base64.Base64;
 import org.apache.commons.lang.StringUtils;
@@ -7,20 +10,21 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.*;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
-import org.apache.hadoop.hbase.filter.FilterList;
-import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter.RowRange;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
 import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
 import org.apache.hadoop.hbase.protobuf.generated.ClientProtos;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.spark.TaskContext;
 import org.apache.spark.rdd.RDD;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.SQLContext;
-import org.apache.spark.sql.sources.BaseRelation;
-import org.apache.spark.sql.sources.TableScan;
+import org.apache.spark.sql.sources.*;
+import org.apache.spark.sql.sources.Filter;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
@@ -33,10 +37,10 @@ import scala.collection.immutable.Map;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 import java.util.stream.Stream;
 
 /**
@@ -44,11 +48,9 @@ import java.util.stream.Stream;
  * Created by mengyao
  * 2018年6月2日
  */
-public class HBaseRelation extends BaseRelation implements Serializable, TableScan {
+public class HBaseRelation extends BaseRelation implements Serializable, PrunedFilteredScan {
     private static final long serialVersionUID = 4234614443074355432L;
-    static String fullRegex = "(.*?)\\[(.*?)\\](.*+)";
     private static transient Logger logger = LoggerFactory.getLogger(HBaseRelation.class);
-    private static String expressionRegex = "\\[(.*?)\\]";
     private final String HBASE_ZK_PORT_KEY = "hbase.zookeeper.property.clientPort";
     private final String HBASE_ZK_PORT_VALUE = "zkPort";
     private final String HBASE_ZK_QUORUM_KEY = "hbase.zookeeper.quorum";
@@ -61,10 +63,22 @@ public class HBaseRelation extends BaseRelation implements Serializable, TableSc
     private final String HBASE_TABLE_SELECT_FIELDS = "selectFields";
     private final String HBASE_TABLE_WHERE_FIELDS = "whereFields";
     private final String ROW = "row";
+    // Scan调优参数
+    private final String HBASE_SCAN_CACHING = "caching";
+    private final String HBASE_SCAN_MAX_RESULT_SIZE = "maxResultSize";
+    private final String HBASE_SCAN_CACHE_BLOCKS = "cacheBlocks";
+    private final String HBASE_SCAN_SPLITS_PER_REGION = "splitsPerRegion";
+    // Cell时间戳范围[minStamp, maxStamp)，用于增量计算
+    private final String HBASE_SCAN_MIN_STAMP = "minStamp";
+    private final String HBASE_SCAN_MAX_STAMP = "maxStamp";
+    private final String HBASE_MAPPERS_PER_REGION_KEY = "hbase.mapreduce.tableinput.mappers.per.region";
+    private final int DEFAULT_SCAN_CACHING = 500;
     private SQLContext sqlContext;
     private java.util.Map<String, String> options;
     private StructType schema = null;
     private boolean updateSchema = true;
+    // 画像表中二进制编码的标签集合列，只有这些列按TagSet解码，且上面的条件不下推
+    private Set<String> tagSetColumns;
 
     public HBaseRelation(SQLContext sqlContext, Map<String, String> options) {
         this.sqlContext = sqlContext;
@@ -72,9 +86,39 @@ public class HBaseRelation extends BaseRelation implements Serializable, TableSc
     }
 
     @Override
-    public RDD<Row> buildScan() {
+    public RDD<Row> buildScan(String[] requiredColumns, Filter[] filters) {
         validParams(options);
-        return scan(sqlContext, options);
+        return scan(sqlContext, options, requiredColumns, filters);
+    }
+
+    /**
+     * 能够转换为HBase Filter或RowKey范围的条件由HBase完成过滤，其余条件由SparkSQL过滤
+     *
+     * @param filters
+     * @return
+     */
+    @Override
+    public Filter[] unhandledFilters(Filter[] filters) {
+        return Stream.of(filters).filter(filter -> !isPushable(filter)).toArray(Filter[]::new);
+    }
+
+    /**
+     * 当前表是画像表时返回标签集合列(tagIds和mergeTagIds)，否则为空
+     *
+     * @return
+     */
+    private Set<String> tagSetColumns() {
+        if (null == tagSetColumns) {
+            Set<String> columns = new HashSet<>();
+            ModelConfig modelConfig = new ModelConfig();
+            if (StringUtils.equals(options.get(HBASE_TABLE), modelConfig.getProfileTableName())
+                    && StringUtils.equals(options.get(HBASE_TABLE_FAMILY), modelConfig.getProfileTableFamilyUser())) {
+                columns.add(modelConfig.getProfileCommonCol());
+                columns.add(modelConfig.getProfileMergeCol());
+            }
+            tagSetColumns = columns;
+        }
+        return tagSetColumns;
     }
 
     @Override
@@ -88,8 +132,8 @@ public class HBaseRelation extends BaseRelation implements Serializable, TableSc
                     .forEach(field -> fields.add(DataTypes.createStructField(field, DataTypes.StringType, true)));
             schema = DataTypes.createStructType(fields);
             updateSchema = false;
+            logger.info("==== HBaseSource Schema is:{} ====", schema);
         }
-        logger.info("==== HBaseSource Schema is:{} ====", schema);
         return schema;
     }
 
@@ -109,42 +153,52 @@ public class HBaseRelation extends BaseRelation implements Serializable, TableSc
         Preconditions.checkNotNull(fieldsStr, "fieldsStr not null!");
     }
 
-    private RDD<Row> scan(SQLContext sqlContext, java.util.Map<String, String> options) {
+    private RDD<Row> scan(SQLContext sqlContext, java.util.Map<String, String> options, String[] requiredColumns, Filter[] filters) {
         try {
             Configuration conf = HBaseConfiguration.create();
             conf.set(HBASE_ZK_PORT_KEY, options.get(HBASE_ZK_PORT_VALUE));
             conf.set(HBASE_ZK_QUORUM_KEY, options.get(HBASE_ZK_QUORUM_VALUE));
             conf.set(HBASE_ZK_PARENT_KEY, HBASE_ZK_PARENT_VALUE);
             String family = options.get(HBASE_TABLE_FAMILY);
-            String fieldsStr = options.get(HBASE_TABLE_SELECT_FIELDS);
-            String[] selectFileds = fieldsStr.split(sperator);
+            byte[] familyBytes = Bytes.toBytes(family);
             String whereFieldsStr = options.get(HBASE_TABLE_WHERE_FIELDS);
             Scan scan = new Scan();
-            if (!StringUtils.isEmpty(whereFieldsStr)) {
-                FilterList filterList = new FilterList();
-                if (whereFieldsStr.contains(sperator)) {
-                    String[] whereFields = whereFieldsStr.split(sperator);
-                    for (String whereField : whereFields) {
-                        String[] condition = getCondition(whereField);
-                        if (null != condition && condition.length == 3) {
-                            String qualifier = condition[0];
-                            CompareOp compareOp = getValueFilterOp(condition[1]);
-                            String value = condition[2];
-                            filterList.addFilter(new SingleColumnValueFilter(Bytes.toBytes(family), Bytes.toBytes(qualifier), compareOp, Bytes.toBytes(value)));
-                        }
-                    }
+            tuning(scan, conf, options);
+            FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+            // 查询列和过滤条件涉及的列，只读取这些列
+            Set<String> qualifiers = new LinkedHashSet<>();
+            Stream.of(requiredColumns).filter(column -> !ROW.equals(column)).forEach(qualifiers::add);
+            // 规则中的条件字段，按条件文本缓存解析结果
+            for (CompiledRule.Predicate predicate : CompiledRule.parsePredicates(whereFieldsStr)) {
+                filterList.addFilter(new SingleColumnValueFilter(familyBytes, Bytes.toBytes(predicate.getField()),
+                        getValueFilterOp(predicate.getOp()), Bytes.toBytes(predicate.getValue())));
+                qualifiers.add(predicate.getField());
+            }
+            // 下推SparkSQL的过滤条件
+            for (Filter filter : filters) {
+                if (!isPushable(filter)) {
+                    continue;
+                }
+                String attribute = filter.references()[0];
+                if (ROW.equals(attribute)) {
+                    filterList.addFilter(toRowFilter(filter, scan));
                 } else {
-                    String[] condition = getCondition(whereFieldsStr);
-                    if (null != condition && condition.length == 3) {
-                        String qualifier = condition[0];
-                        CompareOp compareOp = getValueFilterOp(condition[1]);
-                        String value = condition[2];
-                        filterList.addFilter(new SingleColumnValueFilter(Bytes.toBytes(family), Bytes.toBytes(qualifier), compareOp, Bytes.toBytes(value)));
-                    }
+                    filterList.addFilter(toColumnFilter(filter, familyBytes));
+                    qualifiers.add(attribute);
                 }
-                if (filterList.getFilters().size() > 0) {
-                    scan.setFilter(filterList);
+            }
+            if (qualifiers.isEmpty()) {
+                // 只需要RowKey，每行只返回第一个Cell且不返回值
+                scan.addFamily(familyBytes);
+                if (filterList.getFilters().isEmpty()) {
+                    filterList.addFilter(new FirstKeyOnlyFilter());
+                    filterList.addFilter(new KeyOnlyFilter());
                 }
+            } else {
+                qualifiers.forEach(qualifier -> scan.addColumn(familyBytes, Bytes.toBytes(qualifier)));
+            }
+            if (filterList.getFilters().size() > 0) {
+                scan.setFilter(filterList);
             }
             String table = options.get(HBASE_TABLE);
             conf.set(TableInputFormat.INPUT_TABLE, table);
@@ -155,18 +209,26 @@ public class HBaseRelation extends BaseRelation implements Serializable, TableSc
 
             RDD<Tuple2<ImmutableBytesWritable, Result>> hbaseRdd = sqlContext.sparkContext().newAPIHadoopRDD(conf,
                     TableInputFormat.class, ImmutableBytesWritable.class, Result.class);
+            // 读取的行数由Task输入指标统计，按RDD名称在Stage完成时输出，不再单独count一遍全表
+            hbaseRdd.setName(HBaseScanListener.RDD_NAME_PREFIX + table);
+            HBaseScanListener.register(sqlContext.sparkContext());
 
-            logger.info("==== HBase Table:{} Record is:{} ====", table, hbaseRdd.count());
-
+            // 按SparkSQL要求的列顺序返回，null表示RowKey
+            byte[][] columns = Stream.of(requiredColumns)
+                    .map(column -> ROW.equals(column) ? null : Bytes.toBytes(column))
+                    .toArray(byte[][]::new);
+            boolean[] tagSets = new boolean[requiredColumns.length];
+            for (int i = 0; i < requiredColumns.length; i++) {
+                tagSets[i] = tagSetColumns().contains(requiredColumns[i]);
+            }
             return hbaseRdd.toJavaRDD().map(t -> t._2).map(r -> {
-                LinkedList<String> vals = new LinkedList<>();
-                String row = Bytes.toString(r.getRow());
-                vals.add(row);
-                Stream.of(selectFileds).forEach(field -> {
-                    String val = Bytes.toString(r.getValue(Bytes.toBytes(family), Bytes.toBytes(field)));
-                    vals.add(val);
-                });
-                return (Row) RowFactory.create(vals.toArray());
+                // TableSplit不是文件切片，Spark不统计读取的字节数，按Cell大小记入当前Task的输入指标
+                TaskContext.get().taskMetrics().inputMetrics().incBytesRead(Result.getTotalSizeOfCells(r));
+                Object[] vals = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    vals[i] = null == columns[i] ? Bytes.toString(r.getRow()) : toValue(r.getValue(familyBytes, columns[i]), tagSets[i]);
+                }
+                return RowFactory.create(vals);
             }).rdd();
         } catch (IOException e) {
             e.printStackTrace();
@@ -175,77 +237,246 @@ public class HBaseRelation extends BaseRelation implements Serializable, TableSc
     }
 
     /**
-     * new String[3]{qualifier, compareOp, value}
+     * 画像表的标签集合列按逗号分隔的标签ID返回(兼容旧的逗号分隔格式)，其他列按字符串返回
      *
-     * @param whereField
+     * @param value
+     * @param tagSet 是否为画像表的标签集合列
      * @return
      */
-    private String[] getCondition(String whereField) {
-        String[] condition = null;
-        Pattern pattern = Pattern.compile(fullRegex);
-        Matcher matcher = pattern.matcher(whereField);
-        if (matcher.find()) {
-            System.out.println("==== " + matcher.group(0));
-            System.out.println("==== " + matcher.group(1));
-            System.out.println("==== " + matcher.group(2));
-            System.out.println("==== " + matcher.group(3));
-            if (matcher.groupCount() == 3) {
-                condition = new String[3];
-                condition[0] = matcher.group(1);
-                condition[1] = matcher.group(2);
-                condition[2] = matcher.group(3);
-            }
+    private static String toValue(byte[] value, boolean tagSet) {
+        if (null == value) {
+            return null;
         }
-        return condition;
+        return tagSet ? TagSet.decode(value).toString() : Bytes.toString(value);
     }
 
     /**
-     * 获取表达式，不区分大小写
-     * 例如："utime[GT]20190101",提取的内容为GT
-     * EQ = EQUAL等于
-     * NE = NOT EQUAL不等于
-     * GT = GREATER THAN大于
-     * LT = LESS THAN小于
-     * GE = GREATER THAN OR EQUAL 大于等于
-     * LE = LESS THAN OR EQUAL 小于等于
+     * Scan调优：caching(每次RPC返回的行数，默认500)、maxResultSize(每次RPC返回的最大字节数)、
+     * cacheBlocks(是否使用BlockCache，全表扫描默认不使用)、splitsPerRegion(每个Region切分的Task数，默认1)、
+     * minStamp和maxStamp(只读取该时间范围内写入的Cell，HBase会跳过时间范围外的HFile)
+     *
+     * @param scan
+     * @param conf
+     * @param options
+     * @throws IOException
      */
-    @SuppressWarnings("unused")
-    private String getExpression(String whereField) {
-        Pattern pattern = Pattern.compile(expressionRegex);
-        Matcher matcher = pattern.matcher(whereField);
-        while (matcher.find()) {
-            String expression = matcher.group(1);
-            return expression;
+    private void tuning(Scan scan, Configuration conf, java.util.Map<String, String> options) throws IOException {
+        String caching = options.get(HBASE_SCAN_CACHING);
+        scan.setCaching(StringUtils.isEmpty(caching) ? DEFAULT_SCAN_CACHING : Integer.parseInt(caching));
+        String maxResultSize = options.get(HBASE_SCAN_MAX_RESULT_SIZE);
+        if (!StringUtils.isEmpty(maxResultSize)) {
+            scan.setMaxResultSize(Long.parseLong(maxResultSize));
         }
-        return null;
+        scan.setCacheBlocks(Boolean.parseBoolean(options.get(HBASE_SCAN_CACHE_BLOCKS)));
+        String splitsPerRegion = options.get(HBASE_SCAN_SPLITS_PER_REGION);
+        if (!StringUtils.isEmpty(splitsPerRegion)) {
+            conf.setInt(HBASE_MAPPERS_PER_REGION_KEY, Integer.parseInt(splitsPerRegion));
+        }
+        String minStamp = options.get(HBASE_SCAN_MIN_STAMP);
+        String maxStamp = options.get(HBASE_SCAN_MAX_STAMP);
+        if (!StringUtils.isEmpty(minStamp) || !StringUtils.isEmpty(maxStamp)) {
+            scan.setTimeRange(StringUtils.isEmpty(minStamp) ? 0L : Long.parseLong(minStamp),
+                    StringUtils.isEmpty(maxStamp) ? Long.MAX_VALUE : Long.parseLong(maxStamp));
+            logger.info("==== HBaseSource Scan timeRange=[{},{}) ====", minStamp, maxStamp);
+        }
+        logger.info("==== HBaseSource Scan caching={},maxResultSize={},cacheBlocks={},splitsPerRegion={} ====",
+                scan.getCaching(), scan.getMaxResultSize(), scan.getCacheBlocks(), splitsPerRegion);
     }
 
     /**
-     * 获取表达式对应的ValueFilter操作符
+     * 是否能够下推到HBase，支持RowKey和查询字段上的EqualTo、GreaterThan(OrEqual)、LessThan(OrEqual)、In、StringStartsWith；
+     * 标签集合列在HBase中是二进制编码，与字符串比较没有意义，由SparkSQL在解码后过滤
      *
-     * @param expression
+     * @param filter
      * @return
      */
-    private CompareOp getValueFilterOp(String expression) {
-        final String lcExpression = expression.toLowerCase();
-        if (lcExpression.equals("eq")) {
-            return CompareOp.EQUAL;
+    private boolean isPushable(Filter filter) {
+        if (filter instanceof EqualTo) {
+            return isPushable(((EqualTo) filter).attribute(), ((EqualTo) filter).value());
+        }
+        if (filter instanceof GreaterThan) {
+            return isPushable(((GreaterThan) filter).attribute(), ((GreaterThan) filter).value());
+        }
+        if (filter instanceof GreaterThanOrEqual) {
+            return isPushable(((GreaterThanOrEqual) filter).attribute(), ((GreaterThanOrEqual) filter).value());
+        }
+        if (filter instanceof LessThan) {
+            return isPushable(((LessThan) filter).attribute(), ((LessThan) filter).value());
+        }
+        if (filter instanceof LessThanOrEqual) {
+            return isPushable(((LessThanOrEqual) filter).attribute(), ((LessThanOrEqual) filter).value());
         }
-        if (lcExpression.equals("ne")) {
-            return CompareOp.NOT_EQUAL;
+        if (filter instanceof StringStartsWith) {
+            return isPushable(((StringStartsWith) filter).attribute(), ((StringStartsWith) filter).value());
+        }
+        if (filter instanceof In) {
+            In in = (In) filter;
+            return in.values().length > 0
+                    && Stream.of(in.values()).allMatch(value -> isPushable(in.attribute(), value));
+        }
+        return false;
+    }
+
+    private boolean isPushable(String attribute, Object value) {
+        return value instanceof String && !tagSetColumns().contains(attribute)
+                && Stream.of(schema().fieldNames()).anyMatch(attribute::equals);
+    }
+
+    /**
+     * RowKey上的条件转换为Scan的RowKey范围，In转换为MultiRowRangeFilter
+     *
+     * @param filter
+     * @param scan
+     * @return
+     */
+    static org.apache.hadoop.hbase.filter.Filter toRowFilter(Filter filter, Scan scan) {
+        if (filter instanceof EqualTo) {
+            byte[] row = Bytes.toBytes((String) ((EqualTo) filter).value());
+            narrowStartRow(scan, row);
+            narrowStopRow(scan, row, true);
+            return new RowFilter(CompareOp.EQUAL, new BinaryComparator(row));
         }
-        if (lcExpression.equals("gt")) {
-            return CompareOp.GREATER;
+        if (filter instanceof GreaterThan) {
+            byte[] row = Bytes.toBytes((String) ((GreaterThan) filter).value());
+            narrowStartRow(scan, row);
+            return new RowFilter(CompareOp.GREATER, new BinaryComparator(row));
         }
-        if (lcExpression.equals("lt")) {
-            return CompareOp.LESS;
+        if (filter instanceof GreaterThanOrEqual) {
+            byte[] row = Bytes.toBytes((String) ((GreaterThanOrEqual) filter).value());
+            narrowStartRow(scan, row);
+            return new RowFilter(CompareOp.GREATER_OR_EQUAL, new BinaryComparator(row));
         }
-        if (lcExpression.equals("ge")) {
-            return CompareOp.GREATER_OR_EQUAL;
+        if (filter instanceof LessThan) {
+            byte[] row = Bytes.toBytes((String) ((LessThan) filter).value());
+            narrowStopRow(scan, row, false);
+            return new RowFilter(CompareOp.LESS, new BinaryComparator(row));
         }
-        if (lcExpression.equals("le")) {
-            return CompareOp.LESS_OR_EQUAL;
+        if (filter instanceof LessThanOrEqual) {
+            byte[] row = Bytes.toBytes((String) ((LessThanOrEqual) filter).value());
+            narrowStopRow(scan, row, true);
+            return new RowFilter(CompareOp.LESS_OR_EQUAL, new BinaryComparator(row));
+        }
+        if (filter instanceof StringStartsWith) {
+            byte[] prefix = Bytes.toBytes(((StringStartsWith) filter).value());
+            narrowStartRow(scan, prefix);
+            return new PrefixFilter(prefix);
+        }
+        In in = (In) filter;
+        List<RowRange> ranges = new ArrayList<>();
+        byte[] minRow = null;
+        byte[] maxRow = null;
+        for (Object value : in.values()) {
+            byte[] row = Bytes.toBytes((String) value);
+            ranges.add(new RowRange(row, true, row, true));
+            if (null == minRow || Bytes.compareTo(row, minRow) < 0) {
+                minRow = row;
+            }
+            if (null == maxRow || Bytes.compareTo(row, maxRow) > 0) {
+                maxRow = row;
+            }
+        }
+        // 同时收窄Scan的RowKey范围，范围外的Region不再扫描
+        if (null != minRow) {
+            narrowStartRow(scan, minRow);
+            narrowStopRow(scan, maxRow, true);
+        }
+        try {
+            return new MultiRowRangeFilter(ranges);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 查询字段上的条件转换为SingleColumnValueFilter，列不存在的行被过滤掉(与SparkSQL的null语义一致)
+     *
+     * @param filter
+     * @param family
+     * @return
+     */
+    private org.apache.hadoop.hbase.filter.Filter toColumnFilter(Filter filter, byte[] family) {
+        if (filter instanceof EqualTo) {
+            EqualTo f = (EqualTo) filter;
+            return columnFilter(family, f.attribute(), CompareOp.EQUAL, new BinaryComparator(Bytes.toBytes((String) f.value())));
+        }
+        if (filter instanceof GreaterThan) {
+            GreaterThan f = (GreaterThan) filter;
+            return columnFilter(family, f.attribute(), CompareOp.GREATER, new BinaryComparator(Bytes.toBytes((String) f.value())));
+        }
+        if (filter instanceof GreaterThanOrEqual) {
+            GreaterThanOrEqual f = (GreaterThanOrEqual) filter;
+            return columnFilter(family, f.attribute(), CompareOp.GREATER_OR_EQUAL, new BinaryComparator(Bytes.toBytes((String) f.value())));
+        }
+        if (filter instanceof LessThan) {
+            LessThan f = (LessThan) filter;
+            return columnFilter(family, f.attribute(), CompareOp.LESS, new BinaryComparator(Bytes.toBytes((String) f.value())));
+        }
+        if (filter instanceof LessThanOrEqual) {
+            LessThanOrEqual f = (LessThanOrEqual) filter;
+            return columnFilter(family, f.attribute(), CompareOp.LESS_OR_EQUAL, new BinaryComparator(Bytes.toBytes((String) f.value())));
+        }
+        if (filter instanceof StringStartsWith) {
+            StringStartsWith f = (StringStartsWith) filter;
+            return columnFilter(family, f.attribute(), CompareOp.EQUAL, new BinaryPrefixComparator(Bytes.toBytes(f.value())));
+        }
+        In in = (In) filter;
+        FilterList list = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+        for (Object value : in.values()) {
+            list.addFilter(columnFilter(family, in.attribute(), CompareOp.EQUAL, new BinaryComparator(Bytes.toBytes((String) value))));
+        }
+        return list;
+    }
+
+    private SingleColumnValueFilter columnFilter(byte[] family, String qualifier, CompareOp op, ByteArrayComparable comparator) {
+        SingleColumnValueFilter filter = new SingleColumnValueFilter(family, Bytes.toBytes(qualifier), op, comparator);
+        filter.setFilterIfMissing(true);
+        return filter;
+    }
+
+    /**
+     * 收窄Scan的起始RowKey，起始RowKey总是包含在内，不包含row的条件由RowFilter去掉row。
+     * TableInputFormat按切片边界重建Scan时只保留起止RowKey，不保留inclusive标记
+     */
+    private static void narrowStartRow(Scan scan, byte[] row) {
+        byte[] startRow = scan.getStartRow();
+        if (startRow.length == 0 || Bytes.compareTo(row, startRow) > 0) {
+            scan.withStartRow(row);
+        }
+    }
+
+    /**
+     * 收窄Scan的结束RowKey，结束RowKey总是不包含在内，包含row时结束于row之后的第一个RowKey(row + 0x00)
+     */
+    private static void narrowStopRow(Scan scan, byte[] row, boolean inclusive) {
+        byte[] stop = inclusive ? Bytes.add(row, new byte[]{0}) : row;
+        byte[] stopRow = scan.getStopRow();
+        if (stopRow.length == 0 || Bytes.compareTo(stop, stopRow) < 0) {
+            scan.withStopRow(stop);
+        }
+    }
+
+    /**
+     * 获取条件操作符对应的ValueFilter操作符
+     *
+     * @param op
+     * @return
+     */
+    private CompareOp getValueFilterOp(CompiledRule.Op op) {
+        switch (op) {
+            case EQ:
+                return CompareOp.EQUAL;
+            case NE:
+                return CompareOp.NOT_EQUAL;
+            case GT:
+                return CompareOp.GREATER;
+            case LT:
+                return CompareOp.LESS;
+            case GE:
+                return CompareOp.GREATER_OR_EQUAL;
+            case LE:
+                return CompareOp.LESS_OR_EQUAL;
+            default:
+                return CompareOp.NO_OP;
         }
-        return CompareOp.NO_OP;
     }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package cn.itcast.model.tools.spark.sql;
+
+import org.apache.spark.SparkContext;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.StageInfo;
+import org.apache.spark.storage.RDDInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.collection.JavaConverters;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+/**
+ * SparkSQL HBase Data Source 扫描行数监听器
+ * 每个SparkContext只注册一个，在读取HBase表的Stage完成时输出该Stage的输入行数和字节数；
+ * 行数和字节数取自Task的输入指标，只统计成功的Task，重试和重算不会重复累加到同一个Stage
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class HBaseScanListener extends SparkListener {
+
+    private static Logger logger = LoggerFactory.getLogger(HBaseScanListener.class);
+    // 扫描HBase表的RDD名称前缀，后接表名
+    public static final String RDD_NAME_PREFIX = "HBase Table ";
+    // 已注册监听器的SparkContext，SparkContext停止后可被回收
+    private static final Map<SparkContext, Boolean> REGISTERED = Collections.synchronizedMap(new WeakHashMap<SparkContext, Boolean>());
+
+    private HBaseScanListener() {
+    }
+
+    /**
+     * 为SparkContext注册监听器，已注册时直接返回
+     *
+     * @param sparkContext
+     */
+    public static void register(SparkContext sparkContext) {
+        synchronized (REGISTERED) {
+            if (null == REGISTERED.putIfAbsent(sparkContext, Boolean.TRUE)) {
+                sparkContext.addSparkListener(new HBaseScanListener());
+            }
+        }
+    }
+
+    @Override
+    public void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+        StageInfo info = stageCompleted.stageInfo();
+        Set<String> tables = new TreeSet<String>();
+        for (RDDInfo rdd : JavaConverters.seqAsJavaListConverter(info.rddInfos()).asJava()) {
+            if (null != rdd.name() && rdd.name().startsWith(RDD_NAME_PREFIX)) {
+                tables.add(rdd.name().substring(RDD_NAME_PREFIX.length()));
+            }
+        }
+        TaskMetrics taskMetrics = info.taskMetrics();
+        if (tables.isEmpty() || null == taskMetrics) {
+            return;
+        }
+        logger.info("==== HBase Table:{} Record is:{}, Bytes is:{}, Stage:{} ====", tables,
+                taskMetrics.inputMetrics().recordsRead(), taskMetrics.inputMetrics().bytesRead(), info.stageId());
+    }
+
+}
@@ -0,0 +1,163 @@
+package cn.itcast.model.tools.spark.sql;
+
+import cn.itcast.model.beans.ModelMetricsBean;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.spark.SparkContext;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.AccumulableInfo;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.StageInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.collection.JavaConverters;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 标签模型执行指标监听器
+ * 模型运行前通过Spark本地属性标记运行ID，只统计该运行提交的Stage(同一Driver中并发运行的模型互不干扰)，
+ * 汇总每个Stage的耗时、数据源读取行数和字节数(HBase数据源的读取字节数由其记入Task输入指标)、
+ * Shuffle字节数、溢写字节数、GC时间，以及画像表写入通过累加器上报的写入行数
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ModelMetricsListener extends SparkListener {
+
+    private static Logger logger = LoggerFactory.getLogger(ModelMetricsListener.class);
+    // 标记Job所属运行的Spark本地属性，子线程提交的Job会继承
+    public static final String RUN_ID_PROPERTY = "tag.model.run.id";
+    // 画像表写入行数累加器
+    public static final String PROFILE_WRITTEN_ROWS = "Profile Written Rows";
+    // 结束统计时等待事件总线处理完已提交事件的最长时间
+    private static final long DRAIN_TIMEOUT_MS = 10000L;
+    private final SparkContext sparkContext;
+    private final ModelMetricsBean metrics = new ModelMetricsBean();
+    private final Set<Integer> stageIds = ConcurrentHashMap.newKeySet();
+    private final List<Map<String, Object>> stages = new ArrayList<Map<String, Object>>();
+    // 累加器ID -> 当前值，同一累加器在多个Stage中出现时只取最后的值
+    private final Map<Long, Long> profileWrittenRows = new HashMap<Long, Long>();
+
+    private ModelMetricsListener(SparkContext sparkContext, String model) {
+        this.sparkContext = sparkContext;
+        long startTime = System.currentTimeMillis();
+        metrics.setRunId(sparkContext.applicationId() + "-" + startTime);
+        metrics.setModel(model);
+        metrics.setStartTime(startTime);
+    }
+
+    /**
+     * 开始统计当前线程中模型提交的Job
+     *
+     * @param sparkContext
+     * @param model        模型名称
+     * @return
+     */
+    public static ModelMetricsListener start(SparkContext sparkContext, String model) {
+        ModelMetricsListener listener = new ModelMetricsListener(sparkContext, model);
+        sparkContext.setLocalProperty(RUN_ID_PROPERTY, listener.metrics.getRunId());
+        sparkContext.addSparkListener(listener);
+        logger.info("==== 模型:{} 开始统计执行指标，运行ID:{} ====", model, listener.metrics.getRunId());
+        return listener;
+    }
+
+    /**
+     * 结束统计
+     * 事件总线异步投递事件，模型的Action返回时最后几个Stage的完成事件可能还在队列中，
+     * 先等待队列中的事件处理完再移除监听器，否则会丢失这些Stage的指标和写入行数
+     *
+     * @param success 是否运行成功
+     * @return 本次运行的执行指标
+     */
+    public ModelMetricsBean stop(boolean success) {
+        long endTime = System.currentTimeMillis();
+        sparkContext.setLocalProperty(RUN_ID_PROPERTY, null);
+        try {
+            // 不能持有锁等待，否则onStageCompleted无法执行
+            sparkContext.listenerBus().waitUntilEmpty(DRAIN_TIMEOUT_MS);
+        } catch (TimeoutException e) {
+            logger.warn("==== stop@err:{} 事件总线{}ms内未处理完，执行指标可能不完整 ====", e.getMessage(), DRAIN_TIMEOUT_MS);
+        }
+        sparkContext.removeSparkListener(this);
+        synchronized (this) {
+            return collect(success, endTime);
+        }
+    }
+
+    private ModelMetricsBean collect(boolean success, long endTime) {
+        metrics.setEndTime(endTime);
+        metrics.setStatus(success ? 1 : 2);
+        metrics.setStageCount(stages.size());
+        metrics.setProfileRows(sum(profileWrittenRows));
+        try {
+            metrics.setStages(new ObjectMapper().writeValueAsString(stages));
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+        }
+        logger.info("==== 模型执行指标:{} ====", metrics);
+        return metrics;
+    }
+
+    @Override
+    public void onStageSubmitted(SparkListenerStageSubmitted stageSubmitted) {
+        Properties properties = stageSubmitted.properties();
+        if (null != properties && metrics.getRunId().equals(properties.getProperty(RUN_ID_PROPERTY))) {
+            stageIds.add(stageSubmitted.stageInfo().stageId());
+        }
+    }
+
+    @Override
+    public synchronized void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+        StageInfo info = stageCompleted.stageInfo();
+        if (!stageIds.contains(info.stageId())) {
+            return;
+        }
+        Map<String, Object> stage = new LinkedHashMap<String, Object>();
+        stage.put("stageId", info.stageId());
+        stage.put("attempt", info.attemptNumber());
+        stage.put("name", info.name());
+        stage.put("tasks", info.numTasks());
+        stage.put("duration", info.submissionTime().isDefined() && info.completionTime().isDefined()
+                ? (Long) info.completionTime().get() - (Long) info.submissionTime().get() : 0L);
+        TaskMetrics taskMetrics = info.taskMetrics();
+        if (null != taskMetrics) {
+            long inputRecords = taskMetrics.inputMetrics().recordsRead();
+            long inputBytes = taskMetrics.inputMetrics().bytesRead();
+            long shuffleReadBytes = taskMetrics.shuffleReadMetrics().totalBytesRead();
+            long shuffleWriteBytes = taskMetrics.shuffleWriteMetrics().bytesWritten();
+            long spillBytes = taskMetrics.memoryBytesSpilled() + taskMetrics.diskBytesSpilled();
+            long gcTime = taskMetrics.jvmGCTime();
+            stage.put("inputRecords", inputRecords);
+            stage.put("inputBytes", inputBytes);
+            stage.put("shuffleReadBytes", shuffleReadBytes);
+            stage.put("shuffleWriteBytes", shuffleWriteBytes);
+            stage.put("spillBytes", spillBytes);
+            stage.put("gcTime", gcTime);
+            metrics.setInputRecords(metrics.getInputRecords() + inputRecords);
+            metrics.setInputBytes(metrics.getInputBytes() + inputBytes);
+            metrics.setShuffleReadBytes(metrics.getShuffleReadBytes() + shuffleReadBytes);
+            metrics.setShuffleWriteBytes(metrics.getShuffleWriteBytes() + shuffleWriteBytes);
+            metrics.setSpillBytes(metrics.getSpillBytes() + spillBytes);
+            metrics.setGcTime(metrics.getGcTime() + gcTime);
+        }
+        for (AccumulableInfo accumulable : JavaConverters.mapAsJavaMapConverter(info.accumulables()).asJava().values()) {
+            if (!accumulable.name().isDefined() || !accumulable.value().isDefined()) {
+                continue;
+            }
+            String name = accumulable.name().get();
+            if (PROFILE_WRITTEN_ROWS.equals(name)) {
+                profileWrittenRows.put(accumulable.id(), Long.parseLong(accumulable.value().get().toString()));
+            }
+        }
+        stages.add(stage);
+    }
+
+    private static long sum(Map<Long, Long> values) {
+        return values.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+}
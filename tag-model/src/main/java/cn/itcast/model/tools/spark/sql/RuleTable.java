@@ -0,0 +1,198 @@
+package cn.itcast.model.tools.spark.sql;
+
+import cn.itcast.model.beans.BasicTagBean;
+import org.apache.commons.lang.StringUtils;
+import org.apache.spark.SparkContext;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.api.java.UDF1;
+import org.apache.spark.sql.expressions.UserDefinedFunction;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 五级标签规则表
+ * 把四级标签下的五级标签规则编译为查找结构：相等规则放入哈希表，yyyyMMdd-yyyyMMdd范围规则按起始值排序后二分查找。
+ * 规则表广播到Executor后通过一个UDF计算，每行每个字段只做一次规范化和一次查找，替代逐个分支求值的when链。
+ * 同一SparkContext中重复apply复用同一个广播，模型运行结束时通过{@link #destroy()}释放。
+ * 用法：RuleTable.compile(tag.subList(1, tag.size())).apply(session, new Column("birthday"))
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class RuleTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(RuleTable.class);
+    // 日期范围规则，如19500101-19591231
+    private static final Pattern DATE_RANGE = Pattern.compile("^\\d{8}-\\d{8}$");
+    private static final String RANGE_SEPARATOR = "-";
+    // 相等规则，同一个值只保留第一个规则，与when链的匹配顺序一致
+    private final Map<String, String> equalRules = new HashMap<String, String>();
+    // 范围规则，按起始值升序
+    private final List<Range> rangeRules = new ArrayList<Range>();
+    // 已广播的规则表及其所属的SparkContext，不随规则表序列化
+    private transient Broadcast<RuleTable> broadcast;
+    private transient SparkContext broadcastContext;
+
+    /**
+     * 编译五级标签规则，规则为yyyyMMdd-yyyyMMdd时按范围匹配，否则按值相等匹配，结果为五级标签ID
+     *
+     * @param tags5 五级标签
+     * @return
+     */
+    public static RuleTable compile(List<BasicTagBean> tags5) {
+        RuleTable table = new RuleTable();
+        for (BasicTagBean tag5 : tags5) {
+            String rule = tag5.getRule();
+            if (StringUtils.isEmpty(rule)) {
+                continue;
+            }
+            if (isRange(rule)) {
+                String[] range = rule.split(RANGE_SEPARATOR);
+                table.addRange(range[0], range[1], tag5.getId() + "");
+            } else {
+                table.addEqual(rule, tag5.getId() + "");
+            }
+        }
+        logger.info("==== 编译规则表，相等规则{}条，范围规则{}条 ====", table.equalRules.size(), table.rangeRules.size());
+        return table;
+    }
+
+    public static boolean isRange(String rule) {
+        return DATE_RANGE.matcher(rule).matches();
+    }
+
+    public boolean isEmpty() {
+        return equalRules.isEmpty() && rangeRules.isEmpty();
+    }
+
+    /**
+     * 添加相等规则
+     *
+     * @param value  字段值
+     * @param result 匹配结果
+     * @return
+     */
+    public RuleTable addEqual(String value, String result) {
+        destroy();
+        equalRules.putIfAbsent(value, result);
+        return this;
+    }
+
+    /**
+     * 添加范围规则，包含上下边界，范围之间不应重叠
+     *
+     * @param low    下边界
+     * @param high   上边界
+     * @param result 匹配结果
+     * @return
+     */
+    public RuleTable addRange(String low, String high, String result) {
+        destroy();
+        int index = 0;
+        while (index < rangeRules.size() && rangeRules.get(index).low.compareTo(low) <= 0) {
+            index++;
+        }
+        if ((index > 0 && rangeRules.get(index - 1).high.compareTo(low) >= 0)
+                || (index < rangeRules.size() && rangeRules.get(index).low.compareTo(high) <= 0)) {
+            logger.warn("==== 范围规则{}-{}与已有规则重叠，重叠部分按起始值最近的规则匹配 ====", low, high);
+        }
+        rangeRules.add(index, new Range(low, high, result));
+        return this;
+    }
+
+    /**
+     * 查找字段值对应的结果，先按相等规则查找，再去掉分隔符后按范围规则二分查找
+     *
+     * @param value 字段值
+     * @return 没有匹配的规则时返回null
+     */
+    public String lookup(String value) {
+        if (null == value) {
+            return null;
+        }
+        String result = equalRules.get(value);
+        if (null != result || rangeRules.isEmpty()) {
+            return result;
+        }
+        String normalized = value.replace(RANGE_SEPARATOR, "");
+        // 查找最后一个起始值小于等于字段值的范围
+        int low = 0;
+        int high = rangeRules.size() - 1;
+        int index = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (rangeRules.get(mid).low.compareTo(normalized) <= 0) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (index >= 0 && rangeRules.get(index).high.compareTo(normalized) >= 0) {
+            return rangeRules.get(index).result;
+        }
+        return null;
+    }
+
+    /**
+     * 广播规则表并生成查找列，同一SparkContext中只广播一次
+     *
+     * @param session
+     * @param field   字段列
+     * @return 字符串类型的结果列，没有匹配的规则时为null
+     */
+    public Column apply(SparkSession session, Column field) {
+        Broadcast<RuleTable> broadcast = broadcast(session.sparkContext());
+        UserDefinedFunction lookup = functions.udf((UDF1<Object, String>) value ->
+                null == value ? null : broadcast.value().lookup(value.toString()), DataTypes.StringType);
+        return lookup.apply(field);
+    }
+
+    private synchronized Broadcast<RuleTable> broadcast(SparkContext sparkContext) {
+        if (null == broadcast || broadcastContext != sparkContext || sparkContext.isStopped()) {
+            broadcast = JavaSparkContext.fromSparkContext(sparkContext).broadcast(this);
+            broadcastContext = sparkContext;
+        }
+        return broadcast;
+    }
+
+    /**
+     * 释放已广播的规则表，下次apply时重新广播
+     */
+    public synchronized void destroy() {
+        if (null == broadcast) {
+            return;
+        }
+        if (!broadcastContext.isStopped()) {
+            broadcast.destroy();
+        }
+        broadcast = null;
+        broadcastContext = null;
+    }
+
+    private static class Range implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String low;
+        private final String high;
+        private final String result;
+
+        Range(String low, String high, String result) {
+            this.low = low;
+            this.high = high;
+            this.result = result;
+        }
+    }
+
+}
@@ -13,6 +13,8 @@ import org.apache.spark.sql.SparkSession;
 public class SQLHBase {
 
     private static String appName = SQLHBase.class.getSimpleName();
+    // 多个模型共享同一个SparkSession时，由创建者负责关闭
+    private static volatile boolean shared = false;
 
     public static SparkSession getSession(SparkConf conf) {
         return SparkSession.builder()
@@ -20,6 +22,38 @@ public class SQLHBase {
                 .getOrCreate();
     }
 
+    /**
+     * 创建多个模型共享的SparkSession，之后模型中通过getSession获取到的都是该Session
+     *
+     * @param conf
+     * @return
+     */
+    public static SparkSession getSharedSession(SparkConf conf) {
+        shared = true;
+        return getSession(conf);
+    }
+
+    /**
+     * 关闭模型的SparkSession，共享的Session不关闭
+     *
+     * @param session
+     */
+    public static void close(SparkSession session) {
+        if (!shared) {
+            session.close();
+        }
+    }
+
+    /**
+     * 关闭共享的SparkSession
+     *
+     * @param session
+     */
+    public static void closeShared(SparkSession session) {
+        shared = false;
+        session.close();
+    }
+
     public static SparkSession getSession(SparkConf conf, String appName) {
         return getSession(conf, appName, "local[*]");
     }
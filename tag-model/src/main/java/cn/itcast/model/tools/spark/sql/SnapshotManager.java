@@ -0,0 +1,302 @@
+package cn.itcast.model.tools.spark.sql;
+
+import cn.itcast.model.models.ModelConfig;
+import cn.itcast.model.tools.parser.CompiledRule;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.spark.SparkConf;
+import org.apache.spark.sql.*;
+import org.apache.spark.sql.catalyst.parser.CatalystSqlParser;
+import org.apache.spark.sql.types.StructField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * HBase数据源表的Parquet快照
+ * 每个调度窗口(默认每天)把HBase表的指定列按类型物化为{base}/{table}/{family}/dt={window}/v={version}下的Parquet文件，
+ * 窗口目录下的_CURRENT指针文件记录当前版本，新版本写完后整体替换指针文件(HDFS上rename OVERWRITE是原子的)，
+ * 已发布的版本目录不会被修改或删除，多个YARN应用并发物化时互不影响，读取中的旧版本也不受影响，无需跨进程加锁。
+ * 同一窗口内读取同一张表的模型共用该快照，得到列式读取和谓词下推，HBase全表扫描每个窗口只做一次。
+ * 快照缺少模型需要的列(包括条件字段)或列的类型与规则指定的不同时，按已有列和新列的并集物化为新版本。
+ * 快照中的RowKey列为row，与HBase数据源一致。
+ * 用法：SnapshotManager tbl_orders detail memberId,orderSn,orderAmount:double,finishTime:bigint
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class SnapshotManager {
+
+    private static String appName = SnapshotManager.class.getSimpleName();
+    private static final String ROW = "row";
+    private static final String TYPE_SEPARATOR = ":";
+    private static final String DEFAULT_TYPE = "string";
+    private static final String DEFAULT_WINDOW_FORMAT = "yyyyMMdd";
+    private static final String PARTITION_PREFIX = "dt=";
+    private static final String VERSION_PREFIX = "v=";
+    private static final String CURRENT_FILE = "_CURRENT";
+    // 只保留当前和上一个窗口的快照
+    private static final int RETAIN_WINDOWS = 2;
+    // 只为避免同一个JVM中的多个模型重复物化同一张表，跨进程的一致性由版本目录和指针文件保证
+    private static final Object LOCK = new Object();
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final ModelConfig modelConfig;
+
+    public SnapshotManager(ModelConfig modelConfig) {
+        this.modelConfig = modelConfig;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            LoggerFactory.getLogger(SnapshotManager.class).error("==== 用法：{} <hbaseTable> <family> <field[:type],...> ====", appName);
+            System.exit(1);
+        }
+        ModelConfig modelConfig = new ModelConfig();
+        SparkConf conf = new SparkConf()
+                .setAppName(appName)
+                .setMaster(modelConfig.getSparkMaster());
+        SparkSession session = SQLHBase.getSession(conf);
+        new SnapshotManager(modelConfig).ensure(session, args[0], args[1], args[2]);
+        session.close();
+    }
+
+    /**
+     * 读取当前窗口的快照，不存在或缺少列时先物化
+     *
+     * @param session
+     * @param table        HBase表
+     * @param family       列簇
+     * @param selectFields 查询字段，可用"字段:类型"指定类型
+     * @param whereFields  条件字段，格式与HBase数据源相同，可为空
+     * @return RowKey列row和查询字段
+     */
+    public Dataset<Row> load(SparkSession session, String table, String family, String selectFields, String whereFields) {
+        Map<String, String> fields = parseFields(selectFields);
+        // 条件字段不在查询字段中时也要物化，与HBase数据源把条件列加入Scan一致
+        Set<String> whereOnly = new LinkedHashSet<String>();
+        for (CompiledRule.Predicate predicate : CompiledRule.parsePredicates(whereFields)) {
+            if (!fields.containsKey(predicate.getField())) {
+                whereOnly.add(predicate.getField());
+            }
+        }
+        String path;
+        try {
+            path = ensure(session, table, family, fields, whereOnly);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        List<Column> columns = new ArrayList<Column>();
+        columns.add(new Column(ROW));
+        fields.keySet().forEach(field -> columns.add(new Column(field)));
+        Dataset<Row> snapshotDF = session.read().parquet(path);
+        Column condition = toCondition(whereFields);
+        // 先过滤再投影，条件字段可以不在查询字段中
+        return (null == condition ? snapshotDF : snapshotDF.where(condition)).select(columns.toArray(new Column[0]));
+    }
+
+    /**
+     * 确保当前窗口的快照存在且包含查询字段
+     *
+     * @return 快照路径
+     * @throws IOException
+     */
+    public String ensure(SparkSession session, String table, String family, String selectFields) throws IOException {
+        return ensure(session, table, family, parseFields(selectFields), Collections.<String>emptySet());
+    }
+
+    /**
+     * 确保当前窗口的快照存在，包含指定类型的字段和只要求存在的字段
+     *
+     * @param fields  <字段, 类型>，已有列的类型不同时按指定的类型重新物化
+     * @param untyped 只要求存在的字段(如条件字段)，已有列时沿用其类型，否则按字符串物化
+     * @return 快照路径
+     * @throws IOException
+     */
+    private String ensure(SparkSession session, String table, String family, Map<String, String> fields, Set<String> untyped) throws IOException {
+        Path tablePath = new Path(modelConfig.getSnapshotBasePath(), table + Path.SEPARATOR + family);
+        Path windowPath = new Path(tablePath, PARTITION_PREFIX + window());
+        Configuration conf = session.sparkContext().hadoopConfiguration();
+        FileSystem fs = windowPath.getFileSystem(conf);
+        synchronized (LOCK) {
+            Map<String, String> columns = new LinkedHashMap<String, String>();
+            Path current = readCurrent(fs, windowPath);
+            if (null != current) {
+                for (StructField field : session.read().parquet(current.toString()).schema().fields()) {
+                    if (!ROW.equals(field.name())) {
+                        columns.put(field.name(), field.dataType().simpleString());
+                    }
+                }
+                if (sameTypes(columns, fields) && columns.keySet().containsAll(untyped)) {
+                    logger.info("==== 复用快照:{} ====", current);
+                    return current.toString();
+                }
+            }
+            // 指定的类型覆盖已有列的类型
+            columns.putAll(fields);
+            untyped.forEach(field -> columns.putIfAbsent(field, DEFAULT_TYPE));
+            // 版本名带随机后缀，不同应用同一毫秒物化时也不会写入同一目录
+            Path version = new Path(windowPath, VERSION_PREFIX + System.currentTimeMillis() + "-" + UUID.randomUUID().toString().substring(0, 8));
+            materialize(session, table, family, columns, version);
+            publish(conf, fs, windowPath, version);
+            clean(fs, tablePath);
+            return version.toString();
+        }
+    }
+
+    /**
+     * 读取窗口的当前版本
+     *
+     * @return 没有指针文件或版本不完整时返回null
+     * @throws IOException
+     */
+    private Path readCurrent(FileSystem fs, Path windowPath) throws IOException {
+        Path pointer = new Path(windowPath, CURRENT_FILE);
+        if (!fs.exists(pointer)) {
+            return null;
+        }
+        String name;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(pointer), StandardCharsets.UTF_8))) {
+            name = StringUtils.trimToNull(reader.readLine());
+        }
+        if (null == name) {
+            return null;
+        }
+        Path version = new Path(windowPath, name);
+        return fs.exists(new Path(version, "_SUCCESS")) ? version : null;
+    }
+
+    /**
+     * 先写临时指针文件，再以rename OVERWRITE原子替换_CURRENT，读取方只会看到旧版本或新版本
+     *
+     * @throws IOException rename失败时抛出，快照不会被发布
+     */
+    private void publish(Configuration conf, FileSystem fs, Path windowPath, Path version) throws IOException {
+        Path pointer = new Path(windowPath, CURRENT_FILE);
+        Path tmp = new Path(windowPath, "_tmp" + CURRENT_FILE + "_" + version.getName());
+        try (FSDataOutputStream out = fs.create(tmp, true)) {
+            out.write(version.getName().getBytes(StandardCharsets.UTF_8));
+        }
+        FileContext.getFileContext(fs.getUri(), conf).rename(tmp, pointer, Options.Rename.OVERWRITE);
+        logger.info("==== 已发布快照版本:{} ====", version);
+    }
+
+    /**
+     * 扫描HBase表并按类型写入新的版本目录，发布前不会被读取
+     */
+    private void materialize(SparkSession session, String table, String family, Map<String, String> columns, Path path) {
+        long start = System.currentTimeMillis();
+        String fields = StringUtils.join(columns.keySet(), ",");
+        Map<String, String> options = new HashMap<String, String>(modelConfig.getOptions(table, family, fields));
+        options.remove(ModelConfig.HBASE_TABLE_WHERE_FIELDS);
+        List<Column> typed = new ArrayList<Column>();
+        typed.add(new Column(ROW));
+        columns.forEach((field, type) -> typed.add(new Column(field).cast(type).alias(field)));
+        session.read().format(modelConfig.getFormat()).options(options).load()
+                .select(typed.toArray(new Column[0]))
+                .write()
+                .mode(SaveMode.ErrorIfExists)
+                .parquet(path.toString());
+        logger.info("==== 已物化快照:{}，列:{}，耗时{}ms ====", path, columns, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 删除过期窗口的快照，当前窗口内的旧版本可能仍在被读取，随窗口一起过期
+     */
+    private void clean(FileSystem fs, Path tablePath) throws IOException {
+        List<String> windows = new ArrayList<String>();
+        for (FileStatus status : fs.listStatus(tablePath)) {
+            if (status.isDirectory() && status.getPath().getName().startsWith(PARTITION_PREFIX)) {
+                windows.add(status.getPath().getName());
+            }
+        }
+        Collections.sort(windows);
+        for (int i = 0; i < windows.size() - RETAIN_WINDOWS; i++) {
+            fs.delete(new Path(tablePath, windows.get(i)), true);
+            logger.info("==== 已删除过期快照:{}/{} ====", tablePath, windows.get(i));
+        }
+    }
+
+    /**
+     * 快照中是否已有全部字段且类型相同，类型按SparkSQL的类型名比较(如long与bigint相同)
+     *
+     * @param columns 快照中的<列, 类型>
+     * @param fields  需要的<字段, 类型>
+     * @return
+     */
+    static boolean sameTypes(Map<String, String> columns, Map<String, String> fields) {
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            String type = columns.get(field.getKey());
+            if (null == type || !type.equals(CatalystSqlParser.parseDataType(field.getValue()).simpleString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String window() {
+        String format = modelConfig.getSnapshotWindowFormat();
+        return new SimpleDateFormat(StringUtils.isEmpty(format) ? DEFAULT_WINDOW_FORMAT : format).format(new Date());
+    }
+
+    /**
+     * 解析查询字段
+     *
+     * @param selectFields 如memberId,orderAmount:double
+     * @return <字段, 类型>
+     */
+    static Map<String, String> parseFields(String selectFields) {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        for (String field : selectFields.split(",")) {
+            if (StringUtils.isBlank(field)) {
+                continue;
+            }
+            String[] nameType = field.trim().split(TYPE_SEPARATOR);
+            fields.put(nameType[0].trim(), nameType.length > 1 ? nameType[1].trim() : DEFAULT_TYPE);
+        }
+        return fields;
+    }
+
+    /**
+     * 把HBase数据源的条件字段转换为SparkSQL条件，可下推到Parquet
+     *
+     * @param whereFields 如finishTime[GE]1564588800,orderStatus[EQ]202
+     * @return 没有条件时返回null
+     */
+    static Column toCondition(String whereFields) {
+        Column condition = null;
+        for (CompiledRule.Predicate predicate : CompiledRule.parsePredicates(whereFields)) {
+            Column field = new Column(predicate.getField());
+            String value = predicate.getValue();
+            Column expr;
+            switch (predicate.getOp()) {
+                case EQ:
+                    expr = field.equalTo(value);
+                    break;
+                case NE:
+                    expr = field.notEqual(value);
+                    break;
+                case GT:
+                    expr = field.gt(value);
+                    break;
+                case LT:
+                    expr = field.lt(value);
+                    break;
+                case GE:
+                    expr = field.geq(value);
+                    break;
+                default:
+                    expr = field.leq(value);
+                    break;
+            }
+            condition = null == condition ? expr : condition.and(expr);
+        }
+        return condition;
+    }
+
+}
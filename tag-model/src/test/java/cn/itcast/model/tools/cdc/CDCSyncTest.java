@@ -0,0 +1,182 @@
+package cn.itcast.model.tools.cdc;
+
+import cn.itcast.model.models.ModelConfig;
+import cn.itcast.model.tools.mysql.ChangedUsers;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * CDC增量同步应用事件测试用例，Connection和Table由动态代理模拟，变更用户记录在内存中
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class CDCSyncTest {
+
+    private static final byte[] FAMILY = Bytes.toBytes("detail");
+    // <表, <RowKey, HBase中已有的用户ID>>
+    private Map<String, Map<String, String>> stored;
+    // <表, 批量写入的变更>
+    private Map<String, List<Row>> written;
+    // <表, 读取旧用户ID的RowKey>
+    private Map<String, List<String>> read;
+    // <表, 记录的变更用户>
+    private Map<String, Set<String>> recorded;
+    private CDCSync sync;
+
+    @Before
+    public void init() {
+        stored = new HashMap<String, Map<String, String>>();
+        written = new HashMap<String, List<Row>>();
+        read = new HashMap<String, List<String>>();
+        recorded = new HashMap<String, Set<String>>();
+        ChangedUsers changedUsers = new ChangedUsers(new ModelConfig()) {
+            @Override
+            public void record(String table, Collection<String> userIds, long changeTime) {
+                recorded.computeIfAbsent(table, k -> new HashSet<String>()).addAll(userIds);
+            }
+        };
+        sync = new CDCSync(null, connection(), changedUsers, 100);
+    }
+
+    private Connection connection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Connection.class}, (proxy, method, args) -> {
+                    if ("getTable".equals(method.getName())) {
+                        return table(((TableName) args[0]).getNameAsString());
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Table table(String name) {
+        return (Table) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Table.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "get":
+                            List<Get> gets = (List<Get>) args[0];
+                            Result[] results = new Result[gets.size()];
+                            for (int i = 0; i < gets.size(); i++) {
+                                String rowKey = Bytes.toString(gets.get(i).getRow());
+                                read.computeIfAbsent(name, k -> new ArrayList<String>()).add(rowKey);
+                                String user = stored.getOrDefault(name, Collections.<String, String>emptyMap()).get(rowKey);
+                                results[i] = null == user ? Result.create(Collections.<Cell>emptyList())
+                                        : Result.create(Collections.<Cell>singletonList(new KeyValue(Bytes.toBytes(rowKey),
+                                        FAMILY, Bytes.toBytes("memberId"), 1L, Bytes.toBytes(user))));
+                            }
+                            return results;
+                        case "batch":
+                            written.computeIfAbsent(name, k -> new ArrayList<Row>()).addAll((List<Row>) args[0]);
+                            return null;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static ChangeEvent event(String table, ChangeEvent.Type type, String... kvs) {
+        Map<String, String> data = new LinkedHashMap<String, String>();
+        for (int i = 0; i < kvs.length; i += 2) {
+            data.put(kvs[i], kvs[i + 1]);
+        }
+        ChangeEvent event = new ChangeEvent();
+        event.setTable(table);
+        event.setType(type);
+        event.setData(data);
+        return event;
+    }
+
+    private static String value(Mutation mutation, String qualifier) {
+        List<Cell> cells = mutation.get(FAMILY, Bytes.toBytes(qualifier));
+        return cells.isEmpty() ? null : Bytes.toString(cells.get(0).getValueArray(), cells.get(0).getValueOffset(),
+                cells.get(0).getValueLength());
+    }
+
+    @Test
+    public void keepsLastChangePerRow() throws Exception {
+        sync.apply(Arrays.asList(
+                event("tbl_goods", ChangeEvent.Type.INSERT, "id", "1", "name", "a"),
+                event("tbl_goods", ChangeEvent.Type.UPDATE, "id", "2", "name", "b"),
+                event("tbl_goods", ChangeEvent.Type.UPDATE, "id", "1", "name", "c")));
+        List<Row> rows = written.get("tbl_goods");
+        assertEquals(2, rows.size());
+        assertEquals("1", Bytes.toString(rows.get(0).getRow()));
+        assertEquals("c", value((Put) rows.get(0), "name"));
+        assertEquals("b", value((Put) rows.get(1), "name"));
+        // 没有用户ID列的表不读取旧用户也不记录变更用户
+        assertFalse(read.containsKey("tbl_goods"));
+        assertFalse(recorded.containsKey("tbl_goods"));
+    }
+
+    @Test
+    public void deletesNullColumnsAtomically() throws Exception {
+        sync.apply(Collections.singletonList(event("tbl_goods", ChangeEvent.Type.UPDATE, "id", "1", "name", "a", "price", null)));
+        List<Row> rows = written.get("tbl_goods");
+        assertEquals(1, rows.size());
+        assertTrue(rows.get(0) instanceof RowMutations);
+        List<Mutation> mutations = ((RowMutations) rows.get(0)).getMutations();
+        assertEquals(2, mutations.size());
+        assertTrue(mutations.get(0) instanceof Put);
+        assertEquals("a", value(mutations.get(0), "name"));
+        assertNull(value(mutations.get(0), "price"));
+        assertTrue(mutations.get(1) instanceof Delete);
+        assertTrue(mutations.get(1).getFamilyCellMap().get(FAMILY).stream()
+                .anyMatch(cell -> "price".equals(Bytes.toString(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength()))));
+    }
+
+    @Test
+    public void deleteEvent() throws Exception {
+        sync.apply(Collections.singletonList(event("tbl_goods", ChangeEvent.Type.DELETE, "id", "1", "name", "a")));
+        List<Row> rows = written.get("tbl_goods");
+        assertEquals(1, rows.size());
+        assertTrue(rows.get(0) instanceof Delete);
+        assertTrue(((Delete) rows.get(0)).isEmpty());
+    }
+
+    @Test
+    public void recordsOldAndNewUsers() throws Exception {
+        Map<String, String> orders = new HashMap<String, String>();
+        orders.put("1", "100");
+        orders.put("2", "200");
+        orders.put("3", "300");
+        stored.put("tbl_orders", orders);
+        sync.apply(Arrays.asList(
+                // 订单改到另一个会员
+                event("tbl_orders", ChangeEvent.Type.UPDATE, "id", "1", "memberId", "101"),
+                // 删除事件中没有会员ID时按HBase中的会员ID记录
+                event("tbl_orders", ChangeEvent.Type.DELETE, "id", "2"),
+                event("tbl_orders", ChangeEvent.Type.INSERT, "id", "4", "memberId", "400")));
+        assertEquals(new HashSet<String>(Arrays.asList("100", "101", "200", "400")), recorded.get("tbl_orders"));
+        // 新增的行不读取旧用户
+        assertEquals(Arrays.asList("1", "2"), read.get("tbl_orders"));
+    }
+
+    @Test
+    public void rowKeyIsUserId() throws Exception {
+        sync.apply(Collections.singletonList(event("tbl_users", ChangeEvent.Type.UPDATE, "id", "7", "username", "u7")));
+        assertEquals(Collections.singleton("7"), recorded.get("tbl_users"));
+        // RowKey就是用户ID时不需要读取旧用户
+        assertFalse(read.containsKey("tbl_users"));
+    }
+
+}
@@ -0,0 +1,106 @@
+package cn.itcast.model.tools.hbase;
+
+import cn.itcast.model.beans.BasicTagBean;
+import cn.itcast.model.models.ModelConfig;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 画像表标签合并测试用例：同一四级标签下的五级标签替换，tagId为0时移除
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ProfileWriterTest {
+
+    private static BasicTagBean tag(long id, int level, long pid) {
+        BasicTagBean tag = new BasicTagBean();
+        tag.setId(id);
+        tag.setLevel(level);
+        tag.setPid(pid);
+        return tag;
+    }
+
+    /**
+     * 性别(8)：男50、女51；职业(13)：学生60、公务员61
+     */
+    private static ProfileWriter writer() {
+        List<BasicTagBean> tags = Arrays.asList(tag(8, 4, 3), tag(50, 5, 8), tag(51, 5, 8),
+                tag(13, 4, 3), tag(60, 5, 13), tag(61, 5, 13));
+        return new ProfileWriter(new ModelConfig(), tags);
+    }
+
+    @Test
+    public void replacesSiblings() {
+        byte[] exist = TagSet.of(50L, 60L, 99L).encode();
+        TagSet merged = ProfileWriter.merge(exist, TagSet.of(50L, 51L), TagSet.of(51L));
+        // 其他四级标签和其他模型的标签不变
+        assertArrayEquals(new long[]{51L, 60L, 99L}, merged.toArray());
+    }
+
+    @Test
+    public void unchangedReturnsNull() {
+        byte[] exist = TagSet.of(50L, 60L).encode();
+        assertNull(ProfileWriter.merge(exist, TagSet.of(50L, 51L), TagSet.of(50L)));
+    }
+
+    @Test
+    public void unchangedLegacyFormatIsRewritten() {
+        // 旧的逗号分隔格式即使标签没有变化也要改写为二进制格式
+        byte[] exist = Bytes.toBytes("50,60");
+        TagSet merged = ProfileWriter.merge(exist, TagSet.of(50L, 51L), TagSet.of(50L));
+        assertArrayEquals(new long[]{50L, 60L}, merged.toArray());
+    }
+
+    @Test
+    public void noTagClearsSiblings() {
+        // tagId为0的用户本次计算没有标签，只移除同级标签
+        byte[] exist = TagSet.of(51L, 60L, 99L).encode();
+        TagSet merged = ProfileWriter.merge(exist, TagSet.of(50L, 51L, 60L, 61L), TagSet.EMPTY);
+        assertArrayEquals(new long[]{99L}, merged.toArray());
+    }
+
+    @Test
+    public void mergeIntoEmptyProfile() {
+        TagSet merged = ProfileWriter.merge(null, TagSet.of(50L, 51L), TagSet.of(50L));
+        assertArrayEquals(new long[]{50L}, merged.toArray());
+    }
+
+    @Test
+    public void replacesOnlyGroupsWithValue() {
+        ProfileWriter writer = writer();
+        // 只有性别有结果时只替换性别下的五级标签，职业标签保留
+        assertEquals(Collections.singleton(8L), writer.groupsOf(Collections.singleton(51L)));
+        TagSet siblings = writer.siblingsOf(writer.groupsOf(Collections.singleton(51L)));
+        assertArrayEquals(new long[]{50L, 51L}, siblings.toArray());
+        TagSet merged = ProfileWriter.merge(TagSet.of(50L, 60L).encode(), siblings, TagSet.of(51L));
+        assertArrayEquals(new long[]{51L, 60L}, merged.toArray());
+    }
+
+    @Test
+    public void noTagReplacesAllGroups() {
+        ProfileWriter writer = writer();
+        assertEquals(new HashSet<Long>(Arrays.asList(8L, 13L)), writer.groupsOf(Collections.<Long>emptySet()));
+        TagSet siblings = writer.siblingsOf(writer.groupsOf(Collections.<Long>emptySet()));
+        assertArrayEquals(new long[]{50L, 51L, 60L, 61L}, siblings.toArray());
+    }
+
+    @Test
+    public void mergeTagsAreOneGroup() {
+        HashMap<Long, String> versions = new HashMap<Long, String>();
+        versions.put(300L, "a");
+        versions.put(301L, "b");
+        ProfileWriter writer = ProfileWriter.forMergeTags(new ModelConfig(), versions, Collections.singleton(302L));
+        TagSet siblings = writer.siblingsOf(writer.groupsOf(Collections.singleton(300L)));
+        // 重新计算的和已下线的组合标签都被替换
+        assertArrayEquals(new long[]{300L, 301L, 302L}, siblings.toArray());
+    }
+
+}
@@ -0,0 +1,174 @@
+package cn.itcast.model.tools.hbase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+
+/**
+ * 流式扫描游标测试用例，Table和ResultScanner由动态代理模拟
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class ScanCursorTest {
+
+    private static final byte[] FAMILY = Bytes.toBytes("user");
+    private List<Result> results;
+    private Scan scannedWith;
+    private int scannerNextCalls;
+    private boolean scannerClosed;
+    private boolean tableClosed;
+
+    @Before
+    public void init() {
+        results = new ArrayList<Result>();
+        for (int i = 1; i <= 5; i++) {
+            results.add(row("u" + i, "tagIds", String.valueOf(i)));
+        }
+        scannedWith = null;
+        scannerNextCalls = 0;
+        scannerClosed = false;
+        tableClosed = false;
+    }
+
+    private static Result row(String rowKey, String qualifier, String value) {
+        Cell cell = new KeyValue(Bytes.toBytes(rowKey), FAMILY, Bytes.toBytes(qualifier), 1L, Bytes.toBytes(value));
+        return Result.create(Collections.singletonList(cell));
+    }
+
+    private Table table() {
+        Iterator<Result> iterator = results.iterator();
+        ResultScanner scanner = (ResultScanner) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{ResultScanner.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            scannerNextCalls++;
+                            return iterator.hasNext() ? iterator.next() : null;
+                        case "close":
+                            scannerClosed = true;
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        return (Table) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Table.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getScanner":
+                            scannedWith = (Scan) args[0];
+                            return scanner;
+                        case "close":
+                            tableClosed = true;
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void iterateAll() throws IOException {
+        List<String> rowKeys = new ArrayList<String>();
+        try (ScanCursor cursor = new ScanCursor(table(), new Scan(), ScanCursor.NO_LIMIT)) {
+            while (cursor.hasNext()) {
+                RowView row = cursor.next();
+                rowKeys.add(row.getRowKey() + "=" + row.get("tagIds"));
+            }
+            assertEquals(5, cursor.getCount());
+            assertFalse(cursor.hasNext());
+        }
+        assertEquals(5, rowKeys.size());
+        assertEquals("u1=1", rowKeys.get(0));
+        assertEquals("u5=5", rowKeys.get(4));
+        assertTrue(scannerClosed);
+        assertTrue(tableClosed);
+    }
+
+    @Test
+    public void limit() throws IOException {
+        try (ScanCursor cursor = new ScanCursor(table(), new Scan(), 2)) {
+            assertTrue(cursor.advance());
+            assertTrue(cursor.advance());
+            assertEquals("u2", cursor.current().getRowKey());
+            assertFalse(cursor.advance());
+            assertFalse(cursor.hasNext());
+            assertEquals(2, cursor.getCount());
+        }
+        // 达到limit后不再从扫描器拉取
+        assertEquals(2, scannerNextCalls);
+    }
+
+    @Test
+    public void scanTuning() throws IOException {
+        new ScanCursor(table(), new Scan(), 10).close();
+        assertEquals(10, scannedWith.getCaching());
+        assertFalse(scannedWith.getCacheBlocks());
+        new ScanCursor(table(), new Scan(), ScanCursor.NO_LIMIT).close();
+        assertEquals(ScanCursor.DEFAULT_CACHING, scannedWith.getCaching());
+        // 已设置的caching保持不变
+        new ScanCursor(table(), new Scan().setCaching(50), ScanCursor.NO_LIMIT).close();
+        assertEquals(50, scannedWith.getCaching());
+    }
+
+    @Test
+    public void hasNextDoesNotAdvance() throws IOException {
+        try (ScanCursor cursor = new ScanCursor(table(), new Scan(), ScanCursor.NO_LIMIT)) {
+            assertTrue(cursor.hasNext());
+            assertTrue(cursor.hasNext());
+            assertEquals(0, cursor.getCount());
+            assertEquals("u1", cursor.next().getRowKey());
+        }
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextAfterEnd() throws IOException {
+        results.clear();
+        try (ScanCursor cursor = new ScanCursor(table(), new Scan(), ScanCursor.NO_LIMIT)) {
+            cursor.next();
+        }
+    }
+
+    @Test
+    public void forEachStopsWhenVisitorReturnsFalse() throws IOException {
+        List<String> rowKeys = new ArrayList<String>();
+        long count = ScanCursor.forEach(table(), new Scan(), ScanCursor.NO_LIMIT, row -> {
+            rowKeys.add(row.getRowKey());
+            return rowKeys.size() < 3;
+        });
+        assertEquals(3, count);
+        assertEquals(3, rowKeys.size());
+        assertTrue(scannerClosed);
+        assertTrue(tableClosed);
+    }
+
+    @Test
+    public void rowViewIsReused() throws IOException {
+        try (ScanCursor cursor = new ScanCursor(table(), new Scan(), ScanCursor.NO_LIMIT)) {
+            RowView first = cursor.next();
+            String firstTagIds = first.toMap().get("tagIds");
+            RowView second = cursor.next();
+            assertSame(first, second);
+            assertEquals("1", firstTagIds);
+            assertEquals("2", second.get("tagIds"));
+            assertNull(second.get("mergeTagIds"));
+            assertEquals("user", second.getFamily());
+            assertEquals(1L, second.getTimestamp());
+        }
+    }
+
+}
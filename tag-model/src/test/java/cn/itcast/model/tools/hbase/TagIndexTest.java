@@ -0,0 +1,254 @@
+package cn.itcast.model.tools.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * 标签倒排索引测试用例：位图分片写入和拼接、用户序号分配和复用，Connection和Table由动态代理模拟为内存表
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class TagIndexTest {
+
+    private static final byte[] FAMILY = Bytes.toBytes("i");
+    // 为单元格开销预留的字节数，与TagIndex一致
+    private static final int CELL_OVERHEAD = 4096;
+    private static final int SHARD_SIZE = 16;
+    // <RowKey, <列名, 值>>
+    private Map<String, NavigableMap<byte[], byte[]>> rows;
+    // 申请序号时模拟其他进程抢先写入
+    private Runnable onIncrement;
+    private TagIndex tagIndex;
+
+    @Before
+    public void init() {
+        rows = new HashMap<String, NavigableMap<byte[], byte[]>>();
+        onIncrement = () -> {
+        };
+        tagIndex = new TagIndex(connection(CELL_OVERHEAD + SHARD_SIZE), "tbl_profile_tag_index", "i");
+    }
+
+    private Connection connection(int maxSize) {
+        Configuration conf = new Configuration(false);
+        conf.setInt("hbase.client.keyvalue.maxsize", maxSize);
+        Table table = table();
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getConfiguration":
+                            return conf;
+                        case "getTable":
+                            return table;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Table table() {
+        return (Table) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Table.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "get":
+                            if (args[0] instanceof Get) {
+                                return get((Get) args[0]);
+                            }
+                            List<Get> gets = (List<Get>) args[0];
+                            Result[] results = new Result[gets.size()];
+                            for (int i = 0; i < gets.size(); i++) {
+                                results[i] = get(gets.get(i));
+                            }
+                            return results;
+                        case "put":
+                            if (args[0] instanceof Put) {
+                                put((Put) args[0]);
+                            } else {
+                                ((List<Put>) args[0]).forEach(this::put);
+                            }
+                            return null;
+                        case "delete":
+                            ((List<Delete>) args[0]).forEach(delete -> rows.remove(Bytes.toString(delete.getRow())));
+                            return null;
+                        case "incrementColumnValue":
+                            onIncrement.run();
+                            NavigableMap<byte[], byte[]> columns = row(Bytes.toString((byte[]) args[0]));
+                            byte[] current = columns.get((byte[]) args[2]);
+                            long value = (null == current ? 0L : Bytes.toLong(current)) + (Long) args[3];
+                            columns.put((byte[]) args[2], Bytes.toBytes(value));
+                            return value;
+                        case "checkAndMutate":
+                            return checkAndMutate(Bytes.toString((byte[]) args[0]));
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * 只支持ifNotExists().thenPut(put)
+     */
+    private Table.CheckAndMutateBuilder checkAndMutate(String rowKey) {
+        byte[][] qualifier = new byte[1][];
+        return (Table.CheckAndMutateBuilder) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Table.CheckAndMutateBuilder.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "qualifier":
+                            qualifier[0] = (byte[]) args[0];
+                            return proxy;
+                        case "ifNotExists":
+                            return proxy;
+                        case "thenPut":
+                            if (row(rowKey).containsKey(qualifier[0])) {
+                                return false;
+                            }
+                            put((Put) args[0]);
+                            return true;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private NavigableMap<byte[], byte[]> row(String rowKey) {
+        return rows.computeIfAbsent(rowKey, k -> new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR));
+    }
+
+    private Result get(Get get) {
+        NavigableMap<byte[], byte[]> columns = rows.get(Bytes.toString(get.getRow()));
+        List<Cell> cells = new ArrayList<Cell>();
+        if (null != columns) {
+            // 列按名称排序，Result按二分查找读取
+            columns.forEach((qualifier, value) -> cells.add(new KeyValue(get.getRow(), FAMILY, qualifier, 1L, value)));
+        }
+        return Result.create(cells);
+    }
+
+    private void put(Put put) {
+        NavigableMap<byte[], byte[]> columns = row(Bytes.toString(put.getRow()));
+        for (List<Cell> cells : put.getFamilyCellMap().values()) {
+            for (Cell cell : cells) {
+                columns.put(CellUtil.cloneQualifier(cell), CellUtil.cloneValue(cell));
+            }
+        }
+    }
+
+    private static RoaringBitmap sparse(int count) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int i = 0; i < count; i++) {
+            bitmap.add(i * 3);
+        }
+        return bitmap;
+    }
+
+    @Test
+    public void splitsAndJoinsShards() throws IOException {
+        RoaringBitmap bitmap = sparse(100);
+        tagIndex.putBitmap(50L, bitmap);
+        NavigableMap<byte[], byte[]> columns = rows.get("t_50");
+        int shards = Bytes.toInt(columns.get(Bytes.toBytes("shards")));
+        int length = TagIndex.serialize(bitmap).length;
+        assertEquals((length + SHARD_SIZE - 1) / SHARD_SIZE, shards);
+        assertTrue(shards > 1);
+        for (int i = 1; i < shards; i++) {
+            assertTrue(columns.get(Bytes.toBytes("bitmap_" + i)).length <= SHARD_SIZE);
+        }
+        assertEquals(100L, Bytes.toLong(columns.get(Bytes.toBytes("cardinality"))));
+        assertEquals(bitmap, tagIndex.getBitmap(50L));
+        assertEquals(bitmap, tagIndex.getBitmaps(Arrays.asList(50L, 51L)).get(50L));
+        assertFalse(tagIndex.getBitmaps(Arrays.asList(50L, 51L)).containsKey(51L));
+    }
+
+    @Test
+    public void staleShardsAreIgnored() throws IOException {
+        tagIndex.putBitmap(50L, sparse(100));
+        RoaringBitmap small = RoaringBitmap.bitmapOf(1, 2);
+        tagIndex.putBitmap(50L, small);
+        // 旧的多余分片仍在，但按shards只读取新的分片
+        assertTrue(rows.get("t_50").containsKey(Bytes.toBytes("bitmap_1")));
+        assertEquals(1, Bytes.toInt(rows.get("t_50").get(Bytes.toBytes("shards"))));
+        assertEquals(small, tagIndex.getBitmap(50L));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingShardFails() throws IOException {
+        tagIndex.putBitmap(50L, sparse(100));
+        rows.get("t_50").remove(Bytes.toBytes("bitmap_1"));
+        tagIndex.getBitmap(50L);
+    }
+
+    @Test
+    public void unlimitedCellSizeWritesOneShard() throws IOException {
+        TagIndex unlimited = new TagIndex(connection(0), "tbl_profile_tag_index", "i");
+        RoaringBitmap bitmap = sparse(100);
+        unlimited.putBitmap(50L, bitmap);
+        assertEquals(1, Bytes.toInt(rows.get("t_50").get(Bytes.toBytes("shards"))));
+        assertEquals(bitmap, unlimited.getBitmap(50L));
+    }
+
+    @Test
+    public void versionedBitmap() throws IOException {
+        TagIndex mergeTagIndex = TagIndex.forMergeTags(connection(0), "tbl_profile_tag_index", "i");
+        mergeTagIndex.putBitmap(50L, RoaringBitmap.bitmapOf(1), "v1");
+        assertTrue(rows.containsKey("m_50"));
+        assertEquals(RoaringBitmap.bitmapOf(1), mergeTagIndex.getBitmap(50L, "v1"));
+        assertNull(mergeTagIndex.getBitmap(50L, "v2"));
+        // 基础标签的同名ID不受影响
+        assertNull(tagIndex.getBitmap(50L));
+    }
+
+    @Test
+    public void reusesOrdinals() throws IOException {
+        Map<String, Integer> first = tagIndex.getOrCreateOrdinals(Arrays.asList("u_1", "u_2", "u_1"));
+        assertEquals(2, first.size());
+        assertEquals(Integer.valueOf(0), first.get("u_1"));
+        assertEquals(Integer.valueOf(1), first.get("u_2"));
+        Map<String, Integer> second = tagIndex.getOrCreateOrdinals(Arrays.asList("u_2", "u_3"));
+        assertEquals(Integer.valueOf(1), second.get("u_2"));
+        assertEquals(Integer.valueOf(2), second.get("u_3"));
+        // 已有的用户不再申请序号
+        assertEquals(3L, Bytes.toLong(rows.get("seq").get(Bytes.toBytes("ordinal"))));
+        assertEquals(second, tagIndex.getOrCreateOrdinals(Arrays.asList("u_2", "u_3")));
+        assertEquals(3L, Bytes.toLong(rows.get("seq").get(Bytes.toBytes("ordinal"))));
+        assertEquals(Arrays.asList("u_3", "u_1"), tagIndex.getRowKeys(new int[]{2, 0}));
+    }
+
+    @Test
+    public void concurrentlyAssignedOrdinalWins() throws IOException {
+        // 申请序号后、写入映射前，其他进程已为u_1分配了序号7
+        onIncrement = () -> row("r_u_1").put(Bytes.toBytes("ordinal"), Bytes.toBytes(7));
+        Map<String, Integer> ordinals = tagIndex.getOrCreateOrdinals(Arrays.asList("u_1", "u_2"));
+        assertEquals(Integer.valueOf(7), ordinals.get("u_1"));
+        assertEquals(Integer.valueOf(1), ordinals.get("u_2"));
+    }
+
+    @Test
+    public void pagesByOrdinal() throws IOException {
+        tagIndex.getOrCreateOrdinals(Arrays.asList("u_1", "u_2", "u_3", "u_4"));
+        RoaringBitmap users = RoaringBitmap.bitmapOf(0, 2, 3);
+        assertEquals(Arrays.asList("u_1", "u_3"), tagIndex.page(users, 0, 2));
+        assertEquals(Collections.singletonList("u_4"), tagIndex.page(users, 2, 2));
+        assertTrue(tagIndex.page(users, 3, 2).isEmpty());
+    }
+
+}
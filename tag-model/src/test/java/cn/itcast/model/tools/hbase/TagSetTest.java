@@ -0,0 +1,82 @@
+package cn.itcast.model.tools.hbase;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 画像表标签集合编解码测试用例
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class TagSetTest {
+
+    @Test
+    public void encodeAndDecode() {
+        // 跨越1、2、3字节varint的差值
+        TagSet tagSet = TagSet.of(1L, 127L, 128L, 16511L, 3000000L, Long.MAX_VALUE);
+        TagSet decoded = TagSet.decode(tagSet.encode());
+        assertEquals(tagSet, decoded);
+        assertArrayEquals(new long[]{1L, 127L, 128L, 16511L, 3000000L, Long.MAX_VALUE}, decoded.toArray());
+    }
+
+    @Test
+    public void encodeSortsAndDistincts() {
+        TagSet tagSet = TagSet.of(15L, 8L, 15L, 9L);
+        assertArrayEquals(new long[]{8L, 9L, 15L}, tagSet.toArray());
+        // 格式标记 + 个数 + 差值
+        assertArrayEquals(new byte[]{0x00, 3, 8, 1, 6}, tagSet.encode());
+    }
+
+    @Test
+    public void encodeEmpty() {
+        byte[] bytes = TagSet.EMPTY.encode();
+        assertArrayEquals(new byte[]{0x00, 0}, bytes);
+        assertTrue(TagSet.isEncoded(bytes));
+        assertSame(TagSet.EMPTY, TagSet.decode(bytes));
+    }
+
+    @Test
+    public void isEncoded() {
+        assertTrue(TagSet.isEncoded(TagSet.of(8L).encode()));
+        // 旧的逗号分隔格式首字节为数字字符
+        assertFalse(TagSet.isEncoded(Bytes.toBytes("8,9,15")));
+        assertFalse(TagSet.isEncoded(new byte[0]));
+        assertFalse(TagSet.isEncoded(null));
+    }
+
+    @Test
+    public void decodeLegacy() {
+        assertEquals(TagSet.of(8L, 9L, 15L), TagSet.decode(Bytes.toBytes("15, 8,,9")));
+        assertSame(TagSet.EMPTY, TagSet.decode(Bytes.toBytes(" ")));
+        assertSame(TagSet.EMPTY, TagSet.decode(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeTruncated() {
+        byte[] bytes = TagSet.of(8L, 300L).encode();
+        TagSet.decode(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ofNonPositive() {
+        TagSet.of(8L, 0L);
+    }
+
+    @Test
+    public void unionRemoveReplace() {
+        TagSet tagSet = TagSet.of(8L, 9L, 15L);
+        assertEquals(TagSet.of(8L, 9L, 10L, 15L, 20L), tagSet.union(TagSet.of(10L, 15L, 20L)));
+        assertEquals(TagSet.of(8L), tagSet.remove(TagSet.of(9L, 15L, 30L)));
+        assertSame(tagSet, tagSet.remove(TagSet.of(1L, 30L)));
+        // 四级标签下的五级标签9、10、11替换为11
+        assertEquals(TagSet.of(8L, 11L, 15L), tagSet.replace(TagSet.of(9L, 10L, 11L), TagSet.of(11L)));
+        assertTrue(tagSet.contains(15L));
+        assertFalse(tagSet.contains(10L));
+        assertEquals("8,9,15", tagSet.toString());
+    }
+
+}
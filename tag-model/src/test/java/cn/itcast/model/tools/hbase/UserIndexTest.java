@@ -0,0 +1,65 @@
+package cn.itcast.model.tools.hbase;
+
+import cn.itcast.model.tools.hbase.UserIndex.IdType;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用户二级索引号码归一化和RowKey测试用例
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class UserIndexTest {
+
+    @Test
+    public void normalizePhone() {
+        assertEquals("13812345678", UserIndex.normalize(IdType.PHONE, " 138-1234-5678 "));
+        // 去掉86国家码
+        assertEquals("13812345678", UserIndex.normalize(IdType.PHONE, "+86 138 1234 5678"));
+        assertEquals("13812345678", UserIndex.normalize(IdType.PHONE, "8613812345678"));
+        // 不是13位时不去掉开头的86
+        assertEquals("8612345678", UserIndex.normalize(IdType.PHONE, "8612345678"));
+    }
+
+    @Test
+    public void normalizeEmail() {
+        assertEquals("mengyao@itcast.cn", UserIndex.normalize(IdType.EMAIL, " MengYao@ITCAST.cn "));
+    }
+
+    @Test
+    public void normalizeQQ() {
+        assertEquals("123456789", UserIndex.normalize(IdType.QQ, "QQ:123 456 789"));
+    }
+
+    @Test
+    public void normalizeIdCard() {
+        assertEquals("11010119900307123X", UserIndex.normalize(IdType.ID_CARD, "11010119900307123x "));
+    }
+
+    @Test
+    public void normalizeBlank() {
+        for (IdType type : IdType.values()) {
+            assertEquals("", UserIndex.normalize(type, null));
+            assertEquals("", UserIndex.normalize(type, "  "));
+        }
+    }
+
+    @Test
+    public void rowKeyWithPrefix() {
+        assertEquals("p_13812345678", Bytes.toString(UserIndex.rowKey(IdType.PHONE, "+86 138 1234 5678")));
+        assertEquals("e_mengyao@itcast.cn", Bytes.toString(UserIndex.rowKey(IdType.EMAIL, "MengYao@itcast.cn")));
+        assertEquals("q_123456789", Bytes.toString(UserIndex.rowKey(IdType.QQ, "123456789")));
+        assertEquals("c_11010119900307123X", Bytes.toString(UserIndex.rowKey(IdType.ID_CARD, "11010119900307123x")));
+    }
+
+    @Test
+    public void rowKeyNullWhenEmpty() {
+        assertNull(UserIndex.rowKey(IdType.PHONE, null));
+        assertNull(UserIndex.rowKey(IdType.EMAIL, " "));
+        // 归一化后没有数字
+        assertNull(UserIndex.rowKey(IdType.QQ, "none"));
+    }
+
+}
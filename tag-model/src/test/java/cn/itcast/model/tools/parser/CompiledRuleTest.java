@@ -0,0 +1,90 @@
+package cn.itcast.model.tools.parser;
+
+import cn.itcast.model.tools.parser.CompiledRule.Op;
+import cn.itcast.model.tools.parser.CompiledRule.Predicate;
+import cn.itcast.model.tools.parser.CompiledRule.SourceType;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 编译后的标签规则测试用例
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class CompiledRuleTest {
+
+    private static final String HBASE_RULE = "inType=hbase\n"
+            + "zkHosts=bd001\n"
+            + "zkPort=2181\n"
+            + "hbaseTable=tbl_orders\n"
+            + "family=detail\n"
+            + "selectFieldNames=memberId, orderAmount,,finishTime\n"
+            + "whereFieldNames=finishTime[ge]1564588800,orderStatus[EQ]202";
+
+    @Test
+    public void compileHBase() {
+        CompiledRule rule = CompiledRule.compile(HBASE_RULE);
+        assertEquals(SourceType.HBASE, rule.getType());
+        assertEquals("tbl_orders", rule.getTable());
+        assertEquals("detail", rule.getFamily());
+        assertEquals("2181", rule.get("zkPort"));
+        assertEquals(Arrays.asList("memberId", "orderAmount", "finishTime"), rule.getProjections());
+        List<Predicate> predicates = rule.getPredicates();
+        assertEquals(2, predicates.size());
+        assertEquals("finishTime", predicates.get(0).getField());
+        assertEquals(Op.GE, predicates.get(0).getOp());
+        assertEquals("1564588800", predicates.get(0).getValue());
+        assertEquals("orderStatus[EQ]202", predicates.get(1).toString());
+    }
+
+    @Test
+    public void compileCached() {
+        assertSame(CompiledRule.compile(HBASE_RULE), CompiledRule.compile(HBASE_RULE));
+        assertSame(CompiledRule.parsePredicates("gender[EQ]1"), CompiledRule.parsePredicates("gender[EQ]1"));
+    }
+
+    @Test
+    public void compileKeepsEqualsInValue() {
+        CompiledRule rule = CompiledRule.compile("inType=mysql\nurl=jdbc:mysql://bd001:3306/tags?useUnicode=true\ndbTable=tbl_users");
+        assertEquals(SourceType.MYSQL, rule.getType());
+        assertEquals("tbl_users", rule.getTable());
+        assertEquals("jdbc:mysql://bd001:3306/tags?useUnicode=true", rule.get("url"));
+        // 只有HBase和快照数据源解析条件
+        assertTrue(rule.getPredicates().isEmpty());
+    }
+
+    @Test
+    public void compileWithoutType() {
+        assertNull(CompiledRule.compile(null));
+        assertNull(CompiledRule.compile("hbaseTable=tbl_users"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compileUnsupportedType() {
+        CompiledRule.compile("inType=kafka\ntopic=tags");
+    }
+
+    @Test
+    public void opOf() {
+        assertEquals(Op.EQ, Op.of("eq"));
+        assertEquals(Op.LE, Op.of(" LE "));
+        for (Op op : Op.values()) {
+            assertEquals(op, Op.of(op.name().toLowerCase()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void opOfUnsupported() {
+        Op.of("LIKE");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseUnsupportedPredicate() {
+        CompiledRule.parsePredicates("gender[IN]1");
+    }
+
+}
@@ -0,0 +1,118 @@
+package cn.itcast.model.tools.parser;
+
+import cn.itcast.model.tools.hbase.TagSet;
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 组合标签表达式测试用例
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class TagExpressionTest {
+
+    @Test
+    public void parseOrBeforeAnd() {
+        assertEquals("((97 or 98) and (132 or 133) and 214)",
+                TagExpression.parse("97 or 98 and 132 or 133 and 214").toString());
+        assertEquals("((8 and 9) or 10)", TagExpression.parse("(8 AND 9) OR 10").toString());
+        // 末尾多余的操作符忽略
+        assertEquals("(8 and 9)", TagExpression.parse("8 and 9 and").toString());
+        assertEquals("8", TagExpression.parse(" 8 ").toString());
+    }
+
+    @Test
+    public void parseInvalid() {
+        for (String formula : Arrays.asList("", "and", "8 and (9", "8 9", "8 and x", "8 ) 9")) {
+            try {
+                TagExpression.parse(formula);
+                fail("应该解析失败：" + formula);
+            } catch (IllegalArgumentException e) {
+                // 预期的异常
+            }
+        }
+    }
+
+    @Test
+    public void ofConditions() {
+        TagExpression expression = TagExpression.of(Arrays.asList(8L, 9L, 10L), Arrays.asList("or", "and", null));
+        assertEquals("((8 or 9) and 10)", expression.toString());
+        assertEquals(Arrays.asList(8L, 9L, 10L), Arrays.asList(expression.getTagIds().toArray()));
+    }
+
+    @Test
+    public void level5IdsAndExpand() {
+        // 1 -> 2 -> 3 -> (8, 9)，10为另一个四级标签下的五级标签
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        parents.put(1L, -1L);
+        parents.put(2L, 1L);
+        parents.put(3L, 2L);
+        parents.put(4L, 2L);
+        parents.put(9L, 3L);
+        parents.put(8L, 3L);
+        parents.put(10L, 4L);
+        Map<Long, List<Long>> level5Ids = TagExpression.level5Ids(parents, Arrays.asList(9L, 8L, 10L));
+        assertEquals(Arrays.asList(8L, 9L), level5Ids.get(3L));
+        assertEquals(Arrays.asList(8L, 9L, 10L), level5Ids.get(1L));
+        assertEquals(Collections.singletonList(8L), level5Ids.get(8L));
+        assertFalse(level5Ids.containsKey(-1L));
+
+        assertEquals("((8 or 9) and 10)", TagExpression.parse("3 and 10").expand(level5Ids).toString());
+        // 没有五级子孙的标签保持不变
+        assertEquals("(99 or 10)", TagExpression.parse("99 or 4").expand(level5Ids).toString());
+    }
+
+    @Test
+    public void matches() {
+        TagExpression expression = TagExpression.parse("8 or 9 and 10");
+        assertTrue(expression.matches(TagSet.of(8L, 10L)::contains));
+        assertTrue(expression.matches(TagSet.of(9L, 10L)::contains));
+        assertFalse(expression.matches(TagSet.of(8L, 9L)::contains));
+        assertFalse(expression.matches(TagSet.EMPTY::contains));
+    }
+
+    @Test
+    public void optimize() {
+        Map<Long, Long> cardinalities = new HashMap<Long, Long>();
+        cardinalities.put(8L, 100L);
+        cardinalities.put(9L, 5L);
+        cardinalities.put(10L, 50L);
+        // 合并嵌套的交集并去重，按用户数从小到大排序
+        TagExpression optimized = TagExpression.parse("(8 and 9) and 8 and 10").optimize(cardinalities);
+        assertEquals("(9 and 10 and 8)", optimized.toString());
+        assertEquals(5L, optimized.estimate(cardinalities));
+        assertEquals(155L, TagExpression.parse("8 or 9 or 10 or 11").estimate(cardinalities));
+    }
+
+    @Test
+    public void evaluate() {
+        Map<Long, RoaringBitmap> bitmaps = new HashMap<Long, RoaringBitmap>();
+        bitmaps.put(8L, RoaringBitmap.bitmapOf(1, 2, 3));
+        bitmaps.put(9L, RoaringBitmap.bitmapOf(2, 3, 4));
+        bitmaps.put(10L, RoaringBitmap.bitmapOf(3, 5));
+        assertEquals(RoaringBitmap.bitmapOf(2, 3), TagExpression.parse("8 and 9 or 10").evaluate(bitmaps));
+        assertEquals(RoaringBitmap.bitmapOf(3), TagExpression.parse("8 and 9 and 10").evaluate(bitmaps));
+        // 没有位图的标签视为空位图
+        assertTrue(TagExpression.parse("8 and 11").evaluate(bitmaps).isEmpty());
+        // 输入位图不被修改
+        assertEquals(RoaringBitmap.bitmapOf(1, 2, 3), bitmaps.get(8L));
+        assertEquals(RoaringBitmap.bitmapOf(2, 3, 4), bitmaps.get(9L));
+        assertEquals(RoaringBitmap.bitmapOf(3, 5), bitmaps.get(10L));
+    }
+
+    @Test
+    public void digest() {
+        assertEquals(TagExpression.parse("8 or 9 and 10").digest(), TagExpression.parse("(8 or 9) and 10 and").digest());
+        assertNotEquals(TagExpression.parse("8 or 9 and 10").digest(), TagExpression.parse("8 or 9 or 10").digest());
+        assertEquals(40, TagExpression.parse("8 or 9 and 10").digest().length());
+    }
+
+}
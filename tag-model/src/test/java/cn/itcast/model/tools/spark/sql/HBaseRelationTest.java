@@ -0,0 +1,80 @@
+package cn.itcast.model.tools.spark.sql;
+
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.GreaterThan;
+import org.apache.spark.sql.sources.In;
+import org.apache.spark.sql.sources.LessThan;
+import org.apache.spark.sql.sources.LessThanOrEqual;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * RowKey条件下推为Scan范围的测试用例
+ * TableInputFormat按切片重建Scan时起始RowKey包含、结束RowKey不包含，所以Scan的范围必须是[start, stop)
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class HBaseRelationTest {
+
+    private static final String ROW = "row";
+
+    private static void assertRange(Scan scan, String startRow, byte[] stopRow) {
+        assertEquals(startRow, Bytes.toString(scan.getStartRow()));
+        assertArrayEquals(stopRow, scan.getStopRow());
+        assertTrue(scan.includeStartRow());
+        assertFalse(scan.includeStopRow());
+    }
+
+    @Test
+    public void equalTo() {
+        Scan scan = new Scan();
+        HBaseRelation.toRowFilter(new EqualTo(ROW, "u5"), scan);
+        // [u5, u5\x00)只包含u5
+        assertRange(scan, "u5", Bytes.add(Bytes.toBytes("u5"), new byte[]{0}));
+    }
+
+    @Test
+    public void lessThanOrEqual() {
+        Scan scan = new Scan();
+        HBaseRelation.toRowFilter(new LessThanOrEqual(ROW, "u5"), scan);
+        assertRange(scan, "", Bytes.add(Bytes.toBytes("u5"), new byte[]{0}));
+    }
+
+    @Test
+    public void lessThan() {
+        Scan scan = new Scan();
+        HBaseRelation.toRowFilter(new LessThan(ROW, "u5"), scan);
+        assertRange(scan, "", Bytes.toBytes("u5"));
+    }
+
+    @Test
+    public void greaterThanKeepsStartInclusive() {
+        Scan scan = new Scan();
+        // u5本身由RowFilter去掉
+        HBaseRelation.toRowFilter(new GreaterThan(ROW, "u5"), scan);
+        assertRange(scan, "u5", new byte[0]);
+    }
+
+    @Test
+    public void in() {
+        Scan scan = new Scan();
+        Object filter = HBaseRelation.toRowFilter(new In(ROW, new Object[]{"u3", "u7", "u1"}), scan);
+        assertTrue(filter instanceof MultiRowRangeFilter);
+        // 最大的u7也在范围内
+        assertRange(scan, "u1", Bytes.add(Bytes.toBytes("u7"), new byte[]{0}));
+    }
+
+    @Test
+    public void narrowsToIntersection() {
+        Scan scan = new Scan();
+        HBaseRelation.toRowFilter(new LessThanOrEqual(ROW, "u8"), scan);
+        HBaseRelation.toRowFilter(new LessThan(ROW, "u6"), scan);
+        HBaseRelation.toRowFilter(new In(ROW, new Object[]{"u2", "u4"}), scan);
+        assertRange(scan, "u2", Bytes.add(Bytes.toBytes("u4"), new byte[]{0}));
+    }
+
+}
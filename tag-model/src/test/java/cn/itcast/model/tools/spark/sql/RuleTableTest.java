@@ -0,0 +1,78 @@
+package cn.itcast.model.tools.spark.sql;
+
+import cn.itcast.model.beans.BasicTagBean;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 五级标签规则表测试用例
+ * Created by mengyao
+ * 2019年9月2日
+ */
+public class RuleTableTest {
+
+    private static BasicTagBean tag5(long id, String rule) {
+        BasicTagBean bean = new BasicTagBean();
+        bean.setId(id);
+        bean.setRule(rule);
+        return bean;
+    }
+
+    @Test
+    public void lookupEqual() {
+        List<BasicTagBean> tags5 = new ArrayList<BasicTagBean>();
+        tags5.add(tag5(9L, "1"));
+        tags5.add(tag5(10L, "2"));
+        // 同一个值只保留第一个规则
+        tags5.add(tag5(11L, "1"));
+        tags5.add(tag5(12L, ""));
+        RuleTable table = RuleTable.compile(tags5);
+        assertEquals("9", table.lookup("1"));
+        assertEquals("10", table.lookup("2"));
+        assertNull(table.lookup("3"));
+        assertNull(table.lookup(null));
+    }
+
+    @Test
+    public void lookupRange() {
+        List<BasicTagBean> tags5 = new ArrayList<BasicTagBean>();
+        // 乱序添加，编译后按起始值排序
+        tags5.add(tag5(22L, "19600101-19691231"));
+        tags5.add(tag5(21L, "19500101-19591231"));
+        tags5.add(tag5(23L, "19800101-19891231"));
+        RuleTable table = RuleTable.compile(tags5);
+        assertEquals("21", table.lookup("19500101"));
+        assertEquals("21", table.lookup("19591231"));
+        assertEquals("22", table.lookup("19650615"));
+        // 字段值中的分隔符在查找前去掉
+        assertEquals("22", table.lookup("1965-06-15"));
+        assertEquals("23", table.lookup("19891231"));
+        // 范围之间的空隙和两端之外
+        assertNull(table.lookup("19750101"));
+        assertNull(table.lookup("19491231"));
+        assertNull(table.lookup("19900101"));
+    }
+
+    @Test
+    public void lookupEqualBeforeRange() {
+        RuleTable table = new RuleTable()
+                .addRange("19500101", "19591231", "21")
+                .addEqual("19550101", "30");
+        assertEquals("30", table.lookup("19550101"));
+        assertEquals("21", table.lookup("19550102"));
+    }
+
+    @Test
+    public void isRange() {
+        assertTrue(RuleTable.isRange("19500101-19591231"));
+        assertFalse(RuleTable.isRange("1950-1959"));
+        assertFalse(RuleTable.isRange("1"));
+        assertTrue(new RuleTable().isEmpty());
+        assertFalse(new RuleTable().addEqual("1", "9").isEmpty());
+    }
+
+}
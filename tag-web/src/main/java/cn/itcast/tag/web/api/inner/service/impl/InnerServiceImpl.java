@@ -1,21 +1,26 @@
 package cn.itcast.tag.web.api.inner.service.impl;
 
+import cn.itcast.model.tools.hbase.TagIndex;
+import cn.itcast.model.tools.parser.TagExpression;
 import cn.itcast.tag.web.api.inner.bean.SearchTagUserBean;
 import cn.itcast.tag.web.api.inner.bean.SearchUserBean;
 import cn.itcast.tag.web.api.inner.service.InnerService;
+import cn.itcast.tag.web.basictag.service.TagTreeCache;
+import cn.itcast.tag.web.mergetag.service.MergeTagService;
 import cn.itcast.tag.web.utils.HBaseUtil;
 import cn.itcast.tag.web.utils.JsonUtil;
 import cn.itcast.tag.web.utils.MapToBeanUtil;
 import cn.itcast.tag.web.utils.SolrUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
 import java.beans.IntrospectionException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -30,6 +35,12 @@ public class InnerServiceImpl implements InnerService {
     private final String FAMILY_USERINFO = "userInfo";
     //HBase标签列族
     private final String FAMILY_TAG = "tag";
+    @Resource
+    HBaseUtil hbase;
+    @Resource
+    MergeTagService mergeTagService;
+    @Resource
+    TagTreeCache tagTreeCache;
     private Logger logger = LogManager.getLogger(getClass());
 
     public static void testSearch() {
@@ -53,7 +64,6 @@ public class InnerServiceImpl implements InnerService {
     @Override
     public List<SearchUserBean> search(long tagId, int type, int count) {
         List<SearchUserBean> result = new ArrayList<>();
-        HBaseUtil hBaseUtil = new HBaseUtil();
         List<String> tags = new ArrayList<>();
         String tag = "";
         if (type == 1) {
@@ -71,7 +81,7 @@ public class InnerServiceImpl implements InnerService {
 //			List<String> rowKeys = hBaseUtil.queryForQuilfierName(TABLE_NAME, qualifier, count);
             if (null != rowKeys) {
                 if (rowKeys.size() > 0) {
-                    List<Map<String, String>> resultList = hBaseUtil.queryForRowKeys(TABLE_NAME, rowKeys, FAMILY_USERINFO);
+                    List<Map<String, String>> resultList = hbase.queryForRowKeys(TABLE_NAME, rowKeys, FAMILY_USERINFO);
                     for (Map<String, String> map : resultList) {
                         SearchUserBean searchUserBean = new SearchUserBean();
                         searchUserBean = (SearchUserBean) MapToBeanUtil.convertMap(SearchUserBean.class, map);
@@ -101,41 +111,50 @@ public class InnerServiceImpl implements InnerService {
     @Override
     public List<SearchTagUserBean> searchByMoreTagIds(String basicTags, String mergeTags, int count) {
         List<SearchTagUserBean> result = new ArrayList<>();
-        HBaseUtil hBaseUtil = new HBaseUtil();
         String[] basicTagArr = new String[]{};
         String[] mergeTagArr = new String[]{};
-        List<String> tags = new ArrayList<>();
         if (null != basicTags) {
             basicTagArr = basicTags.split(",");
         }
         if (null != mergeTags) {
             mergeTagArr = mergeTags.split(",");
         }
-        Map<String, String> paramMap = new HashMap<>();
-        if (basicTagArr.length > 0) {
+        try {
+            //根据多条件查找并且的关系：基础标签和组合标签的条件求交集
+            List<TagExpression> conditions = new ArrayList<>();
             for (String tagId : basicTagArr) {
-                //paramMap.put("basicTag_"+tagId, tagId);
-                tags.add("tb_" + tagId);
+                if (!tagId.trim().isEmpty()) {
+                    conditions.add(TagExpression.tag(Long.parseLong(tagId.trim())));
+                }
             }
-        }
-        if (mergeTagArr.length > 0) {
+            List<Long> mergeTagIds = new ArrayList<>();
             for (String tagId : mergeTagArr) {
-                tags.add("tm_" + tagId);
-                //paramMap.put("mergeTag_"+tagId, tagId);
+                if (!tagId.trim().isEmpty()) {
+                    mergeTagIds.add(Long.parseLong(tagId.trim()));
+                }
             }
-        }
-        //根据多条件查找并且的关系
-        try {
-            SolrUtil solrUtil = new SolrUtil(SOLR_COLLECTION);
-            List<String> rowKeys = solrUtil.queryRowkeyByTags(tags, 0, count);
-            solrUtil.closeSolr();
+            if (conditions.isEmpty() && mergeTagIds.isEmpty()) {
+                return result;
+            }
+            TagIndex tagIndex = hbase.getTagIndex();
+            // 与组合标签一样把非五级基础标签展开为其下全部五级标签，画像表和倒排索引只有五级标签
+            RoaringBitmap users = conditions.isEmpty() ? null
+                    : tagIndex.evaluate(TagExpression.and(conditions).expand(tagTreeCache.getAllLevel5Ids()));
+            // 组合标签优先读取物化的位图
+            for (Long mergeTagId : mergeTagIds) {
+                RoaringBitmap mergeTagUsers = mergeTagService.queryMergeTagUsers(mergeTagId);
+                users = null == users ? mergeTagUsers : RoaringBitmap.and(users, mergeTagUsers);
+            }
+            // 位图中是画像表的RowKey，从配置的画像表解析出用户再读取用户信息
+            List<String> rowKeys = tagIndex.page(users, 0, count);
             if (null != rowKeys) {
                 if (rowKeys.size() > 0) {
-                    List<Map<String, String>> resultList = hBaseUtil.queryForRowKeys(TABLE_NAME, rowKeys, FAMILY_USERINFO);
+                    List<Map<String, String>> resultList = hbase.queryProfileUsers(rowKeys);
                     for (Map<String, String> map : resultList) {
                         SearchTagUserBean searchTagUserBean = new SearchTagUserBean();
                         searchTagUserBean = (SearchTagUserBean) MapToBeanUtil.convertMap(SearchTagUserBean.class, map);
-                        searchTagUserBean.setName(searchTagUserBean.getName().substring(0, 1) + "**");
+                        String name = searchTagUserBean.getName();
+                        searchTagUserBean.setName(null == name || name.isEmpty() ? "" : name.substring(0, 1) + "**");
                         searchTagUserBean.setId(getSafeData(searchTagUserBean.getId()));
                         result.add(searchTagUserBean);
                     }
@@ -160,8 +179,7 @@ public class InnerServiceImpl implements InnerService {
     public SearchUserBean searchByIdCard(String idCard) {
         SearchUserBean searchUserBean = new SearchUserBean();
         try {
-            HBaseUtil hBaseUtil = new HBaseUtil();
-            Map<String, String> resultMap = hBaseUtil.queryForRowKey(TABLE_NAME, idCard, FAMILY_USERINFO);
+            Map<String, String> resultMap = hbase.queryForRowKey(TABLE_NAME, idCard, FAMILY_USERINFO);
             searchUserBean = (SearchUserBean) MapToBeanUtil.convertMap(SearchUserBean.class, resultMap);
             searchUserBean.setName(searchUserBean.getName().substring(0, 1) + "**");
             searchUserBean.setId(getSafeData(searchUserBean.getId()));
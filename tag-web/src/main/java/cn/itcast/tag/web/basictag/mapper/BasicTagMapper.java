@@ -179,6 +179,25 @@ public interface BasicTagMapper {
      */
     public List<BasicTagBean> queryBasicTagForWithPid2(@Param("bean") BasicTagBean bean, @Param("loginUser") UserBean loginUser, @Param("roleBean") RoleBean roleBean);
 
+    /**
+     * 一次查询用户持有的所有基础标签，用于在内存中构建子标签树
+     *
+     * @param loginUser
+     * @param roleBean
+     * @return
+     */
+    public List<BasicTagBean> queryBasicTagTreeForUserId(@Param("loginUser") UserBean loginUser, @Param("roleBean") RoleBean roleBean);
+
+    /**
+     * 一次查询pid下名称匹配的子标签及其子标签(带用户数)，用于在内存中构建两级标签树
+     *
+     * @param bean
+     * @param loginUser
+     * @param roleBean
+     * @return
+     */
+    public List<BasicTagBean> queryBasicTagTreeForWithPid(@Param("bean") BasicTagBean bean, @Param("loginUser") UserBean loginUser, @Param("roleBean") RoleBean roleBean);
+
     /**
      * 获取全部的基础标签
      *
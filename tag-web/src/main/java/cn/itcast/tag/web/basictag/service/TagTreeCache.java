@@ -0,0 +1,87 @@
+package cn.itcast.tag.web.basictag.service;
+
+import cn.itcast.tag.web.basictag.bean.BasicTagBean;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基础标签树缓存
+ * 一次加载全部基础标签和用户、角色的数据权限，按ID、PID、五级子孙标签和路径名称建立不可变的索引，
+ * 标签或数据权限变更时递增版本号，下次访问时整体重新加载
+ *
+ * @author mengyao
+ */
+public interface TagTreeCache {
+
+    /**
+     * 标签或数据权限已变更，事务提交后递增版本号使缓存失效；
+     * 须在写入完成后(finally中)调用，无事务时立即递增，避免并发读取把旧数据缓存到新版本下
+     */
+    public void invalidate();
+
+    /**
+     * 当前版本号
+     *
+     * @return
+     */
+    public long getVersion();
+
+    /**
+     * 根据ID获取当前用户可见的标签
+     *
+     * @param id
+     * @param userId
+     * @param roleId
+     * @return 标签副本，不存在或不可见时返回null
+     */
+    public BasicTagBean getTag(long id, long userId, long roleId);
+
+    /**
+     * 根据PID获取当前用户可见的子标签
+     *
+     * @param pid
+     * @param userId
+     * @param roleId
+     * @return 标签副本
+     */
+    public List<BasicTagBean> getChildren(long pid, long userId, long roleId);
+
+    /**
+     * 根据PID获取当前用户可见的子标签树，子标签设置在subTags中，最多到五级
+     *
+     * @param pid
+     * @param userId
+     * @param roleId
+     * @return 标签副本
+     */
+    public List<BasicTagBean> getSubTree(long pid, long userId, long roleId);
+
+    /**
+     * 获取标签下当前用户可见的所有五级标签ID，标签本身为五级时返回自身
+     *
+     * @param tagId
+     * @param userId
+     * @param roleId
+     * @return
+     */
+    public List<Long> getLevel5Ids(long tagId, long userId, long roleId);
+
+    /**
+     * 全部标签(不考虑数据权限)的五级子孙标签ID，用于展开标签表达式
+     *
+     * @return 标签ID -> 五级子孙标签ID(五级标签为自身)，不可修改
+     */
+    public Map<Long, List<Long>> getAllLevel5Ids();
+
+    /**
+     * 标签的路径名称，从一级标签到父标签，以" --- "分隔，遇到当前用户不可见的上级标签时截止
+     *
+     * @param id
+     * @param userId
+     * @param roleId
+     * @return
+     */
+    public String getPathName(long id, long userId, long roleId);
+
+}
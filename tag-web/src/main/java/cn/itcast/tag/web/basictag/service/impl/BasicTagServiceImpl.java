@@ -8,6 +8,7 @@ import cn.itcast.tag.web.basictag.mapper.BasicModelRuleMapper;
 import cn.itcast.tag.web.basictag.mapper.BasicTagMapper;
 import cn.itcast.tag.web.basictag.mapper.UserTagMapMapper;
 import cn.itcast.tag.web.basictag.service.BasicTagService;
+import cn.itcast.tag.web.basictag.service.TagTreeCache;
 import cn.itcast.tag.web.commons.parser.MetaParser;
 import cn.itcast.tag.web.engine.bean.EngineBean;
 import cn.itcast.tag.web.engine.bean.MetaDataBean;
@@ -36,7 +37,6 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.io.File;
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * BasicTagService
@@ -83,6 +83,8 @@ public class BasicTagServiceImpl implements BasicTagService {
     private EngineService engineService;
     @Resource
     private SearchService searchService;
+    @Resource
+    private TagTreeCache tagTreeCache;
     @Value("${engineType}")
     private String engineType;
     @Value("${model.path}")
@@ -274,6 +276,8 @@ public class BasicTagServiceImpl implements BasicTagService {
             e.printStackTrace();
             logger.error("==== addBasicTag@err:{} ====", e);
             throw e;
+        } finally {
+            tagTreeCache.invalidate();
         }
         return ONE;
     }
@@ -302,6 +306,8 @@ public class BasicTagServiceImpl implements BasicTagService {
         } catch (Exception e) {
             e.printStackTrace();
             logger.error("==== addFifthBasicTag@err:{} ====", e);
+        } finally {
+            tagTreeCache.invalidate();
         }
         return basicTagBean;
     }
@@ -319,44 +325,29 @@ public class BasicTagServiceImpl implements BasicTagService {
         }
         Map<Integer, List<BasicTagBean>> levels = new TreeMap<>();
         for (BasicTagBean bean : allTags) {
-            logger.info("==== {},{} ====", bean.getId(), bean.getLevel());
-            if (!levels.containsKey(bean.getLevel())) {
-                List<BasicTagBean> item = new ArrayList<BasicTagBean>();
-                item.add(bean);
-                levels.put(bean.getLevel(), item);
-            } else {
-                levels.get(bean.getLevel()).add(bean);
-            }
-        }
-        if (null == levels || levels.size() == 0) {
-            return null;
-        }
-        LinkedList<List<BasicTagBean>> orderTags = new LinkedList<List<BasicTagBean>>();
-        for (Entry<Integer, List<BasicTagBean>> entry : levels.entrySet()) {
-            orderTags.add(entry.getValue());
-        }
-        if (null == orderTags || orderTags.size() == 0) {
-            return null;
-        }
-        for (int i = levels.size() - 1; i >= 0; i--) {
-            List<BasicTagBean> curList = orderTags.get(i);
-            if (i > 0) {
-                List<BasicTagBean> parentList = orderTags.get(i - 1);
+            logger.debug("==== {},{} ====", bean.getId(), bean.getLevel());
+            levels.computeIfAbsent(bean.getLevel(), k -> new ArrayList<BasicTagBean>()).add(bean);
+        }
+        // 按上一级标签的ID建立索引，每个标签只做一次哈希查找
+        List<BasicTagBean> parentList = null;
+        for (List<BasicTagBean> curList : levels.values()) {
+            if (null != parentList) {
+                Map<Long, List<BasicTagBean>> parents = new HashMap<>();
+                for (BasicTagBean parBean : parentList) {
+                    parents.computeIfAbsent(parBean.getId(), k -> new ArrayList<BasicTagBean>()).add(parBean);
+                }
                 for (BasicTagBean curBean : curList) {
-                    long pid = curBean.getPid();
-                    for (BasicTagBean parBean : parentList) {
-                        if (parBean.getId() == pid) {
-                            List<BasicTagBean> subTags = parBean.getSubTags();
-                            if (null == subTags) {
-                                parBean.setSubTags(new ArrayList<>());
-                            }
-                            parBean.getSubTags().add(curBean);
+                    for (BasicTagBean parBean : parents.getOrDefault(curBean.getPid(), Collections.emptyList())) {
+                        if (null == parBean.getSubTags()) {
+                            parBean.setSubTags(new ArrayList<>());
                         }
+                        parBean.getSubTags().add(curBean);
                     }
                 }
             }
+            parentList = curList;
         }
-        return orderTags.get(0);
+        return levels.values().iterator().next();
     }
 
     /**
@@ -372,44 +363,29 @@ public class BasicTagServiceImpl implements BasicTagService {
         }
         Map<Integer, List<BasicTagFormBean>> levels = new TreeMap<>();
         for (BasicTagFormBean bean : allTags) {
-            logger.info("==== {},{} ====", bean.getId(), bean.getLevel());
-            if (!levels.containsKey(bean.getLevel())) {
-                List<BasicTagFormBean> item = new ArrayList<BasicTagFormBean>();
-                item.add(bean);
-                levels.put(bean.getLevel(), item);
-            } else {
-                levels.get(bean.getLevel()).add(bean);
-            }
-        }
-        if (null == levels || levels.size() == 0) {
-            return null;
-        }
-        LinkedList<List<BasicTagFormBean>> orderTags = new LinkedList<List<BasicTagFormBean>>();
-        for (Entry<Integer, List<BasicTagFormBean>> entry : levels.entrySet()) {
-            orderTags.add(entry.getValue());
-        }
-        if (null == orderTags || orderTags.size() == 0) {
-            return null;
-        }
-        for (int i = levels.size() - 1; i >= 0; i--) {
-            List<BasicTagFormBean> curList = orderTags.get(i);
-            if (i > 0) {
-                List<BasicTagFormBean> parentList = orderTags.get(i - 1);
+            logger.debug("==== {},{} ====", bean.getId(), bean.getLevel());
+            levels.computeIfAbsent(bean.getLevel(), k -> new ArrayList<BasicTagFormBean>()).add(bean);
+        }
+        // 按上一级标签的ID建立索引，每个标签只做一次哈希查找
+        List<BasicTagFormBean> parentList = null;
+        for (List<BasicTagFormBean> curList : levels.values()) {
+            if (null != parentList) {
+                Map<Long, List<BasicTagFormBean>> parents = new HashMap<>();
+                for (BasicTagFormBean parBean : parentList) {
+                    parents.computeIfAbsent(parBean.getId(), k -> new ArrayList<BasicTagFormBean>()).add(parBean);
+                }
                 for (BasicTagFormBean curBean : curList) {
-                    long pid = curBean.getPid();
-                    for (BasicTagFormBean parBean : parentList) {
-                        if (parBean.getId() == pid) {
-                            List<BasicTagFormBean> subTags = parBean.getSubTags();
-                            if (null == subTags) {
-                                parBean.setSubTags(new ArrayList<>());
-                            }
-                            parBean.getSubTags().add(curBean);
+                    for (BasicTagFormBean parBean : parents.getOrDefault(curBean.getPid(), Collections.emptyList())) {
+                        if (null == parBean.getSubTags()) {
+                            parBean.setSubTags(new ArrayList<>());
                         }
+                        parBean.getSubTags().add(curBean);
                     }
                 }
             }
+            parentList = curList;
         }
-        return orderTags.get(0);
+        return levels.values().iterator().next();
     }
 
     @Transactional(propagation = Propagation.NOT_SUPPORTED, rollbackFor = Exception.class)
@@ -532,6 +508,8 @@ public class BasicTagServiceImpl implements BasicTagService {
         } catch (Exception e) {
             e.printStackTrace();
             logger.error("==== delBasicTagForId@err:{} ====", e);
+        } finally {
+            tagTreeCache.invalidate();
         }
         return ZERO;
     }
@@ -545,6 +523,8 @@ public class BasicTagServiceImpl implements BasicTagService {
         } catch (Exception e) {
             e.printStackTrace();
             logger.error("==== updateMainBasicTagForId@err:{} ====", e);
+        } finally {
+            tagTreeCache.invalidate();
         }
         return state;
     }
@@ -597,6 +577,8 @@ public class BasicTagServiceImpl implements BasicTagService {
         } catch (Exception e) {
             e.printStackTrace();
             logger.error("==== updateFourthBasicTag@err:{} ====", e);
+        } finally {
+            tagTreeCache.invalidate();
         }
         return false;
     }
@@ -610,6 +592,8 @@ public class BasicTagServiceImpl implements BasicTagService {
         } catch (Exception e) {
             e.printStackTrace();
             logger.error("==== updateFifthBasicTag@err:{} ====", e);
+        } finally {
+            tagTreeCache.invalidate();
         }
         return state;
     }
@@ -645,26 +629,19 @@ public class BasicTagServiceImpl implements BasicTagService {
     public List<BasicTagBean> queryBasicTagForUserId(BasicTagBean bean, UserBean loginUser, RoleBean roleBean) {
         List<BasicTagBean> listBean1 = null;
         try {
-            listBean1 = basicTagMapper.queryBasicTagForUserId(bean, loginUser, roleBean);
-            if (listBean1 != null) {
-                for (BasicTagBean val1 : listBean1) {
-                    List<BasicTagBean> listBean2 = basicTagMapper.queryBasicTagForUserId(val1, loginUser, roleBean);
-                    val1.setSubTags(listBean2);
-                    for (BasicTagBean val2 : listBean2) {
-                        List<BasicTagBean> listBean3 = basicTagMapper.queryBasicTagForUserId(val2, loginUser, roleBean);
-                        val2.setSubTags(listBean3);
-                        for (BasicTagBean val3 : listBean3) {
-                            List<BasicTagBean> listBean4 = basicTagMapper.queryBasicTagForUserId(val3, loginUser,
-                                    roleBean);
-                            val3.setSubTags(listBean4);
-                            for (BasicTagBean val4 : listBean4) {
-                                List<BasicTagBean> listBean5 = basicTagMapper.queryBasicTagForUserId(val4, loginUser,
-                                        roleBean);
-                                val4.setSubTags(listBean5);
-                            }
-                        }
-                    }
+            // 一次查出用户持有的所有标签，按pid建立索引后在内存中逐级挂载，最多五级
+            Map<Long, List<BasicTagBean>> children = groupByPid(
+                    basicTagMapper.queryBasicTagTreeForUserId(loginUser, roleBean));
+            listBean1 = children.getOrDefault(bean.getId(), new ArrayList<>());
+            List<BasicTagBean> curList = listBean1;
+            for (int depth = 1; depth < 5; depth++) {
+                List<BasicTagBean> nextList = new ArrayList<>();
+                for (BasicTagBean val : curList) {
+                    List<BasicTagBean> subTags = children.getOrDefault(val.getId(), new ArrayList<>());
+                    val.setSubTags(subTags);
+                    nextList.addAll(subTags);
                 }
+                curList = nextList;
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -680,34 +657,25 @@ public class BasicTagServiceImpl implements BasicTagService {
         List<BasicTagBean> listBean1 = null;
         try {
             if (bean.getLevel() == LEVELTHREE) {// 对四级名称模糊匹配
-                // 四级列表
-                listBean1 = basicTagMapper.queryBasicTagForWithPid1(bean, loginUser, roleBean);
-                if (listBean1 != null && listBean1.size() > 0) {
-                    for (BasicTagBean val1 : listBean1) {
-                        // 五级列表
-                        BasicTagBean basicTagBean = new BasicTagBean();
-                        basicTagBean.setId(val1.getId());
-                        List<BasicTagBean> listBean2 = basicTagMapper.queryBasicTagForWithPid1(basicTagBean, loginUser,
-                                roleBean);
-                        if (listBean2 != null && listBean2.size() > 0) {
-                            for (BasicTagBean basicTagBean2 : listBean2) {
-                                basicTagBean2.setUserCount(searchService.getUserCountByTagId(basicTagBean2.getId(), 1));
-                            }
-                            val1.setSubTags(listBean2);
-                        }
+                // 一次查出名称匹配的四级列表及其五级列表(带用户数)
+                Map<Long, List<BasicTagBean>> children = groupByPid(
+                        basicTagMapper.queryBasicTagTreeForWithPid(bean, loginUser, roleBean));
+                listBean1 = children.getOrDefault(bean.getId(), new ArrayList<>());
+                for (BasicTagBean val1 : listBean1) {
+                    // 五级列表
+                    List<BasicTagBean> listBean2 = children.get(val1.getId());
+                    if (listBean2 != null && listBean2.size() > 0) {
+                        val1.setSubTags(listBean2);
                     }
                 }
             } else if (bean.getLevel() == LEVELFOUR) {// 对五级名称模糊匹配
                 listBean1 = basicTagMapper.queryBasicTagForWithPid2(bean, loginUser, roleBean);
                 if (listBean1 != null && listBean1.size() > 0) {
-                    for (BasicTagBean val1 : listBean1) {
-                        // 构建模糊查询bean
-                        List<BasicTagBean> listBean2 = basicTagMapper.queryBasicTagForWithPid1(bean, loginUser,
-                                roleBean); // val1.getId(),curUser.getId(),bean.getName()
-                        if (listBean2 != null && listBean2.size() > 0) {
-                            for (BasicTagBean basicTagBean2 : listBean2) {
-                                basicTagBean2.setUserCount(searchService.getUserCountByTagId(basicTagBean2.getId(), 1));
-                            }
+                    // 名称匹配的五级列表(带用户数)
+                    List<BasicTagBean> listBean2 = groupByPid(
+                            basicTagMapper.queryBasicTagTreeForWithPid(bean, loginUser, roleBean)).get(bean.getId());
+                    if (listBean2 != null && listBean2.size() > 0) {
+                        for (BasicTagBean val1 : listBean1) {
                             val1.setSubTags(listBean2);
                         }
                     }
@@ -876,6 +844,8 @@ public class BasicTagServiceImpl implements BasicTagService {
             }
         } catch (Exception e) {
             logger.error("==== addFourthBasicTag@err:{} ====", e);
+        } finally {
+            tagTreeCache.invalidate();
         }
         return ZERO;
     }
@@ -893,6 +863,26 @@ public class BasicTagServiceImpl implements BasicTagService {
         return beans;
     }
 
+    /**
+     * 按pid分组，保持查询结果的顺序，同一标签只保留一次
+     *
+     * @param tags
+     * @return
+     */
+    private Map<Long, List<BasicTagBean>> groupByPid(List<BasicTagBean> tags) {
+        Map<Long, List<BasicTagBean>> children = new HashMap<>();
+        if (null == tags) {
+            return children;
+        }
+        Set<Long> ids = new HashSet<>();
+        for (BasicTagBean tag : tags) {
+            if (ids.add(tag.getId())) {
+                children.computeIfAbsent(tag.getPid(), k -> new ArrayList<BasicTagBean>()).add(tag);
+            }
+        }
+        return children;
+    }
+
     // 判断权限
     private Boolean isAdministrator() {
         try {
@@ -914,43 +904,47 @@ public class BasicTagServiceImpl implements BasicTagService {
 
     @Override
     public int taskProcessing(BasicTagBean bean, UserBean loginUser) {
-        // 标签状态：1申请中、2审核通过、3运行中、4未运行、5已禁用
-        // 返回状态：1操作成功，0操作失败
-        int state = bean.getState();
-        EngineBean engineBean = null;
-        if (state == LEVELTHREE) { // 去执行任务
-            bean.setState(4);
-            int result = basicTagMapper.updateStateForId(bean);
-            if (result > 0) {
-                engineBean = new EngineBean();
-                engineBean.setTagId(bean.getId());
-                engineBean.setRemark(bean.getRemark());
-                if (engineType.equals("1")) {
-                    engineService.stopEngine(engineBean, loginUser);
-                } else {
-                    engineService.stopEngineByQuartz(engineBean, loginUser);
+        try {
+            // 标签状态：1申请中、2审核通过、3运行中、4未运行、5已禁用
+            // 返回状态：1操作成功，0操作失败
+            int state = bean.getState();
+            EngineBean engineBean = null;
+            if (state == LEVELTHREE) { // 去执行任务
+                bean.setState(4);
+                int result = basicTagMapper.updateStateForId(bean);
+                if (result > 0) {
+                    engineBean = new EngineBean();
+                    engineBean.setTagId(bean.getId());
+                    engineBean.setRemark(bean.getRemark());
+                    if (engineType.equals("1")) {
+                        engineService.stopEngine(engineBean, loginUser);
+                    } else {
+                        engineService.stopEngineByQuartz(engineBean, loginUser);
+                    }
+                    return ONE;
                 }
-                return ONE;
-            }
-        } else if (state == LEVELFOUR) { // 去停止任务
-            bean.setState(3);
-            int result = basicTagMapper.updateStateForId(bean);
-            if (result > 0) {
-                engineBean = new EngineBean();
-                engineBean.setTagId(bean.getId());
-                engineBean.setRemark(bean.getRemark());
-                System.out.println("engineType=====" + engineType + "====" + engineType.equals("1"));
-                if (engineType.equals("1")) {
-                    engineService.startEngine(engineBean, loginUser);
-                } else {
-                    engineService.startEngineByQuartz(engineBean, loginUser);
+            } else if (state == LEVELFOUR) { // 去停止任务
+                bean.setState(3);
+                int result = basicTagMapper.updateStateForId(bean);
+                if (result > 0) {
+                    engineBean = new EngineBean();
+                    engineBean.setTagId(bean.getId());
+                    engineBean.setRemark(bean.getRemark());
+                    System.out.println("engineType=====" + engineType + "====" + engineType.equals("1"));
+                    if (engineType.equals("1")) {
+                        engineService.startEngine(engineBean, loginUser);
+                    } else {
+                        engineService.startEngineByQuartz(engineBean, loginUser);
+                    }
+                    return ONE;
                 }
-                return ONE;
+            } else {
+                return ZERO;
             }
-        } else {
             return ZERO;
+        } finally {
+            tagTreeCache.invalidate();
         }
-        return ZERO;
     }
 
     @Override
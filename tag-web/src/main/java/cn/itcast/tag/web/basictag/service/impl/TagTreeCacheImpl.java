@@ -0,0 +1,260 @@
+package cn.itcast.tag.web.basictag.service.impl;
+
+import cn.itcast.tag.web.basictag.bean.BasicTagBean;
+import cn.itcast.tag.web.basictag.mapper.BasicTagMapper;
+import cn.itcast.tag.web.basictag.service.TagTreeCache;
+import cn.itcast.tag.web.user.bean.RoleDataMapBean;
+import cn.itcast.tag.web.user.bean.UserDataMapBean;
+import cn.itcast.tag.web.user.mapper.DataMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基础标签树缓存
+ * 读取全部基础标签(不含已删除)和用户、角色的基础标签数据权限，构建不可变的快照，
+ * 快照的版本号落后于当前版本号时由第一个访问的线程重新加载，其余线程等待加载完成后共用新快照
+ *
+ * @author mengyao
+ */
+@Service
+public class TagTreeCacheImpl implements TagTreeCache {
+
+    // 超级管理员可见全部标签
+    private final static long ADMIN_ROLE_ID = 1L;
+    private final static int LEVELFIVE = 5;
+    private final static String PATH_SEPARATOR = " --- ";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final AtomicLong version = new AtomicLong(1);
+    private volatile TagTree tree;
+    @Resource
+    private BasicTagMapper basicTagMapper;
+    @Resource
+    private DataMapper dataMapper;
+
+    @Override
+    public void invalidate() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // 事务提交(或回滚)后再失效，避免在提交前加载到旧数据
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    logger.info("==== invalidate@version:{} ====", version.incrementAndGet());
+                }
+            });
+        } else {
+            logger.info("==== invalidate@version:{} ====", version.incrementAndGet());
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public BasicTagBean getTag(long id, long userId, long roleId) {
+        TagTree tree = getTree();
+        return tree.isVisible(id, userId, roleId) ? copy(tree.tags.get(id)) : null;
+    }
+
+    @Override
+    public List<BasicTagBean> getChildren(long pid, long userId, long roleId) {
+        TagTree tree = getTree();
+        List<BasicTagBean> children = new ArrayList<BasicTagBean>();
+        for (Long id : tree.getChildIds(pid)) {
+            if (tree.isVisible(id, userId, roleId)) {
+                children.add(copy(tree.tags.get(id)));
+            }
+        }
+        return children;
+    }
+
+    @Override
+    public List<BasicTagBean> getSubTree(long pid, long userId, long roleId) {
+        return getSubTree(getTree(), pid, userId, roleId);
+    }
+
+    private List<BasicTagBean> getSubTree(TagTree tree, long pid, long userId, long roleId) {
+        List<BasicTagBean> children = new ArrayList<BasicTagBean>();
+        for (Long id : tree.getChildIds(pid)) {
+            if (!tree.isVisible(id, userId, roleId)) {
+                continue;
+            }
+            BasicTagBean child = copy(tree.tags.get(id));
+            if (child.getLevel() < LEVELFIVE) {
+                child.setSubTags(getSubTree(tree, id, userId, roleId));
+            }
+            children.add(child);
+        }
+        return children;
+    }
+
+    @Override
+    public List<Long> getLevel5Ids(long tagId, long userId, long roleId) {
+        TagTree tree = getTree();
+        if (roleId == ADMIN_ROLE_ID) {
+            List<Long> ids = tree.level5Ids.get(tagId);
+            return null == ids ? new ArrayList<Long>() : new ArrayList<Long>(ids);
+        }
+        List<Long> ids = new ArrayList<Long>();
+        BasicTagBean tag = tree.tags.get(tagId);
+        if (null != tag && tag.getLevel() == LEVELFIVE && tree.isVisible(tagId, userId, roleId)) {
+            ids.add(tagId);
+            return ids;
+        }
+        Deque<Long> stack = new ArrayDeque<Long>();
+        stack.push(tagId);
+        while (!stack.isEmpty()) {
+            for (Long id : tree.getChildIds(stack.pop())) {
+                if (!tree.isVisible(id, userId, roleId)) {
+                    continue;
+                }
+                if (tree.tags.get(id).getLevel() == LEVELFIVE) {
+                    ids.add(id);
+                } else {
+                    stack.push(id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public Map<Long, List<Long>> getAllLevel5Ids() {
+        return getTree().level5Ids;
+    }
+
+    @Override
+    public String getPathName(long id, long userId, long roleId) {
+        TagTree tree = getTree();
+        LinkedList<String> names = new LinkedList<String>();
+        BasicTagBean tag = tree.tags.get(id);
+        while (null != tag && tree.isVisible(tag.getPid(), userId, roleId)) {
+            tag = tree.tags.get(tag.getPid());
+            names.addFirst(tag.getName());
+        }
+        return String.join(PATH_SEPARATOR, names);
+    }
+
+    private TagTree getTree() {
+        TagTree current = tree;
+        long expected = version.get();
+        if (null != current && current.version == expected) {
+            return current;
+        }
+        synchronized (this) {
+            current = tree;
+            expected = version.get();
+            if (null == current || current.version != expected) {
+                current = load(expected);
+                tree = current;
+            }
+        }
+        return current;
+    }
+
+    private TagTree load(long version) {
+        long start = System.currentTimeMillis();
+        List<BasicTagBean> tags = basicTagMapper.queryAllBasicTags();
+        List<UserDataMapBean> userTags = dataMapper.getAllUserBasicTagMaps();
+        List<RoleDataMapBean> roleTags = dataMapper.getAllRoleBasicTagMaps();
+        TagTree tree = new TagTree(version, tags, userTags, roleTags);
+        logger.info("==== load@version:{}, tags:{}, cost:{}ms ====", version, tree.tags.size(),
+                System.currentTimeMillis() - start);
+        return tree;
+    }
+
+    private static BasicTagBean copy(BasicTagBean source) {
+        BasicTagBean target = new BasicTagBean();
+        BeanUtils.copyProperties(source, target, "subTags");
+        return target;
+    }
+
+    /**
+     * 不可变的标签树快照
+     */
+    private static final class TagTree {
+
+        private final long version;
+        // 标签ID -> 标签
+        private final Map<Long, BasicTagBean> tags;
+        // 父标签ID -> 子标签ID
+        private final Map<Long, List<Long>> children;
+        // 标签ID -> 所有五级子孙标签ID(五级标签为自身)
+        private final Map<Long, List<Long>> level5Ids;
+        // 用户ID -> 标签ID
+        private final Map<Long, Set<Long>> userTags;
+        // 角色ID -> 标签ID
+        private final Map<Long, Set<Long>> roleTags;
+
+        private TagTree(long version, List<BasicTagBean> tagList, List<UserDataMapBean> userTagList,
+                        List<RoleDataMapBean> roleTagList) {
+            this.version = version;
+            Map<Long, BasicTagBean> tags = new HashMap<Long, BasicTagBean>();
+            Map<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+            for (BasicTagBean tag : tagList) {
+                tags.put(tag.getId(), tag);
+                children.computeIfAbsent(tag.getPid(), k -> new ArrayList<Long>()).add(tag.getId());
+            }
+            Map<Long, List<Long>> level5Ids = new HashMap<Long, List<Long>>();
+            for (BasicTagBean tag : tagList) {
+                if (tag.getLevel() != LEVELFIVE) {
+                    continue;
+                }
+                // 五级标签的ID加入自身和所有上级标签
+                Set<Long> visited = new HashSet<Long>();
+                BasicTagBean node = tag;
+                while (null != node && visited.add(node.getId())) {
+                    level5Ids.computeIfAbsent(node.getId(), k -> new ArrayList<Long>()).add(tag.getId());
+                    node = tags.get(node.getPid());
+                }
+            }
+            Map<Long, Set<Long>> userTags = new HashMap<Long, Set<Long>>();
+            for (UserDataMapBean userTag : userTagList) {
+                userTags.computeIfAbsent(userTag.getUserId(), k -> new HashSet<Long>()).add(userTag.getTagId());
+            }
+            Map<Long, Set<Long>> roleTags = new HashMap<Long, Set<Long>>();
+            for (RoleDataMapBean roleTag : roleTagList) {
+                roleTags.computeIfAbsent(roleTag.getRoleId(), k -> new HashSet<Long>()).add(roleTag.getTagId());
+            }
+            this.tags = Collections.unmodifiableMap(tags);
+            this.children = Collections.unmodifiableMap(children);
+            this.level5Ids = Collections.unmodifiableMap(level5Ids);
+            this.userTags = Collections.unmodifiableMap(userTags);
+            this.roleTags = Collections.unmodifiableMap(roleTags);
+        }
+
+        private List<Long> getChildIds(long pid) {
+            List<Long> ids = children.get(pid);
+            return null == ids ? Collections.<Long>emptyList() : ids;
+        }
+
+        /**
+         * 超级管理员可见全部标签，其他角色可见用户持有和角色持有的标签
+         */
+        private boolean isVisible(long id, long userId, long roleId) {
+            if (!tags.containsKey(id)) {
+                return false;
+            }
+            if (roleId == ADMIN_ROLE_ID) {
+                return true;
+            }
+            Set<Long> ids = userTags.get(userId);
+            if (null != ids && ids.contains(id)) {
+                return true;
+            }
+            ids = roleTags.get(roleId);
+            return null != ids && ids.contains(id);
+        }
+
+    }
+
+}
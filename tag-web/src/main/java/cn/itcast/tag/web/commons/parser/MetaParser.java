@@ -1,15 +1,10 @@
 package cn.itcast.tag.web.commons.parser;
 
+import cn.itcast.model.tools.parser.CompiledRule;
 import cn.itcast.tag.web.engine.bean.MetaDataBean;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 /**
  * @author mengyao
  */
@@ -19,61 +14,29 @@ public class MetaParser {
 
 
     /**
-     * 规则列表
+     * 规则字符串转换为相关parser类处理，规则文本通过{@link CompiledRule}编译并缓存
      *
-     * @param ruleItems
-     * @return
-     */
-    @SuppressWarnings("serial")
-    private static Map<String, String> ruleToMap(List<String> ruleItems) {
-        Map<String, String> rule = new HashMap<String, String>() {
-            {
-                ruleItems.forEach(kv -> {
-                    String[] keyValue = kv.split("=");
-                    put(keyValue[0], keyValue[1]);
-                });
-            }
-        };
-        return rule;
-    }
-
-    /**
-     * 规则字符串转换为相关parser类处理
-     *
-     * @param conf
+     * @param rule
      * @return
      */
     public static MetaParser getParser(String rule) {
-        if (null == rule) {
-            logger.info("==== The rule is null! ====");
+        CompiledRule compiled = CompiledRule.compile(rule);
+        if (null == compiled) {
             return null;
         }
-        List<String> lines = Arrays.asList(rule.split("\n"));
-        if (null == lines) {
-            logger.info("==== The rule lines is null! ====");
-            return null;
-        } else {
-            Map<String, String> ruleMap = ruleToMap(lines);
-            String typeStr = ruleMap.get("inType");
-            if (StringUtils.isEmpty(typeStr)) {
-                logger.info("==== The rule map no type field! ====");
-            } else {
-                Type type = Type.valueOf(typeStr.trim().toUpperCase());
-                if (type == Type.MYSQL) {
-                    return new MySQLParser(ruleMap);
-                }
-                if (type == Type.HIVE) {
-                    return new HiveParser(ruleMap);
-                }
-                if (type == Type.HDFS) {
-                    return new HDFSParser(ruleMap);
-                }
-                if (type == Type.HBASE) {
-                    return new HBaseParser(ruleMap);
-                }
-            }
+        switch (compiled.getType()) {
+            case MYSQL:
+                return new MySQLParser(compiled.getOptions());
+            case HIVE:
+                return new HiveParser(compiled.getOptions());
+            case HDFS:
+                return new HDFSParser(compiled.getOptions());
+            case HBASE:
+                return new HBaseParser(compiled.getOptions());
+            default:
+                logger.info("==== The rule type {} is not supported! ====", compiled.getType());
+                return null;
         }
-        return null;
     }
 
     public static void main(String[] args) {
@@ -124,9 +87,5 @@ public class MetaParser {
         return false;
     }
 
-    enum Type {
-        HDFS, HIVE, HBASE, MYSQL
-    }
-
 }
 
@@ -43,6 +43,10 @@ public class EngineBean implements Serializable {
     private int queryCode;
     private String business;
     private String remark;
+    // 最近一次运行的耗时(毫秒)
+    private long lastDuration;
+    // 最近一次运行写入画像表的行数
+    private long lastProfileRows;
 
     public EngineBean() {
         super();
@@ -197,6 +201,22 @@ public class EngineBean implements Serializable {
         this.remark = remark;
     }
 
+    public long getLastDuration() {
+        return lastDuration;
+    }
+
+    public void setLastDuration(long lastDuration) {
+        this.lastDuration = lastDuration;
+    }
+
+    public long getLastProfileRows() {
+        return lastProfileRows;
+    }
+
+    public void setLastProfileRows(long lastProfileRows) {
+        this.lastProfileRows = lastProfileRows;
+    }
+
     @Override
     public String toString() {
         return id + "\t" + tagId + "\t" + jobid + "\t" + status + "\t" + tagType + "\t" + name + "\t" + rule
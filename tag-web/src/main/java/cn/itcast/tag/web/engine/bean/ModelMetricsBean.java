@@ -0,0 +1,195 @@
+package cn.itcast.tag.web.engine.bean;
+
+import java.io.Serializable;
+
+/**
+ * 标签模型单次运行的执行指标DTO
+ *
+ * @author mengyao
+ */
+public class ModelMetricsBean implements Serializable {
+
+    private static final long serialVersionUID = -1863295074215783410L;
+
+    private long id;
+    // 标签ID
+    private long tagId;
+    // 运行ID
+    private String runId;
+    // 模型名称
+    private String model;
+    // 运行状态：1成功、2失败
+    private int status;
+    // 开始时间
+    private String startTime;
+    // 结束时间
+    private String endTime;
+    // 耗时(毫秒)
+    private long duration;
+    // Stage数
+    private int stageCount;
+    // 读取的数据源行数
+    private long inputRecords;
+    // 读取的数据源字节数
+    private long inputBytes;
+    // Shuffle读取字节数
+    private long shuffleReadBytes;
+    // Shuffle写入字节数
+    private long shuffleWriteBytes;
+    // 内存和磁盘溢写字节数
+    private long spillBytes;
+    // Executor GC时间(毫秒)
+    private long gcTime;
+    // 写入画像表的行数
+    private long profileRows;
+    // 各Stage的指标，JSON数组
+    private String stages;
+
+    public ModelMetricsBean() {
+        super();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getTagId() {
+        return tagId;
+    }
+
+    public void setTagId(long tagId) {
+        this.tagId = tagId;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public void setModel(String model) {
+        this.model = model;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public String getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(String startTime) {
+        this.startTime = startTime;
+    }
+
+    public String getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(String endTime) {
+        this.endTime = endTime;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    public int getStageCount() {
+        return stageCount;
+    }
+
+    public void setStageCount(int stageCount) {
+        this.stageCount = stageCount;
+    }
+
+    public long getInputRecords() {
+        return inputRecords;
+    }
+
+    public void setInputRecords(long inputRecords) {
+        this.inputRecords = inputRecords;
+    }
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public void setInputBytes(long inputBytes) {
+        this.inputBytes = inputBytes;
+    }
+
+    public long getShuffleReadBytes() {
+        return shuffleReadBytes;
+    }
+
+    public void setShuffleReadBytes(long shuffleReadBytes) {
+        this.shuffleReadBytes = shuffleReadBytes;
+    }
+
+    public long getShuffleWriteBytes() {
+        return shuffleWriteBytes;
+    }
+
+    public void setShuffleWriteBytes(long shuffleWriteBytes) {
+        this.shuffleWriteBytes = shuffleWriteBytes;
+    }
+
+    public long getSpillBytes() {
+        return spillBytes;
+    }
+
+    public void setSpillBytes(long spillBytes) {
+        this.spillBytes = spillBytes;
+    }
+
+    public long getGcTime() {
+        return gcTime;
+    }
+
+    public void setGcTime(long gcTime) {
+        this.gcTime = gcTime;
+    }
+
+    public long getProfileRows() {
+        return profileRows;
+    }
+
+    public void setProfileRows(long profileRows) {
+        this.profileRows = profileRows;
+    }
+
+    public String getStages() {
+        return stages;
+    }
+
+    public void setStages(String stages) {
+        this.stages = stages;
+    }
+
+    @Override
+    public String toString() {
+        return id + "\t" + tagId + "\t" + runId + "\t" + model + "\t" + status + "\t" + startTime + "\t" + endTime
+                + "\t" + duration + "\t" + stageCount + "\t" + inputRecords + "\t" + inputBytes + "\t" + shuffleReadBytes
+                + "\t" + shuffleWriteBytes + "\t" + spillBytes + "\t" + gcTime + "\t" + profileRows;
+    }
+
+}
@@ -4,9 +4,11 @@ import cn.itcast.tag.web.commons.bean.Result;
 import cn.itcast.tag.web.commons.bean.StateCode;
 import cn.itcast.tag.web.commons.controller.BaseController;
 import cn.itcast.tag.web.engine.bean.EngineBean;
+import cn.itcast.tag.web.engine.bean.ModelMetricsBean;
 import cn.itcast.tag.web.engine.service.EngineService;
 import cn.itcast.tag.web.user.bean.UserBean;
 import cn.itcast.tag.web.user.service.MyShiro;
+import cn.itcast.tag.web.utils.HBaseUtil;
 import cn.itcast.tag.web.utils.JsonUtil;
 import cn.itcast.tag.web.utils.PageEnum;
 import org.apache.logging.log4j.LogManager;
@@ -35,6 +37,8 @@ public class EngineController extends BaseController {
 
     @Resource
     private EngineService engineService;
+    @Resource
+    private HBaseUtil hbase;
 
     @RequestMapping(value = {"/index"}, method = RequestMethod.GET)
     public ModelAndView engineView(HttpServletRequest request) {
@@ -115,6 +119,56 @@ public class EngineController extends BaseController {
         }
     }
 
+    /**
+     * 根据tagId查询标签模型最近的运行指标
+     *
+     * @param pw
+     * @param bean
+     */
+    @ResponseBody
+    @RequestMapping(value = "/queryMetricsHistory")
+    public void queryMetricsHistory(PrintWriter pw, EngineBean bean) {
+        Result result = new Result();
+        if (null == bean || bean.getTagId() == 0) {
+            result.set(StateCode.PARAM_NULL_FAILD, "参数为空");
+            logger.info("==== queryMetricsHistory@params:param error ====");
+        } else {
+            logger.info("==== queryMetricsHistory@params:{} ====", bean);
+            List<ModelMetricsBean> metricsBeans = engineService.queryMetricsHistory(bean);
+            if (null != metricsBeans && !metricsBeans.isEmpty()) {
+                result.set(StateCode.QUERY_SUCCESS, "success", metricsBeans);
+            } else {
+                result.set(StateCode.QUERY_ZERO_SUCCESS, "none");
+            }
+        }
+        String resultJson = JsonUtil.obj2Json(result);
+        try {
+            pw.write(resultJson);
+            logger.info("==== queryMetricsHistory@result:{} ====", result);
+        } catch (Exception e) {
+            logger.error("==== queryMetricsHistory@result:服务器错误 ====");
+        }
+    }
+
+    /**
+     * 查询HBase连接池和Table句柄指标
+     *
+     * @param pw
+     */
+    @ResponseBody
+    @RequestMapping(value = "/queryHBaseMetrics")
+    public void queryHBaseMetrics(PrintWriter pw) {
+        Result result = new Result();
+        result.set(StateCode.QUERY_SUCCESS, "success", hbase.getMetrics());
+        String resultJson = JsonUtil.obj2Json(result);
+        try {
+            pw.write(resultJson);
+            logger.info("==== queryHBaseMetrics@result:{} ====", result);
+        } catch (Exception e) {
+            logger.error("==== queryHBaseMetrics@result:服务器错误 ====");
+        }
+    }
+
     /**
      * 停止任务
      *
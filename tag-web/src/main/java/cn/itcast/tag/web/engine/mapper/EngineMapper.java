@@ -3,6 +3,8 @@ package cn.itcast.tag.web.engine.mapper;
 
 import cn.itcast.tag.web.engine.bean.EngineBean;
 import cn.itcast.tag.web.engine.bean.ModelMetaDataBean;
+import cn.itcast.tag.web.engine.bean.ModelMetricsBean;
+import org.apache.ibatis.annotations.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -31,6 +33,15 @@ public interface EngineMapper {
      */
     public List<EngineBean> queryEngineInfo(EngineBean bean);
 
+    /**
+     * 根据tagId 查询最近的运行指标，按运行时间倒序
+     *
+     * @param tagId
+     * @param limit 最多返回的条数
+     * @return
+     */
+    public List<ModelMetricsBean> queryMetricsHistory(@Param("tagId") long tagId, @Param("limit") int limit);
+
     /**
      * 根据标签id查询启动任务所需数据
      *
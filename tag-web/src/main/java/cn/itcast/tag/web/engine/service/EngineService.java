@@ -1,6 +1,7 @@
 package cn.itcast.tag.web.engine.service;
 
 import cn.itcast.tag.web.engine.bean.EngineBean;
+import cn.itcast.tag.web.engine.bean.ModelMetricsBean;
 import cn.itcast.tag.web.user.bean.UserBean;
 
 import java.util.List;
@@ -43,6 +44,14 @@ public interface EngineService {
      */
     public List<EngineBean> queryMonitorInfoByAll(EngineBean bean);
 
+    /**
+     * 查询标签模型最近的运行指标
+     *
+     * @param bean
+     * @return
+     */
+    public List<ModelMetricsBean> queryMetricsHistory(EngineBean bean);
+
     /**
      * 启动quartz 定时任务
      *
@@ -4,6 +4,7 @@ import cn.itcast.tag.web.engine.bean.EngineBean;
 import cn.itcast.tag.web.engine.bean.MetaDataBean;
 import cn.itcast.tag.web.engine.bean.ModelBean;
 import cn.itcast.tag.web.engine.bean.ModelMetaDataBean;
+import cn.itcast.tag.web.engine.bean.ModelMetricsBean;
 import cn.itcast.tag.web.engine.mapper.EngineMapper;
 import cn.itcast.tag.web.engine.mapper.MetaDataMapper;
 import cn.itcast.tag.web.engine.mapper.ModelMapper;
@@ -31,6 +32,8 @@ import java.util.Properties;
 @Service
 @Transactional
 public class EngineServiceImpl implements EngineService {
+    // 查询运行指标历史时最多返回的条数
+    private static final int METRICS_HISTORY_LIMIT = 100;
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     @Resource
@@ -175,6 +178,19 @@ public class EngineServiceImpl implements EngineService {
         return engineBeans;
     }
 
+    @Override
+    public List<ModelMetricsBean> queryMetricsHistory(EngineBean bean) {
+        List<ModelMetricsBean> metricsBeans = null;
+        try {
+            metricsBeans = engineMapper.queryMetricsHistory(bean.getTagId(), METRICS_HISTORY_LIMIT);
+            logger.info("==== queryMetricsHistory@exec:{} ====", metricsBeans);
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.error("==== queryMetricsHistory@err:{} ====", e);
+        }
+        return metricsBeans;
+    }
+
     @Override
     public boolean stopEngine(EngineBean bean, UserBean userBean) {
         List<EngineBean> engineBeans = engineMapper.queryEngineInfo(bean);
@@ -1,8 +1,11 @@
 package cn.itcast.tag.web.mergetag.mapper;
 
 import cn.itcast.tag.web.mergetag.bean.MergeTagTagMapBean;
+import org.apache.ibatis.annotations.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 /**
  * 组合标签与基础标签关联
  *
@@ -27,4 +30,12 @@ public interface MergeTagTagMapMapper {
      */
     public int delMergeTagMapForId(MergeTagTagMapBean bean);
 
+    /**
+     * 根据组合标签ID按创建顺序查询关联的基础标签和条件
+     *
+     * @param mergeTagId
+     * @return
+     */
+    public List<MergeTagTagMapBean> queryMergeTagTagMapForMergeTagId(@Param("mergeTagId") long mergeTagId);
+
 }
@@ -1,10 +1,12 @@
 package cn.itcast.tag.web.mergetag.service;
 
+import cn.itcast.model.tools.parser.TagExpression;
 import cn.itcast.tag.web.commons.bean.Bean;
 import cn.itcast.tag.web.mergetag.bean.MergeTagBean;
 import cn.itcast.tag.web.mergetag.bean.form.UserMergeTagTagFormBean;
 import cn.itcast.tag.web.user.bean.RoleBean;
 import cn.itcast.tag.web.user.bean.UserBean;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.util.List;
 import java.util.Map;
@@ -89,4 +91,38 @@ public interface MergeTagService {
      */
     public MergeTagBean getBasicTagNum(Long id);
 
+    /**
+     * 组合标签的条件表达式
+     *
+     * @param mergeTagId
+     * @return 没有关联基础标签时返回null
+     */
+    public TagExpression queryMergeTagExpression(long mergeTagId);
+
+    /**
+     * 组合标签的用户位图，优先读取组合标签模型物化的位图，没有时在基础标签的用户位图上计算
+     *
+     * @param mergeTagId
+     * @return 不要修改返回的位图
+     */
+    public RoaringBitmap queryMergeTagUsers(long mergeTagId);
+
+    /**
+     * 组合标签的用户数
+     *
+     * @param mergeTagId
+     * @return
+     */
+    public long queryMergeTagUserCount(long mergeTagId);
+
+    /**
+     * 分页查询组合标签用户的画像表RowKey
+     *
+     * @param mergeTagId
+     * @param offset     起始位置，从0开始
+     * @param limit      条数
+     * @return
+     */
+    public List<String> queryMergeTagRowKeys(long mergeTagId, int offset, int limit);
+
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package cn.itcast.tag.web.mergetag.service.impl;
 
-import cn.itcast.tag.web.basictag.mapper.BasicTagMapper;
+import cn.itcast.model.tools.hbase.TagIndex;
+import cn.itcast.model.tools.parser.TagExpression;
+import cn.itcast.tag.web.basictag.service.TagTreeCache;
 import cn.itcast.tag.web.commons.bean.Bean;
 import cn.itcast.tag.web.mergetag.bean.MergeTagBean;
 import cn.itcast.tag.web.mergetag.bean.MergeTagTagMapBean;
@@ -16,8 +18,10 @@ import cn.itcast.tag.web.user.bean.UserBean;
 import cn.itcast.tag.web.user.bean.UserRoleMapBean;
 import cn.itcast.tag.web.user.mapper.DataMapper;
 import cn.itcast.tag.web.user.service.MyShiro;
+import cn.itcast.tag.web.utils.HBaseUtil;
 import org.apache.commons.lang.StringUtils;
 import org.apache.shiro.SecurityUtils;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -40,6 +44,7 @@ public class MergeTagServiceImpl implements MergeTagService {
     private static final int SUCCESS = 1;
     private static final int FAILE = 0;
     private static final int EXIST = -1;
+    private static final int ONLINE = 4;
     private Logger logger = LoggerFactory.getLogger(getClass());
     @Resource
     private MergeTagMapper mergeTagMapper;
@@ -50,9 +55,11 @@ public class MergeTagServiceImpl implements MergeTagService {
     @Resource
     private UserMergeTagTagMapper userMergeTagTagMapper;
     @Resource
-    private BasicTagMapper basicTagMapper;
+    private TagTreeCache tagTreeCache;
     @Resource
     private DataMapper dataMapper;
+    @Resource
+    private HBaseUtil hbase;
 
     @Transactional(propagation = Propagation.REQUIRED, rollbackFor = Exception.class)
     @Override
@@ -247,6 +254,74 @@ public class MergeTagServiceImpl implements MergeTagService {
         return tag;
     }
 
+    @Override
+    public TagExpression queryMergeTagExpression(long mergeTagId) {
+        TagExpression expression = null;
+        try {
+            List<MergeTagTagMapBean> maps = mergeTagTagMapMapper.queryMergeTagTagMapForMergeTagId(mergeTagId);
+            if (null != maps && maps.size() > 0) {
+                List<Long> tagIds = new ArrayList<>();
+                List<String> conditions = new ArrayList<>();
+                for (MergeTagTagMapBean map : maps) {
+                    tagIds.add(map.getBasicTagId());
+                    conditions.add(map.getConditions());
+                }
+                expression = TagExpression.of(tagIds, conditions);
+            }
+            logger.info("==== queryMergeTagExpression@exec:{} ====", expression);
+        } catch (Exception e) {
+            logger.error("==== queryMergeTagExpression@err:{} ====", e);
+        }
+        return expression;
+    }
+
+    @Override
+    public RoaringBitmap queryMergeTagUsers(long mergeTagId) {
+        RoaringBitmap users = new RoaringBitmap();
+        try {
+            long start = System.currentTimeMillis();
+            TagExpression expression = queryMergeTagExpression(mergeTagId);
+            if (null == expression) {
+                return users;
+            }
+            // 与组合标签模型一样把非五级标签展开为其下全部五级标签，五级子孙标签从标签树缓存读取
+            expression = expression.expand(tagTreeCache.getAllLevel5Ids());
+            // 已上线的组合标签由组合标签模型物化为位图，只使用按当前条件物化的位图，否则按条件实时计算
+            MergeTagBean mergeTag = mergeTagMapper.queryMergeTagById(mergeTagId);
+            RoaringBitmap materialized = null != mergeTag && mergeTag.getState() == ONLINE
+                    ? hbase.getMergeTagIndex().getBitmap(mergeTagId, expression.digest()) : null;
+            if (null != materialized) {
+                users = materialized;
+            } else {
+                users = hbase.getTagIndex().evaluate(expression);
+            }
+            logger.info("==== queryMergeTagUsers@exec:{} users in {}ms ====", users.getLongCardinality(),
+                    System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger.error("==== queryMergeTagUsers@err:{} ====", e);
+        }
+        return users;
+    }
+
+    @Override
+    public long queryMergeTagUserCount(long mergeTagId) {
+        return queryMergeTagUsers(mergeTagId).getLongCardinality();
+    }
+
+    @Override
+    public List<String> queryMergeTagRowKeys(long mergeTagId, int offset, int limit) {
+        List<String> rowKeys = new ArrayList<>();
+        try {
+            RoaringBitmap users = queryMergeTagUsers(mergeTagId);
+            // 连接就绪后再获取倒排索引
+            TagIndex tagIndex = hbase.getTagIndex();
+            rowKeys = tagIndex.page(users, offset, limit);
+        } catch (Exception e) {
+            logger.error("==== queryMergeTagRowKeys@err:{} ====", e);
+        }
+        return rowKeys;
+    }
+
     // 判断权限
     private Boolean isAdministrator() {
         try {
@@ -1,17 +1,19 @@
 package cn.itcast.tag.web.micro.service.impl;
 
+import cn.itcast.model.tools.hbase.TagSet;
+import cn.itcast.model.tools.hbase.UserIndex;
+import cn.itcast.model.tools.hbase.UserIndex.IdType;
 import cn.itcast.tag.web.basictag.bean.BasicTagBean;
-import cn.itcast.tag.web.basictag.service.BasicTagService;
+import cn.itcast.tag.web.basictag.service.TagTreeCache;
 import cn.itcast.tag.web.mergetag.bean.MergeTagBean;
 import cn.itcast.tag.web.mergetag.service.MergeTagService;
 import cn.itcast.tag.web.micro.bean.MicroPortraitTag;
 import cn.itcast.tag.web.micro.bean.MicroPortraitUserBean;
 import cn.itcast.tag.web.micro.service.MicroService;
-import cn.itcast.tag.web.user.bean.RoleBean;
 import cn.itcast.tag.web.user.bean.UserBean;
-import cn.itcast.tag.web.user.bean.UserRoleMapBean;
 import cn.itcast.tag.web.user.service.MyShiro.Principal;
 import cn.itcast.tag.web.utils.AccountValidatorUtil;
+import cn.itcast.tag.web.utils.HBaseUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.shiro.SecurityUtils;
@@ -25,166 +27,96 @@ import java.util.Map.Entry;
 @Service
 public class MicroServiceImpl implements MicroService {
 
-    //HBase表名
-    private final String TABLE_NAME = "socialSecurity";//socialSecurityHDFS
-    //HBase用户信息列族
-    private final String FAMILY_USERINFO = "userInfo";
     private Logger logger = LogManager.getLogger(getClass());
-    //HBase标签列族
-//	private final String FAMILY_TAG = "tag";
-    @Resource
-    private BasicTagService basicTagService;
     @Resource
     private MergeTagService mergeTagService;
+    @Resource
+    private TagTreeCache tagTreeCache;
+    @Resource
+    private HBaseUtil hbase;
 
     @Override
     public MicroPortraitUserBean queryByNum(String num) {
         MicroPortraitUserBean microPortraitUserBean = new MicroPortraitUserBean();
-        String column = "";
         Principal curUser = (Principal) SecurityUtils.getSubject().getPrincipal();
-        List<UserRoleMapBean> roleMaps = curUser.getRoleMaps();
-        Long roleId = roleMaps.get(0).getRoleId();
+        long userId = curUser.getId();
+        long roleId = curUser.getRoleMaps().get(0).getRoleId();
+        IdType type = null;
         if (AccountValidatorUtil.isMobile(num)) {
-            column = "phoneNum";
+            type = IdType.PHONE;
         } else if (AccountValidatorUtil.isEmail(num)) {
-            column = "email";
+            type = IdType.EMAIL;
         } else if (AccountValidatorUtil.isQQ(num)) {
-            column = "qq";
+            type = IdType.QQ;
         } else if (AccountValidatorUtil.isIDCard(num)) {
-            column = "id";
+            type = IdType.ID_CARD;
+        }
+        if (null == type) {
+            logger.info("==== queryByNum@exec:号码格式不正确 ====");
+            return microPortraitUserBean;
         }
         try {
-            //TODO 改用假数据
-            //HBaseUtil hBaseUtil = new HBaseUtil().build();
-            //Collection<Map<String, String>> result = hBaseUtil.queryForQuilfierExactly(TABLE_NAME, FAMILY_USERINFO, column, num);
-            Collection<Map<String, String>> result = new ArrayList<>();
-            result.add(new HashMap<String, String>() {
-                {
-                    put("id", "110115199402265244");
-                    put("email", "MR.Zhang@gmail.com");
-                    put("phoneNum", "15231238866");
-                    put("qq", "753446111");
-                    put("type", "0");
-                }
-            });
-
-
-            if (null != result && result.size() > 0) {
-                Object[] mapArray = result.toArray();
-                @SuppressWarnings("unchecked")
-                Map<String, String> userMap = (Map<String, String>) mapArray[0];
-                try {
-                    microPortraitUserBean.setIdNum(userMap.get("id"));
-                    microPortraitUserBean.setEmail(userMap.get("email"));
-                    microPortraitUserBean.setPhoneNum(userMap.get("phoneNum"));
-                    microPortraitUserBean.setQq(userMap.get("qq"));
-                    microPortraitUserBean.setType(userMap.get("type"));
-                    List<Long> basicTagIds = new ArrayList<>();
-                    List<Long> mergeTagIds = new ArrayList<>();
-                    //根据rowkey获取tag列族的信息，区分出basictag、mergetag
-                    //TODO 改用假数据
-                    //Map<String, String> tagMap = hBaseUtil.queryForRowKey(TABLE_NAME, userMap.get("rowKey"), FAMILY_USERINFO);
-                    Map<String, String> tagMap = new HashMap<String, String>() {{
-                        put("tb_50", "50");
-                        put("tb_55", "55");
-                        put("tb_62", "62");
-                        put("tb_67", "67");
-                        put("tb_78", "78");
-                        put("tb_81", "81");
-                        put("tb_88", "88");
-                        put("tb_89", "89");
-                        put("tb_96", "96");
-                        put("tb_100", "100");
-                        put("tb_113", "113");
-                        put("tb_118", "118");
-                        put("tb_122", "122");
-                        put("tb_127", "127");
-                        put("tb_133", "133");
-                        put("tb_141", "141");
-                        put("tb_143", "143");
-                        put("tb_149", "149");
-                        put("tb_151", "151");
-                        put("tb_155", "155");
-                        put("tb_158", "158");
-                        put("tb_162", "162");
-                        put("tb_164", "164");
-                        put("tb_166", "166");
-                        put("tb_170", "170");
-                        put("tb_176", "176");
-                        put("tb_180", "180");
-                        put("tb_183", "183");
-                        put("tb_190", "190");
-                        put("tb_195", "195");
-                        put("tb_198", "198");
-                        put("tb_203", "203");
-                        put("tb_210", "210");
-                        put("tb_215", "215");
-                        put("tb_220", "220");
-                        put("tb_223", "223");
-                        put("tb_230", "230");
-                    }};
-                    tagMap.forEach((k, v) -> {
-                        if (k.contains("tb_")) {
-                            basicTagIds.add(Long.parseLong(v));
-                        } else if (k.contains("tm_")) {
-                            mergeTagIds.add(Long.parseLong(v));
-                        }
-                    });
-
-                    List<MicroPortraitTag> microPortraitTags = new ArrayList<>();
-                    List<MicroPortraitTag> tagList = new ArrayList<>();
-                    if (null != basicTagIds) {
-                        for (Long tagId : basicTagIds) {
-                            //获取基础标签信息
-                            BasicTagBean paramBasicBean = new BasicTagBean();
-                            paramBasicBean.setId(tagId);
-                            List<BasicTagBean> basicTagBeans = basicTagService.queryBasicTagForId(paramBasicBean, getCurrentUserBean(), new RoleBean(roleId));
-                            //需要一直拿到一级（嵌套到五级）
-                            if (null != basicTagBeans && basicTagBeans.size() > 0) {
-                                //五级
-                                BasicTagBean basicTagBean = basicTagBeans.get(0);
-                                MicroPortraitTag microPortraitTag = new MicroPortraitTag();
-                                BeanUtils.copyProperties(basicTagBean, microPortraitTag);
-                                microPortraitTag.setType(0);
-                                //遍历拿到一级，并嵌套
-                                MicroPortraitTag levelOneTag = null;
-                                while (levelOneTag == null || levelOneTag.getLevel() != 1) {
-                                    List<MicroPortraitTag> topLevelBeans = new ArrayList<>();
-                                    topLevelBeans.add(microPortraitTag);
-                                    BasicTagBean tmpBasic = getLevelOneTagBeanById(microPortraitTag.getPid());
-                                    if (null == tmpBasic) {
-                                        break;
-                                    }
-                                    levelOneTag = new MicroPortraitTag();
-                                    BeanUtils.copyProperties(tmpBasic, levelOneTag);
-                                    levelOneTag.setMicroSubTags(topLevelBeans);
-                                    microPortraitTag = levelOneTag;
-                                }
-                                microPortraitTags.add(microPortraitTag);
-                            }
-                        }
-                        //合并
-                        tagList = combine(microPortraitTags);
-                    }
-
-                    if (null != mergeTagIds) {
-                        for (Long tagId : mergeTagIds) {
-                            //获取组合标签信息
-                            MergeTagBean mergeTagBean = mergeTagService.queryMergeTagById(tagId);
-                            if (null != mergeTagBean) {
-                                MicroPortraitTag microPortraitTag = new MicroPortraitTag();
-                                BeanUtils.copyProperties(mergeTagBean, microPortraitTag);
-                                microPortraitTag.setName(mergeTagBean.getName());
-                                microPortraitTag.setType(1);
-                                tagList.add(microPortraitTag);
-                            }
+            long start = System.currentTimeMillis();
+            //通过二级索引定位画像表RowKey，再读取该用户的标签
+            Map<String, String> userMap = hbase.getUserIndex().get(type, num);
+            if (null == userMap) {
+                logger.info("==== queryByNum@exec:用户不存在 ====");
+                return microPortraitUserBean;
+            }
+            microPortraitUserBean.setIdNum(userMap.get(IdType.ID_CARD.getColumn()));
+            microPortraitUserBean.setEmail(userMap.get(IdType.EMAIL.getColumn()));
+            microPortraitUserBean.setPhoneNum(userMap.get(IdType.PHONE.getColumn()));
+            microPortraitUserBean.setQq(userMap.get(IdType.QQ.getColumn()));
+            microPortraitUserBean.setType(userMap.get("type"));
+            //画像表和标签列使用与标签模型相同的配置
+            String tagIdsCol = hbase.getProfileTagIdsCol();
+            String mergeTagIdsCol = hbase.getProfileMergeTagIdsCol();
+            Map<String, TagSet> tagSets = HBaseUtil.queryForTagSets(hbase.getProfileTable(), userMap.get(UserIndex.ROWKEY_COL),
+                    hbase.getProfileFamily(), tagIdsCol, mergeTagIdsCol);
+
+            List<MicroPortraitTag> microPortraitTags = new ArrayList<>();
+            for (long tagId : tagSets.get(tagIdsCol).toArray()) {
+                //获取基础标签信息
+                BasicTagBean basicTagBean = tagTreeCache.getTag(tagId, userId, roleId);
+                //需要一直拿到一级（嵌套到五级）
+                if (null != basicTagBean) {
+                    //五级
+                    MicroPortraitTag microPortraitTag = new MicroPortraitTag();
+                    BeanUtils.copyProperties(basicTagBean, microPortraitTag);
+                    microPortraitTag.setType(0);
+                    //遍历拿到一级，并嵌套
+                    MicroPortraitTag levelOneTag = null;
+                    while (levelOneTag == null || levelOneTag.getLevel() != 1) {
+                        List<MicroPortraitTag> topLevelBeans = new ArrayList<>();
+                        topLevelBeans.add(microPortraitTag);
+                        BasicTagBean tmpBasic = tagTreeCache.getTag(microPortraitTag.getPid(), userId, roleId);
+                        if (null == tmpBasic) {
+                            break;
                         }
+                        levelOneTag = new MicroPortraitTag();
+                        BeanUtils.copyProperties(tmpBasic, levelOneTag);
+                        levelOneTag.setMicroSubTags(topLevelBeans);
+                        microPortraitTag = levelOneTag;
                     }
-                    microPortraitUserBean.setTags(tagList);
-                } catch (Exception e) {
-                    logger.error("==== queryByNum@err:{} ====", e);
+                    microPortraitTags.add(microPortraitTag);
+                }
+            }
+            //合并
+            List<MicroPortraitTag> tagList = combine(microPortraitTags);
+
+            for (long tagId : tagSets.get(mergeTagIdsCol).toArray()) {
+                //获取组合标签信息
+                MergeTagBean mergeTagBean = mergeTagService.queryMergeTagById(tagId);
+                if (null != mergeTagBean) {
+                    MicroPortraitTag microPortraitTag = new MicroPortraitTag();
+                    BeanUtils.copyProperties(mergeTagBean, microPortraitTag);
+                    microPortraitTag.setName(mergeTagBean.getName());
+                    microPortraitTag.setType(1);
+                    tagList.add(microPortraitTag);
                 }
             }
+            microPortraitUserBean.setTags(tagList);
+            logger.info("==== queryByNum@exec:{} tags in {}ms ====", tagList.size(), System.currentTimeMillis() - start);
         } catch (Exception e) {
             logger.error("==== queryByNum@err:{} ====", e);
         }
@@ -241,16 +173,7 @@ public class MicroServiceImpl implements MicroService {
      */
     public BasicTagBean getLevelOneTagBeanById(Long pid) {
         Principal curUser = (Principal) SecurityUtils.getSubject().getPrincipal();
-        List<UserRoleMapBean> roleMaps = curUser.getRoleMaps();
-        Long roleId = roleMaps.get(0).getRoleId();
-        BasicTagBean paramTag = new BasicTagBean();
-        paramTag.setId(pid);
-        List<BasicTagBean> resultTagBeans = basicTagService.queryBasicTagForId(paramTag, getCurrentUserBean(), new RoleBean(roleId));
-        if (resultTagBeans.size() > 0) {
-            BasicTagBean basicTagBean = resultTagBeans.get(0);
-            return basicTagBean;
-        }
-        return null;
+        return tagTreeCache.getTag(pid, curUser.getId(), curUser.getRoleMaps().get(0).getRoleId());
     }
 
     /**
@@ -35,6 +35,10 @@ public class PageDTO<T> implements Serializable {
      * 数据总条数
      */
     private Integer count;
+    /**
+     * 部分标签查询超时或失败，只返回了部分结果
+     */
+    private boolean partial;
 
     public int getPage() {
         return page;
@@ -76,4 +80,12 @@ public class PageDTO<T> implements Serializable {
         this.count = count;
     }
 
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
 }
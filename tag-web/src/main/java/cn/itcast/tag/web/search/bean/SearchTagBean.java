@@ -46,6 +46,18 @@ public class SearchTagBean extends BasicTagBean {
      */
     private String tagPathName;
 
+    /**
+     * 子标签的用户查询超时或失败，只返回了部分结果
+     */
+    private boolean partial;
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
 
     public List<SearchUserBean> getTop5Users() {
         return top5Users;
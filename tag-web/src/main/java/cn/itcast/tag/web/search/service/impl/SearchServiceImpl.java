@@ -1,8 +1,11 @@
 package cn.itcast.tag.web.search.service.impl;
 
+import cn.itcast.model.tools.hbase.TagIndex;
+import cn.itcast.model.tools.hbase.TagSet;
 import cn.itcast.tag.web.basictag.bean.BasicTagBean;
 import cn.itcast.tag.web.basictag.bean.form.BasicModelRuleFormBean;
 import cn.itcast.tag.web.basictag.service.BasicTagService;
+import cn.itcast.tag.web.basictag.service.TagTreeCache;
 import cn.itcast.tag.web.search.bean.PageDTO;
 import cn.itcast.tag.web.search.bean.SearchTagBean;
 import cn.itcast.tag.web.search.bean.SearchUserBean;
@@ -18,35 +21,103 @@ import cn.itcast.tag.web.utils.SolrUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.shiro.SecurityUtils;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class SearchServiceImpl implements SearchService {
 
     //solr collection
     private final String SOLR_COLLECTION = "socialSecurity";
-    //HBase表名
-    private final String TABLE_NAME = "tbl_tag_user_profile";//socialSecurityHDFS
-    //HBase用户信息列族
-    private final String FAMILY_USERINFO = "haier";
-    //HBase标签列族
-    private final String FAMILY_TAG = "haier";
     @Resource
     BasicTagService basicTagService;
     @Resource
     TagUserCountMapper tagUserCountMapper;
     @Resource
     HBaseUtil hbase;
+    @Resource
+    TagTreeCache tagTreeCache;
+    //并行查询线程数
+    @Value("${search.fanout.pool.size:16}")
+    private int fanOutPoolSize = 16;
+    //一次请求内并行查询的总超时(毫秒)，超时的查询不计入结果
+    @Value("${search.fanout.timeout:3000}")
+    private long fanOutTimeout = 3000;
+    private ThreadPoolExecutor fanOutPool;
     private Logger logger = LogManager.getLogger(getClass());
 
+    @PostConstruct
+    public void init() {
+        AtomicInteger threads = new AtomicInteger();
+        // 有界队列，队列满时拒绝，被拒绝的查询按超时处理，不占用请求线程也不突破请求的超时时间
+        fanOutPool = new ThreadPoolExecutor(fanOutPoolSize, fanOutPoolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(fanOutPoolSize * 16), r -> {
+            Thread thread = new Thread(r, "search-fanout-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        fanOutPool.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        fanOutPool.shutdownNow();
+    }
+
+    /**
+     * 并行执行查询并等待到超时，返回按任务顺序的结果，线程池已满被拒绝、超时或失败的任务结果为null
+     *
+     * @param name  方法名，用于日志
+     * @param tasks
+     * @return
+     */
+    private <T> List<T> fanOut(String name, List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.isEmpty()) {
+            return results;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fanOutTimeout);
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            Future<T> future = null;
+            try {
+                future = fanOutPool.submit(task);
+            } catch (RejectedExecutionException e) {
+                logger.warn("==== {}@err:查询线程池已满 ====", name);
+            }
+            futures.add(future);
+        }
+        for (Future<T> future : futures) {
+            T result = null;
+            if (null != future) {
+                try {
+                    result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    future.cancel(true);
+                    logger.warn("==== {}@err:查询超时({}ms) ====", name, fanOutTimeout);
+                } catch (InterruptedException e) {
+                    future.cancel(true);
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    logger.error("==== {}@err:{} ====", name, e.getCause());
+                }
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
     public static void main(String[] args) {
         SolrUtil solrUtil = new SolrUtil("tagCollectionHDFS");
         List<String> tags = new ArrayList<>();
@@ -63,24 +134,20 @@ public class SearchServiceImpl implements SearchService {
     public BasicTagBean searchTagList(long id) {
         BasicTagBean basicTagBean = null;
         try {
-            //根据名称查出对应的tag
+            //根据ID查出对应的tag
             MyShiro.Principal curUser = (MyShiro.Principal) SecurityUtils.getSubject().getPrincipal();
-            List<UserRoleMapBean> roleMaps = curUser.getRoleMaps();
-            Long roleId = roleMaps.get(0).getRoleId();
-            BasicTagBean paramTagBean = new BasicTagBean();
-            paramTagBean.setId(id);
-            List<BasicTagBean> basicTagBeans = basicTagService.queryBasicTagForId(paramTagBean, getCurrentUserBean(), new RoleBean(roleId));
-            if (null != basicTagBeans && basicTagBeans.size() > 0) {
-                basicTagBean = basicTagBeans.get(0);
+            long userId = curUser.getId();
+            long roleId = curUser.getRoleMaps().get(0).getRoleId();
+            basicTagBean = tagTreeCache.getTag(id, userId, roleId);
+            if (null != basicTagBean) {
                 //获取子列表
-                List<BasicTagBean> subTags = getSubTagBeanByPid(basicTagBean.getId());
-                basicTagBean.setSubTags(subTags);
+                basicTagBean.setSubTags(tagTreeCache.getSubTree(basicTagBean.getId(), userId, roleId));
                 //获取父级直到一级
                 BasicTagBean levelOneTag = null;
                 while (levelOneTag == null || levelOneTag.getLevel() != 1) {
                     List<BasicTagBean> topLevelBeans = new ArrayList<>();
                     topLevelBeans.add(basicTagBean);
-                    levelOneTag = getLevelOneTagBeanById(basicTagBean.getPid());
+                    levelOneTag = tagTreeCache.getTag(basicTagBean.getPid(), userId, roleId);
                     if (null == levelOneTag) {
                         break;
                     }
@@ -99,17 +166,22 @@ public class SearchServiceImpl implements SearchService {
         Integer offset = getOffset(page, pageSize);
         List<SearchUserBean> result = new ArrayList<>();
         List<Map<String, String>> userInfos = new ArrayList<>();
-        //先拿到所有五级id
-        List<Long> tagIds = new ArrayList<>();
+        Integer count = null;
+        boolean partial = false;
+        //先拿到每个标签的所有五级id
+        List<List<Long>> tagIdGroups = new ArrayList<>();
         //solr查询条件
         List<String> tagsParam = new ArrayList<>();
+        MyShiro.Principal curUser = (MyShiro.Principal) SecurityUtils.getSubject().getPrincipal();
+        long userId = curUser.getId();
+        long roleId = curUser.getRoleMaps().get(0).getRoleId();
         String[] idArr = ids.split(",");
         for (int i = 0; i < idArr.length; i++) {
             String tagId = idArr[i];
             //遍历
-            List<Long> subTagIds = getLevel5IdsByTagId(Long.parseLong(tagId));
-            if (null != subTagIds) {
-                tagIds.addAll(subTagIds);
+            List<Long> subTagIds = tagTreeCache.getLevel5Ids(Long.parseLong(tagId), userId, roleId);
+            if (null != subTagIds && !subTagIds.isEmpty()) {
+                tagIdGroups.add(subTagIds);
                 for (Long subTagId : subTagIds) {
                     //tagsParam.add("tb_"+subTagId);
                 }
@@ -122,9 +194,66 @@ public class SearchServiceImpl implements SearchService {
 
 //		SolrUtil solrUtil = new SolrUtil(SOLR_COLLECTION);
         try {
-            hbase.createConnection();
-            for (Long tagId : tagIds) {
-                userInfos.addAll(hbase.queryForQuilfier(TABLE_NAME, FAMILY_TAG, "tbids", tagId + ""));
+            TagIndex tagIndex = hbase.getTagIndex();
+            // 扫描画像表时每个标签最多取到当前页末尾
+            long scanLimit = (long) offset + pageSize;
+            // 每个标签并行查询：有倒排索引时读取位图，没有索引时按五级标签ID扫描，结果求并集
+            List<Callable<Object>> tasks = new ArrayList<>();
+            for (List<Long> tagIds : tagIdGroups) {
+                tasks.add(() -> {
+                    Map<Long, RoaringBitmap> bitmaps = tagIndex.getBitmaps(tagIds);
+                    if (bitmaps.size() == new HashSet<>(tagIds).size()) {
+                        return RoaringBitmap.or(bitmaps.values().iterator());
+                    }
+                    return HBaseUtil.queryForTagRowKeys(hbase.getProfileTable(), hbase.getProfileFamily(),
+                            hbase.getProfileTagIdsCol(), TagSet.of(tagIds), scanLimit);
+                });
+            }
+            RoaringBitmap users = null;
+            // 扫描结果按RowKey排序去重
+            Set<String> scanned = new TreeSet<>();
+            for (Object tagResult : fanOut("searchUserListByTagIds", tasks)) {
+                if (null == tagResult) {
+                    partial = true;
+                } else if (tagResult instanceof RoaringBitmap) {
+                    users = null == users ? (RoaringBitmap) tagResult : RoaringBitmap.or(users, (RoaringBitmap) tagResult);
+                } else {
+                    List<String> rowKeys = (List<String>) tagResult;
+                    if (rowKeys.size() >= scanLimit) {
+                        // 扫描在当前页末尾截断，总数和后续页不完整
+                        partial = true;
+                    }
+                    scanned.addAll(rowKeys);
+                }
+            }
+            if (scanned.isEmpty() && null != users) {
+                // 标签倒排索引：位图求并集后分页，再按RowKey获取用户信息
+                count = users.getCardinality();
+                List<String> rowKeys = tagIndex.page(users, offset, pageSize);
+                userInfos.addAll(hbase.queryProfileUsers(rowKeys));
+            } else {
+                // 有标签还没有索引时，扫描画像表的结果与索引命中的用户合并：
+                // 先按位图顺序排列索引命中的用户，再按RowKey顺序排列索引之外的扫描结果，合并后分页
+                if (null == users) {
+                    users = new RoaringBitmap();
+                }
+                List<String> extra = new ArrayList<>();
+                Map<String, Integer> ordinals = tagIndex.getOrdinals(scanned);
+                for (String rowKey : scanned) {
+                    Integer ordinal = ordinals.get(rowKey);
+                    if (null == ordinal || !users.contains(ordinal)) {
+                        extra.add(rowKey);
+                    }
+                }
+                int indexed = users.getCardinality();
+                count = indexed + extra.size();
+                List<String> rowKeys = new ArrayList<>(tagIndex.page(users, offset, pageSize));
+                int extraOffset = Math.max(0, offset - indexed);
+                int extraLimit = pageSize - rowKeys.size();
+                if (extraLimit > 0 && extraOffset < extra.size()) {
+                    rowKeys.addAll(extra.subList(extraOffset, Math.min(extra.size(), extraOffset + extraLimit)));
+                }
+                userInfos.addAll(hbase.queryProfileUsers(rowKeys));
             }
             //List<String> rowKeys = solrUtil.queryRowkeyByTags(tagsParam, offset, pageSize);
             //userInfos = HBaseUtil.queryForRowKeys(TABLE_NAME, rowKeys, FAMILY_USERINFO);
@@ -144,53 +273,26 @@ public class SearchServiceImpl implements SearchService {
                     logger.error("==== searchUserListByTagIds@err:{} ====", e);
                 }
             }
-        } catch (IOException e) {
+        } catch (Exception e) {
             e.printStackTrace();
+            logger.error("==== searchUserListByTagIds@err:{} ====", e);
         }
         PageDTO<SearchUserBean> pageDTO = new PageDTO<>();
         pageDTO.setData(result);
         pageDTO.setPage(page);
         pageDTO.setPageSize(pageSize);
         pageDTO.setOffset(offset);
+        pageDTO.setCount(count);
+        pageDTO.setPartial(partial);
 //		pageDTO.setCount(solrUtil.queryRowkeyCountByTags(tagsParam));
 //		solrUtil.closeSolr();
         return pageDTO;
     }
 
-    //递归获取所有的五级id
+    //获取所有的五级id
     public List<Long> getLevel5IdsByTagId(Long tagId) {
-        List<Long> tagIds = new ArrayList<>();
         MyShiro.Principal curUser = (MyShiro.Principal) SecurityUtils.getSubject().getPrincipal();
-        UserBean loginUser = new UserBean();
-        loginUser.setId(curUser.getId());
-        List<UserRoleMapBean> roleMaps = curUser.getRoleMaps();
-        Long roleId = roleMaps.get(0).getRoleId();
-        //校验当前id是否为5级
-        BasicTagBean paramTagBean = new BasicTagBean();
-        paramTagBean.setId(tagId);
-        List<BasicTagBean> tmpTags = basicTagService.queryBasicTagForId(paramTagBean, loginUser, new RoleBean(roleId));
-        if (null != tmpTags && tmpTags.size() > 0) {
-            BasicTagBean tmpTagBean = tmpTags.get(0);
-            if (tmpTagBean.getLevel() == 5) {
-                tagIds.add(tagId);
-                return tagIds;
-            }
-        }
-        BasicTagBean basicTagBean = new BasicTagBean();
-        basicTagBean.setPid(tagId);
-        List<BasicTagBean> subTags = basicTagService.queryBasicTagForPid(basicTagBean, loginUser, new RoleBean(roleId));
-        if (null == subTags) {
-            return tagIds;
-        }
-        for (BasicTagBean subTag : subTags) {
-            if (subTag.getLevel() == 5) {
-                tagIds.add(subTag.getId());
-            } else {
-                List<Long> subIds = getLevel5IdsByTagId(subTag.getId());
-                tagIds.addAll(subIds);
-            }
-        }
-        return tagIds;
+        return tagTreeCache.getLevel5Ids(tagId, curUser.getId(), curUser.getRoleMaps().get(0).getRoleId());
     }
 
     @Override
@@ -202,40 +304,14 @@ public class SearchServiceImpl implements SearchService {
             UserBean loginUser = new UserBean();
             Long userId = curUser.getId();
             loginUser.setId(userId);
-            Long roleId = roleMaps.get(0).getId();
+            Long roleId = roleMaps.get(0).getRoleId();
             BasicTagBean paramTagBean = new BasicTagBean();
             paramTagBean.setName(name);
             List<BasicTagBean> basicTagBeans = basicTagService.queryBasicTagForName(paramTagBean, loginUser, new RoleBean(roleId));
-            Map<Long, BasicTagBean> basicTagBeanMap = new HashMap<>();
             if (null != basicTagBeans) {
                 for (BasicTagBean basicTagBean : basicTagBeans) {
-                    //获取父级直到一级
-                    BasicTagBean levelOneTag = null;
-                    while (levelOneTag == null || levelOneTag.getLevel() != 1) {
-                        List<BasicTagBean> topLevelBeans = new ArrayList<>();
-                        topLevelBeans.add(basicTagBean);
-                        if (!basicTagBeanMap.containsKey(basicTagBean.getPid())) {
-                            levelOneTag = getLevelOneTagBeanById(basicTagBean.getPid());
-                            basicTagBeanMap.put(basicTagBean.getPid(), levelOneTag);
-                        }
-                        levelOneTag = basicTagBeanMap.get(basicTagBean.getPid());
-                        if (null == levelOneTag) {
-                            break;
-                        }
-                        levelOneTag.setSubTags(topLevelBeans);
-                        basicTagBean = levelOneTag;
-                    }
-                    String pathTagName = "";
-                    while (true) {
-                        if (null == basicTagBean.getSubTags()) {
-                            break;
-                        }
-                        if (!pathTagName.equals("")) {
-                            pathTagName += " --- ";
-                        }
-                        pathTagName += basicTagBean.getName();
-                        basicTagBean = basicTagBean.getSubTags().get(0);
-                    }
+                    //从一级到父级的路径名称
+                    String pathTagName = tagTreeCache.getPathName(basicTagBean.getId(), userId, roleId);
                     SearchTagBean searchTagBean = new SearchTagBean();
                     BeanUtils.copyProperties(basicTagBean, searchTagBean);
                     searchTagBean.setTagPathName(pathTagName);
@@ -263,6 +339,10 @@ public class SearchServiceImpl implements SearchService {
             basicModelRuleFormBean.setTagName(basicTagBean.getName());
             List<BasicModelRuleFormBean> basicModelRuleFormBeans = basicTagService.queryBasicTagAndModelForWithPid(basicModelRuleFormBean, getCurrentUserBean(), roleBean);
             if (null != basicModelRuleFormBeans) {
+                // 所有子标签的top5用户和用户数并行查询，页面耗时取决于最慢的一个查询
+                List<SearchTagBean> subSearchTags = new ArrayList<>();
+                List<Callable<Object>> top5Tasks = new ArrayList<>();
+                List<Callable<Object>> countTasks = new ArrayList<>();
                 for (BasicModelRuleFormBean tagBean : basicModelRuleFormBeans) {
                     SearchTagBean searchTagBean = new SearchTagBean();
                     BeanUtils.copyProperties(tagBean, searchTagBean);
@@ -278,17 +358,34 @@ public class SearchServiceImpl implements SearchService {
                             subSearchTag.setId(subTag.getTagId());
                             subSearchTag.setName(subTag.getTagName());
                             subSearchTag.setScheTime(subTag.getScheTime());
-                            List<SearchUserBean> userBeans = queryUserInfoByTagId(String.valueOf(subTag.getTagId()));
-                            subSearchTag.setTop5Users(userBeans);
-                            subSearchTag.setUserCount(getUserCountByTagId(subTag.getTagId(), 1));
                             subSearchTag.setUserPercent(0.95);
                             subSearchs.add(subSearchTag);
-
+                            subSearchTags.add(subSearchTag);
+                            top5Tasks.add(() -> queryUserInfoByTagId(String.valueOf(subTag.getTagId())));
+                            countTasks.add(() -> getUserCountByTagId(subTag.getTagId(), 1));
                         }
                     }
                     searchTagBean.setSubSearchTags(subSearchs);
                     result.add(searchTagBean);
                 }
+                List<Callable<Object>> tasks = new ArrayList<>(top5Tasks);
+                tasks.addAll(countTasks);
+                List<Object> tagResults = fanOut("queryTagByIdAndLevel", tasks);
+                for (int i = 0; i < subSearchTags.size(); i++) {
+                    SearchTagBean subSearchTag = subSearchTags.get(i);
+                    List<SearchUserBean> userBeans = (List<SearchUserBean>) tagResults.get(i);
+                    Long userCount = (Long) tagResults.get(subSearchTags.size() + i);
+                    subSearchTag.setTop5Users(null == userBeans ? new ArrayList<>() : userBeans);
+                    subSearchTag.setUserCount(null == userCount ? 0 : userCount);
+                    subSearchTag.setPartial(null == userBeans || null == userCount);
+                }
+                for (SearchTagBean searchTagBean : result) {
+                    for (SearchTagBean subSearchTag : searchTagBean.getSubSearchTags()) {
+                        if (subSearchTag.isPartial()) {
+                            searchTagBean.setPartial(true);
+                        }
+                    }
+                }
             }
         } catch (Exception e) {
             logger.error("==== queryTagByIdAndLevel@err:{} ====", e);
@@ -303,61 +400,41 @@ public class SearchServiceImpl implements SearchService {
      * @return
      */
     public List<BasicTagBean> getSubTagBeanByPid(Long pid) {
-        BasicTagBean basicTagBean = new BasicTagBean();
-        basicTagBean.setPid(pid);
         MyShiro.Principal curUser = (MyShiro.Principal) SecurityUtils.getSubject().getPrincipal();
-        UserBean loginUser = new UserBean();
-        loginUser.setId(curUser.getId());
-        List<UserRoleMapBean> roleMaps = curUser.getRoleMaps();
-        Long roleId = roleMaps.get(0).getRoleId();
-        List<BasicTagBean> subTags = basicTagService.queryBasicTagForPid(basicTagBean, loginUser, new RoleBean(roleId));
-        if (null == subTags) {
-            return subTags;
-        }
-        if (subTags.size() > 0) {
-            for (BasicTagBean tagBean : subTags) {
-                if (tagBean.getLevel() == 5) {
-                    break;
-                }
-                List<BasicTagBean> result = getSubTagBeanByPid(tagBean.getId());
-                tagBean.setSubTags(result);
-            }
-        }
-        return subTags;
+        return tagTreeCache.getSubTree(pid, curUser.getId(), curUser.getRoleMaps().get(0).getRoleId());
     }
 
     /**
      * 根据id获取标签
      */
     public BasicTagBean getLevelOneTagBeanById(Long pid) {
-        BasicTagBean paramTag = new BasicTagBean();
-        paramTag.setId(pid);
         MyShiro.Principal curUser = (MyShiro.Principal) SecurityUtils.getSubject().getPrincipal();
-        List<UserRoleMapBean> roleMaps = curUser.getRoleMaps();
-        Long roleId = roleMaps.get(0).getRoleId();
-        List<BasicTagBean> resultTagBeans = basicTagService.queryBasicTagForId(paramTag, getCurrentUserBean(), new RoleBean(roleId));
-        if (null == resultTagBeans) {
-            return null;
-        }
-        if (resultTagBeans.size() > 0) {
-            BasicTagBean basicTagBean = resultTagBeans.get(0);
-            return basicTagBean;
-        }
-        return null;
+        return tagTreeCache.getTag(pid, curUser.getId(), curUser.getRoleMaps().get(0).getRoleId());
     }
 
+    /**
+     * 查询标签的前5个用户，查询失败时抛出异常，由调用方标记为部分结果
+     */
     @Override
     public List<SearchUserBean> queryUserInfoByTagId(String tagId) {
         List<SearchUserBean> list = new ArrayList<>();
         List<String> rowKeys = null;
         List<Map<String, String>> top5 = new ArrayList<>();
         try {
-            HBaseUtil hBaseUtil = new HBaseUtil();
-            String column = "basicTag_" + tagId;
-            rowKeys = hBaseUtil.queryForQuilfierName(TABLE_NAME, column, 5);
-            top5 = hBaseUtil.queryForRowKeys(TABLE_NAME, rowKeys, FAMILY_USERINFO);
-        } catch (Exception e) {
-            e.printStackTrace();
+            TagIndex tagIndex = hbase.getTagIndex();
+            RoaringBitmap users = tagIndex.getBitmap(Long.parseLong(tagId));
+            if (null != users) {
+                // 标签倒排索引：取位图中的前5个用户
+                rowKeys = tagIndex.page(users, 0, 5);
+            } else {
+                // 标签还没有索引时扫描画像表的标签集合列
+                rowKeys = HBaseUtil.queryForTagRowKeys(hbase.getProfileTable(), hbase.getProfileFamily(),
+                        hbase.getProfileTagIdsCol(), TagSet.of(Long.parseLong(tagId)), 5);
+            }
+            top5 = hbase.queryProfileUsers(rowKeys);
+        } catch (IOException e) {
+            logger.error("==== queryUserInfoByTagId@err:{} ====", e);
+            throw new UncheckedIOException(e);
         }
 
         for (Map<String, String> map : top5) {
@@ -368,7 +445,7 @@ public class SearchServiceImpl implements SearchService {
             map.put("bankNum", getSafeData(banknum));
             map.put("phone", getSafeData(phonenum));
             map.put("idNum", getSafeData(idnum));
-            map.put("name", name.substring(0, 1) + "**");
+            map.put("name", null == name || name.isEmpty() ? "" : name.substring(0, 1) + "**");
             try {
                 SearchUserBean sBean = (SearchUserBean) MapToBeanUtil.convertMap(SearchUserBean.class, map);
                 list.add(sBean);
@@ -2,6 +2,8 @@ package cn.itcast.tag.web.user.mapper;
 
 import cn.itcast.tag.web.basictag.bean.BasicTagBean;
 import cn.itcast.tag.web.mergetag.bean.MergeTagBean;
+import cn.itcast.tag.web.user.bean.RoleDataMapBean;
+import cn.itcast.tag.web.user.bean.UserDataMapBean;
 import org.apache.ibatis.annotations.Param;
 import org.springframework.stereotype.Repository;
 
@@ -71,4 +73,18 @@ public interface DataMapper {
      */
     public MergeTagBean getBasicTagNum(@Param("id") Long id);
 
+    /**
+     * 所有用户持有的基础标签关系
+     *
+     * @return
+     */
+    public List<UserDataMapBean> getAllUserBasicTagMaps();
+
+    /**
+     * 所有角色持有的基础标签关系
+     *
+     * @return
+     */
+    public List<RoleDataMapBean> getAllRoleBasicTagMaps();
+
 }
@@ -6,6 +6,7 @@
  */
 package cn.itcast.tag.web.user.service.impl;
 
+import cn.itcast.tag.web.basictag.service.TagTreeCache;
 import cn.itcast.tag.web.user.bean.RoleDataMapBean;
 import cn.itcast.tag.web.user.mapper.RoleDataMapMapper;
 import cn.itcast.tag.web.user.service.RoleDataMapService;
@@ -30,6 +31,8 @@ public class RoleDataMapServiceImpl implements RoleDataMapService {
 
     @Resource
     private RoleDataMapMapper roleDataMapMapper;
+    @Resource
+    private TagTreeCache tagTreeCache;
 
     /* (non-Javadoc)
      * @see com.mengyao.tag.user.service.RoleDataMapService#addRoleDataMap(com.mengyao.tag.user.bean.RoleDataMapBean)
@@ -45,6 +48,8 @@ public class RoleDataMapServiceImpl implements RoleDataMapService {
         } catch (Exception e) {
             logger.error("==== addRoleDataMap@err:{} ====", e);
             throw e;
+        } finally {
+            tagTreeCache.invalidate();
         }
         return state > 0;
     }
@@ -58,6 +63,8 @@ public class RoleDataMapServiceImpl implements RoleDataMapService {
         } catch (Exception e) {
             logger.error("==== addRoleDataMap@err:{} ====", e);
             throw e;
+        } finally {
+            tagTreeCache.invalidate();
         }
         return state > 0;
     }
@@ -74,6 +81,8 @@ public class RoleDataMapServiceImpl implements RoleDataMapService {
         } catch (Exception e) {
             logger.error("==== delRoleDataMapForId@err:{} ====", e);
             throw e;
+        } finally {
+            tagTreeCache.invalidate();
         }
         return state > 0;
     }
@@ -90,6 +99,8 @@ public class RoleDataMapServiceImpl implements RoleDataMapService {
         } catch (Exception e) {
             logger.error("==== delRoleDataMapForRoleId@err:{} ====", e);
             throw e;
+        } finally {
+            tagTreeCache.invalidate();
         }
         return state >= 0;
     }
@@ -106,6 +117,8 @@ public class RoleDataMapServiceImpl implements RoleDataMapService {
         } catch (Exception e) {
             logger.error("==== updateRoleDataMap@err:{} ====", e);
             throw e;
+        } finally {
+            tagTreeCache.invalidate();
         }
         return state > 0;
     }
@@ -6,6 +6,7 @@ import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author liuchengli
@@ -53,6 +54,22 @@ public class HBaseHelper {
 
     }
 
+    /**
+     * 使用指定的线程池执行批量操作，线程池由调用方关闭
+     *
+     * @param pool
+     * @return
+     * @throws IOException
+     */
+    public Connection getConnection(ExecutorService pool) throws IOException {
+        if (null == conf) {
+            conf = HBaseConfiguration.create();
+            conf.set(QUORUM, quorum);
+            conf.set(ZK_PORT, zkPort);
+        }
+        return ConnectionFactory.createConnection(conf, pool);
+    }
+
     /**
      * @param connection
      * @throws IOException
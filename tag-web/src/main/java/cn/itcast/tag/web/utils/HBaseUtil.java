@@ -1,5 +1,9 @@
 package cn.itcast.tag.web.utils;
 
+import cn.itcast.model.tools.hbase.ScanCursor;
+import cn.itcast.model.tools.hbase.TagIndex;
+import cn.itcast.model.tools.hbase.TagSet;
+import cn.itcast.model.tools.hbase.UserIndex;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.CellUtil;
@@ -9,27 +13,102 @@ import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.filter.*;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * HBase客户端
+ * 进程内共享一个线程安全的Connection和RPC线程池，由Spring创建和关闭，createConnection可重复调用；
+ * 每次查询从Connection获取轻量的Table句柄，用完即关闭，并统计Table句柄、调用耗时和线程池指标
+ *
  * @author liuchengli
  */
 @Component
 public class HBaseUtil {
 
-    private static Connection connection;
+    private static volatile Connection connection;
+    // Connection的批量Get/Put和Scan预取线程池
+    private static volatile ThreadPoolExecutor pool;
+    // 按Region并行计数的线程池，与Connection的线程池分开，避免扫描任务占满RPC线程
+    private static volatile ThreadPoolExecutor countPool;
+    private static final AtomicLong TABLES_OPENED = new AtomicLong();
+    private static final AtomicInteger TABLES_ACTIVE = new AtomicInteger();
+    private static final AtomicInteger TABLES_PEAK = new AtomicInteger();
+    private static final AtomicLong CALL_ERRORS = new AtomicLong();
+    private static final AtomicLong CALL_NANOS = new AtomicLong();
+    // 流式扫描每次RPC拉取的行数
+    private static volatile int scannerCaching = ScanCursor.DEFAULT_CACHING;
     Logger logger = Logger.getLogger(getClass());
     //bjqt233.qt,bjqt232.qt,bjqt231.qt
     @Value("${hbase.zookeeper.quorum}")
     private String addr;//="bjqt244.qt:2181,bjqt245.qt:2181,bjqt246.qt:2181";
     @Value("${hbase.zookeeper.property.clientPort}")
     private String port = "2181";
+    @Value("${hbase.zookeeper.znode.parent:/hbase-unsecure}")
+    private String znodeParent = "/hbase-unsecure";
+    //单次RPC超时(毫秒)
+    @Value("${hbase.rpc.timeout:10000}")
+    private int rpcTimeout = 10000;
+    //一次操作含重试的总超时(毫秒)
+    @Value("${hbase.client.operation.timeout:30000}")
+    private int operationTimeout = 30000;
+    @Value("${hbase.client.scanner.timeout.period:60000}")
+    private int scannerTimeout = 60000;
+    @Value("${hbase.client.retries.number:3}")
+    private int retries = 3;
+    //RPC线程池大小
+    @Value("${hbase.client.pool.size:64}")
+    private int poolSize = 64;
+    //按Region并行计数的线程数
+    @Value("${hbase.client.count.parallelism:8}")
+    private int countParallelism = 8;
+    @Value("${hbase.client.scanner.caching:500}")
+    private int scanCaching = ScanCursor.DEFAULT_CACHING;
+    //标签倒排索引表
+    @Value("${hbase.profile.index.table}")
+    private String indexTable = "tbl_profile_tag_index";
+    @Value("${hbase.profile.index.family}")
+    private String indexFamily = "i";
+    //画像表，与tag-model写入画像和标签倒排索引使用相同的配置项
+    @Value("${profile.hbase.table.name:tbl_profile}")
+    private String profileTable = "tbl_profile";
+    @Value("${profile.hbase.table.family.user:user}")
+    private String profileFamily = "user";
+    @Value("${profile.hbase.table.family.user.col:userId}")
+    private String profileUserCol = "userId";
+    @Value("${profile.hbase.table.family.common.col:tagIds}")
+    private String profileTagIdsCol = "tagIds";
+    @Value("${profile.hbase.table.family.merge.col:mergeTagIds}")
+    private String profileMergeTagIdsCol = "mergeTagIds";
+    //用户信息表，RowKey为用户ID
+    @Value("${user.index.source.table:tbl_users}")
+    private String userTable = "tbl_users";
+    @Value("${user.index.source.family:detail}")
+    private String userFamily = "detail";
+    //用户二级索引表
+    @Value("${hbase.user.index.table}")
+    private String userIndexTable = "tbl_profile_user_index";
+    @Value("${hbase.user.index.family}")
+    private String userIndexFamily = "i";
 
     public HBaseUtil() {
         //getConnection();
@@ -547,36 +626,36 @@ public class HBaseUtil {
      */
     @SuppressWarnings("unused")
     private static void addRow(String tableName, String rowKey, String family, Map<String, String> keyValue) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Put put = new Put(Bytes.toBytes(rowKey));
-        for (Entry<String, String> entry : keyValue.entrySet()) {
-            put.addColumn(Bytes.toBytes(family), Bytes.toBytes(entry.getKey()), Bytes.toBytes(entry.getValue()));
+        try (Table table = openTable(tableName)) {
+            Put put = new Put(Bytes.toBytes(rowKey));
+            for (Entry<String, String> entry : keyValue.entrySet()) {
+                put.addColumn(Bytes.toBytes(family), Bytes.toBytes(entry.getKey()), Bytes.toBytes(entry.getValue()));
+            }
+            table.put(put);
+            keyValue.clear();
         }
-        table.put(put);
-        table.close();
-        keyValue.clear();
     }
 
     public static void addRows(String tableName, String rowFamilySeparator, Map<String, Map<String, String>> keyValues) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        List<Put> puts = new ArrayList<Put>();
-        for (Entry<String, Map<String, String>> entry : keyValues.entrySet()) {
-            String key = entry.getKey();
-            if (null == rowFamilySeparator || rowFamilySeparator.isEmpty()) {
-                rowFamilySeparator = "_";
-            }
-            String rowKey = key.split(rowFamilySeparator)[0];
-            String family = key.split(rowFamilySeparator)[1];
-            Map<String, String> keyValue = entry.getValue();
-            Put put = new Put(Bytes.toBytes(rowKey), System.currentTimeMillis());
-            for (Entry<String, String> entry2 : keyValue.entrySet()) {
-                put.addColumn(Bytes.toBytes(family), Bytes.toBytes(entry2.getKey()), Bytes.toBytes(entry2.getValue()));
+        try (Table table = openTable(tableName)) {
+            List<Put> puts = new ArrayList<Put>();
+            for (Entry<String, Map<String, String>> entry : keyValues.entrySet()) {
+                String key = entry.getKey();
+                if (null == rowFamilySeparator || rowFamilySeparator.isEmpty()) {
+                    rowFamilySeparator = "_";
+                }
+                String rowKey = key.split(rowFamilySeparator)[0];
+                String family = key.split(rowFamilySeparator)[1];
+                Map<String, String> keyValue = entry.getValue();
+                Put put = new Put(Bytes.toBytes(rowKey), System.currentTimeMillis());
+                for (Entry<String, String> entry2 : keyValue.entrySet()) {
+                    put.addColumn(Bytes.toBytes(family), Bytes.toBytes(entry2.getKey()), Bytes.toBytes(entry2.getValue()));
+                }
+                puts.add(put);
             }
-            puts.add(put);
+            table.put(puts);
+            keyValues.clear();
         }
-        table.put(puts);
-        table.close();
-        keyValues.clear();
     }
 
     /**
@@ -588,10 +667,10 @@ public class HBaseUtil {
      * @throws IOException
      */
     public static void deleteByRowKey(String tableName, String rowKey) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Delete delete = new Delete(Bytes.toBytes(rowKey));
-        table.delete(delete);
-        table.close();
+        try (Table table = openTable(tableName)) {
+            Delete delete = new Delete(Bytes.toBytes(rowKey));
+            table.delete(delete);
+        }
     }
 
 
@@ -612,24 +691,58 @@ public class HBaseUtil {
      */
     public static List<Map<String, String>> queryForScan(String tableName, String family) throws IOException {
         List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
+        queryForScan(tableName, family, ScanCursor.NO_LIMIT, r -> rows.add(r.toMap()));
+        return rows;
+    }
+
+    /**
+     * 流式查询列簇，逐行访问复用的行视图，不在内存中保留结果
+     *
+     * @param tableName
+     * @param family
+     * @param limit     最多访问的行数
+     * @param visitor   返回false时停止
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public static long queryForScan(String tableName, String family, long limit, ScanCursor.RowVisitor visitor) throws IOException {
         Scan scan = new Scan();
         scan.addFamily(Bytes.toBytes(family));
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.add(row);
-            }
-        } finally {
-            rs.close();
+        return scan(tableName, scan, limit, visitor);
+    }
+
+    /**
+     * 流式扫描，逐行访问复用的行视图，按hbase.client.scanner.caching分批拉取
+     *
+     * @param tableName
+     * @param scan
+     * @param limit     最多访问的行数
+     * @param visitor   返回false时停止
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public static long scan(String tableName, Scan scan, long limit, ScanCursor.RowVisitor visitor) throws IOException {
+        return ScanCursor.forEach(openTable(tableName), withCaching(scan, limit), limit, visitor);
+    }
+
+    /**
+     * 打开扫描游标，用于导出等需要自行控制读取进度的场景，调用方负责关闭
+     *
+     * @param tableName
+     * @param scan
+     * @param limit     最多返回的行数
+     * @return
+     * @throws IOException
+     */
+    public static ScanCursor openScan(String tableName, Scan scan, long limit) throws IOException {
+        return new ScanCursor(openTable(tableName), withCaching(scan, limit), limit);
+    }
+
+    private static Scan withCaching(Scan scan, long limit) {
+        if (scan.getCaching() <= 0) {
+            scan.setCaching((int) Math.min(scannerCaching, Math.max(limit, 1)));
         }
-        return rows;
+        return scan;
     }
 
     /**
@@ -641,23 +754,24 @@ public class HBaseUtil {
      */
     public static List<String> queryAllRowKeyForScan(String tableName) throws IOException {
         List<String> result = new ArrayList<>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        ResultScanner rs = table.getScanner(scan);
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                if (null == cells || cells.length <= 0) {
-                    continue;
+        try (Table table = openTable(tableName)) {
+            Scan scan = new Scan();
+            ResultScanner rs = table.getScanner(scan);
+            try {
+                for (Result r = rs.next(); r != null; r = rs.next()) {
+                    Cell[] cells = r.rawCells();
+                    if (null == cells || cells.length <= 0) {
+                        continue;
+                    }
+                    Cell cell = cells[0];
+                    String rowKey = new String(CellUtil.cloneRow(cell));
+                    result.add(rowKey);
                 }
-                Cell cell = cells[0];
-                String rowKey = new String(CellUtil.cloneRow(cell));
-                result.add(rowKey);
+            } finally {
+                rs.close();
             }
-        } finally {
-            rs.close();
+            return result;
         }
-        return result;
     }
 
     /**
@@ -669,24 +783,12 @@ public class HBaseUtil {
      */
     public static List<Map<String, String>> queryForScan(String tableName) throws IOException {
         List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put("rowKey", new String(CellUtil.cloneRow(cell)));
-                    row.put("family", new String(CellUtil.cloneFamily(cell)));
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.add(row);
-            }
-        } finally {
-            rs.close();
-        }
+        scan(tableName, new Scan(), ScanCursor.NO_LIMIT, r -> {
+            Map<String, String> row = r.toMap();
+            row.put("rowKey", r.getRowKey());
+            row.put("family", r.getFamily());
+            return rows.add(row);
+        });
         return rows;
     }
 
@@ -702,25 +804,27 @@ public class HBaseUtil {
      */
     public static List<Map<String, String>> queryForTimeRange(String tableName, String family, long minStamp, long maxStamp) throws IOException {
         List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
+        queryForTimeRange(tableName, family, minStamp, maxStamp, ScanCursor.NO_LIMIT, r -> rows.add(r.toMap()));
+        return rows;
+    }
+
+    /**
+     * 根据时间范围流式查询
+     *
+     * @param tableName
+     * @param family
+     * @param minStamp
+     * @param maxStamp
+     * @param limit     最多访问的行数
+     * @param visitor   返回false时停止
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public static long queryForTimeRange(String tableName, String family, long minStamp, long maxStamp, long limit, ScanCursor.RowVisitor visitor) throws IOException {
         Scan scan = new Scan();
         scan.addFamily(Bytes.toBytes(family));
         scan.setTimeRange(minStamp, maxStamp);
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.add(row);
-            }
-        } finally {
-            rs.close();
-        }
-        return rows;
+        return scan(tableName, scan, limit, visitor);
     }
 
     /**
@@ -733,24 +837,25 @@ public class HBaseUtil {
      * @throws IOException
      */
     public static Map<String, String> queryForRowKey(String tableName, String rowKey, String family) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Get get = new Get(Bytes.toBytes(rowKey));
-        get.addFamily(Bytes.toBytes(family));
-        Scan scan = new Scan(get);
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell), "UTF-8"));
+        try (Table table = openTable(tableName)) {
+            Get get = new Get(Bytes.toBytes(rowKey));
+            get.addFamily(Bytes.toBytes(family));
+            Scan scan = new Scan(get);
+            ResultScanner rs = table.getScanner(scan);
+            Map<String, String> row = null;
+            try {
+                for (Result r = rs.next(); r != null; r = rs.next()) {
+                    Cell[] cells = r.rawCells();
+                    row = new HashMap<String, String>();
+                    for (Cell cell : cells) {
+                        row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell), "UTF-8"));
+                    }
                 }
+            } finally {
+                rs.close();
             }
-        } finally {
-            rs.close();
+            return row;
         }
-        return row;
     }
 
     /**
@@ -764,22 +869,23 @@ public class HBaseUtil {
      */
     public static List<Map<String, String>> queryForRowKeys(String tableName, List<String> rowKeys, String family) throws IOException {
         List<Map<String, String>> resultList = new ArrayList<>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        List<Get> getList = new ArrayList();
-        for (String rowKey : rowKeys) {
-            Get get = new Get(Bytes.toBytes(rowKey));
-            get.addFamily(Bytes.toBytes(family));
-            getList.add(get);
-        }
-        Result[] results = table.get(getList);
-        for (Result result : results) {//对返回的结果集进行操作
-            Map<String, String> row = new HashMap<String, String>();
-            for (Cell kv : result.rawCells()) {
-                row.put(new String(CellUtil.cloneQualifier(kv)), new String(CellUtil.cloneValue(kv), "UTF-8"));
+        try (Table table = openTable(tableName)) {
+            List<Get> getList = new ArrayList();
+            for (String rowKey : rowKeys) {
+                Get get = new Get(Bytes.toBytes(rowKey));
+                get.addFamily(Bytes.toBytes(family));
+                getList.add(get);
             }
-            resultList.add(row);
+            Result[] results = table.get(getList);
+            for (Result result : results) {//对返回的结果集进行操作
+                Map<String, String> row = new HashMap<String, String>();
+                for (Cell kv : result.rawCells()) {
+                    row.put(new String(CellUtil.cloneQualifier(kv)), new String(CellUtil.cloneValue(kv), "UTF-8"));
+                }
+                resultList.add(row);
+            }
+            return resultList;
         }
-        return resultList;
     }
 
     /**
@@ -794,29 +900,34 @@ public class HBaseUtil {
      */
     public static List<Map<String, String>> queryForRowKeyRange(String tableName, String family, String startRow, String stopRow) throws IOException {
         List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
+        queryForRowKeyRange(tableName, family, startRow, stopRow, ScanCursor.NO_LIMIT, r -> {
+            Map<String, String> row = r.toMap();
+            row.put("timestamp", String.valueOf(r.getTimestamp()));
+            row.put("rowKey", r.getRowKey());
+            row.put("family", r.getFamily());
+            return rows.add(row);
+        });
+        return rows;
+    }
+
+    /**
+     * 根据RowKey范围流式查询
+     *
+     * @param tableName
+     * @param family
+     * @param startRow
+     * @param stopRow
+     * @param limit     最多访问的行数
+     * @param visitor   返回false时停止
+     * @return 访问的行数
+     * @throws IOException
+     */
+    public static long queryForRowKeyRange(String tableName, String family, String startRow, String stopRow, long limit, ScanCursor.RowVisitor visitor) throws IOException {
         Scan scan = new Scan();
         scan.addFamily(Bytes.toBytes(family));
         scan.setStartRow(Bytes.toBytes(startRow));
         scan.setStopRow(Bytes.toBytes(stopRow));
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                row = new HashMap<String, String>();
-                for (Cell cell : cells) {
-                    row.put("timestamp", cell.getTimestamp() + "");
-                    row.put("rowKey", new String(CellUtil.cloneRow(cell)));
-                    row.put("family", new String(CellUtil.cloneFamily(cell)));
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell)));
-                }
-                rows.add(row);
-            }
-        } finally {
-            rs.close();
-        }
-        return rows;
+        return scan(tableName, scan, limit, visitor);
     }
 
     /**
@@ -831,35 +942,36 @@ public class HBaseUtil {
      */
     public static Collection<Map<String, String>> queryForQuilfier(String tableName, String family, String column, String value) throws IOException {
         Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        SubstringComparator comp = new SubstringComparator(value);
-        SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), column.getBytes(), CompareOp.EQUAL, comp);
-        filter.setFilterIfMissing(true);
-        PageFilter p = new PageFilter(5);
-        scan.setFilter(filter);
-        scan.setFilter(p);
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                for (Cell cell : cells) {
-                    String rowKey = new String(CellUtil.cloneRow(cell));
-                    if (null == row || !rows.containsKey(rowKey)) {
-                        row = new HashMap<String, String>();
+        try (Table table = openTable(tableName)) {
+            Scan scan = new Scan();
+            SubstringComparator comp = new SubstringComparator(value);
+            SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), column.getBytes(), CompareOp.EQUAL, comp);
+            filter.setFilterIfMissing(true);
+            PageFilter p = new PageFilter(5);
+            scan.setFilter(filter);
+            scan.setFilter(p);
+            ResultScanner rs = table.getScanner(scan);
+            Map<String, String> row = null;
+            try {
+                for (Result r = rs.next(); r != null; r = rs.next()) {
+                    Cell[] cells = r.rawCells();
+                    for (Cell cell : cells) {
+                        String rowKey = new String(CellUtil.cloneRow(cell));
+                        if (null == row || !rows.containsKey(rowKey)) {
+                            row = new HashMap<String, String>();
+                        }
+                        row.put("timestamp", cell.getTimestamp() + "");
+                        row.put("rowKey", rowKey);
+                        row.put("family", new String(CellUtil.cloneFamily(cell)));
+                        row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell), "UTF-8"));
+                        rows.put(rowKey, row);
                     }
-                    row.put("timestamp", cell.getTimestamp() + "");
-                    row.put("rowKey", rowKey);
-                    row.put("family", new String(CellUtil.cloneFamily(cell)));
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell), "UTF-8"));
-                    rows.put(rowKey, row);
                 }
+            } finally {
+                rs.close();
             }
-        } finally {
-            rs.close();
+            return rows.values();
         }
-        return rows.values();
     }
 
     /**
@@ -874,32 +986,33 @@ public class HBaseUtil {
      */
     public static Collection<Map<String, String>> queryForQuilfierExactly(String tableName, String family, String column, String value) throws IOException {
         Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), column.getBytes(), CompareOp.EQUAL, value.getBytes());
-        filter.setFilterIfMissing(true);
-        scan.setFilter(filter);
-        ResultScanner rs = table.getScanner(scan);
-        Map<String, String> row = null;
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                for (Cell cell : cells) {
-                    String rowKey = new String(CellUtil.cloneRow(cell));
-                    if (null == row || !rows.containsKey(rowKey)) {
-                        row = new HashMap<String, String>();
+        try (Table table = openTable(tableName)) {
+            Scan scan = new Scan();
+            SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), column.getBytes(), CompareOp.EQUAL, value.getBytes());
+            filter.setFilterIfMissing(true);
+            scan.setFilter(filter);
+            ResultScanner rs = table.getScanner(scan);
+            Map<String, String> row = null;
+            try {
+                for (Result r = rs.next(); r != null; r = rs.next()) {
+                    Cell[] cells = r.rawCells();
+                    for (Cell cell : cells) {
+                        String rowKey = new String(CellUtil.cloneRow(cell));
+                        if (null == row || !rows.containsKey(rowKey)) {
+                            row = new HashMap<String, String>();
+                        }
+                        row.put("timestamp", cell.getTimestamp() + "");
+                        row.put("rowKey", rowKey);
+                        row.put("family", new String(CellUtil.cloneFamily(cell)));
+                        row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell), "UTF-8"));
+                        rows.put(rowKey, row);
                     }
-                    row.put("timestamp", cell.getTimestamp() + "");
-                    row.put("rowKey", rowKey);
-                    row.put("family", new String(CellUtil.cloneFamily(cell)));
-                    row.put(new String(CellUtil.cloneQualifier(cell)), new String(CellUtil.cloneValue(cell), "UTF-8"));
-                    rows.put(rowKey, row);
                 }
+            } finally {
+                rs.close();
             }
-        } finally {
-            rs.close();
+            return rows.values();
         }
-        return rows.values();
     }
 
     /**
@@ -912,29 +1025,18 @@ public class HBaseUtil {
      * @throws IOException
      */
     public static List<String> queryForQuilfierName(String tableName, String qualifier, long pageSize) throws IOException {
-        Set<String> rowKeys = new HashSet<>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        Filter filter = new QualifierFilter(CompareOp.EQUAL, new BinaryComparator(Bytes.toBytes(qualifier)));
-        PageFilter pageFilter = new PageFilter(pageSize);
-        FilterList filterList = new FilterList();
-        filterList.addFilter(filter);
-        filterList.addFilter(pageFilter);
-        scan.setFilter(filterList);
-        ResultScanner rs = table.getScanner(scan);
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                for (Cell cell : cells) {
-                    String rowKey = new String(CellUtil.cloneRow(cell));
-                    rowKeys.add(rowKey);
-                }
-            }
-        } finally {
-            rs.close();
+        try (Table table = openTable(tableName)) {
+            Scan scan = new Scan();
+            Filter filter = new QualifierFilter(CompareOp.EQUAL, new BinaryComparator(Bytes.toBytes(qualifier)));
+            PageFilter pageFilter = new PageFilter(pageSize);
+            FilterList filterList = new FilterList();
+            filterList.addFilter(filter);
+            filterList.addFilter(pageFilter);
+            // 只返回RowKey，不传输列值
+            filterList.addFilter(new KeyOnlyFilter());
+            scan.setFilter(filterList);
+            return scanRowKeys(table, scan, pageSize);
         }
-        List<String> rows = new ArrayList<>(rowKeys);
-        return rows;
     }
 
     /**
@@ -948,33 +1050,23 @@ public class HBaseUtil {
      * @throws IOException
      */
     public static List<String> queryForMultiQuilfierName(String tableName, String family, Map<String, String> qualifierMap, long pageSize) throws IOException {
-        Set<String> rowKeys = new HashSet<>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-        for (Entry<String, String> entry : qualifierMap.entrySet()) {
-            SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), entry.getKey().getBytes(), CompareOp.EQUAL, entry.getValue().getBytes());
-            filter.setFilterIfMissing(true);
-            filterList.addFilter(filter);
-        }
-        PageFilter pageFilter = new PageFilter(pageSize);
-        filterList.addFilter(pageFilter);
-        scan.setFilter(filterList);
-        scan.addFamily(Bytes.toBytes(family));
-        ResultScanner rs = table.getScanner(scan);
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                for (Cell cell : cells) {
-                    String rowKey = new String(CellUtil.cloneRow(cell));
-                    rowKeys.add(rowKey);
-                }
+        try (Table table = openTable(tableName)) {
+            Scan scan = new Scan();
+            FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+            for (Entry<String, String> entry : qualifierMap.entrySet()) {
+                SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), entry.getKey().getBytes(), CompareOp.EQUAL, entry.getValue().getBytes());
+                filter.setFilterIfMissing(true);
+                filterList.addFilter(filter);
             }
-        } finally {
-            rs.close();
+            PageFilter pageFilter = new PageFilter(pageSize);
+            filterList.addFilter(pageFilter);
+            scan.setFilter(filterList);
+            // 只读取条件列，列值过滤需要列值所以不能只取RowKey
+            for (String qualifier : qualifierMap.keySet()) {
+                scan.addColumn(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+            }
+            return scanRowKeys(table, scan, pageSize);
         }
-        List<String> rows = new ArrayList<>(rowKeys);
-        return rows;
     }
 
     /**
@@ -988,48 +1080,38 @@ public class HBaseUtil {
      * @throws IOException
      */
     public static List<String> queryForMultiQuilfierNameOr(String tableName, String family, Map<String, String> qualifierMap, long pageSize) throws IOException {
-        Set<String> rowKeys = new HashSet<>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ONE);
-        for (Entry<String, String> entry : qualifierMap.entrySet()) {
-            SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), entry.getKey().getBytes(), CompareOp.EQUAL, entry.getValue().getBytes());
-            filter.setFilterIfMissing(true);
-            filterList.addFilter(filter);
-        }
-        PageFilter pageFilter = new PageFilter(pageSize);
-        filterList.addFilter(pageFilter);
-        scan.setFilter(filterList);
-        scan.addFamily(Bytes.toBytes(family));
-        ResultScanner rs = table.getScanner(scan);
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                for (Cell cell : cells) {
-                    String rowKey = new String(CellUtil.cloneRow(cell));
-                    rowKeys.add(rowKey);
-                }
+        try (Table table = openTable(tableName)) {
+            Scan scan = new Scan();
+            FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+            for (Entry<String, String> entry : qualifierMap.entrySet()) {
+                SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), entry.getKey().getBytes(), CompareOp.EQUAL, entry.getValue().getBytes());
+                filter.setFilterIfMissing(true);
+                filterList.addFilter(filter);
             }
-        } finally {
-            rs.close();
+            PageFilter pageFilter = new PageFilter(pageSize);
+            filterList.addFilter(pageFilter);
+            scan.setFilter(filterList);
+            for (String qualifier : qualifierMap.keySet()) {
+                scan.addColumn(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+            }
+            return scanRowKeys(table, scan, pageSize);
         }
-        List<String> rows = new ArrayList<>(rowKeys);
-        return rows;
     }
 
     public static void qualifierFilter() throws IOException {
-        Table mTable = connection.getTable(TableName.valueOf("portrait"));
         QualifierFilter columnsNameFilter = new QualifierFilter(CompareFilter.CompareOp.EQUAL, new BinaryComparator("basictag-14".getBytes()));
         Scan scan = new Scan();
         scan.setFilter(columnsNameFilter);
-        ResultScanner rs = mTable.getScanner(scan);
-        for (Result r = rs.next(); r != null; r = rs.next()) {
-            Cell[] cells = r.rawCells();
-            for (Cell cell : cells) {
-                System.out.println("==== " + new String(CellUtil.cloneRow(cell)) + "\t" +
-                        new String(CellUtil.cloneFamily(cell)) + "\t" +
-                        new String(CellUtil.cloneQualifier(cell)) + "\t" +
-                        new String(CellUtil.cloneValue(cell)));
+        try (Table mTable = openTable("portrait");
+             ResultScanner rs = mTable.getScanner(scan)) {
+            for (Result r = rs.next(); r != null; r = rs.next()) {
+                Cell[] cells = r.rawCells();
+                for (Cell cell : cells) {
+                    System.out.println("==== " + new String(CellUtil.cloneRow(cell)) + "\t" +
+                            new String(CellUtil.cloneFamily(cell)) + "\t" +
+                            new String(CellUtil.cloneQualifier(cell)) + "\t" +
+                            new String(CellUtil.cloneValue(cell)));
+                }
             }
         }
     }
@@ -1044,34 +1126,36 @@ public class HBaseUtil {
      * @throws IOException
      */
     public static List<String> queryForQuilfierName(String tableName, String family, String qualifier, long pageSize) throws IOException {
-        Set<String> rowKeys = new HashSet<>();
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan();
-        Filter qualifierFilter = new QualifierFilter(CompareFilter.CompareOp.EQUAL, new BinaryComparator(qualifier.getBytes()));
-        PageFilter pageFilter = new PageFilter(pageSize);
-        FilterList list = new FilterList();
-        list.addFilter(pageFilter);
-        list.addFilter(qualifierFilter);
-        scan.addFamily(Bytes.toBytes(family));
-        scan.setFilter(list);
-        System.out.println(scan.toJSON());
-        ResultScanner rs = table.getScanner(scan);
-        try {
-            for (Result r = rs.next(); r != null; r = rs.next()) {
-                Cell[] cells = r.rawCells();
-                for (Cell cell : cells) {
-                    System.out.println("==== " + new String(CellUtil.cloneRow(cell)) + "\t" +
-                            new String(CellUtil.cloneFamily(cell)) + "\t" +
-                            new String(CellUtil.cloneQualifier(cell)) + "\t" +
-                            new String(CellUtil.cloneValue(cell)));
-                    String rowKey = new String(CellUtil.cloneRow(cell));
-                    rowKeys.add(rowKey);
-                }
+        try (Table table = openTable(tableName)) {
+            Scan scan = new Scan();
+            // 只读取该列，并且只返回RowKey
+            scan.addColumn(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+            FilterList list = new FilterList();
+            list.addFilter(new PageFilter(pageSize));
+            list.addFilter(new KeyOnlyFilter());
+            scan.setFilter(list);
+            return scanRowKeys(table, scan, pageSize);
+        }
+    }
+
+    /**
+     * 扫描并收集RowKey，每行只取一次RowKey
+     *
+     * @param table
+     * @param scan
+     * @param pageSize 数量，PageFilter在每个Region内生效，客户端再截断
+     * @return
+     * @throws IOException
+     */
+    private static List<String> scanRowKeys(Table table, Scan scan, long pageSize) throws IOException {
+        List<String> rows = new ArrayList<>();
+        scan.setCaching((int) Math.min(Math.max(pageSize, 1), 1000));
+        scan.setCacheBlocks(false);
+        try (ResultScanner rs = table.getScanner(scan)) {
+            for (Result r = rs.next(); r != null && rows.size() < pageSize; r = rs.next()) {
+                rows.add(Bytes.toString(r.getRow()));
             }
-        } finally {
-            rs.close();
         }
-        List<String> rows = new ArrayList<>(rowKeys);
         return rows;
     }
 
@@ -1086,61 +1170,349 @@ public class HBaseUtil {
      * @throws IOException
      */
     public static long queryForQuilfierCount(String tableName, String family, String column, String value) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
         Scan scan = new Scan();
         SubstringComparator comp = new SubstringComparator(value);
         SingleColumnValueFilter filter = new SingleColumnValueFilter(family.getBytes(), column.getBytes(), CompareOp.EQUAL, comp);
         filter.setFilterIfMissing(true);
         scan.setFilter(filter);
-        ResultScanner rs = table.getScanner(scan);
+        // 只读取条件列
+        scan.addColumn(family.getBytes(), column.getBytes());
+        return queryForCount(tableName, scan);
+    }
+
+    /**
+     * 统计含有指定列的行数，只返回每行的第一个RowKey
+     *
+     * @param tableName
+     * @param family
+     * @param qualifier
+     * @return
+     * @throws IOException
+     */
+    public static long queryForQuilfierNameCount(String tableName, String family, String qualifier) throws IOException {
+        Scan scan = new Scan();
+        scan.addColumn(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+        return queryForCount(tableName, scan);
+    }
+
+    /**
+     * 按Region并行扫描计数，各Region的结果求和
+     * 没有过滤器时使用FirstKeyOnlyFilter只返回每行第一个单元格的RowKey；
+     * 有过滤器时由调用方用addColumn限定读取的列
+     *
+     * @param tableName
+     * @param scan      扫描条件，StartRow/StopRow会与Region范围取交集
+     * @return
+     * @throws IOException
+     */
+    public static long queryForCount(String tableName, Scan scan) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("HBase连接未创建或已关闭");
+        }
+        if (null == scan.getFilter()) {
+            scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+        }
+        scan.setCaching(1000);
+        scan.setCacheBlocks(false);
+        List<Scan> regionScans = new ArrayList<>();
+        try (RegionLocator locator = connection.getRegionLocator(TableName.valueOf(tableName))) {
+            Pair<byte[][], byte[][]> keys = locator.getStartEndKeys();
+            for (int i = 0; i < keys.getFirst().length; i++) {
+                byte[] start = keys.getFirst()[i];
+                byte[] stop = keys.getSecond()[i];
+                if (scan.getStartRow().length > 0 && Bytes.compareTo(scan.getStartRow(), start) > 0) {
+                    start = scan.getStartRow();
+                }
+                if (scan.getStopRow().length > 0 && (stop.length == 0 || Bytes.compareTo(scan.getStopRow(), stop) < 0)) {
+                    stop = scan.getStopRow();
+                }
+                if (stop.length > 0 && Bytes.compareTo(start, stop) >= 0) {
+                    continue;
+                }
+                Scan regionScan = new Scan(scan);
+                regionScan.setStartRow(start);
+                regionScan.setStopRow(stop);
+                regionScans.add(regionScan);
+            }
+        }
+        if (regionScans.size() <= 1 || null == countPool) {
+            long count = 0;
+            for (Scan regionScan : regionScans) {
+                count += countRows(tableName, regionScan);
+            }
+            return count;
+        }
+        List<Future<Long>> futures = new ArrayList<>();
+        for (Scan regionScan : regionScans) {
+            futures.add(countPool.submit(() -> countRows(tableName, regionScan)));
+        }
         long count = 0;
         try {
+            for (Future<Long> future : futures) {
+                count += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("==== queryForCount@err:interrupted ====");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            for (Future<Long> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return count;
+    }
+
+    private static long countRows(String tableName, Scan scan) throws IOException {
+        long count = 0;
+        try (Table table = openTable(tableName);
+             ResultScanner rs = table.getScanner(scan)) {
             for (Result r = rs.next(); r != null; r = rs.next()) {
                 count++;
             }
-        } finally {
-            rs.close();
         }
         return count;
     }
 
+    /**
+     * 根据RowKey查询画像标签集合，兼容旧的逗号分隔格式
+     *
+     * @param tableName
+     * @param rowKey
+     * @param family
+     * @param column
+     * @return
+     * @throws IOException
+     */
+    public static TagSet queryForTagSet(String tableName, String rowKey, String family, String column) throws IOException {
+        try (Table table = openTable(tableName)) {
+            Get get = new Get(Bytes.toBytes(rowKey));
+            get.addColumn(Bytes.toBytes(family), Bytes.toBytes(column));
+            Result result = table.get(get);
+            return TagSet.decode(result.getValue(Bytes.toBytes(family), Bytes.toBytes(column)));
+        }
+    }
+
+    /**
+     * 根据RowKey一次查询多个画像标签集合列，如基础标签和组合标签
+     *
+     * @param tableName
+     * @param rowKey
+     * @param family
+     * @param columns
+     * @return 列名到标签集合，没有值的列为空集合
+     * @throws IOException
+     */
+    public static Map<String, TagSet> queryForTagSets(String tableName, String rowKey, String family, String... columns) throws IOException {
+        Map<String, TagSet> tagSets = new HashMap<String, TagSet>();
+        byte[] familyBytes = Bytes.toBytes(family);
+        try (Table table = openTable(tableName)) {
+            Get get = new Get(Bytes.toBytes(rowKey));
+            for (String column : columns) {
+                get.addColumn(familyBytes, Bytes.toBytes(column));
+            }
+            Result result = table.get(get);
+            for (String column : columns) {
+                tagSets.put(column, TagSet.decode(result.getValue(familyBytes, Bytes.toBytes(column))));
+            }
+        }
+        return tagSets;
+    }
+
+    /**
+     * 查询包含任意一个指定标签的行的RowKey，只读取标签集合列
+     *
+     * @param tableName
+     * @param family
+     * @param column    标签集合列
+     * @param tagIds
+     * @param limit     最多返回的行数
+     * @return
+     * @throws IOException
+     */
+    public static List<String> queryForTagRowKeys(String tableName, String family, String column, TagSet tagIds, long limit) throws IOException {
+        List<String> rowKeys = new ArrayList<>();
+        if (tagIds.isEmpty() || limit <= 0) {
+            return rowKeys;
+        }
+        byte[] columnBytes = Bytes.toBytes(column);
+        long[] ids = tagIds.toArray();
+        Scan scan = new Scan();
+        scan.addColumn(Bytes.toBytes(family), columnBytes);
+        scan(tableName, scan, ScanCursor.NO_LIMIT, r -> {
+            TagSet tagSet = TagSet.decode(r.getBytes(columnBytes));
+            if (Arrays.stream(ids).anyMatch(tagSet::contains)) {
+                rowKeys.add(r.getRowKey());
+            }
+            return rowKeys.size() < limit;
+        });
+        return rowKeys;
+    }
+
+    /**
+     * 查询包含任意一个指定标签的用户，按标签ID完全匹配
+     *
+     * @param tableName
+     * @param family
+     * @param column    标签集合列
+     * @param tagIds
+     * @param pageSize  最多返回的用户数
+     * @return
+     * @throws IOException
+     */
+    public static Collection<Map<String, String>> queryForTags(String tableName, String family, String column, TagSet tagIds, long pageSize) throws IOException {
+        List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        if (tagIds.isEmpty()) {
+            return rows;
+        }
+        byte[] columnBytes = Bytes.toBytes(column);
+        long[] ids = tagIds.toArray();
+        Scan scan = new Scan();
+        scan.addFamily(Bytes.toBytes(family));
+        // 只解码命中标签的行
+        scan(tableName, scan, ScanCursor.NO_LIMIT, r -> {
+            TagSet tagSet = TagSet.decode(r.getBytes(columnBytes));
+            if (Arrays.stream(ids).noneMatch(tagSet::contains)) {
+                return true;
+            }
+            Map<String, String> row = r.toMap();
+            row.put("timestamp", String.valueOf(r.getTimestamp()));
+            row.put("rowKey", r.getRowKey());
+            row.put("family", r.getFamily());
+            row.put(column, tagSet.toString());
+            rows.add(row);
+            return rows.size() < pageSize;
+        });
+        return rows;
+    }
+
     public static void updateQualifier(String tableName, String rowKey, String family, String qualifier, String value) {
-        try {
-            Table table = connection.getTable(TableName.valueOf(tableName));
+        try (Table table = openTable(tableName)) {
             Put put = new Put(Bytes.toBytes(rowKey));
             put.addColumn(Bytes.toBytes(family), Bytes.toBytes(qualifier), Bytes.toBytes(value));
             put.setDurability(Durability.SYNC_WAL);
             table.put(put);
-            table.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     public void getConnection() {
-        Configuration conf = HBaseConfiguration.create();
-        conf.set("hbase.zookeeper.quorum", "192.168.10.20");
-        conf.set("hbase.zookeeper.property.clientPort", "2181");
-        conf.set("zookeeper.znode.parent", "/hbase-unsecure");
-        HBaseHelper hBaseHelper = new HBaseHelper(conf);
-        try {
-            connection = hBaseHelper.getConnection();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        addr = "192.168.10.20";
+        port = "2181";
+        createConnection();
     }
 
+    /**
+     * 创建共享的HBase连接，已创建时直接返回
+     */
+    @PostConstruct
     public void createConnection() {
-        Configuration conf = HBaseConfiguration.create();
-        conf.set("hbase.zookeeper.quorum", addr);
-        conf.set("hbase.zookeeper.property.clientPort", port);
-        conf.set("zookeeper.znode.parent", "/hbase-unsecure");
-        HBaseHelper hBaseHelper = new HBaseHelper(conf);
-        try {
-            connection = hBaseHelper.getConnection();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (isConnected()) {
+            return;
+        }
+        synchronized (HBaseUtil.class) {
+            if (isConnected()) {
+                return;
+            }
+            Configuration conf = HBaseConfiguration.create();
+            conf.set("hbase.zookeeper.quorum", addr);
+            conf.set("hbase.zookeeper.property.clientPort", port);
+            conf.set("zookeeper.znode.parent", znodeParent);
+            conf.setInt("hbase.rpc.timeout", rpcTimeout);
+            conf.setInt("hbase.client.operation.timeout", operationTimeout);
+            conf.setInt("hbase.client.scanner.timeout.period", scannerTimeout);
+            conf.setInt("hbase.client.retries.number", retries);
+            ThreadPoolExecutor executor = newPool("hbase-client-", poolSize);
+            scannerCaching = scanCaching;
+            try {
+                connection = new HBaseHelper(conf).getConnection(executor);
+                pool = executor;
+                countPool = newPool("hbase-count-", countParallelism);
+                logger.info("==== createConnection@exec:" + addr + ":" + port + ", pool size:" + poolSize + " ====");
+            } catch (IOException e) {
+                executor.shutdown();
+                e.printStackTrace();
+                logger.error("==== createConnection@err:" + e.getMessage() + " ====");
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor newPool(String namePrefix, int size) {
+        AtomicInteger threads = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, namePrefix + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public static boolean isConnected() {
+        return null != connection && !connection.isClosed();
+    }
+
+    /**
+     * 从共享连接获取Table句柄，调用方用完后关闭，关闭时统计句柄的使用时长
+     *
+     * @param tableName
+     * @return
+     * @throws IOException 连接未创建或已关闭
+     */
+    private static Table openTable(String tableName) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("HBase连接未创建或已关闭");
+        }
+        Table table = connection.getTable(TableName.valueOf(tableName));
+        TABLES_OPENED.incrementAndGet();
+        TABLES_PEAK.accumulateAndGet(TABLES_ACTIVE.incrementAndGet(), Math::max);
+        long start = System.nanoTime();
+        AtomicBoolean closed = new AtomicBoolean();
+        return (Table) Proxy.newProxyInstance(Table.class.getClassLoader(), new Class<?>[]{Table.class}, (proxy, method, args) -> {
+            if ("close".equals(method.getName()) && closed.compareAndSet(false, true)) {
+                TABLES_ACTIVE.decrementAndGet();
+                CALL_NANOS.addAndGet(System.nanoTime() - start);
+            }
+            try {
+                return method.invoke(table, args);
+            } catch (InvocationTargetException e) {
+                CALL_ERRORS.incrementAndGet();
+                throw e.getCause();
+            }
+        });
+    }
+
+    /**
+     * 连接池和Table句柄指标
+     *
+     * @return
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("connected", isConnected());
+        ThreadPoolExecutor executor = pool;
+        if (null != executor) {
+            metrics.put("poolMaxSize", executor.getMaximumPoolSize());
+            metrics.put("poolSize", executor.getPoolSize());
+            metrics.put("poolActive", executor.getActiveCount());
+            metrics.put("poolLargest", executor.getLargestPoolSize());
+            metrics.put("poolQueued", executor.getQueue().size());
+            metrics.put("poolCompleted", executor.getCompletedTaskCount());
         }
+        long opened = TABLES_OPENED.get();
+        int active = TABLES_ACTIVE.get();
+        metrics.put("tablesOpened", opened);
+        metrics.put("tablesActive", active);
+        metrics.put("tablesPeak", TABLES_PEAK.get());
+        metrics.put("callErrors", CALL_ERRORS.get());
+        long completed = opened - active;
+        metrics.put("callAvgMillis", completed > 0 ? CALL_NANOS.get() / completed / 1000000.0 : 0);
+        metrics.put("rpcTimeout", rpcTimeout);
+        metrics.put("operationTimeout", operationTimeout);
+        return metrics;
     }
 
     public HBaseUtil build() {
@@ -1148,27 +1520,124 @@ public class HBaseUtil {
         return this;
     }
 
+    /**
+     * 根据画像表RowKey(标签倒排索引分页的结果)查询用户信息：
+     * 先从画像表读取用户ID，再从用户表批量读取用户信息，按RowKey的顺序返回，画像表中不存在的用户忽略
+     *
+     * @param profileRowKeys
+     * @return
+     * @throws IOException
+     */
+    public List<Map<String, String>> queryProfileUsers(List<String> profileRowKeys) throws IOException {
+        List<Map<String, String>> users = new ArrayList<>();
+        if (null == profileRowKeys || profileRowKeys.isEmpty()) {
+            return users;
+        }
+        byte[] family = Bytes.toBytes(profileFamily);
+        byte[] userCol = Bytes.toBytes(profileUserCol);
+        List<String> userIds = new ArrayList<>();
+        try (Table table = openTable(profileTable)) {
+            List<Get> gets = new ArrayList<>();
+            for (String rowKey : profileRowKeys) {
+                gets.add(new Get(Bytes.toBytes(rowKey)).addColumn(family, userCol));
+            }
+            for (Result result : table.get(gets)) {
+                byte[] userId = result.getValue(family, userCol);
+                if (null != userId) {
+                    userIds.add(Bytes.toString(userId));
+                }
+            }
+        }
+        if (userIds.isEmpty()) {
+            return users;
+        }
+        List<Map<String, String>> details = queryForRowKeys(userTable, userIds, userFamily);
+        for (int i = 0; i < userIds.size(); i++) {
+            Map<String, String> user = details.get(i);
+            user.put(profileUserCol, userIds.get(i));
+            users.add(user);
+        }
+        return users;
+    }
+
+    public String getProfileTable() {
+        return profileTable;
+    }
+
+    public String getProfileFamily() {
+        return profileFamily;
+    }
+
+    public String getProfileTagIdsCol() {
+        return profileTagIdsCol;
+    }
+
+    public String getProfileMergeTagIdsCol() {
+        return profileMergeTagIdsCol;
+    }
+
+    /**
+     * 标签倒排索引，使用当前连接，连接未创建时先创建
+     *
+     * @return
+     */
+    public TagIndex getTagIndex() {
+        createConnection();
+        return new TagIndex(connection, indexTable, indexFamily);
+    }
+
+    /**
+     * 组合标签物化后的位图索引，使用当前连接
+     *
+     * @return
+     */
+    public TagIndex getMergeTagIndex() {
+        createConnection();
+        return TagIndex.forMergeTags(connection, indexTable, indexFamily);
+    }
+
+    /**
+     * 用户二级索引，使用当前连接
+     *
+     * @return
+     */
+    public UserIndex getUserIndex() {
+        createConnection();
+        return new UserIndex(connection, userIndexTable, userIndexFamily);
+    }
+
     public boolean isExist(String tableName) throws IOException {
         TableName table_name = TableName.valueOf(tableName);
-        Admin admin = connection.getAdmin();
-        boolean exit = admin.tableExists(table_name);
-        admin.close();
-        return exit;
+        try (Admin admin = connection.getAdmin()) {
+            return admin.tableExists(table_name);
+        }
     }
 
     /*
-     * 关闭连接
+     * 关闭连接，应用停止时由Spring调用
      *
      */
+    @PreDestroy
     public void close() {
         /**
          * close connection
          **/
-        if (connection != null) {
-            try {
-                connection.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        synchronized (HBaseUtil.class) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                connection = null;
+            }
+            if (null != pool) {
+                pool.shutdown();
+                pool = null;
+            }
+            if (null != countPool) {
+                countPool.shutdownNow();
+                countPool = null;
             }
         }
     }
@@ -831,6 +831,61 @@ values (1, 8, 1, 'Statistics', 'com.mengyao.tag.commons.models.pub.business.Gend
         '2019-09-17 18:01:46', NULL, 1, NULL, NULL, NULL,
         '--master yarn --deploy-mode cluster --driver-memory 4g --executor-cores 6 --executor-memory 5g');
 
+/*Table structure for table `tbl_model_watermark` */
+
+DROP TABLE IF EXISTS `tbl_model_watermark`;
+
+CREATE TABLE `tbl_model_watermark`
+(
+    `model`     varchar(200) NOT NULL COMMENT '模型名称',
+    `watermark` bigint(20)   NOT NULL COMMENT '上次成功运行的开始时间(毫秒)，增量计算的起点',
+    `utime`     datetime DEFAULT NULL COMMENT '修改时间',
+    PRIMARY KEY (`model`)
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8 COMMENT ='标签模型增量计算高水位表';
+
+/*Table structure for table `tbl_changed_user` */
+
+DROP TABLE IF EXISTS `tbl_changed_user`;
+
+CREATE TABLE `tbl_changed_user`
+(
+    `source_table` varchar(100) NOT NULL COMMENT '源表名',
+    `user_id`      varchar(50)  NOT NULL COMMENT '用户ID',
+    `change_time`  bigint(20)   NOT NULL COMMENT '最后一次变更同步到HBase的时间(毫秒)',
+    PRIMARY KEY (`source_table`, `user_id`),
+    KEY `idx_change_time` (`source_table`, `change_time`)
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8 COMMENT ='CDC同步记录的数据变更用户表';
+
+/*Table structure for table `tbl_model_metrics` */
+
+DROP TABLE IF EXISTS `tbl_model_metrics`;
+
+CREATE TABLE `tbl_model_metrics`
+(
+    `id`                  bigint(20)   NOT NULL AUTO_INCREMENT,
+    `tag_id`              bigint(20)   NOT NULL COMMENT '四级标签ID',
+    `run_id`              varchar(100) NOT NULL COMMENT '运行ID：applicationId-开始时间',
+    `model`               varchar(200) DEFAULT NULL COMMENT '模型名称',
+    `status`              int(11)      DEFAULT NULL COMMENT '运行状态：1成功、2失败',
+    `start_time`          datetime     DEFAULT NULL COMMENT '开始时间',
+    `end_time`            datetime     DEFAULT NULL COMMENT '结束时间',
+    `duration`            bigint(20)   DEFAULT NULL COMMENT '耗时(毫秒)',
+    `stage_count`         int(11)      DEFAULT NULL COMMENT 'Stage数',
+    `input_records`       bigint(20)   DEFAULT NULL COMMENT '读取的数据源行数',
+    `input_bytes`         bigint(20)   DEFAULT NULL COMMENT '读取的数据源字节数',
+    `shuffle_read_bytes`  bigint(20)   DEFAULT NULL COMMENT 'Shuffle读取字节数',
+    `shuffle_write_bytes` bigint(20)   DEFAULT NULL COMMENT 'Shuffle写入字节数',
+    `spill_bytes`         bigint(20)   DEFAULT NULL COMMENT '内存和磁盘溢写字节数',
+    `gc_time`             bigint(20)   DEFAULT NULL COMMENT 'Executor GC时间(毫秒)',
+    `profile_rows`        bigint(20)   DEFAULT NULL COMMENT '写入画像表的行数',
+    `stages`              text COMMENT '各Stage的指标，JSON数组',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `uk_tag_run` (`tag_id`, `run_id`)
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8 COMMENT ='标签模型执行指标表';
+
 /*Table structure for table `tbl_organization` */
 
 DROP TABLE IF EXISTS `tbl_organization`;
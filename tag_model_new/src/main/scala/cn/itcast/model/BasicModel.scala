@@ -2,7 +2,7 @@ package cn.itcast.model
 
 import java.util.Properties
 
-import cn.itcast.model.utils.ShcUtils
+import cn.itcast.model.utils.{ShcUtils, SnapshotUtils}
 import com.typesafe.config.{Config, ConfigFactory}
 import org.apache.spark.sql.{DataFrame, SparkSession}
 
@@ -106,6 +106,16 @@ trait BasicModel {
       return (source, hbaseMeta.commonMeta)
     }
 
+    // 判断是否是快照, 如果是, 则读取当前调度窗口的 Parquet 快照, 同一窗口只扫描一次 HBase
+    if (metaData.isSnapshot) {
+      val snapshotMeta = metaData.toSnapshotMeta
+      val source = SnapshotUtils.read(snapshotMeta.tableName, snapshotMeta.commonMeta.inFields, snapshotMeta.columnFamily,
+        config.getString("snapshot.base_path"), config.getString("snapshot.window_format"), spark)
+      val inFields = SnapshotUtils.parseFields(snapshotMeta.commonMeta.inFields).map(_._1).toArray
+
+      return (source, snapshotMeta.commonMeta.copy(inFields = inFields))
+    }
+
     // 判断是否是 MySQL, 如果是, 则创建 DataFrame
     if (metaData.isRDBMS) {
 
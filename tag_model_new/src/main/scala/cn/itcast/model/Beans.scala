@@ -9,10 +9,11 @@ case class Tag(id: String, name: String, rule: String, pid: String)
 
 /**
  * 元数据信息的数据类型
- * 支持的源库类型有三种
+ * 支持的源库类型有四种
  * * RDBMS MySQL
  * * HDFS file
  * * HBase
+ * * Snapshot, HBase 表的 Parquet 快照
  */
 case class MetaData(in_type: String, driver: String, url: String, username: String, password: String, db_table: String,
                     in_path: String, sperator: String, in_fields: String, cond_fields: String, out_fields: String,
@@ -32,6 +33,10 @@ case class MetaData(in_type: String, driver: String, url: String, username: Stri
     in_type.toLowerCase == "hdfs"
   }
 
+  def isSnapshot: Boolean = {
+    in_type.toLowerCase == "snapshot"
+  }
+
   /**
    * 转换为对应类型的元数据对象, HBase
    */
@@ -51,6 +56,23 @@ case class MetaData(in_type: String, driver: String, url: String, username: Stri
     hbaseMeta
   }
 
+  /**
+   * 转换为快照的元数据对象, in_fields 中可用 "字段:类型" 指定快照中的类型
+   */
+  def toSnapshotMeta: HBaseMeta = {
+    if (! isSnapshot) {
+      return null
+    }
+
+    if (StringUtils.isEmpty(in_fields) || StringUtils.isEmpty(out_fields)) {
+      return null
+    }
+
+    val commonMeta = CommonMeta(in_type, in_fields.split(","), out_fields.split(","))
+
+    HBaseMeta(commonMeta, hbase_table, family)
+  }
+
   /**
    * 转为 MySQLMeta
    */
@@ -12,6 +12,7 @@ import org.apache.hadoop.hbase.{HBaseConfiguration, KeyValue, TableName}
 import org.apache.hadoop.mapreduce.Job
 import org.apache.spark.rdd.RDD
 import org.apache.spark.sql.{Dataset, Row, SparkSession}
+import org.apache.spark.storage.StorageLevel
 
 object Hive2HBase {
   val defaultHBaseCF = "default"
@@ -23,7 +24,7 @@ object Hive2HBase {
    * 这五张表都需要处理, 所以, 可能要写五个程序去抽取
    * 优化点1: 通过 args 传入表名, 和相应的表中的主键
    *
-   * @param args db.table 1. 数据库名, 2. 表名, 3. 表中的主键列名
+   * @param args db.table 1. 数据库名, 2. 表名, 3. 表中的主键列名, 4. 可选, 表为空时预分区的 Region 个数
    */
   def main(args: Array[String]): Unit = {
     // 校验 参数
@@ -35,6 +36,7 @@ object Hive2HBase {
     val sourceDbName = args(0)
     val sourceTableName = args(1)
     val sourceKeyFieldName = args(2)
+    val preSplitRegions = if (args.length > 3) args(3).toInt else 0
 
     // 1. 创建配置
     val hadoopConfig = HBaseConfiguration.create()
@@ -51,7 +53,7 @@ object Hive2HBase {
     job.setMapOutputValueClass(classOf[KeyValue])
 
     val currentHFilePath = s"$hfilePath/$sourceTableName"
-    hive2HFile(sourceDbName, sourceTableName, sourceKeyFieldName, currentHFilePath, hadoopConfig)
+    hive2HFile(sourceDbName, sourceTableName, sourceKeyFieldName, currentHFilePath, hadoopConfig, preSplitRegions)
     hfile2HBase(job, sourceTableName, currentHFilePath)
   }
 
@@ -61,8 +63,12 @@ object Hive2HBase {
    *
    * 来源: Hive 表, sourceDbName.sourceTableName
    * 落地: HDFS 当中的 HFile
+   * 按目标表的 Region 边界分区, 每个 Task 并行为一个 Region 生成 HFile
+   *
+   * @param preSplitRegions 目标表为空时按抽样 RowKey 预分区的 Region 个数, 小于等于 1 时不预分区
    */
-  def hive2HFile(db: String, table: String, keyField: String, hfilePath: String, config: Configuration): Unit = {
+  def hive2HFile(db: String, table: String, keyField: String, hfilePath: String, config: Configuration,
+                 preSplitRegions: Int = 0): Unit = {
     // 创建 SparkSession
     // 注意点: 不能指定 Master, spark-submit 提交的时候, 会指定 Master
     val spark = SparkSession.builder()
@@ -74,17 +80,33 @@ object Hive2HBase {
     // type DataFrame = Dataset[Row]
     val source: Dataset[Row] = spark.read.table(s"$db.$table")
 
-    // 2. 处理数据, (ImmutableBytesWritable, KeyValue)
-    val transfer: RDD[(ImmutableBytesWritable, KeyValue)] = source.rdd
-      // 因为 map 是对一整行数据进行转换, 但是最终的出口应该多个单元格的数据 KV
-      // 所以使用 flatMap, row -> convert -> multi cell KV
+    // 2. 取得 RowKey 的值, HBase 中所有数据类型都是 Bytes
+    val keyed: RDD[(Array[Byte], Row)] = source.rdd
       .filter(row => row.getAs(keyField) != null)
-      .sortBy(row => s"${row.getAs(keyField)}")
-      .flatMap(row => {
-        // HBase 中所有数据类型都是 Bytes
-        // 取得 RowKey 的值
-        val rowKeyBytes = Bytes.toBytes(s"${row.getAs(keyField)}")
+      .map(row => (Bytes.toBytes(s"${row.getAs(keyField)}"), row))
+      .persist(StorageLevel.MEMORY_AND_DISK_SER)
 
+    // 3. 目标表不存在时建表, 为空时按抽样的 RowKey 预分区, 每个 Region 约抽样 1000 个 RowKey
+    val connection = ConnectionFactory.createConnection(config)
+    val tableName = TableName.valueOf(Bytes.toBytes(hbaseDefaultNameSpace), Bytes.toBytes(table))
+    val splitKeys = if (preSplitRegions > 1) {
+      val fraction = math.min(1.0, preSplitRegions * 1000.0 / math.max(keyed.count(), 1L))
+      RegionPartitioner.splitKeys(keyed.keys.sample(withReplacement = false, fraction).collect(), preSplitRegions)
+    } else {
+      Array.empty[Array[Byte]]
+    }
+    RegionPartitioner.ensureTable(connection, tableName, defaultHBaseCF, splitKeys)
+    val partitioner = RegionPartitioner(connection.getRegionLocator(tableName))
+    connection.close()
+
+    // 4. 处理数据, (ImmutableBytesWritable, KeyValue)
+    // 按 Region 边界分区, 分区内按 RowKey 字节序排序, 替代全局的 sortBy
+    import RegionPartitioner.rowKeyOrdering
+    val transfer: RDD[(ImmutableBytesWritable, KeyValue)] = keyed
+      .repartitionAndSortWithinPartitions(partitioner)
+      // 因为 map 是对一整行数据进行转换, 但是最终的出口应该多个单元格的数据 KV
+      // 所以使用 flatMap, row -> convert -> multi cell KV
+      .flatMap { case (rowKeyBytes, row) =>
         // 把 row 拆开, 转换为 cells 形式, 多个单元格, 对每个单元格处理, 转成 KV 形式出去
         val hbaseKV: Seq[(ImmutableBytesWritable, KeyValue)] = row.schema
           .filter(field => row.getAs(field.name) != null)
@@ -103,9 +125,9 @@ object Hive2HBase {
           })
 
         hbaseKV
-      })
+      }
 
-    // 3. 落地, HDFS -> HFile
+    // 5. 落地, HDFS -> HFile
     // HBase 提供了表的访问模式, 但是 HBase 底层存储的数据结构是 KV, K = rowkey:cf:c V=value
     // 所以, 我们要去将数据处理成 KV 的形式, 再落地成 HFile
     // 所以, 最终需要的数据格式是 (K, KV) => (RowKey, (RowKey, Value)) => (ImmutableBytesWritable, KeyValue)
@@ -117,6 +139,7 @@ object Hive2HBase {
       classOf[HFileOutputFormat2],
       config
     )
+    keyed.unpersist()
   }
 
   /**
@@ -0,0 +1,107 @@
+package cn.itcast.model.utils
+
+import org.apache.hadoop.hbase.TableName
+import org.apache.hadoop.hbase.client._
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter
+import org.apache.hadoop.hbase.util.Bytes
+import org.apache.spark.Partitioner
+
+/**
+ * 按 HBase 表的 Region 边界分区
+ * 每个分区对应一个 Region, 配合 repartitionAndSortWithinPartitions 使用,
+ * 每个 Task 只为一个 Region 生成有序的 HFile
+ *
+ * @param startKeys 每个 Region 的起始 RowKey, 第一个为空数组
+ */
+class RegionPartitioner(startKeys: Array[Array[Byte]]) extends Partitioner {
+
+  private val keys = if (startKeys == null || startKeys.isEmpty) Array(Array.emptyByteArray) else startKeys
+
+  override def numPartitions: Int = keys.length
+
+  override def getPartition(key: Any): Int = {
+    val rowKey = key.asInstanceOf[Array[Byte]]
+    // 二分查找起始 RowKey 小于等于该 RowKey 的最后一个 Region
+    var low = 0
+    var high = keys.length - 1
+    while (low < high) {
+      val mid = (low + high + 1) >>> 1
+      if (Bytes.compareTo(keys(mid), rowKey) <= 0) low = mid else high = mid - 1
+    }
+    low
+  }
+
+  override def equals(other: Any): Boolean = other match {
+    case p: RegionPartitioner => p.numPartitions == numPartitions &&
+      keys.zip(p.keys).forall { case (a, b) => Bytes.equals(a, b) }
+    case _ => false
+  }
+
+  override def hashCode(): Int = keys.foldLeft(numPartitions)((h, k) => 31 * h + Bytes.hashCode(k))
+}
+
+object RegionPartitioner {
+
+  /**
+   * RowKey 按字节字典序排序, 与 HFile 中的顺序一致
+   */
+  implicit val rowKeyOrdering: Ordering[Array[Byte]] = new Ordering[Array[Byte]] {
+    override def compare(x: Array[Byte], y: Array[Byte]): Int = Bytes.compareTo(x, y)
+  }
+
+  /**
+   * 读取表当前的 Region 边界
+   */
+  def apply(locator: RegionLocator): RegionPartitioner = new RegionPartitioner(locator.getStartKeys)
+
+  /**
+   * 按抽样的 RowKey 计算预分区的切分点, 抽样不足时返回空数组
+   */
+  def splitKeys(sampleKeys: Array[Array[Byte]], regions: Int): Array[Array[Byte]] = {
+    if (regions <= 1 || sampleKeys.length < regions) {
+      return Array.empty
+    }
+    val sorted = sampleKeys.sorted(rowKeyOrdering)
+    (1 until regions)
+      .map(i => sorted((sorted.length.toLong * i / regions).toInt))
+      .foldLeft(List.empty[Array[Byte]]) { (splits, key) =>
+        // 跳过重复的切分点
+        if (splits.nonEmpty && Bytes.compareTo(splits.head, key) >= 0) splits else key :: splits
+      }
+      .reverse
+      .toArray
+  }
+
+  /**
+   * 表不存在时按切分点创建表, 表为空且只有一个 Region 时按切分点重建表
+   */
+  def ensureTable(connection: Connection, tableName: TableName, family: String, splitKeys: Array[Array[Byte]]): Unit = {
+    val admin = connection.getAdmin
+    try {
+      if (!admin.tableExists(tableName)) {
+        val descriptor = TableDescriptorBuilder.newBuilder(tableName)
+          .setColumnFamily(ColumnFamilyDescriptorBuilder.of(family))
+          .build()
+        if (splitKeys.isEmpty) admin.createTable(descriptor) else admin.createTable(descriptor, splitKeys)
+      } else if (splitKeys.nonEmpty && admin.getRegions(tableName).size() == 1 && isEmpty(connection, tableName)) {
+        val descriptor = admin.getDescriptor(tableName)
+        admin.disableTable(tableName)
+        admin.deleteTable(tableName)
+        admin.createTable(descriptor, splitKeys)
+      }
+    } finally {
+      admin.close()
+    }
+  }
+
+  private def isEmpty(connection: Connection, tableName: TableName): Boolean = {
+    val table = connection.getTable(tableName)
+    val scanner = table.getScanner(new Scan().setFilter(new FirstKeyOnlyFilter()).setLimit(1))
+    try {
+      scanner.next() == null
+    } finally {
+      scanner.close()
+      table.close()
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package cn.itcast.model.utils
+
+import java.io.{BufferedReader, InputStreamReader}
+import java.nio.charset.StandardCharsets
+import java.text.SimpleDateFormat
+import java.util.{Date, UUID}
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FileContext, FileSystem, Options, Path}
+import org.apache.spark.sql.catalyst.parser.CatalystSqlParser
+import org.apache.spark.sql.functions.col
+import org.apache.spark.sql.{DataFrame, SaveMode, SparkSession}
+
+/**
+ * HBase 源表的 Parquet 快照
+ * 每个调度窗口把 HBase 表的指定列按类型物化为 {base}/{table}/{family}/dt={window}/v={version} 下的 Parquet 文件,
+ * 窗口目录下的 _CURRENT 指针文件记录当前版本, 新版本写完后以 rename OVERWRITE 原子替换指针文件, 已发布的版本不会被修改,
+ * 多个应用并发物化时互不影响. 同一窗口内的模型共用该快照, 与 tag-model 中的 SnapshotManager 使用相同的目录和格式, RowKey 列为 row
+ */
+object SnapshotUtils {
+  val SNAPSHOT_ROWKEY_FIELD = "row"
+  val TYPE_SEPARATOR = ":"
+  val DEFAULT_TYPE = "string"
+  val VERSION_PREFIX = "v="
+  val CURRENT_FILE = "_CURRENT"
+
+  /**
+   * 读取当前窗口的快照, 不存在或缺少列时先从 HBase 物化
+   *
+   * @param fields 字段, 可用 "字段:类型" 指定类型, 如 orderAmount:double
+   * @return RowKey 列 id 和字段
+   */
+  def read(tableName: String, fields: Array[String], columnFamily: String, basePath: String, windowFormat: String,
+           spark: SparkSession): DataFrame = {
+    val typed = parseFields(fields)
+    val windowPath = new Path(new Path(basePath, s"$tableName/$columnFamily"), s"dt=${new SimpleDateFormat(windowFormat).format(new Date())}")
+    val conf = spark.sparkContext.hadoopConfiguration
+    val fs = windowPath.getFileSystem(conf)
+
+    // 1. 当前版本包含所需的列时直接复用
+    val current = readCurrent(fs, windowPath)
+    val existing: Seq[(String, String)] = current.map(path => spark.read.parquet(path.toString).schema.fields
+      .filter(_.name != SNAPSHOT_ROWKEY_FIELD)
+      .map(field => (field.name, field.dataType.simpleString))
+      .toSeq).getOrElse(Seq.empty)
+    val existingTypes = existing.toMap
+
+    // 2. 否则(缺少列或列的类型不同)按已有列和新列的并集物化为新版本, 指定的类型覆盖已有列的类型, 写完后再发布
+    val sameType = (field: (String, String)) =>
+      existingTypes.get(field._1).contains(CatalystSqlParser.parseDataType(field._2).simpleString)
+    val path = if (current.isEmpty || !typed.forall(sameType)) {
+      val requested = typed.toMap
+      val columns = existing.map(field => (field._1, requested.getOrElse(field._1, field._2))) ++
+        typed.filterNot(field => existingTypes.contains(field._1))
+      val version = new Path(windowPath, s"$VERSION_PREFIX${System.currentTimeMillis()}-${UUID.randomUUID().toString.substring(0, 8)}")
+      ShcUtils.read(tableName, columns.map(_._1).toArray, columnFamily, spark)
+        .select(col(ShcUtils.HBASE_ROWKEY_FIELD).as(SNAPSHOT_ROWKEY_FIELD) +: columns.map(field => col(field._1).cast(field._2).as(field._1)): _*)
+        .write
+        .mode(SaveMode.ErrorIfExists)
+        .parquet(version.toString)
+      publish(conf, fs, windowPath, version)
+      version
+    } else {
+      current.get
+    }
+
+    // 3. 读取快照, RowKey 列与 ShcUtils 一致为 id
+    spark.read.parquet(path.toString)
+      .select(col(SNAPSHOT_ROWKEY_FIELD).as(ShcUtils.HBASE_ROWKEY_FIELD) +: typed.map(field => col(field._1)): _*)
+  }
+
+  /**
+   * 读取窗口的当前版本, 没有指针文件或版本不完整时返回 None
+   */
+  def readCurrent(fs: FileSystem, windowPath: Path): Option[Path] = {
+    val pointer = new Path(windowPath, CURRENT_FILE)
+    if (!fs.exists(pointer)) {
+      return None
+    }
+    val reader = new BufferedReader(new InputStreamReader(fs.open(pointer), StandardCharsets.UTF_8))
+    val name = try Option(reader.readLine()).map(_.trim).filter(_.nonEmpty) finally reader.close()
+    name.map(new Path(windowPath, _)).filter(version => fs.exists(new Path(version, "_SUCCESS")))
+  }
+
+  /**
+   * 先写临时指针文件, 再以 rename OVERWRITE 原子替换 _CURRENT, rename 失败时抛出异常, 快照不会被发布
+   */
+  def publish(conf: Configuration, fs: FileSystem, windowPath: Path, version: Path): Unit = {
+    val tmp = new Path(windowPath, s"_tmp${CURRENT_FILE}_${version.getName}")
+    val out = fs.create(tmp, true)
+    try out.write(version.getName.getBytes(StandardCharsets.UTF_8)) finally out.close()
+    FileContext.getFileContext(fs.getUri, conf).rename(tmp, new Path(windowPath, CURRENT_FILE), Options.Rename.OVERWRITE)
+  }
+
+  /**
+   * 解析字段, 返回 (字段, 类型)
+   */
+  def parseFields(fields: Array[String]): Seq[(String, String)] = {
+    fields.filter(_.trim.nonEmpty).map(field => {
+      val nameType = field.trim.split(TYPE_SEPARATOR)
+      (nameType(0).trim, if (nameType.length > 1) nameType(1).trim else DEFAULT_TYPE)
+    }).toSeq
+  }
+}